@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.connection.DefaultSignatureFactory;
+import net.tomp2p.connection.SignatureFactory;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.AlternativeCompositeByteBuf;
+import net.tomp2p.storage.Data;
+import net.tomp2p.storage.StorageLayer;
+import net.tomp2p.storage.StorageMemory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The path of a large value through a peer: received into a pooled buffer, decoded, stored, and encoded again as the
+ * reply of a get. With "slice", the stored data object keeps the slice of the received buffer and the encoder adds it
+ * as a component. With "copy", the payload is materialized as byte[] before it is stored. Run with -prof gc to see
+ * the allocation rate.
+ * 
+ * @author Thomas Bocek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataTransferBenchmark {
+
+    @Param({ "65536", "1048576", "10485760" })
+    private int size;
+
+    @Param({ "slice", "copy" })
+    private String mode;
+
+    private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+    private final SignatureFactory signatureFactory = new DefaultSignatureFactory();
+    private final Number640 key = new Number640(new Number160(1), Number160.ZERO, Number160.ZERO, Number160.ZERO);
+
+    private byte[] encoded;
+    private StorageLayer storageLayer;
+
+    @Setup
+    public void setup() {
+        final byte[] value = new byte[size];
+        new Random(42L).nextBytes(value);
+        final AlternativeCompositeByteBuf buf = AlternativeCompositeByteBuf.compBuffer();
+        final Data data = new Data(value);
+        data.encodeHeader(buf);
+        data.encodeDone(buf);
+        encoded = new byte[buf.readableBytes()];
+        buf.readBytes(encoded);
+        buf.release();
+        storageLayer = new StorageLayer(new StorageMemory());
+    }
+
+    @Benchmark
+    public int receiveStoreSend() {
+        // what the channel reads from the socket
+        final ByteBuf received = alloc.directBuffer(encoded.length);
+        received.writeBytes(encoded);
+
+        Data data = Data.decodeHeader(received, signatureFactory);
+        data.decodeBuffer(received);
+        data.decodeDone(received, null);
+        received.release();
+        if ("copy".equals(mode)) {
+            final Data copy = new Data(data.toBytes());
+            data.release();
+            data = copy;
+        }
+        storageLayer.put(key, data, null, false, false);
+
+        final Data stored = storageLayer.get(key);
+        final AlternativeCompositeByteBuf reply = AlternativeCompositeByteBuf.compDirectBuffer();
+        stored.encodeHeader(reply);
+        stored.encodeDone(reply);
+        stored.release();
+        final int length = reply.readableBytes();
+        reply.release();
+
+        // the storage holds its own reference, which is released when the value is overwritten by the next iteration
+        data.release();
+        return length;
+    }
+}
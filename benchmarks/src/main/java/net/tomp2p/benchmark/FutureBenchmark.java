@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureDone;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Listener dispatch of {@link net.tomp2p.futures.BaseFutureImpl}, once with the listeners added before the future
+ * completes, and once added after it completed, in which case they are called right away.
+ * 
+ * @author Thomas Bocek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FutureBenchmark {
+
+    @Param({ "1", "10" })
+    private int listeners;
+
+    @Benchmark
+    public FutureDone<Integer> listenBeforeDone(final Blackhole blackhole) {
+        final FutureDone<Integer> future = new FutureDone<Integer>();
+        for (int i = 0; i < listeners; i++) {
+            future.addListener(new Listener(blackhole));
+        }
+        return future.setDone(1);
+    }
+
+    @Benchmark
+    public FutureDone<Integer> listenAfterDone(final Blackhole blackhole) {
+        final FutureDone<Integer> future = new FutureDone<Integer>().setDone(1);
+        for (int i = 0; i < listeners; i++) {
+            future.addListener(new Listener(blackhole));
+        }
+        return future;
+    }
+
+    private static final class Listener extends BaseFutureAdapter<FutureDone<Integer>> {
+        private final Blackhole blackhole;
+
+        private Listener(final Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void operationComplete(final FutureDone<Integer> future) throws Exception {
+            blackhole.consume(future.getObject());
+        }
+    }
+}
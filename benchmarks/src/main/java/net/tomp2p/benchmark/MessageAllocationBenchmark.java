@@ -0,0 +1,144 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.message.Decoder;
+import net.tomp2p.message.Encoder;
+import net.tomp2p.message.Message;
+import net.tomp2p.message.Message.Type;
+import net.tomp2p.message.NeighborSet;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.rpc.DispatchHandler;
+import net.tomp2p.storage.AlternativeCompositeByteBuf;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The small messages that dominate the traffic of a busy peer: a ping and a routing reply with 20 neighbors. The
+ * decoder is reused as it is in the UDP and TCP pipeline, so that with -prof gc, gc.alloc.rate.norm shows the bytes
+ * allocated per message by the codec.
+ *
+ * @author Thomas Bocek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageAllocationBenchmark {
+
+    private static final int NEIGHBORS = 20;
+
+    private PeerAddress sender;
+    private PeerAddress recipient;
+    private InetSocketAddress senderSocket;
+    private InetSocketAddress recipientSocket;
+    private Collection<PeerAddress> neighbors;
+    private Message request;
+    private ByteBuf ping;
+    private ByteBuf reply;
+
+    private final Encoder encoder = new Encoder(null);
+    private final Decoder decoder = new Decoder(null);
+
+    @Setup
+    public void setup() throws Exception {
+        final Random rnd = new Random(42L);
+        final InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        sender = new PeerAddress(new Number160(rnd), localhost, 8001, 8002);
+        recipient = new PeerAddress(new Number160(rnd), localhost, 8003, 8004);
+        senderSocket = sender.createSocketUDP();
+        recipientSocket = recipient.createSocketUDP();
+        neighbors = new ArrayList<PeerAddress>(NEIGHBORS);
+        for (int i = 0; i < NEIGHBORS; i++) {
+            neighbors.add(new PeerAddress(new Number160(rnd), localhost, 9000 + i, 9000 + i));
+        }
+        request = new Message();
+        request.setSender(sender).setRecipient(recipient).setType(Type.REQUEST_1).setCommand((byte) 0);
+        request.senderSocket(senderSocket).recipientSocket(recipientSocket);
+        ping = copy(encode(request));
+        reply = copy(encode(neighborReply()));
+    }
+
+    @Benchmark
+    public Message decodePing() throws Exception {
+        return decode(ping);
+    }
+
+    @Benchmark
+    public Message decodeNeighbors() throws Exception {
+        return decode(reply);
+    }
+
+    @Benchmark
+    public int encodeNeighbors() throws Exception {
+        final Message message = neighborReply();
+        final AlternativeCompositeByteBuf buf = encode(message);
+        final int length = buf.readableBytes();
+        buf.release();
+        message.recycle();
+        return length;
+    }
+
+    private Message neighborReply() {
+        final Message message = DispatchHandler.createResponseMessage(request, Type.OK, recipient);
+        message.setNeighborsSet(new NeighborSet(-1, neighbors));
+        return message;
+    }
+
+    private Message decode(final ByteBuf buf) throws Exception {
+        buf.readerIndex(0);
+        decoder.decodeHeader(buf, recipientSocket, senderSocket);
+        decoder.decodePayload(buf);
+        return decoder.prepareFinish();
+    }
+
+    private AlternativeCompositeByteBuf encode(final Message message) throws Exception {
+        final AlternativeCompositeByteBuf buf = AlternativeCompositeByteBuf.compBuffer();
+        encoder.reset();
+        encoder.write(buf, message);
+        return buf;
+    }
+
+    private static ByteBuf copy(final AlternativeCompositeByteBuf buf) {
+        final byte[] me = new byte[buf.readableBytes()];
+        buf.readBytes(me);
+        buf.release();
+        return Unpooled.wrappedBuffer(me);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.message.DataMap;
+import net.tomp2p.message.Decoder;
+import net.tomp2p.message.Encoder;
+import net.tomp2p.message.Message;
+import net.tomp2p.message.Message.Type;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.storage.AlternativeCompositeByteBuf;
+import net.tomp2p.storage.Data;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of a put request with a data map, which is the typical message of a DHT. A message can only
+ * be encoded once, since the encoder consumes its content references, thus, the encode benchmark includes the
+ * creation of the message.
+ * 
+ * @author Thomas Bocek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    @Param({ "1", "10" })
+    private int entries;
+
+    @Param({ "100", "10000" })
+    private int size;
+
+    private PeerAddress sender;
+    private PeerAddress recipient;
+    private InetSocketAddress senderSocket;
+    private InetSocketAddress recipientSocket;
+    private Map<Number640, Data> dataMap;
+    private byte[] encoded;
+
+    private final Encoder encoder = new Encoder(null);
+
+    @Setup
+    public void setup() throws Exception {
+        final Random rnd = new Random(42L);
+        final InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        sender = new PeerAddress(new Number160(rnd), localhost, 8001, 8002);
+        recipient = new PeerAddress(new Number160(rnd), localhost, 8003, 8004);
+        senderSocket = sender.createSocketTCP();
+        recipientSocket = recipient.createSocketTCP();
+        dataMap = new HashMap<Number640, Data>();
+        final Number160 locationKey = new Number160(rnd);
+        for (int i = 0; i < entries; i++) {
+            final byte[] value = new byte[size];
+            rnd.nextBytes(value);
+            dataMap.put(new Number640(locationKey, Number160.ZERO, new Number160(rnd), Number160.ZERO), new Data(
+                    value));
+        }
+        final AlternativeCompositeByteBuf buf = encode();
+        encoded = new byte[buf.readableBytes()];
+        buf.readBytes(encoded);
+        buf.release();
+    }
+
+    @Benchmark
+    public int encodePut() throws Exception {
+        final AlternativeCompositeByteBuf buf = encode();
+        final int length = buf.readableBytes();
+        buf.release();
+        return length;
+    }
+
+    @Benchmark
+    public Message decodePut() throws Exception {
+        final ByteBuf buf = Unpooled.wrappedBuffer(encoded);
+        final Decoder decoder = new Decoder(null);
+        decoder.decodeHeader(buf, recipientSocket, senderSocket);
+        decoder.decodePayload(buf);
+        return decoder.message();
+    }
+
+    private AlternativeCompositeByteBuf encode() throws Exception {
+        final Message message = new Message();
+        message.setSender(sender).setRecipient(recipient).setType(Type.REQUEST_1).setCommand((byte) 1);
+        message.setDataMap(new DataMap(dataMap));
+        final AlternativeCompositeByteBuf buf = AlternativeCompositeByteBuf.compBuffer();
+        encoder.reset();
+        encoder.write(buf, message);
+        return buf;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.benchmark;
+
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The operations on {@link Number160} that are used for routing and for the sorted storage maps. The
+ * {@link Number640} benchmarks measure the key ordering of the storage, which compares the four {@link Number160}.
+ * 
+ * @author Thomas Bocek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Number160Benchmark {
+
+    private static final int SIZE = 1024;
+
+    private Number160[] numbers;
+    private byte[][] bytes;
+    private Number640[] keys;
+    private NavigableMap<Number640, Integer> sortedMap;
+    private int index;
+
+    @Setup
+    public void setup() {
+        final Random rnd = new Random(42L);
+        numbers = new Number160[SIZE];
+        bytes = new byte[SIZE][];
+        for (int i = 0; i < SIZE; i++) {
+            numbers[i] = new Number160(rnd);
+            bytes[i] = numbers[i].toByteArray();
+        }
+        // keys with the same location and domain, as stored by one peer for one location
+        keys = new Number640[SIZE];
+        sortedMap = new ConcurrentSkipListMap<Number640, Integer>();
+        final Number160 locationKey = new Number160(rnd);
+        final Number160 domainKey = new Number160(rnd);
+        for (int i = 0; i < SIZE; i++) {
+            keys[i] = new Number640(locationKey, domainKey, new Number160(rnd), Number160.ZERO);
+            sortedMap.put(keys[i], i);
+        }
+    }
+
+    @Benchmark
+    public Number160 xor() {
+        final int i = index++;
+        return numbers[i & (SIZE - 1)].xor(numbers[(i + 1) & (SIZE - 1)]);
+    }
+
+    @Benchmark
+    public int compareTo() {
+        final int i = index++;
+        return numbers[i & (SIZE - 1)].compareTo(numbers[(i + 1) & (SIZE - 1)]);
+    }
+
+    @Benchmark
+    public boolean equals() {
+        final int i = index++;
+        return numbers[i & (SIZE - 1)].equals(numbers[(i + 1) & (SIZE - 1)]);
+    }
+
+    @Benchmark
+    public int hashCodeNumber() {
+        return numbers[index++ & (SIZE - 1)].hashCode();
+    }
+
+    @Benchmark
+    public int isCloser() {
+        final int i = index++;
+        return PeerMap.isCloser(numbers[i & (SIZE - 1)], numbers[(i + 1) & (SIZE - 1)],
+                numbers[(i + 2) & (SIZE - 1)]);
+    }
+
+    @Benchmark
+    public int compareDistance() {
+        final int i = index++;
+        return numbers[i & (SIZE - 1)].compareDistance(numbers[(i + 1) & (SIZE - 1)],
+                numbers[(i + 2) & (SIZE - 1)]);
+    }
+
+    @Benchmark
+    public int xorBitLength() {
+        final int i = index++;
+        return numbers[i & (SIZE - 1)].xorBitLength(numbers[(i + 1) & (SIZE - 1)]);
+    }
+
+    @Benchmark
+    public int compareToNumber640() {
+        final int i = index++;
+        return keys[i & (SIZE - 1)].compareTo(keys[(i + 1) & (SIZE - 1)]);
+    }
+
+    @Benchmark
+    public Integer sortedMapGet() {
+        return sortedMap.get(keys[index++ & (SIZE - 1)]);
+    }
+
+    @Benchmark
+    public byte[] toByteArray() {
+        return numbers[index++ & (SIZE - 1)].toByteArray();
+    }
+
+    @Benchmark
+    public Number160 fromByteArray() {
+        return new Number160(bytes[index++ & (SIZE - 1)]);
+    }
+
+    @Benchmark
+    public Number160 createHash() {
+        return Number160.createHash(index++);
+    }
+}
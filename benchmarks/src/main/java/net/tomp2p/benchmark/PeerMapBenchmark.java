@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.benchmark;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerMapConfiguration;
+import net.tomp2p.peers.PeerStatatistic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookup of the closest peers to a random key, as done for every routing step. The bag sizes are set such that all
+ * peers fit into the verified map. {@link #closePeersTreeSet()} is the former implementation of
+ * {@link PeerMap#closePeers(Number160, int)}, which inserts every candidate into a {@link TreeSet} with the XOR
+ * comparator, to compare against the flat table with primitive distances.
+ * 
+ * @author Thomas Bocek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeerMapBenchmark {
+
+    private static final int KEYS = 1024;
+
+    @Param({ "100", "1000", "10000" })
+    private int peers;
+
+    @Param({ "20" })
+    private int atLeast;
+
+    private PeerMap peerMap;
+    private Number160[] keys;
+    private int index;
+
+    @Setup
+    public void setup() throws Exception {
+        final Random rnd = new Random(42L);
+        final InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        peerMap = new PeerMap(new PeerMapConfiguration(new Number160(rnd)).bagSizeVerified(peers).bagSizeOverflow(
+                peers));
+        for (int i = 0; i < peers; i++) {
+            peerMap.peerFound(new PeerAddress(new Number160(rnd), localhost, 4000 + i, 4000 + i), null);
+        }
+        keys = new Number160[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = new Number160(rnd);
+        }
+    }
+
+    @Benchmark
+    public NavigableSet<PeerAddress> closePeers() {
+        return peerMap.closePeers(keys[index++ & (KEYS - 1)], atLeast);
+    }
+
+    @Benchmark
+    public List<PeerAddress> closestPeers() {
+        return peerMap.closestPeers(keys[index++ & (KEYS - 1)], atLeast);
+    }
+
+    @Benchmark
+    public NavigableSet<PeerAddress> closePeersTreeSet() {
+        final Number160 key = keys[index++ & (KEYS - 1)];
+        final List<Map<Number160, PeerStatatistic>> bags = peerMap.peerMapVerified();
+        final NavigableSet<PeerAddress> set = new TreeSet<PeerAddress>(PeerMap.createComparator(key));
+        final int classMember = peerMap.self().xor(key).bitLength() - 1;
+        if (fillSet(set, bags.get(classMember))) {
+            return set;
+        }
+        boolean last = false;
+        for (int i = 0; i < classMember; i++) {
+            last = fillSet(set, bags.get(i));
+        }
+        if (last) {
+            return set;
+        }
+        for (int i = classMember + 1; i < Number160.BITS; i++) {
+            fillSet(set, bags.get(i));
+        }
+        return set;
+    }
+
+    private boolean fillSet(final NavigableSet<PeerAddress> set, final Map<Number160, PeerStatatistic> bag) {
+        synchronized (bag) {
+            for (final PeerStatatistic peerStatatistic : bag.values()) {
+                set.add(peerStatatistic.getPeerAddress());
+            }
+        }
+        return set.size() >= atLeast;
+    }
+}
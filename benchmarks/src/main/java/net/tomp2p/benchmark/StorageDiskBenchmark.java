@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+import net.tomp2p.storage.Storage;
+import net.tomp2p.storage.StorageDisk;
+import net.tomp2p.storage.StorageLayer;
+import net.tomp2p.storage.StorageMemory;
+import net.tomp2p.utils.Utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Puts of 1 KB values through a {@link StorageLayer} backed by {@link StorageMemory} or by {@link StorageDisk},
+ * either with the default group commit or with a commit on every change. The puts overwrite a fixed set of keys, so
+ * the size of the storage stays constant.
+ *
+ * @author Thomas Bocek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorageDiskBenchmark {
+
+    private static final int KEYS = 10000;
+
+    private static final int SIZE = 1024;
+
+    @Param({ "memory", "disk", "disk-commit-per-change" })
+    private String storageType;
+
+    private Storage storage;
+    private StorageLayer storageLayer;
+    private File dir;
+    private Number640[] keys;
+    private Data data;
+    private int index;
+
+    @Setup
+    public void setup() throws IOException {
+        if ("memory".equals(storageType)) {
+            storage = new StorageMemory();
+        } else {
+            dir = Utils.createTempDir();
+            storage = "disk".equals(storageType) ? new StorageDisk(dir) : new StorageDisk(dir, null,
+                    StorageDisk.DEFAULT_COMMIT_INTERVAL_MILLIS, 1);
+        }
+        storageLayer = new StorageLayer(storage);
+        final Random rnd = new Random(42L);
+        final byte[] me = new byte[SIZE];
+        rnd.nextBytes(me);
+        data = new Data(me);
+        keys = new Number640[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = new Number640(rnd);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        storage.close();
+        if (dir != null) {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Benchmark
+    public Enum<?> put() {
+        return storageLayer.put(keys[index++ % KEYS], data, null, false, false);
+    }
+}
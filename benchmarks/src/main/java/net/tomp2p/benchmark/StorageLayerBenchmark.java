@@ -0,0 +1,131 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.benchmark;
+
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+import net.tomp2p.storage.StorageLayer;
+import net.tomp2p.storage.StorageMemory;
+import net.tomp2p.utils.Utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Put, get and range queries on a {@link StorageLayer} backed by {@link StorageMemory}. The storage holds
+ * locations * 10 entries, the puts overwrite existing entries, so the size stays constant. Run with -t to measure
+ * contention, e.g. the contention curve of {@link #mixed(Index)} with -t 1, 2, 4, ..., 64.
+ * <p>
+ * Reads are not lock-free: a get takes the lock stripe of its location key while it takes its reference to the
+ * payload, and a range over several location keys takes all stripes. The curve of {@link #mixed(Index)} therefore
+ * shows readers and writers of the same stripe waiting for each other.
+ * 
+ * @author Thomas Bocek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(1)
+@Fork(1)
+public class StorageLayerBenchmark {
+
+    private static final int CONTENT = 10;
+
+    @Param({ "1000", "100000" })
+    private int locations;
+
+    private StorageLayer storageLayer;
+    private Number640[] keys;
+    private Number160[] locationKeys;
+    private Data data;
+
+    @State(Scope.Thread)
+    public static class Index {
+        private int index;
+        private final Random rnd = new Random();
+    }
+
+    @Setup
+    public void setup() {
+        final Random rnd = new Random(42L);
+        storageLayer = new StorageLayer(new StorageMemory());
+        data = new Data(new byte[100]);
+        keys = new Number640[locations * CONTENT];
+        locationKeys = new Number160[locations];
+        for (int i = 0; i < locations; i++) {
+            locationKeys[i] = new Number160(rnd);
+            for (int j = 0; j < CONTENT; j++) {
+                final Number640 key = new Number640(locationKeys[i], Number160.ZERO, new Number160(rnd),
+                        Number160.ZERO);
+                keys[i * CONTENT + j] = key;
+                storageLayer.put(key, data, null, false, false);
+            }
+        }
+    }
+
+    @Benchmark
+    public Enum<?> put(final Index index) {
+        return storageLayer.put(keys[index.index++ % keys.length], data, null, false, false);
+    }
+
+    @Benchmark
+    public Data get(final Index index) {
+        final Data data = storageLayer.get(keys[index.index++ % keys.length]);
+        data.release();
+        return data;
+    }
+
+    /**
+     * 80% get and 20% put on random keys, so that the threads do not access the keys in the same order.
+     */
+    @Benchmark
+    public Object mixed(final Index index) {
+        final Number640 key = keys[index.rnd.nextInt(keys.length)];
+        if (index.rnd.nextInt(5) == 0) {
+            return storageLayer.put(key, data, null, false, false);
+        }
+        final Data stored = storageLayer.get(key);
+        stored.release();
+        return stored;
+    }
+
+    @Benchmark
+    public NavigableMap<Number640, Data> subMap(final Index index) {
+        final Number160 locationKey = locationKeys[index.index++ % locations];
+        final NavigableMap<Number640, Data> dataMap = storageLayer.get(new Number640(locationKey, Number160.ZERO,
+                Number160.ZERO, Number160.ZERO), new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE,
+                Number160.MAX_VALUE), -1, true);
+        Utils.release(dataMap);
+        return dataMap;
+    }
+}
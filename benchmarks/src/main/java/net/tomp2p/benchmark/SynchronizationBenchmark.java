@@ -0,0 +1,129 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.replication.Checksum;
+import net.tomp2p.replication.Instruction;
+import net.tomp2p.replication.StreamingSynchronization;
+import net.tomp2p.replication.Synchronization;
+import net.tomp2p.utils.Utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The rsync algorithm of {@link Synchronization} on arrays compared with {@link StreamingSynchronization} on buffers,
+ * each with the block size that the synchronization RPC uses. The new value differs from the old value in a few bytes.
+ * The old implementation recurses once per byte and searches the checksums linearly, so it only runs with a large
+ * stack and small values.
+ *
+ * @author Thomas Bocek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xss512m")
+public class SynchronizationBenchmark {
+
+    @Param({ "4096", "65536" })
+    private int size;
+
+    private byte[] oldValue;
+    private byte[] newValue;
+    private Number160 hash;
+
+    private byte[] oldChecksums;
+    private byte[] oldDelta;
+
+    private ByteBuf oldBuf;
+    private ByteBuf newBuf;
+    private ByteBuf checksums;
+    private ByteBuf delta;
+
+    @Setup
+    public void setup() {
+        final Random rnd = new Random(42L);
+        oldValue = new byte[size];
+        rnd.nextBytes(oldValue);
+        newValue = oldValue.clone();
+        for (int i = 0; i < 8; i++) {
+            newValue[rnd.nextInt(size)]++;
+        }
+        hash = Utils.makeSHAHash(newValue);
+
+        oldChecksums = Synchronization.encodeChecksumList(Synchronization.getChecksums(oldValue,
+                Synchronization.SIZE));
+        oldDelta = deltaOld();
+
+        oldBuf = Unpooled.wrappedBuffer(oldValue);
+        newBuf = Unpooled.wrappedBuffer(newValue);
+        checksums = checksumsStreaming();
+        delta = deltaStreaming();
+    }
+
+    @Benchmark
+    public byte[] checksumsOld() {
+        return Synchronization.encodeChecksumList(Synchronization.getChecksums(oldValue, Synchronization.SIZE));
+    }
+
+    @Benchmark
+    public ByteBuf checksumsStreaming() {
+        return StreamingSynchronization.checksums(oldBuf, StreamingSynchronization.blockSize(size), 1);
+    }
+
+    @Benchmark
+    public byte[] deltaOld() {
+        final ArrayList<Checksum> decoded = Synchronization.decodeChecksumList(oldChecksums);
+        final ArrayList<Instruction> instructions = Synchronization.getInstructions(newValue, decoded,
+                Synchronization.SIZE);
+        return Synchronization.encodeInstructionList(instructions, hash);
+    }
+
+    @Benchmark
+    public ByteBuf deltaStreaming() {
+        return StreamingSynchronization.delta(newBuf, checksums, hash, 1);
+    }
+
+    @Benchmark
+    public byte[] reconstructOld() {
+        return Synchronization.getReconstructedValue(oldValue, Synchronization.decodeInstructionList(oldDelta),
+                Synchronization.SIZE);
+    }
+
+    @Benchmark
+    public ByteBuf reconstructStreaming() {
+        return StreamingSynchronization.reconstruct(oldBuf, delta);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.message.TrackerData;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.storage.Data;
+import net.tomp2p.storage.TrackerIndex;
+import net.tomp2p.storage.TrackerStorage;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The heap used per swarm membership on a tracker, with full swarms of {@link TrackerStorage#TRACKER_SIZE} peers and
+ * each peer in 10 swarms on average. The "index" variant fills a {@link TrackerIndex}, the "map" variant the layout
+ * that the tracker storage used before: a map of peer addresses per swarm and a set of swarms per peer. As each
+ * request decodes its own peer address, every membership gets a new address object in both variants. The result is
+ * the counter bytesPerMembership, measured with a full GC before and after.
+ *
+ * @author Thomas Bocek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class TrackerMemoryBenchmark {
+
+    private static final int SWARMS_PER_PEER = 10;
+
+    @Param({ "index", "map" })
+    private String layout;
+
+    @Param({ "10000000" })
+    private int memberships;
+
+    private Number160[] peerIds;
+    private InetAddress localhost;
+
+    /**
+     * The counters of the benchmark.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Memory {
+        public double bytesPerMembership;
+        public double estimatedBytesPerMembership;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytesPerMembership = 0;
+            estimatedBytesPerMembership = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        final Random rnd = new Random(42L);
+        peerIds = new Number160[memberships / SWARMS_PER_PEER];
+        for (int i = 0; i < peerIds.length; i++) {
+            peerIds[i] = new Number160(rnd);
+        }
+        localhost = InetAddress.getByName("127.0.0.1");
+    }
+
+    @Benchmark
+    public Object fill(final Memory memory) {
+        final long before = usedHeap();
+        final long count;
+        final Object tracker;
+        if ("index".equals(layout)) {
+            final TrackerIndex index = new TrackerIndex(Integer.MAX_VALUE / 2, Long.MAX_VALUE);
+            fillIndex(index);
+            count = index.memberships();
+            memory.estimatedBytesPerMembership = index.bytes() / (double) count;
+            tracker = index;
+        } else {
+            final Map<Number320, TrackerData> swarms = new HashMap<Number320, TrackerData>();
+            final Map<Number160, Collection<Number320>> reverse = new HashMap<Number160, Collection<Number320>>();
+            fillMap(swarms, reverse);
+            long tmp = 0;
+            for (TrackerData trackerData : swarms.values()) {
+                tmp += trackerData.size();
+            }
+            count = tmp;
+            tracker = new Object[] { swarms, reverse };
+        }
+        memory.bytesPerMembership = (usedHeap() - before) / (double) count;
+        return tracker;
+    }
+
+    private void fillIndex(final TrackerIndex index) {
+        final Random rnd = new Random(1L);
+        for (int i = 0; i < memberships; i++) {
+            final Number320 swarm = swarm(i);
+            index.put(swarm, peerAddress(rnd), null, Integer.MAX_VALUE);
+        }
+    }
+
+    private void fillMap(final Map<Number320, TrackerData> swarms, final Map<Number160, Collection<Number320>> reverse) {
+        final Random rnd = new Random(1L);
+        for (int i = 0; i < memberships; i++) {
+            final Number320 swarm = swarm(i);
+            final PeerAddress peerAddress = peerAddress(rnd);
+            TrackerData trackerData = swarms.get(swarm);
+            if (trackerData == null) {
+                trackerData = new TrackerData(new HashMap<PeerAddress, Data>(), null);
+                swarms.put(swarm, trackerData);
+            }
+            trackerData.put(peerAddress, null);
+            Collection<Number320> collection = reverse.get(peerAddress.getPeerId());
+            if (collection == null) {
+                collection = new HashSet<Number320>();
+                reverse.put(peerAddress.getPeerId(), collection);
+            }
+            collection.add(swarm);
+        }
+    }
+
+    private Number320 swarm(final int membership) {
+        return new Number320(new Number160(membership / TrackerStorage.TRACKER_SIZE), Number160.ZERO);
+    }
+
+    private PeerAddress peerAddress(final Random rnd) {
+        // a new object, as if decoded from a message
+        return new PeerAddress(new Number160(peerIds[rnd.nextInt(peerIds.length)].toIntArray()), localhost, 4000,
+                4000);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
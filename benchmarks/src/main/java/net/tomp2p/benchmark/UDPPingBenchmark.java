@@ -0,0 +1,104 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.connection.DefaultConnectionConfiguration;
+import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.p2p.PeerMaker;
+import net.tomp2p.peers.Number160;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * UDP pings per second between two peers on the loopback interface. Each invocation sends a batch of pings at once
+ * and waits for all replies. The receiver decodes and dispatches in its event loop (0) or with the given number of
+ * threads, see {@link net.tomp2p.connection.ChannelServerConficuration#udpExecutorThreads(int)}.
+ *
+ * @author Thomas Bocek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UDPPingBenchmark {
+
+    private static final int BATCH = 100;
+
+    @Param({ "0", "1", "4" })
+    private int udpExecutorThreads;
+
+    private Peer sender;
+    private Peer receiver;
+
+    @Setup
+    public void setup() throws IOException {
+        sender = createPeer(new Number160(1), 5101);
+        receiver = createPeer(new Number160(2), 5102);
+    }
+
+    private Peer createPeer(final Number160 peerId, final int port) throws IOException {
+        return new PeerMaker(peerId).ports(port).setEnableMaintenance(false)
+                .channelServerConfiguration(PeerMaker.createDefaultChannelServerConfiguration()
+                        .udpExecutorThreads(udpExecutorThreads)).makeAndListen();
+    }
+
+    @TearDown
+    public void tearDown() {
+        sender.shutdown().awaitUninterruptibly();
+        receiver.shutdown().awaitUninterruptibly();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int ping() {
+        final FutureChannelCreator fcc = sender.getConnectionBean().reservation().create(BATCH, 0);
+        fcc.awaitUninterruptibly();
+        final ChannelCreator cc = fcc.getChannelCreator();
+        final FutureResponse[] futures = new FutureResponse[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            futures[i] = sender.getHandshakeRPC().pingUDP(receiver.getPeerAddress(), cc,
+                    new DefaultConnectionConfiguration());
+        }
+        int success = 0;
+        for (FutureResponse future : futures) {
+            if (future.awaitUninterruptibly().isSuccess()) {
+                success++;
+            }
+        }
+        cc.shutdown().awaitUninterruptibly();
+        return success;
+    }
+}
@@ -16,6 +16,8 @@
 
 package net.tomp2p.connection;
 
+import io.netty.buffer.ByteBufAllocator;
+
 /**
  * The class that stores the limits for the resource reservation.
  * 
@@ -28,10 +30,18 @@ public class ChannelClientConfiguration {
     private int maxPermitsUDP;
     private int maxPermitsTCP;
 
+    private int maxPooledTCPPerPeer;
+    private int maxPooledTCP;
+    private int pooledTCPIdleMillis;
+
+    private int minAdaptiveTimeoutMillis;
+
     private PipelineFilter pipelineFilter;
     private SignatureFactory signatureFactory;
     private Bindings externalBindings;
 
+    private ByteBufAllocator byteBufAllocator;
+
     /**
      * @return The maximum number of permanent (long-lived) connections
      */
@@ -83,6 +93,78 @@ public class ChannelClientConfiguration {
         return this;
     }
 
+    /**
+     * @return The maximum number of idle TCP connections that are kept open to one peer
+     */
+    public int maxPooledTCPPerPeer() {
+        return maxPooledTCPPerPeer;
+    }
+
+    /**
+     * @param maxPooledTCPPerPeer
+     *            The maximum number of idle TCP connections that are kept open to one peer
+     * @return This class
+     */
+    public ChannelClientConfiguration maxPooledTCPPerPeer(final int maxPooledTCPPerPeer) {
+        this.maxPooledTCPPerPeer = maxPooledTCPPerPeer;
+        return this;
+    }
+
+    /**
+     * @return The maximum number of idle TCP connections that are kept open, 0 disables the connection pool
+     */
+    public int maxPooledTCP() {
+        return maxPooledTCP;
+    }
+
+    /**
+     * @param maxPooledTCP
+     *            The maximum number of idle TCP connections that are kept open, 0 disables the connection pool
+     * @return This class
+     */
+    public ChannelClientConfiguration maxPooledTCP(final int maxPooledTCP) {
+        this.maxPooledTCP = maxPooledTCP;
+        return this;
+    }
+
+    /**
+     * @return The time after which an idle TCP connection in the pool is closed
+     */
+    public int pooledTCPIdleMillis() {
+        return pooledTCPIdleMillis;
+    }
+
+    /**
+     * @param pooledTCPIdleMillis
+     *            The time after which an idle TCP connection in the pool is closed. This should be shorter than the
+     *            idle time of the other peers, otherwise they close the connection first.
+     * @return This class
+     */
+    public ChannelClientConfiguration pooledTCPIdleMillis(final int pooledTCPIdleMillis) {
+        this.pooledTCPIdleMillis = pooledTCPIdleMillis;
+        return this;
+    }
+
+    /**
+     * @return The lower bound of the timeout of a request that is calculated from the round-trip times to the
+     *         recipient, 0 if requests use the fixed idle time
+     */
+    public int minAdaptiveTimeoutMillis() {
+        return minAdaptiveTimeoutMillis;
+    }
+
+    /**
+     * @param minAdaptiveTimeoutMillis
+     *            The lower bound of the timeout of a request that is calculated from the round-trip times to the
+     *            recipient. The fixed idle time is the upper bound and used for peers without measurements. 0
+     *            disables adaptive timeouts.
+     * @return This class
+     */
+    public ChannelClientConfiguration minAdaptiveTimeoutMillis(final int minAdaptiveTimeoutMillis) {
+        this.minAdaptiveTimeoutMillis = minAdaptiveTimeoutMillis;
+        return this;
+    }
+
     /**
      * @return Set the filter for the pipeline, where the user can add / remove or change filters
      */
@@ -125,4 +207,22 @@ public class ChannelClientConfiguration {
         this.externalBindings = externalBindings;
         return this;
     }
+
+    /**
+     * @return The allocator for the buffers of incoming replies, null for the default of Netty
+     */
+    public ByteBufAllocator byteBufAllocator() {
+        return byteBufAllocator;
+    }
+
+    /**
+     * @param byteBufAllocator
+     *            The allocator for the buffers of incoming replies. Received data objects keep slices of these
+     *            buffers, thus, with a pooled allocator, data objects should be released when not used anymore.
+     * @return This class
+     */
+    public ChannelClientConfiguration byteBufAllocator(final ByteBufAllocator byteBufAllocator) {
+        this.byteBufAllocator = byteBufAllocator;
+        return this;
+    }
 }
@@ -29,6 +29,8 @@ import io.netty.channel.group.ChannelGroupFuture;
 import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
 import io.netty.util.concurrent.EventExecutorGroup;
 import io.netty.util.concurrent.GenericFutureListener;
 import io.netty.util.concurrent.GlobalEventExecutor;
@@ -36,6 +38,7 @@ import io.netty.util.concurrent.GlobalEventExecutor;
 import java.net.SocketAddress;
 import java.util.Map;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -58,6 +61,8 @@ import org.slf4j.LoggerFactory;
 public class ChannelCreator {
 	private static final Logger LOG = LoggerFactory.getLogger(ChannelCreator.class);
 
+	private static final AttributeKey<CloseListener> CLOSE_LISTENER_KEY = AttributeKey.valueOf("close-listener");
+
 	private final EventLoopGroup workerGroup;
 	private final ChannelGroup recipients = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
 
@@ -146,6 +151,9 @@ public class ChannelCreator {
 			b.group(workerGroup);
 			b.channel(NioDatagramChannel.class);
 			b.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(ConnectionBean.UDP_LIMIT));
+			if (channelClientConfiguration.byteBufAllocator() != null) {
+				b.option(ChannelOption.ALLOCATOR, channelClientConfiguration.byteBufAllocator());
+			}
 			if (broadcast) {
 				b.option(ChannelOption.SO_BROADCAST, true);
 			}
@@ -200,6 +208,9 @@ public class ChannelCreator {
 			b.option(ChannelOption.TCP_NODELAY, true);
 			b.option(ChannelOption.SO_LINGER, 0);
 			b.option(ChannelOption.SO_REUSEADDR, true);
+			if (channelClientConfiguration.byteBufAllocator() != null) {
+				b.option(ChannelOption.ALLOCATOR, channelClientConfiguration.byteBufAllocator());
+			}
 			Map<String, Pair<EventExecutorGroup, ChannelHandler>> channelHandlers2 = channelClientConfiguration.pipelineFilter().filter(channelHandlers, true, true);
 			addHandlers(b, channelHandlers2);
 
@@ -241,6 +252,60 @@ public class ChannelCreator {
 		});
 	}
 
+	/**
+	 * Uses an open channel from the {@link ChannelPool} for a request. The channel counts as a TCP connection of this
+	 * channel creator until it is closed or returned to the pool.
+	 * 
+	 * @param channel
+	 *            The open channel taken from the pool
+	 * @param handlerExecutor
+	 *            The executor of the handler of the request, or null if it runs in the event loop
+	 * @param futureResponse
+	 *            The future that is notified when the channel is closed or returned to the pool
+	 * @return The channel future object or null if we are shut down.
+	 */
+	public ChannelFuture reuseTCP(final Channel channel, final EventExecutorGroup handlerExecutor,
+	        final FutureResponse futureResponse) {
+		readTCP.lock();
+		try {
+			if (shutdownTCP) {
+				return null;
+			}
+			if (!semaphoreTCP.tryAcquire()) {
+				LOG.error("Tried to acquire more resources (TCP) than announced!");
+				throw new RuntimeException("Tried to acquire more resources (TCP) than announced!");
+			}
+			if (handlerExecutor != null) {
+				this.handlerExecutor = handlerExecutor;
+			}
+			final ChannelFuture channelFuture = channel.newSucceededFuture();
+			recipients.add(channel);
+			setupCloseListener(channelFuture, semaphoreTCP, futureResponse);
+			return channelFuture;
+		} finally {
+			readTCP.unlock();
+		}
+	}
+
+	/**
+	 * Releases a channel from the channel creator that created or reused it without closing the channel, so that it
+	 * can be put into the {@link ChannelPool}. The permit of the channel creator is released, but the future of the
+	 * request is not notified, this is up to the caller.
+	 * 
+	 * @param channel
+	 *            The channel to release
+	 * @return True if the channel was released, false if the channel is already closing or does not belong to a
+	 *         channel creator
+	 */
+	static boolean detach(final Channel channel) {
+		final Attribute<CloseListener> attribute = channel.attr(CLOSE_LISTENER_KEY);
+		final CloseListener closeListener = attribute.getAndRemove();
+		if (closeListener == null) {
+			return false;
+		}
+		return closeListener.detach(channel);
+	}
+
 	/**
 	 * When a channel is closed, the semaphore is released an other channel can
 	 * be created. Also the lock for the channel creating is beining released.
@@ -253,29 +318,59 @@ public class ChannelCreator {
 	 * @return The same future that was passed as an argument
 	 */
 	private ChannelFuture setupCloseListener(final ChannelFuture channelFuture, final Semaphore semaphore, final FutureResponse futureResponse) {
-		channelFuture.channel().closeFuture().addListener(new GenericFutureListener<ChannelFuture>() {
-			@Override
-			public void operationComplete(final ChannelFuture future) throws Exception {
-				// it is important that the release of the semaphore and the set
-				// of the future happen sequentially. If this is run in this
-				// thread it will be a netty thread, and this is not what the
-				// user may have wanted. The future respones should be executed
-				// in the thread of the handler.
-				Runnable runner = new Runnable() {
-					@Override
-					public void run() {
-						semaphore.release();
-						futureResponse.setResponseNow();
-					}
-				};
-				if (handlerExecutor == null) {
-					runner.run();
-				} else {
-					handlerExecutor.submit(runner);
+		final CloseListener closeListener = new CloseListener(semaphore, futureResponse);
+		channelFuture.channel().attr(CLOSE_LISTENER_KEY).set(closeListener);
+		channelFuture.channel().closeFuture().addListener(closeListener);
+		return channelFuture;
+	}
+
+	/**
+	 * Releases the permit of a channel either when the channel is closed or when the channel is detached for the pool,
+	 * whatever happens first.
+	 */
+	private final class CloseListener implements GenericFutureListener<ChannelFuture> {
+		private final Semaphore semaphore;
+		private final FutureResponse futureResponse;
+		private final AtomicBoolean released = new AtomicBoolean(false);
+
+		private CloseListener(final Semaphore semaphore, final FutureResponse futureResponse) {
+			this.semaphore = semaphore;
+			this.futureResponse = futureResponse;
+		}
+
+		@Override
+		public void operationComplete(final ChannelFuture future) throws Exception {
+			if (!released.compareAndSet(false, true)) {
+				return;
+			}
+			// it is important that the release of the semaphore and the set
+			// of the future happen sequentially. If this is run in this
+			// thread it will be a netty thread, and this is not what the
+			// user may have wanted. The future respones should be executed
+			// in the thread of the handler.
+			Runnable runner = new Runnable() {
+				@Override
+				public void run() {
+					semaphore.release();
+					futureResponse.setResponseNow();
 				}
+			};
+			if (handlerExecutor == null) {
+				runner.run();
+			} else {
+				handlerExecutor.submit(runner);
 			}
-		});
-		return channelFuture;
+		}
+
+		private boolean detach(final Channel channel) {
+			if (!released.compareAndSet(false, true)) {
+				return false;
+			}
+			channel.closeFuture().removeListener(this);
+			recipients.remove(channel);
+			semaphore.release();
+			return true;
+		}
 	}
 	
 	/**
@@ -311,7 +406,10 @@ public class ChannelCreator {
 		writeTCP.lock();
 		try {
 			if (shutdownTCP || shutdownUDP) {
-				shutdownFuture().setFailed("already shutting down");
+				// a second shutdown, e.g., from a future that is notified
+				// while the channels are closed, must not complete the
+				// future before the permits are back, and must not notify
+				// its listeners while holding the locks
 				return shutdownFuture();
 			}
 			shutdownUDP = true;
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.peers.PeerAddress;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps TCP channels open after a request has been answered, so that the next request to the same peer does not need
+ * to open a new connection. A channel in the pool does not hold a permit of a {@link ChannelCreator}, the permit is
+ * taken again when the channel is reused. The number of idle channels is limited per peer and in total, if the total
+ * limit is reached, the channel that has been idle the longest is closed. An idle channel is closed by an
+ * {@link IdleStateHandlerTomP2P} after the configured idle time, which should be shorter than the idle time of the
+ * other peer, otherwise the other peer closes the connection and reports us as failed. Channels of a
+ * {@link PeerConnection} are never pooled, as the {@link HeartBeat} keeps them open anyway.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class ChannelPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChannelPool.class);
+
+    private static final AttributeKey<PeerAddress> POOL_KEY = AttributeKey.valueOf("pool");
+
+    private final int maxPerPeer;
+    private final int maxTotal;
+    private final int idleMillis;
+
+    // the idle channels of a peer, the most recently returned channel is last
+    private final Map<PeerAddress, Deque<Channel>> idleChannels = new HashMap<PeerAddress, Deque<Channel>>();
+    // all idle channels, the channel that has been idle the longest is first
+    private final LinkedHashSet<Channel> idleOrder = new LinkedHashSet<Channel>();
+
+    private boolean shutdown = false;
+
+    /**
+     * @param maxPerPeer
+     *            The maximum number of idle channels to one peer
+     * @param maxTotal
+     *            The maximum number of idle channels, 0 disables the pool
+     * @param idleMillis
+     *            The time after which an idle channel is closed
+     */
+    public ChannelPool(final int maxPerPeer, final int maxTotal, final int idleMillis) {
+        this.maxPerPeer = maxPerPeer;
+        this.maxTotal = maxTotal;
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * @return True if channels are kept open after a request
+     */
+    public boolean isEnabled() {
+        return maxPerPeer > 0 && maxTotal > 0 && idleMillis > 0;
+    }
+
+    /**
+     * Marks a newly created channel, so that it can be returned to the pool once its request has been answered.
+     *
+     * @param channel
+     *            The channel to the other peer
+     * @param remotePeer
+     *            The peer this channel is connected to
+     */
+    public void register(final Channel channel, final PeerAddress remotePeer) {
+        channel.attr(POOL_KEY).set(remotePeer);
+        channel.closeFuture().addListener(new GenericFutureListener<ChannelFuture>() {
+            @Override
+            public void operationComplete(final ChannelFuture future) throws Exception {
+                remove(future.channel());
+            }
+        });
+    }
+
+    /**
+     * Takes an idle channel to the given peer out of the pool. Channels that have been closed, that cannot be
+     * written to, or that are connected to an address the peer does not use anymore are closed and skipped.
+     *
+     * @param remotePeer
+     *            The peer to connect to
+     * @param socketAddress
+     *            The TCP address of the peer
+     * @return An open channel, or null if there is no idle channel to this peer
+     */
+    public Channel poll(final PeerAddress remotePeer, final InetSocketAddress socketAddress) {
+        while (true) {
+            final Channel channel;
+            synchronized (this) {
+                final Deque<Channel> deque = idleChannels.get(remotePeer);
+                if (deque == null) {
+                    return null;
+                }
+                channel = deque.pollLast();
+                if (deque.isEmpty()) {
+                    idleChannels.remove(remotePeer);
+                }
+                if (channel == null) {
+                    return null;
+                }
+                idleOrder.remove(channel);
+            }
+            if (channel.isActive() && channel.isWritable() && socketAddress.equals(channel.remoteAddress())) {
+                return channel;
+            }
+            LOG.debug("pooled channel {} is not healthy, close it", channel);
+            channel.close();
+        }
+    }
+
+    /**
+     * Returns a channel to the pool after the reply for its request has been received. The channel is released from
+     * its {@link ChannelCreator} and the future of the request is notified, which otherwise happens when the channel
+     * is closed.
+     *
+     * @param channel
+     *            The channel of the request
+     * @param futureResponse
+     *            The future of the request, with the response already set
+     * @return True if the channel was put into the pool, false if the caller has to close the channel
+     */
+    public boolean offer(final Channel channel, final FutureResponse futureResponse) {
+        final PeerAddress remotePeer = channel.attr(POOL_KEY).get();
+        final ChannelPipeline pipeline = channel.pipeline();
+        if (remotePeer == null || !channel.isActive() || !isEnabled() || pipeline.get("timeout0") == null
+                || pipeline.get("timeout1") == null) {
+            return false;
+        }
+        if (!ChannelCreator.detach(channel)) {
+            return false;
+        }
+        final Runnable idle = new Runnable() {
+            @Override
+            public void run() {
+                if (pipeline.get("handler") != null) {
+                    pipeline.remove("handler");
+                }
+                // the timeout of the request becomes the idle timeout of the pool
+                pipeline.replace("timeout0", "timeout0", new IdleStateHandlerTomP2P(idleMillis, TimeUnit.MILLISECONDS));
+                pipeline.replace("timeout1", "timeout1", new IdleEvictionHandler());
+            }
+        };
+        // the handler may run in an other executor, a reuse of this channel is queued after this change
+        if (channel.eventLoop().inEventLoop()) {
+            idle.run();
+        } else {
+            channel.eventLoop().execute(idle);
+        }
+
+        final List<Channel> evicted = new ArrayList<Channel>(1);
+        boolean added = false;
+        synchronized (this) {
+            if (!shutdown) {
+                Deque<Channel> deque = idleChannels.get(remotePeer);
+                if (deque == null) {
+                    deque = new ArrayDeque<Channel>(maxPerPeer);
+                    idleChannels.put(remotePeer, deque);
+                }
+                if (deque.size() >= maxPerPeer) {
+                    // the oldest channel to this peer makes room
+                    final Channel oldest = deque.pollFirst();
+                    idleOrder.remove(oldest);
+                    evicted.add(oldest);
+                }
+                deque.addLast(channel);
+                idleOrder.add(channel);
+                added = true;
+                if (idleOrder.size() > maxTotal) {
+                    final Iterator<Channel> iterator = idleOrder.iterator();
+                    final Channel oldest = iterator.next();
+                    iterator.remove();
+                    removeFromPeer(oldest);
+                    evicted.add(oldest);
+                }
+            }
+        }
+        for (Channel oldest : evicted) {
+            oldest.close();
+        }
+        if (!added) {
+            channel.close();
+        }
+        // the channel creator does not notify the future, as the channel is not closed
+        futureResponse.setResponseNow();
+        return true;
+    }
+
+    /**
+     * @return The number of idle channels in the pool
+     */
+    public synchronized int idle() {
+        return idleOrder.size();
+    }
+
+    /**
+     * @param remotePeer
+     *            The peer to connect to
+     * @return The number of idle channels to the given peer
+     */
+    public synchronized int idle(final PeerAddress remotePeer) {
+        final Deque<Channel> deque = idleChannels.get(remotePeer);
+        return deque == null ? 0 : deque.size();
+    }
+
+    /**
+     * Closes all idle channels. Channels that are returned afterwards are closed.
+     */
+    public void shutdown() {
+        final List<Channel> channels;
+        synchronized (this) {
+            shutdown = true;
+            channels = new ArrayList<Channel>(idleOrder);
+            idleOrder.clear();
+            idleChannels.clear();
+        }
+        for (Channel channel : channels) {
+            channel.close();
+        }
+    }
+
+    private synchronized void remove(final Channel channel) {
+        if (idleOrder.remove(channel)) {
+            removeFromPeer(channel);
+        }
+    }
+
+    private void removeFromPeer(final Channel channel) {
+        final PeerAddress remotePeer = channel.attr(POOL_KEY).get();
+        final Deque<Channel> deque = idleChannels.get(remotePeer);
+        if (deque != null) {
+            deque.remove(channel);
+            if (deque.isEmpty()) {
+                idleChannels.remove(remotePeer);
+            }
+        }
+    }
+
+    /**
+     * Closes a channel in the pool that has been idle for too long. As opposed to a request that times out, this is
+     * not a failure of the other peer.
+     */
+    private static class IdleEvictionHandler extends ChannelDuplexHandler {
+        @Override
+        public void userEventTriggered(final ChannelHandlerContext ctx, final Object evt) throws Exception {
+            if (evt instanceof IdleStateHandlerTomP2P) {
+                LOG.debug("close idle pooled channel {}", ctx.channel());
+                ctx.close();
+            } else {
+                ctx.fireUserEventTriggered(evt);
+            }
+        }
+    }
+}
@@ -28,14 +28,18 @@ import io.netty.channel.EventLoopGroup;
 import io.netty.channel.FixedRecvByteBufAllocator;
 import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
 import io.netty.util.concurrent.EventExecutorGroup;
 import io.netty.util.concurrent.GenericFutureListener;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.tomp2p.futures.FutureDone;
@@ -63,8 +67,9 @@ public final class ChannelServer {
 	private final EventLoopGroup bossGroup;
 	private final EventLoopGroup workerGroup;
 
-	private Channel channelUDP;
-	private Channel channelTCP;
+	// one channel per interface
+	private final List<Channel> channelsUDP = new CopyOnWriteArrayList<Channel>();
+	private final List<Channel> channelsTCP = new CopyOnWriteArrayList<Channel>();
 
 	private final FutureDone<Void> futureServerDone = new FutureDone<Void>();
 
@@ -79,6 +84,8 @@ public final class ChannelServer {
 	private final DropConnectionInboundHandler tcpDropConnectionInboundHandler;
 	private final DropConnectionInboundHandler udpDropConnectionInboundHandler;
 	private final ChannelHandler udpDecoderHandler;
+	// decodes and dispatches UDP messages outside of the event loop, null if not used
+	private final EventExecutorGroup udpExecutorGroup;
 
 	/**
 	 * Sets parameters and starts network device discovery.
@@ -109,6 +116,8 @@ public final class ChannelServer {
 		this.tcpDropConnectionInboundHandler = new DropConnectionInboundHandler(channelServerConfiguration.maxTCPIncomingConnections());
 		this.udpDropConnectionInboundHandler = new DropConnectionInboundHandler(channelServerConfiguration.maxUDPIncomingConnections());
 		this.udpDecoderHandler = new TomP2PSinglePacketUDP(channelServerConfiguration.signatureFactory());
+		this.udpExecutorGroup = channelServerConfiguration.udpExecutorThreads() > 0 ? new DefaultEventExecutorGroup(
+		        channelServerConfiguration.udpExecutorThreads()) : null;
 	}
 
 	/**
@@ -178,6 +187,9 @@ public final class ChannelServer {
 		b.channel(NioDatagramChannel.class);
 		b.option(ChannelOption.SO_BROADCAST, true);
 		b.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(ConnectionBean.UDP_LIMIT));
+		if (config.byteBufAllocator() != null) {
+			b.option(ChannelOption.ALLOCATOR, config.byteBufAllocator());
+		}
 
 		b.handler(new ChannelInitializer<Channel>() {
 			@Override
@@ -193,7 +205,7 @@ public final class ChannelServer {
 		});
 
 		ChannelFuture future = b.bind(listenAddresses);
-		channelUDP = future.channel();
+		channelsUDP.add(future.channel());
 		return handleFuture(future);
 	}
 
@@ -210,6 +222,9 @@ public final class ChannelServer {
 		ServerBootstrap b = new ServerBootstrap();
 		b.group(bossGroup, workerGroup);
 		b.channel(NioServerSocketChannel.class);
+		if (config.byteBufAllocator() != null) {
+			b.childOption(ChannelOption.ALLOCATOR, config.byteBufAllocator());
+		}
 		b.childHandler(new ChannelInitializer<Channel>() {
 			@Override
 			protected void initChannel(final Channel ch) throws Exception {
@@ -226,7 +241,7 @@ public final class ChannelServer {
 			}
 		});
 		ChannelFuture future = b.bind(listenAddresses);
-		channelTCP = future.channel();
+		channelsTCP.add(future.channel());
 		return handleFuture(future);
 	}
 
@@ -268,11 +283,12 @@ public final class ChannelServer {
 			final int nrUDPHandlers = 6; // 4 = 0.75 = 4 
 			handlers = new LinkedHashMap<String, Pair<EventExecutorGroup, ChannelHandler>>(nrUDPHandlers);
 			handlers.put("dropconnection", new Pair<EventExecutorGroup, ChannelHandler>(null, udpDropConnectionInboundHandler));
-			handlers.put("decoder", new Pair<EventExecutorGroup, ChannelHandler>(null, udpDecoderHandler));
+			handlers.put("decoder", new Pair<EventExecutorGroup, ChannelHandler>(udpExecutorGroup, udpDecoderHandler));
 		}
 		handlers.put("encoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2POutbound(false,
 		        channelServerConfiguration.signatureFactory())));
-		handlers.put("dispatcher", new Pair<EventExecutorGroup, ChannelHandler>(null, dispatcher));
+		handlers.put("dispatcher", new Pair<EventExecutorGroup, ChannelHandler>(tcp ? null : udpExecutorGroup,
+		        dispatcher));
 		return channelServerConfiguration.pipelineFilter().filter(handlers, tcp, false);
 	}
 
@@ -309,27 +325,23 @@ public final class ChannelServer {
 	 *         worker and boss event loop
 	 */
 	public FutureDone<Void> shutdown() {
-		final int maxListeners = (channelUDP!=null && channelTCP!=null) ? 2 : 1;
-		// we have two things to shut down: UDP and TCP
+		final List<Channel> channels = new ArrayList<Channel>(channelsUDP.size() + channelsTCP.size());
+		channels.addAll(channelsUDP);
+		channels.addAll(channelsTCP);
+		if (channels.isEmpty()) {
+			shutdownUDPExecutorGroup();
+			return futureServerDone.setDone();
+		}
+		// we have several things to shut down: UDP and TCP on every interface
 		final AtomicInteger listenerCounter = new AtomicInteger(0);
 		LOG.debug("shutdown servers");
-		if(channelUDP != null) {
-			channelUDP.close().addListener(new GenericFutureListener<ChannelFuture>() {
+		for (Channel channel : channels) {
+			channel.close().addListener(new GenericFutureListener<ChannelFuture>() {
 				@Override
 				public void operationComplete(final ChannelFuture future) throws Exception {
-					LOG.debug("shutdown TCP server");
-					if(listenerCounter.incrementAndGet()==maxListeners) {
-						futureServerDone.setDone();
-					}
-				}
-			});
-		}
-		if(channelTCP != null) {
-			channelTCP.close().addListener(new GenericFutureListener<ChannelFuture>() {
-				@Override
-				public void operationComplete(final ChannelFuture future) throws Exception {
-					LOG.debug("shutdown TCP channels");
-					if(listenerCounter.incrementAndGet()==maxListeners) {
+					LOG.debug("shutdown server channel {}", future.channel());
+					if (listenerCounter.incrementAndGet() == channels.size()) {
+						shutdownUDPExecutorGroup();
 						futureServerDone.setDone();
 					}
 				}
@@ -338,6 +350,12 @@ public final class ChannelServer {
 		return shutdownFuture();
 	}
 
+	private void shutdownUDPExecutorGroup() {
+		if (udpExecutorGroup != null) {
+			udpExecutorGroup.shutdownGracefully();
+		}
+	}
+
 	/**
 	 * @return The shutdown future that is used when calling {@link #shutdown()}
 	 */
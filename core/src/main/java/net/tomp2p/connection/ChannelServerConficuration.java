@@ -16,6 +16,7 @@
 
 package net.tomp2p.connection;
 
+import io.netty.buffer.ByteBufAllocator;
 
 /**
  * The the configuration for the server.
@@ -48,6 +49,11 @@ public class ChannelServerConficuration implements ConnectionConfiguration {
     
     private int heartBeatMillis = PeerConnection.HEART_BEAT_MILLIS;
 
+    private ByteBufAllocator byteBufAllocator = null;
+
+    private int udpExecutorThreads = 0;
+
+
     /**
      * @return True if this peer is behind a firewall and cannot be accessed directly
      */
@@ -255,4 +261,43 @@ public class ChannelServerConficuration implements ConnectionConfiguration {
 	    this.heartBeatMillis = heartBeatMillis;
 	    return this;
     }
+
+    /**
+     * @return The allocator for the buffers of incoming messages, null for the default of Netty
+     */
+    public ByteBufAllocator byteBufAllocator() {
+        return byteBufAllocator;
+    }
+
+    /**
+     * @param byteBufAllocator
+     *            The allocator for the buffers of incoming messages. Received data objects keep slices of these
+     *            buffers, thus, with a pooled allocator, data objects should be released when not used anymore.
+     * @return This class
+     */
+    public ChannelServerConficuration byteBufAllocator(final ByteBufAllocator byteBufAllocator) {
+        this.byteBufAllocator = byteBufAllocator;
+        return this;
+    }
+
+    /**
+     * @return The number of threads that decode and dispatch incoming UDP messages, 0 if this is done in the event
+     *         loop that reads the UDP channel
+     */
+    public int udpExecutorThreads() {
+        return udpExecutorThreads;
+    }
+
+    /**
+     * @param udpExecutorThreads
+     *            The number of threads that decode and dispatch incoming UDP messages, so that the event loop only
+     *            reads the datagrams. Netty binds every channel to one thread of the group, thus, one bound UDP
+     *            channel uses one thread, and more than one thread only helps if several interfaces are bound. Set
+     *            to 0 to decode and dispatch in the event loop, which is the default.
+     * @return This class
+     */
+    public ChannelServerConficuration udpExecutorThreads(final int udpExecutorThreads) {
+        this.udpExecutorThreads = udpExecutorThreads;
+        return this;
+    }
 }
@@ -20,6 +20,8 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.DefaultChannelPromise;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.socket.DatagramChannel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
 
 import java.util.Arrays;
 import java.util.Collections;
@@ -43,7 +45,9 @@ import org.slf4j.LoggerFactory;
  * {@link registerIoHandler} function.
  * <p>
  * You probably want to add an instance of this class to the end of a pipeline to be able to receive messages. This
- * class is able to cover several channels but only one P2P network!
+ * class is able to cover several channels but only one P2P network! The channels may run in different event loops,
+ * e.g., with several UDP channels on the same port, thus, the handlers are looked up without locking in an immutable
+ * map that is replaced on every change.
  * </p>
  * 
  * @author Thomas Bocek
@@ -53,6 +57,8 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
 
     private static final Logger LOG = LoggerFactory.getLogger(Dispatcher.class);
 
+    private static final AttributeKey<PeerConnection> PEER_CONNECTION_KEY = AttributeKey.valueOf("peer-connection");
+
     private final int p2pID;
     private final PeerBean peerBean;
     private final int heartBeatMillis;
@@ -90,17 +96,16 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
      *            <b>Note:</b> If you register multiple handlers with the same command, only the last registered handler
      *            will receive these messages!
      */
-    public void registerIoHandler(final Number160 peerId, final DispatchHandler ioHandler, final int... names) {
+    public synchronized void registerIoHandler(final Number160 peerId, final DispatchHandler ioHandler, final int... names) {
         Map<Number160, Map<Integer, DispatchHandler>> copy = new HashMap<Number160, Map<Integer, DispatchHandler>>(ioHandlers);
-        Map<Integer, DispatchHandler> types = copy.get(peerId);
-        if (types == null) {
-            types = new HashMap<Integer, DispatchHandler>();
-            copy.put(peerId, types);
-        }
+        // the inner map is copied as well, as it may be read by the event loops while we add to it
+        final Map<Integer, DispatchHandler> existing = copy.get(peerId);
+        final Map<Integer, DispatchHandler> types = existing == null ? new HashMap<Integer, DispatchHandler>()
+                : new HashMap<Integer, DispatchHandler>(existing);
         for (Integer name : names) {
             types.put(name, ioHandler);
         }
-        
+        copy.put(peerId, Collections.unmodifiableMap(types));
         ioHandlers = Collections.unmodifiableMap(copy);
     }
 
@@ -110,7 +115,7 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
      * @param peerId
      *            The Id of the peer to remove the handlers .
      */
-    public void removeIoHandler(final Number160 peerId) {
+    public synchronized void removeIoHandler(final Number160 peerId) {
         Map<Number160, Map<Integer, DispatchHandler>> copy = new HashMap<Number160, Map<Integer, DispatchHandler>>(ioHandlers);
         copy.remove(peerId);
         ioHandlers = Collections.unmodifiableMap(copy);
@@ -147,8 +152,7 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
             	message.setSender(sender);
             }
             LOG.debug("about to respond to {}", message);
-            PeerConnection peerConnection = new PeerConnection(message.getSender(), new DefaultChannelPromise(ctx.channel()).setSuccess(), heartBeatMillis);
-            myHandler.forwardMessage(message, isUdp ? null : peerConnection, responder);
+            myHandler.forwardMessage(message, isUdp ? null : peerConnection(ctx, message), responder);
         } else {
             LOG.debug("No handler found for {}. Probably we have shutdown this peer.", message);
             Message responseMessage = DispatchHandler.createResponseMessage(message, Type.UNKNOWN_ID, peerBean.serverPeerAddress());
@@ -156,6 +160,24 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
         }
     }
     
+    /**
+     * A TCP connection may carry many requests, e.g., if the other peer pipelines its requests. The peer connection is
+     * created once per channel, as it registers a listener on the close future of the channel.
+     */
+    private PeerConnection peerConnection(final ChannelHandlerContext ctx, final Message message) {
+        final Attribute<PeerConnection> attribute = ctx.attr(PEER_CONNECTION_KEY);
+        PeerConnection peerConnection = attribute.get();
+        if (peerConnection == null) {
+            peerConnection = new PeerConnection(message.getSender(),
+                    new DefaultChannelPromise(ctx.channel()).setSuccess(), heartBeatMillis);
+            final PeerConnection existing = attribute.setIfAbsent(peerConnection);
+            if (existing != null) {
+                peerConnection = existing;
+            }
+        }
+        return peerConnection;
+    }
+    
     public class DirectResponder implements Responder {
         final ChannelHandlerContext ctx;
         final Message requestMessage;
@@ -212,6 +234,8 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
                 return;
             }
             LOG.debug("reply UDP message {}", response);
+            // nobody holds a reply after sending it over UDP, so the encoder can return it to the pool
+            response.recycleOnDone(true);
         } else {
             // check if channel is still open. If its not, then do not send
             // anything because
@@ -9,9 +9,17 @@ import io.netty.util.concurrent.EventExecutor;
 
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Striped down version of the IdleStateHandler.
+ * <p>
+ * A channel is not idle while it waits for the application or the other peer. This is the case if reading has been
+ * suspended with {@link io.netty.channel.ChannelConfig#setAutoRead(boolean)}, e.g. by a
+ * {@link net.tomp2p.message.BufferInputStream} with a slow consumer, or if writes are pending because the socket does
+ * not accept more data, e.g. for a {@link net.tomp2p.message.BufferOutputStream} whose receiver is slow. In both cases
+ * the idle time starts once the channel proceeds. Data that the socket has accepted, but the other peer has not read
+ * yet, is not visible here, so once everything has been written, a sender waiting for a stalled receiver is idle.
  */
 public class IdleStateHandlerTomP2P extends ChannelDuplexHandler {
 
@@ -21,6 +29,9 @@ public class IdleStateHandlerTomP2P extends ChannelDuplexHandler {
 
     private volatile long lastWriteTime;
 
+    // the writes that have been passed to the channel, but not yet written to the socket
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+
     private volatile ScheduledFuture<?> allIdleTimeout;
 
     private volatile int state; // 0 - none, 1 - initialized, 2 - destroyed
@@ -114,10 +125,12 @@ public class IdleStateHandlerTomP2P extends ChannelDuplexHandler {
 
     @Override
     public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        pendingWrites.incrementAndGet();
         promise.addListener(new ChannelFutureListener() {
             @Override
             public void operationComplete(ChannelFuture future) throws Exception {
                 lastWriteTime = System.currentTimeMillis();
+                pendingWrites.decrementAndGet();
             }
         });
         ctx.write(msg, promise);
@@ -168,6 +181,10 @@ public class IdleStateHandlerTomP2P extends ChannelDuplexHandler {
             }
 
             long currentTime = System.currentTimeMillis();
+            if (!ctx.channel().config().isAutoRead() || pendingWrites.get() > 0) {
+                // waiting for the application or the socket, not idle
+                lastReadTime = currentTime;
+            }
             long lastIoTime = Math.max(lastReadTime, lastWriteTime);
             long nextDelay = allIdleTimeMillis - (currentTime - lastIoTime);
             if (nextDelay <= 0) {
@@ -17,7 +17,8 @@ import net.tomp2p.peers.PeerAddress;
 
 public class PeerConnection {
 	final public static int HEART_BEAT_MILLIS = 2000;
-    final private Semaphore oneConnection = new Semaphore(1);
+    final private Semaphore oneConnection;
+    final private int maxOutstanding;
 
     final private PeerAddress remotePeer;
     final private ChannelCreator cc;
@@ -28,6 +29,7 @@ public class PeerConnection {
 
     // these may be called from different threads, but they will never be called concurrently within this library
     private volatile ChannelFuture channelFuture;
+    private volatile RequestMultiplexer requestMultiplexer;
     
 
     /**
@@ -39,9 +41,30 @@ public class PeerConnection {
      *            The channel creator where we can open a TCP connection
      */
     public PeerConnection(PeerAddress remotePeer, ChannelCreator cc, int heartBeatMillis) {
+        this(remotePeer, cc, heartBeatMillis, 1);
+    }
+
+    /**
+     * If we don't have an open TCP connection, we first need a channel creator to open a channel. If more than one
+     * request is allowed to be outstanding, the requests are pipelined and the replies are matched by message ID, see
+     * {@link RequestMultiplexer}.
+     * 
+     * @param remotePeer
+     *            The remote peer to connect to
+     * @param cc
+     *            The channel creator where we can open a TCP connection
+     * @param maxOutstanding
+     *            The number of requests that can wait for a reply at the same time on this connection
+     */
+    public PeerConnection(PeerAddress remotePeer, ChannelCreator cc, int heartBeatMillis, int maxOutstanding) {
+        if (maxOutstanding < 1) {
+            throw new IllegalArgumentException("At least one request needs to be allowed");
+        }
         this.remotePeer = remotePeer;
         this.cc = cc;
         this.heartBeatMillis = heartBeatMillis;
+        this.maxOutstanding = maxOutstanding;
+        this.oneConnection = new Semaphore(maxOutstanding);
     }
 
     /**
@@ -58,6 +81,8 @@ public class PeerConnection {
         addCloseListener(channelFuture);
         this.cc = null;
         this.heartBeatMillis = heartBeatMillis;
+        this.maxOutstanding = 1;
+        this.oneConnection = new Semaphore(1);
     }
 
     public PeerConnection channelFuture(ChannelFuture channelFuture) {
@@ -70,6 +95,33 @@ public class PeerConnection {
 	    return heartBeatMillis;
     }
 
+    /**
+     * @return The number of requests that can wait for a reply at the same time on this connection
+     */
+    public int maxOutstanding() {
+        return maxOutstanding;
+    }
+
+    /**
+     * @return True if more than one request can be outstanding on this connection
+     */
+    public boolean isPipelined() {
+        return maxOutstanding > 1;
+    }
+
+    /**
+     * @return The handler that matches the replies to the requests, only set if this connection is pipelined and
+     *         has been opened
+     */
+    public RequestMultiplexer requestMultiplexer() {
+        return requestMultiplexer;
+    }
+
+    public PeerConnection requestMultiplexer(RequestMultiplexer requestMultiplexer) {
+        this.requestMultiplexer = requestMultiplexer;
+        return this;
+    }
+
     public ChannelFuture channelFuture() {
         return channelFuture;
     }
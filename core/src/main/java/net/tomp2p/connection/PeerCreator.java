@@ -109,7 +109,7 @@ public class PeerCreator {
 		}
 		
 		//connection bean
-		Sender sender = new Sender(peerId, peerStatusListeners, channelClientConfiguration, dispatcher);
+		Sender sender = new Sender(peerId, peerStatusListeners, channelClientConfiguration, dispatcher, peerBean);
 		NATUtils natUtils = new NATUtils();
 		Reservation reservation = new Reservation(workerGroup, channelClientConfiguration);
 		connectionBean = new ConnectionBean(p2pId, dispatcher, sender, channelServer, reservation,
@@ -168,6 +168,7 @@ public class PeerCreator {
 		connectionBean.timer().shutdown();
 		
 		LOG.debug("starting shutdown done in client...");
+		connectionBean.sender().channelPool().shutdown();
 		connectionBean.reservation().shutdown().addListener(new BaseFutureAdapter<FutureDone<Void>>() {
 			@Override
 			public void operationComplete(final FutureDone<Void> future) throws Exception {
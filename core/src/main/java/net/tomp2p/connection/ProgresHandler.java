@@ -1,5 +1,12 @@
 package net.tomp2p.connection;
 
+import io.netty.channel.ChannelFuture;
+
 public interface ProgresHandler {
-    void progres();
+    /**
+     * Writes the data that has been added to a streamed message.
+     * 
+     * @return The future of the write, which completes once the data has been written to the socket
+     */
+    ChannelFuture progres();
 }
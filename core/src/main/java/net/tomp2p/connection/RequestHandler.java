@@ -256,6 +256,10 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
         if (responseMessage.isOk() || responseMessage.isNotOk()) {
         	
             peerBean.peerMap().peerFound(responseMessage.getSender(), null);
+            final long roundTripTime = futureResponse.responseReceived();
+            if (roundTripTime >= 0) {
+                peerBean.peerMap().peerRTT(responseMessage.getSender(), roundTripTime);
+            }
         }
         
         // call this for streaming support
@@ -278,8 +282,11 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
         if (!message.isKeepAlive()) {
             //set the success now, but trigger the notify when we closed the channel.
             futureResponse.setResponseLater(responseMessage); 
-            //the channel creater adds a listener that sets futureResponse.setResponseNow, when the channel is closed
-            ctx.close();
+            //the channel creater adds a listener that sets futureResponse.setResponseNow, when the channel is closed,
+            //the pool notifies the future if the channel is kept open for the next request
+            if (!connectionBean.sender().channelPool().offer(ctx.channel(), futureResponse)) {
+                ctx.close();
+            }
         } else {
             futureResponse.setResponse(responseMessage);
         }
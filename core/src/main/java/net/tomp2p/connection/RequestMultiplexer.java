@@ -0,0 +1,191 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Message;
+import net.tomp2p.message.MessageID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Matches replies to requests by their message ID, so that many requests can be outstanding on one TCP connection at
+ * the same time (pipelining). Without this handler, a connection can only serve one request at a time, since the
+ * handler of the request is replaced in the pipeline for every request. Each request has its own timeout, a timeout
+ * or an error reply fails the request, but does not close the connection. If the connection is closed, all outstanding
+ * requests fail.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class RequestMultiplexer extends SimpleChannelInboundHandler<Message> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RequestMultiplexer.class);
+
+    private final Map<MessageID, Outstanding> outstanding = new ConcurrentHashMap<MessageID, Outstanding>();
+
+    private volatile ChannelHandlerContext ctx;
+
+    /**
+     * Registers a request that will be sent over this connection.
+     *
+     * @param handler
+     *            The handler that processes the reply
+     * @param futureResponse
+     *            The future of the request
+     * @param timeoutSeconds
+     *            The time to wait for a reply, 0 or less means no timeout
+     */
+    public void register(final SimpleChannelInboundHandler<Message> handler, final FutureResponse futureResponse,
+            final int timeoutSeconds) {
+        final MessageID messageID = new MessageID(futureResponse.getRequest());
+        final Outstanding request = new Outstanding(messageID, handler, futureResponse, timeoutSeconds);
+        outstanding.put(messageID, request);
+        futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(final FutureResponse future) throws Exception {
+                remove(request);
+            }
+        });
+        final ChannelHandlerContext ctx = this.ctx;
+        if (ctx != null) {
+            request.schedule(ctx);
+        }
+    }
+
+    /**
+     * @return The number of requests that wait for a reply
+     */
+    public int outstanding() {
+        return outstanding.size();
+    }
+
+    @Override
+    public void handlerAdded(final ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        // requests registered before the channel was connected
+        for (Outstanding request : outstanding.values()) {
+            request.schedule(ctx);
+        }
+    }
+
+    @Override
+    protected void channelRead0(final ChannelHandlerContext ctx, final Message message) throws Exception {
+        if (message.isRequest()) {
+            ctx.fireChannelRead(message);
+            return;
+        }
+        final Outstanding request = outstanding.get(new MessageID(message));
+        if (request == null) {
+            LOG.debug("no outstanding request for {}, probably timed out", message);
+            return;
+        }
+        if (message.getType() == Message.Type.UNKNOWN_ID || message.getType() == Message.Type.EXCEPTION) {
+            // the other peer could not handle this request, but the connection is fine
+            remove(request);
+            request.futureResponse.setFailed("Reply with " + message.getType() + " for: "
+                    + request.futureResponse.getRequest());
+            return;
+        }
+        if (message.isDone()) {
+            remove(request);
+        } else {
+            // streaming, wait for the rest
+            request.schedule(ctx);
+        }
+        request.handler.channelRead(ctx, message);
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+        failAll("Channel closed with outstanding requests");
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) throws Exception {
+        LOG.debug("exception on pipelined connection, fail all outstanding requests", cause);
+        failAll("Exception on pipelined connection " + cause);
+        ctx.close();
+    }
+
+    private void failAll(final String reason) {
+        for (Outstanding request : outstanding.values()) {
+            remove(request);
+            request.futureResponse.setFailed(reason);
+        }
+    }
+
+    private void remove(final Outstanding request) {
+        outstanding.remove(request.messageID);
+        request.cancel();
+    }
+
+    /**
+     * A request that waits for its reply.
+     */
+    private final class Outstanding implements Runnable {
+        private final MessageID messageID;
+        private final SimpleChannelInboundHandler<Message> handler;
+        private final FutureResponse futureResponse;
+        private final int timeoutSeconds;
+        private ScheduledFuture<?> timeout;
+
+        private Outstanding(final MessageID messageID, final SimpleChannelInboundHandler<Message> handler,
+                final FutureResponse futureResponse, final int timeoutSeconds) {
+            this.messageID = messageID;
+            this.handler = handler;
+            this.futureResponse = futureResponse;
+            this.timeoutSeconds = timeoutSeconds;
+        }
+
+        private synchronized void schedule(final ChannelHandlerContext ctx) {
+            if (timeoutSeconds <= 0 || !outstanding.containsKey(messageID)) {
+                return;
+            }
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            timeout = ctx.executor().schedule(this, timeoutSeconds, TimeUnit.SECONDS);
+        }
+
+        private synchronized void cancel() {
+            if (timeout != null) {
+                timeout.cancel(false);
+                timeout = null;
+            }
+        }
+
+        @Override
+        public void run() {
+            if (outstanding.remove(messageID) != null) {
+                LOG.warn("pipelined request timed out {}", futureResponse.getRequest());
+                futureResponse.setFailed("Timeout of pipelined request after " + timeoutSeconds + "s");
+            }
+        }
+    }
+}
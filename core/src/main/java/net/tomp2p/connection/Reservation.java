@@ -134,9 +134,11 @@ public class Reservation {
 		}
 		if (routingConfiguration != null) {
 			if (!builder.isForceTCP()) {
-				nrConnectionsUDP = Math.max(nrConnectionsUDP, routingConfiguration.getParallel());
+				nrConnectionsUDP = Math.max(nrConnectionsUDP, routingConfiguration.getParallel()
+				        + routingConfiguration.getHedged());
 			} else {
-				nrConnectionsTCP = Math.max(nrConnectionsTCP, routingConfiguration.getParallel());
+				nrConnectionsTCP = Math.max(nrConnectionsTCP, routingConfiguration.getParallel()
+				        + routingConfiguration.getHedged());
 			}
 		}
 
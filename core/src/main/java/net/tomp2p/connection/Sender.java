@@ -16,9 +16,11 @@
 
 package net.tomp2p.connection;
 
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.util.concurrent.EventExecutorGroup;
 import io.netty.util.concurrent.GenericFutureListener;
@@ -47,7 +49,9 @@ import net.tomp2p.message.TomP2PSinglePacketUDP;
 import net.tomp2p.p2p.builder.PingBuilder;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
 import net.tomp2p.peers.PeerSocketAddress;
+import net.tomp2p.peers.PeerStatatistic;
 import net.tomp2p.peers.PeerStatusListener;
 import net.tomp2p.peers.PeerStatusListener.FailReason;
 import net.tomp2p.rpc.RPC;
@@ -68,7 +72,10 @@ public class Sender {
 	private final PeerStatusListener[] peerStatusListeners;
 	private final ChannelClientConfiguration channelClientConfiguration;
 	private final Dispatcher dispatcher;
+	private final PeerBean peerBean;
 	private final Random random;
+	private final ChannelHandler udpDecoderHandler;
+	private final ChannelPool channelPool;
 
 	private PingBuilder pingBuilder;
 
@@ -80,19 +87,33 @@ public class Sender {
 	 * @param channelClientConfiguration
 	 *            The configuration used to get the signature factory
 	 * @param dispatcher
+	 * @param peerBean
+	 *            The peer bean with the statistics of the other peers, used for adaptive timeouts
 	 */
 	public Sender(final Number160 peerId, final PeerStatusListener[] peerStatusListeners,
-	        final ChannelClientConfiguration channelClientConfiguration, Dispatcher dispatcher) {
+	        final ChannelClientConfiguration channelClientConfiguration, Dispatcher dispatcher,
+	        final PeerBean peerBean) {
 		this.peerStatusListeners = peerStatusListeners;
 		this.channelClientConfiguration = channelClientConfiguration;
 		this.dispatcher = dispatcher;
+		this.peerBean = peerBean;
 		this.random = new Random(peerId.hashCode());
+		this.udpDecoderHandler = new TomP2PSinglePacketUDP(channelClientConfiguration.signatureFactory());
+		this.channelPool = new ChannelPool(channelClientConfiguration.maxPooledTCPPerPeer(),
+		        channelClientConfiguration.maxPooledTCP(), channelClientConfiguration.pooledTCPIdleMillis());
 	}
 
 	public ChannelClientConfiguration channelClientConfiguration() {
 		return channelClientConfiguration;
 	}
 
+	/**
+	 * @return The pool of open TCP channels that are reused for requests to the same peer
+	 */
+	public ChannelPool channelPool() {
+		return channelPool;
+	}
+
 	public PingBuilder pingBuilder() {
 		return pingBuilder;
 	}
@@ -131,6 +152,12 @@ public class Sender {
 			message.setPeerSocketAddresses(Arrays.asList(message.getSender().getPeerSocketAddresses()));
 		}
 		
+		if (peerConnection != null && peerConnection.isPipelined() && handler != null
+		        && !message.getRecipient().isRelayed()) {
+			sendTCPPipelined(handler, futureResponse, message, channelCreator, idleTCPSeconds, connectTimeoutMillis,
+			        peerConnection);
+			return;
+		}
 
 		final ChannelFuture channelFuture;
 		if (peerConnection != null && peerConnection.channelFuture() != null
@@ -138,7 +165,8 @@ public class Sender {
 			channelFuture = sendTCPPeerConnection(peerConnection, handler, channelCreator, futureResponse);
 			afterConnect(futureResponse, message, channelFuture, handler == null);
 		} else if (channelCreator != null) {
-			final TimeoutFactory timeoutHandler = createTimeoutHandler(futureResponse, idleTCPSeconds, handler == null);
+			final TimeoutFactory timeoutHandler = createTimeoutHandler(futureResponse, message.getRecipient(),
+			        idleTCPSeconds, handler == null);
 			InetSocketAddress recipient = null;
 			//TODO: say what we will do here
 			if (message.getRecipient().isRelayed()) {
@@ -146,13 +174,61 @@ public class Sender {
 				        peerConnection, timeoutHandler);
 			} else {
 				recipient = message.getRecipient().createSocketTCP();
-				channelFuture = sendTCPCreateChannel(recipient, channelCreator, peerConnection, handler,
-				        timeoutHandler, connectTimeoutMillis, futureResponse);
+				final boolean poolable = peerConnection == null && handler != null && channelPool.isEnabled();
+				ChannelFuture pooled = null;
+				if (poolable) {
+					pooled = sendTCPPooledChannel(message.getRecipient(), recipient, channelCreator, handler,
+					        timeoutHandler, futureResponse);
+				}
+				if (pooled != null) {
+					channelFuture = pooled;
+				} else {
+					channelFuture = sendTCPCreateChannel(recipient, channelCreator, peerConnection, handler,
+					        timeoutHandler, connectTimeoutMillis, futureResponse);
+					if (poolable && channelFuture != null) {
+						channelPool.register(channelFuture.channel(), message.getRecipient());
+					}
+				}
 				afterConnect(futureResponse, message, channelFuture, handler == null);
 			}
 		}
 	}
 
+	/**
+	 * Sends a request over the shared connection of a pipelined {@link PeerConnection}. The connection is opened by the
+	 * first request, all other requests are written to the same channel, even while it is still connecting. The reply
+	 * is matched to the request by message ID in the {@link RequestMultiplexer}, which also handles the timeout of
+	 * each request.
+	 */
+	private void sendTCPPipelined(final SimpleChannelInboundHandler<Message> handler,
+	        final FutureResponse futureResponse, final Message message, final ChannelCreator channelCreator,
+	        final int idleTCPSeconds, final int connectTimeoutMillis, final PeerConnection peerConnection) {
+		// the other peer must not close the connection after the reply
+		message.setKeepAlive(true);
+		final ChannelFuture channelFuture;
+		synchronized (peerConnection) {
+			final ChannelFuture current = peerConnection.channelFuture();
+			final RequestMultiplexer multiplexer = peerConnection.requestMultiplexer();
+			if (current != null && multiplexer != null && (!current.isDone() || current.channel().isActive())) {
+				multiplexer.register(handler, futureResponse, idleTCPSeconds);
+				channelFuture = current;
+			} else {
+				final ChannelCreator cc = channelCreator != null ? channelCreator : peerConnection.channelCreator();
+				if (cc == null) {
+					futureResponse.setFailed("Pipelined connection is closed and cannot be reopened");
+					return;
+				}
+				final RequestMultiplexer requestMultiplexer = new RequestMultiplexer();
+				requestMultiplexer.register(handler, futureResponse, idleTCPSeconds);
+				peerConnection.requestMultiplexer(requestMultiplexer);
+				// the multiplexer of the peer connection handles the replies and their timeouts
+				channelFuture = sendTCPCreateChannel(message.getRecipient().createSocketTCP(), cc, peerConnection,
+				        null, null, connectTimeoutMillis, futureResponse);
+			}
+		}
+		afterConnect(futureResponse, message, channelFuture, false);
+	}
+
 	/**
 	 * TODO: document what is done here
 	 * @param handler
@@ -272,6 +348,10 @@ public class Sender {
 		if (peerConnection != null) {
 			// we expect replies on this connection
 			handlers.put("dispatcher", new Pair<EventExecutorGroup, ChannelHandler>(null, dispatcher));
+			if (peerConnection.isPipelined() && peerConnection.requestMultiplexer() != null) {
+				handlers.put("multiplexer", new Pair<EventExecutorGroup, ChannelHandler>(null,
+				        peerConnection.requestMultiplexer()));
+			}
 		}
 
 		if (timeoutHandler != null) {
@@ -294,6 +374,70 @@ public class Sender {
 		return channelFuture;
 	}
 
+	/**
+	 * Reuses an idle channel from the pool, if there is one to this peer. The handlers of the request replace the
+	 * idle handlers of the pool.
+	 * 
+	 * @return The channel future or null if there was no idle channel
+	 */
+	private ChannelFuture sendTCPPooledChannel(final PeerAddress remotePeer, final InetSocketAddress recipient,
+	        final ChannelCreator channelCreator, final ChannelHandler handler, final TimeoutFactory timeoutHandler,
+	        final FutureResponse futureResponse) {
+		final Channel channel = channelPool.poll(remotePeer, recipient);
+		if (channel == null) {
+			return null;
+		}
+		// the same filter as for a new channel, so that the handlers run in the same executors
+		final Map<String, Pair<EventExecutorGroup, ChannelHandler>> handlers = new LinkedHashMap<String, Pair<EventExecutorGroup, ChannelHandler>>(
+		        4);
+		handlers.put("timeout0",
+		        new Pair<EventExecutorGroup, ChannelHandler>(null, timeoutHandler.idleStateHandlerTomP2P()));
+		handlers.put("timeout1", new Pair<EventExecutorGroup, ChannelHandler>(null, timeoutHandler.timeHandler()));
+		handlers.put("handler", new Pair<EventExecutorGroup, ChannelHandler>(null, handler));
+		final Map<String, Pair<EventExecutorGroup, ChannelHandler>> handlers2 = channelClientConfiguration
+		        .pipelineFilter().filter(handlers, true, true);
+		final Pair<EventExecutorGroup, ChannelHandler> timeout0 = handlers2.get("timeout0");
+		final Pair<EventExecutorGroup, ChannelHandler> timeout1 = handlers2.get("timeout1");
+		final Pair<EventExecutorGroup, ChannelHandler> handler2 = handlers2.get("handler");
+
+		final ChannelFuture channelFuture = channelCreator.reuseTCP(channel, handler2.element0(), futureResponse);
+		if (channelFuture == null) {
+			// shut down, nobody will use this channel
+			channel.close();
+			return null;
+		}
+		LOG.debug("reuse pooled channel {} for {}", channel, futureResponse.getRequest());
+		// the pipeline is changed in the event loop of the channel, otherwise we block until it is done, which can
+		// deadlock if we are in the event loop of an other channel
+		final ChannelPromise promise = channel.newPromise();
+		channel.eventLoop().execute(new Runnable() {
+			@Override
+			public void run() {
+				final ChannelPipeline pipeline = channel.pipeline();
+				replace(pipeline, "timeout0", timeout0);
+				replace(pipeline, "timeout1", timeout1);
+				pipeline.addLast(handler2.element0(), "handler", handler2.element1());
+				promise.setSuccess();
+			}
+		});
+		return promise;
+	}
+
+	/**
+	 * Replaces a handler at the same position, as replace in the pipeline does not take an executor.
+	 */
+	private static void replace(final ChannelPipeline pipeline, final String name,
+	        final Pair<EventExecutorGroup, ChannelHandler> pair) {
+		final List<String> names = pipeline.names();
+		final int index = names.indexOf(name);
+		pipeline.remove(name);
+		if (index <= 0) {
+			pipeline.addFirst(pair.element0(), name, pair.element1());
+		} else {
+			pipeline.addAfter(pair.element0(), names.get(index - 1), name, pair.element1());
+		}
+	}
+
 	private ChannelFuture sendTCPPeerConnection(PeerConnection peerConnection, ChannelHandler handler,
 	        final ChannelCreator channelCreator, final FutureResponse futureResponse) {
 		// if the channel gets closed, the future should get notified
@@ -385,14 +529,14 @@ public class Sender {
 		} else {
 			final int nrTCPHandlers = 7; // 5 / 0.75
 			handlers = new LinkedHashMap<String, Pair<EventExecutorGroup, ChannelHandler>>(nrTCPHandlers);
-			final TimeoutFactory timeoutHandler = createTimeoutHandler(futureResponse, idleUDPSeconds, isFireAndForget);
+			final TimeoutFactory timeoutHandler = createTimeoutHandler(futureResponse, message.getRecipient(),
+			        idleUDPSeconds, isFireAndForget);
 			handlers.put("timeout0",
 			        new Pair<EventExecutorGroup, ChannelHandler>(null, timeoutHandler.idleStateHandlerTomP2P()));
 			handlers.put("timeout1", new Pair<EventExecutorGroup, ChannelHandler>(null, timeoutHandler.timeHandler()));
 		}
 
-		handlers.put("decoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2PSinglePacketUDP(
-		        channelClientConfiguration.signatureFactory())));
+		handlers.put("decoder", new Pair<EventExecutorGroup, ChannelHandler>(null, udpDecoderHandler));
 		handlers.put("encoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2POutbound(false,
 		        channelClientConfiguration.signatureFactory())));
 		if (!isFireAndForget) {
@@ -435,15 +579,47 @@ public class Sender {
 	 * 
 	 * @param futureResponse
 	 *            The future to set the response
-	 * @param idleMillis
-	 *            The timeout
+	 * @param recipient
+	 *            The peer that should reply
+	 * @param idleSeconds
+	 *            The timeout, which is also the upper bound of an adaptive timeout
 	 * @param fireAndForget
 	 *            True, if we don't expect a message
 	 * @return The timeout creator that will create timeout handlers
 	 */
-	private TimeoutFactory createTimeoutHandler(final FutureResponse futureResponse, final int idleMillis,
-	        final boolean fireAndForget) {
-		return fireAndForget ? null : new TimeoutFactory(futureResponse, idleMillis, peerStatusListeners, "Sender");
+	private TimeoutFactory createTimeoutHandler(final FutureResponse futureResponse, final PeerAddress recipient,
+	        final int idleSeconds, final boolean fireAndForget) {
+		return fireAndForget ? null : new TimeoutFactory(futureResponse, timeoutMillis(recipient, idleSeconds),
+		        TimeUnit.MILLISECONDS, peerStatusListeners, "Sender");
+	}
+
+	/**
+	 * Calculates the timeout of a request from the round-trip times measured to the recipient, so that a request to
+	 * a peer that does not reply anymore fails after a few round-trip times instead of the fixed idle time. The
+	 * timeout is not shorter than {@link ChannelClientConfiguration#minAdaptiveTimeoutMillis()}.
+	 * 
+	 * @param recipient
+	 *            The peer that should reply
+	 * @param idleSeconds
+	 *            The fixed timeout, used if nothing is known about the recipient
+	 * @return The timeout in milliseconds
+	 */
+	private long timeoutMillis(final PeerAddress recipient, final int idleSeconds) {
+		final long maxMillis = TimeUnit.SECONDS.toMillis(idleSeconds);
+		final int minMillis = channelClientConfiguration.minAdaptiveTimeoutMillis();
+		final PeerMap peerMap = peerBean == null ? null : peerBean.peerMap();
+		if (minMillis <= 0 || peerMap == null || recipient == null) {
+			return maxMillis;
+		}
+		final PeerStatatistic peerStatatistic = peerMap.peerStatatistic(recipient);
+		if (peerStatatistic == null) {
+			return maxMillis;
+		}
+		final long rto = peerStatatistic.retransmissionTimeout();
+		if (rto < 0) {
+			return maxMillis;
+		}
+		return Math.min(maxMillis, Math.max(minMillis, TimeUnit.MICROSECONDS.toMillis(rto)));
 	}
 
 	/**
@@ -473,9 +649,11 @@ public class Sender {
 				if (future.isSuccess()) {
 					futureResponse.setProgressHandler(new ProgresHandler() {
 						@Override
-						public void progres() {
+						public ChannelFuture progres() {
+							futureResponse.requestSent();
 							final ChannelFuture writeFuture = future.channel().writeAndFlush(message);
 							afterSend(writeFuture, futureResponse, fireAndForget);
+							return writeFuture;
 						}
 					});
 					// this needs to be called first before all other progress
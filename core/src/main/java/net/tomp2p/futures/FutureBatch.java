@@ -0,0 +1,162 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.futures;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.tomp2p.p2p.builder.DHTBuilder;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+
+/**
+ * The future object for batch operations, which get or put many keys with one request per responsible peer. The
+ * results of each peer are streamed with {@link #getProgres()} as soon as they arrive and are aggregated in
+ * {@link #getResults()}. This future completes once all peers have answered.
+ *
+ * @author Thomas Bocek
+ *
+ * @param <V>
+ *            The value of a key, the data for gets and the put status for puts
+ */
+public class FutureBatch<V> extends FutureDHT<FutureBatch<V>> {
+
+    // the keys that were requested
+    private final Collection<Number640> keys;
+
+    // the results of each peer
+    private final Map<PeerAddress, Map<Number640, V>> rawData = new HashMap<PeerAddress, Map<Number640, V>>();
+
+    // the aggregated results, the first result of a key wins
+    private final Map<Number640, V> results = new HashMap<Number640, V>();
+
+    private final FutureProgres<Map<Number640, V>> progres = new FutureProgres<Map<Number640, V>>();
+
+    // the future that is completed with the next result, guarded by progresLock
+    private FutureProgres<Map<Number640, V>> nextProgres = progres;
+
+    // keeps the results in order without notifying the listeners of the progress while holding the lock
+    private final Object progresLock = new Object();
+
+    /**
+     * Creates a new future for a batch operation.
+     *
+     * @param builder
+     *            The builder of the batch operation
+     * @param keys
+     *            The keys that were requested
+     */
+    public FutureBatch(final DHTBuilder<?> builder, final Collection<Number640> keys) {
+        super(builder);
+        this.keys = keys;
+        self(this);
+    }
+
+    /**
+     * Adds the result of a peer and streams it to {@link #getProgres()}.
+     *
+     * @param peerAddress
+     *            The peer that sent the result
+     * @param result
+     *            The keys that were found or stored on this peer
+     */
+    public void addResult(final PeerAddress peerAddress, final Map<Number640, V> result) {
+        synchronized (progresLock) {
+            synchronized (lock) {
+                if (completed) {
+                    return;
+                }
+                Map<Number640, V> peerResult = rawData.get(peerAddress);
+                if (peerResult == null) {
+                    peerResult = new HashMap<Number640, V>(result.size() * 2);
+                    rawData.put(peerAddress, peerResult);
+                }
+                peerResult.putAll(result);
+                for (Map.Entry<Number640, V> entry : result.entrySet()) {
+                    if (!results.containsKey(entry.getKey())) {
+                        results.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            nextProgres = nextProgres.setProgres(result, false);
+        }
+    }
+
+    /**
+     * Finishes this future once all peers have answered. The future fails if no peer answered.
+     */
+    public void setDone() {
+        synchronized (progresLock) {
+            synchronized (lock) {
+                if (!setCompletedAndNotify()) {
+                    return;
+                }
+                final boolean ok = !rawData.isEmpty() || keys.isEmpty();
+                final int missing = keys.size() - results.size();
+                this.type = ok ? FutureType.OK : FutureType.FAILED;
+                this.reason = ok ? (missing == 0 ? "All keys found" : missing + " keys not found")
+                        : "No peer answered";
+            }
+            nextProgres.setProgres(Collections.<Number640, V> emptyMap(), true);
+        }
+        notifyListeners();
+    }
+
+    /**
+     * @return The first of the futures that are completed with the results of each peer as they arrive. The last
+     *         future of the chain is completed with an empty map once all peers have answered.
+     */
+    public FutureProgres<Map<Number640, V>> getProgres() {
+        return progres;
+    }
+
+    /**
+     * @return The aggregated results of all peers. For gets the data that has been found, for puts the keys that have
+     *         been stored.
+     */
+    public Map<Number640, V> getResults() {
+        synchronized (lock) {
+            return new HashMap<Number640, V>(results);
+        }
+    }
+
+    /**
+     * @return The results of each peer
+     */
+    public Map<PeerAddress, Map<Number640, V>> getRawData() {
+        synchronized (lock) {
+            return new HashMap<PeerAddress, Map<Number640, V>>(rawData);
+        }
+    }
+
+    /**
+     * @return The keys that have not been found or stored on any peer
+     */
+    public Collection<Number640> getMissingKeys() {
+        synchronized (lock) {
+            final Collection<Number640> missing = new ArrayList<Number640>();
+            for (Number640 key : keys) {
+                if (!results.containsKey(key)) {
+                    missing.add(key);
+                }
+            }
+            return missing;
+        }
+    }
+}
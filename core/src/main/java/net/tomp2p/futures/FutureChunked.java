@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.futures;
+
+import java.io.InputStream;
+
+import net.tomp2p.p2p.builder.DHTBuilder;
+import net.tomp2p.storage.ChunkManifest;
+
+/**
+ * The future object for large values that are stored in chunks, see {@link net.tomp2p.p2p.ChunkedStorage}. The chunks
+ * are stored and fetched in parallel, and this future completes once all chunks and the manifest are done. The value
+ * of a streamed get is not assembled, but read from {@link #getInputStream()} while the chunks are being fetched.
+ *
+ * @author Thomas Bocek
+ */
+public class FutureChunked extends FutureDHT<FutureChunked> {
+
+    private ChunkManifest manifest;
+
+    private byte[] value;
+
+    private InputStream inputStream;
+
+    private int chunksDone = 0;
+
+    /**
+     * Creates a new future for a chunked put or get.
+     *
+     * @param builder
+     *            The builder of the operation
+     */
+    public FutureChunked(final DHTBuilder<?> builder) {
+        super(builder);
+        self(this);
+    }
+
+    /**
+     * Sets the manifest once it has been created or fetched.
+     *
+     * @param manifest
+     *            The manifest of the value
+     */
+    public void setManifest(final ChunkManifest manifest) {
+        synchronized (lock) {
+            this.manifest = manifest;
+        }
+    }
+
+    /**
+     * Sets the stream of a streamed get, which is available before this future completes.
+     *
+     * @param inputStream
+     *            The stream with the value
+     */
+    public void setInputStream(final InputStream inputStream) {
+        synchronized (lock) {
+            this.inputStream = inputStream;
+        }
+    }
+
+    /**
+     * Counts a chunk that has been stored or fetched.
+     */
+    public void chunkDone() {
+        synchronized (lock) {
+            chunksDone++;
+        }
+    }
+
+    /**
+     * Finishes this future successfully.
+     *
+     * @param value
+     *            The value that has been fetched or null for a put
+     * @return This class
+     */
+    public FutureChunked setDone(final byte[] value) {
+        synchronized (lock) {
+            if (!setCompletedAndNotify()) {
+                return this;
+            }
+            this.value = value;
+            this.type = FutureType.OK;
+            this.reason = "All " + chunksDone + " chunks done";
+        }
+        notifyListeners();
+        return this;
+    }
+
+    /**
+     * @return The manifest of the value or null if it has not been created or fetched
+     */
+    public ChunkManifest getManifest() {
+        synchronized (lock) {
+            return manifest;
+        }
+    }
+
+    /**
+     * @return The value that has been fetched or null for a put or a streamed get
+     */
+    public byte[] getValue() {
+        synchronized (lock) {
+            return value;
+        }
+    }
+
+    /**
+     * @return The stream with the value of a streamed get or null otherwise. The stream can be read as soon as the
+     *         get has been started. A read blocks until the next chunk has been fetched and fails if the get fails.
+     *         Closing the stream stops the get.
+     */
+    public InputStream getInputStream() {
+        synchronized (lock) {
+            return inputStream;
+        }
+    }
+
+    /**
+     * @return The number of chunks that have been stored or fetched so far
+     */
+    public int getChunksDone() {
+        synchronized (lock) {
+            return chunksDone;
+        }
+    }
+}
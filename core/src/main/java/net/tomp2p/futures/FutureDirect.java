@@ -36,6 +36,18 @@ public class FutureDirect extends FutureWrapper<FutureResponse> {
         return this;
     }
     
+    /**
+     * @return The future of the request, which is available right away, e.g. to stream the data of the request with
+     *         {@link net.tomp2p.message.BufferOutputStream}
+     */
+    public FutureResponse getFutureResponse() {
+        return futureResponse;
+    }
+
+    /**
+     * @return The buffer of the reply. For a streamed reply, this is only the last part, see
+     *         {@link net.tomp2p.message.BufferInputStream}
+     */
     public Buffer getBuffer() {
         synchronized (lock) {
             return futureResponse.getResponse().getBuffer(0);
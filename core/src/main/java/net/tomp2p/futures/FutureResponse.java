@@ -17,6 +17,8 @@ package net.tomp2p.futures;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import io.netty.channel.ChannelFuture;
+
 import java.util.concurrent.CountDownLatch;
 
 import net.tomp2p.connection.ProgresHandler;
@@ -46,6 +48,10 @@ public class FutureResponse extends BaseFutureImpl<FutureResponse> {
     
     private boolean reponseLater = false;
 
+    // the time when the request was sent and the measured round-trip time, -1 if not known
+    private volatile long sentNanos = -1;
+    private volatile long roundTripTime = -1;
+
     /**
      * Create the future and set the request message.
      * 
@@ -96,6 +102,13 @@ public class FutureResponse extends BaseFutureImpl<FutureResponse> {
         this.futureSuccessEvaluator = futureSuccessEvaluator;
         this.progressListener = progressListener;
         self(this);
+        // if the request fails before it has been sent, the user must not wait for the progress handler forever
+        addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(final FutureResponse future) throws Exception {
+                secondProgressHandler.countDown();
+            }
+        });
     }
 
     /**
@@ -217,6 +230,40 @@ public class FutureResponse extends BaseFutureImpl<FutureResponse> {
         }
     }
 
+    /**
+     * Marks the time when the request is written to the channel, the round-trip time is measured from here.
+     * 
+     * @return This class
+     */
+    public FutureResponse requestSent() {
+        sentNanos = System.nanoTime();
+        return this;
+    }
+
+    /**
+     * Measures the round-trip time when the first reply arrives. Further replies, e.g. of a streaming request, do not
+     * change the measurement.
+     * 
+     * @return The round-trip time in microseconds, or -1 if the time of sending is unknown or the round-trip time has
+     *         already been measured
+     */
+    public long responseReceived() {
+        final long sent = sentNanos;
+        if (sent < 0 || roundTripTime >= 0) {
+            return -1;
+        }
+        roundTripTime = (System.nanoTime() - sent) / 1000;
+        return roundTripTime;
+    }
+
+    /**
+     * @return The time between sending the request and receiving the first reply in microseconds, or -1 if no reply
+     *         has been received
+     */
+    public long getRoundTripTime() {
+        return roundTripTime;
+    }
+
     /**
      * Set the user based progres handler, where the user can add more data and call {@link #progress()} when data has
      * been added.
@@ -258,11 +305,27 @@ public class FutureResponse extends BaseFutureImpl<FutureResponse> {
      *             If latch is interrupted
      */
     public FutureResponse progress() throws InterruptedException {
+        progressWrite();
+        return this;
+    }
+
+    /**
+     * Same as {@link #progress()}, but returns the future of the write. Once the write has completed, all the data that
+     * has been added before this call has been written to the socket. This can be used to limit the data that is
+     * buffered while streaming, see {@link net.tomp2p.message.BufferOutputStream}.
+     * 
+     * @return The future of the write or null if this future has completed before the request has been sent
+     * @throws InterruptedException
+     *             If latch is interrupted
+     */
+    public ChannelFuture progressWrite() throws InterruptedException {
         secondProgressHandler.await();
         synchronized (lock) {
-            progressHandler.progres();
+            if (progressHandler == null) {
+                return null;
+            }
+            return progressHandler.progres();
         }
-        return this;
     }
 
     /**
@@ -2,6 +2,7 @@ package net.tomp2p.message;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.Channel;
 
 import java.io.IOException;
 
@@ -19,6 +20,8 @@ public class Buffer {
 
     private int read = 0;
 
+    private Channel channel = null;
+
     public Buffer(final ByteBuf buffer, final int length) {
         this.buffer = buffer;
         this.length = length;
@@ -37,6 +40,24 @@ public class Buffer {
         return buffer;
     }
 
+    /**
+     * @param channel
+     *            The channel this part of a streamed buffer has been received on
+     * @return This class
+     */
+    public Buffer channel(final Channel channel) {
+        this.channel = channel;
+        return this;
+    }
+
+    /**
+     * @return The channel this part of a streamed buffer has been received on or null if this is not a received part.
+     *         A consumer that cannot keep up can stop reading from this channel, see {@link BufferInputStream}.
+     */
+    public Channel channel() {
+        return channel;
+    }
+
     public int readable() {
         int remaining = length - read;
         int available = buffer.readableBytes();
@@ -60,7 +81,15 @@ public class Buffer {
         return read;
     }
 
-    public Buffer addComponent(final ByteBuf slice) {
+    /**
+     * Adds data to this buffer. For a streamed message, this is synchronized with the encoder, which may read this
+     * buffer at the same time.
+     * 
+     * @param slice
+     *            The data to add
+     * @return This class
+     */
+    public synchronized Buffer addComponent(final ByteBuf slice) {
         if (buffer instanceof CompositeByteBuf) {
             CompositeByteBuf cbb = (CompositeByteBuf) buffer;
             slice.retain();
@@ -73,6 +102,16 @@ public class Buffer {
         return this;
     }
     
+    /**
+     * Releases the components that have been read completely, so that a streamed buffer does not hold on to the data
+     * that has been sent already. Only a CompositeByteBuf can release parts of its data.
+     */
+    public synchronized void discardReadComponents() {
+        if (buffer instanceof CompositeByteBuf) {
+            ((CompositeByteBuf) buffer).discardReadComponents();
+        }
+    }
+
     public Object object() throws ClassNotFoundException, IOException {
         return Utils.decodeJavaObject(buffer.duplicate().readerIndex(0));
     }
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.message;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+import net.tomp2p.futures.ProgressListener;
+
+/**
+ * An input stream for the parts of a streamed buffer, which can be consumed while the rest of the buffer is being
+ * received. The parts of a streamed request are passed with {@link #offer(Buffer, boolean)} in a
+ * {@link net.tomp2p.rpc.RawDataReply}. For a streamed reply, this stream is set as the progress listener of the
+ * request, e.g. with {@link net.tomp2p.p2p.builder.SendDirectBuilder#progressListener(ProgressListener)}.
+ * <p>
+ * Passing a part never blocks, as this is done by the I/O thread. Once more than the capacity is queued, reading from
+ * the channel of the part is suspended until the reader has caught up, so that TCP flow control slows down the sender,
+ * see {@link BufferOutputStream}. As the parts that are already received are still queued, the queue can exceed the
+ * capacity by what the channel has read in one go. A read blocks until data is available, thus this stream must be
+ * read by a thread of the user and not by an I/O thread. While reading is suspended, the channel does not time out as
+ * idle, see {@link net.tomp2p.connection.IdleStateHandlerTomP2P}, so a consumer may stall for longer than the idle
+ * timeout. Such a consumer must eventually read or close this stream.
+ * <p>
+ * The stream holds a reference to each queued part, which is released once the part has been read or the stream has
+ * been closed.
+ *
+ * @author Thomas Bocek
+ */
+public class BufferInputStream extends InputStream implements ProgressListener {
+
+    /**
+     * The default number of bytes that are queued.
+     */
+    public static final int DEFAULT_CAPACITY = 4 * BufferOutputStream.DEFAULT_CHUNK_SIZE;
+
+    private final long capacity;
+
+    // guarded by itself
+    private final Deque<ByteBuf> parts = new ArrayDeque<ByteBuf>();
+
+    // the channel that does not read while the queue is full
+    private Channel suspended = null;
+
+    private long queued = 0;
+
+    private long received = 0;
+
+    private boolean complete = false;
+
+    private boolean closed = false;
+
+    private String failed = null;
+
+    /**
+     * Creates a stream with the default capacity.
+     */
+    public BufferInputStream() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity
+     *            The maximum number of bytes that are queued
+     */
+    public BufferInputStream(final long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Queues a part of a buffer. If the queue is full, reading from the channel of the part is suspended.
+     *
+     * @param part
+     *            The part of the buffer, which may be null if nothing has been received
+     * @param last
+     *            True if this is the last part
+     * @return False if this stream has been closed or has already received the last part, and the part has been
+     *         dropped
+     */
+    public boolean offer(final Buffer part, final boolean last) {
+        final int length = part == null ? 0 : part.buffer().readableBytes();
+        synchronized (parts) {
+            // a follow-up message with the same id may arrive after the last part, which is not part of this stream
+            if (closed || complete) {
+                return false;
+            }
+            if (length > 0) {
+                parts.add(part.buffer().duplicate().retain());
+                queued += length;
+                received += length;
+            }
+            complete = last;
+            if (!complete && queued > capacity && suspended == null && part != null && part.channel() != null) {
+                suspended = part.channel();
+                suspended.config().setAutoRead(false);
+            }
+            parts.notifyAll();
+            return true;
+        }
+    }
+
+    @Override
+    public void progress(final Message interMediateMessage) {
+        final List<Buffer> buffers = interMediateMessage.getBufferList();
+        final Buffer part = buffers.isEmpty() ? null : buffers.get(buffers.size() - 1);
+        offer(part, interMediateMessage.isDone());
+    }
+
+    /**
+     * Fails this stream, e.g. if the request failed. The reader gets an exception once it has read the queued data.
+     *
+     * @param reason
+     *            The reason of the failure
+     */
+    public void setFailed(final String reason) {
+        synchronized (parts) {
+            if (failed == null && !complete) {
+                failed = reason;
+            }
+            resume();
+            parts.notifyAll();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        synchronized (parts) {
+            final ByteBuf head = head();
+            if (head == null) {
+                return -1;
+            }
+            final int b = head.readByte() & 0xff;
+            consumed(head, 1);
+            return b;
+        }
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        synchronized (parts) {
+            final ByteBuf head = head();
+            if (head == null) {
+                return -1;
+            }
+            final int length = Math.min(len, head.readableBytes());
+            head.readBytes(b, off, length);
+            consumed(head, length);
+            return length;
+        }
+    }
+
+    @Override
+    public int available() {
+        synchronized (parts) {
+            return (int) Math.min(queued, Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Drops the queued data and all further parts.
+     */
+    @Override
+    public void close() {
+        synchronized (parts) {
+            closed = true;
+            for (ByteBuf part : parts) {
+                part.release();
+            }
+            parts.clear();
+            queued = 0;
+            resume();
+            parts.notifyAll();
+        }
+    }
+
+    /**
+     * @return The number of bytes that have been received so far
+     */
+    public long received() {
+        synchronized (parts) {
+            return received;
+        }
+    }
+
+    /**
+     * @return The number of bytes that are queued and not read yet
+     */
+    public long queued() {
+        synchronized (parts) {
+            return queued;
+        }
+    }
+
+    /**
+     * Waits for the next part, needs to be called while holding the lock.
+     *
+     * @return The first part or null if all parts have been read
+     */
+    private ByteBuf head() throws IOException {
+        try {
+            while (parts.isEmpty()) {
+                if (failed != null) {
+                    throw new IOException(failed);
+                }
+                if (complete || closed) {
+                    return null;
+                }
+                parts.wait();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for data");
+        }
+        return parts.peek();
+    }
+
+    private void consumed(final ByteBuf head, final int length) {
+        if (!head.isReadable()) {
+            parts.poll().release();
+        }
+        queued -= length;
+        if (queued <= capacity / 2) {
+            resume();
+        }
+    }
+
+    /**
+     * Reads from the suspended channel again, needs to be called while holding the lock. This does not block, the
+     * channel schedules the read on its I/O thread.
+     */
+    private void resume() {
+        if (suspended != null) {
+            suspended.config().setAutoRead(true);
+            suspended = null;
+        }
+    }
+}
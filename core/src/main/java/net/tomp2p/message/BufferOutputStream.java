@@ -0,0 +1,251 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.message;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureResponse;
+
+/**
+ * An output stream for the buffer of a streamed request, e.g. with
+ * {@link net.tomp2p.p2p.builder.SendDirectBuilder#setStreaming()}. The data is added to the buffer in chunks and each
+ * chunk is sent with {@link FutureResponse#progressWrite()}. The encoder releases the parts of the buffer that have
+ * been sent, and a write blocks while more than the window has been handed to the channel, but not yet written to
+ * the socket. Thus, the memory that is used is bounded by the window, no matter how large the buffer is. If the other
+ * peer consumes the data slowly, TCP flow control stops the socket and this stream blocks the writer. The pending
+ * writes keep the channel from timing out as idle, see {@link net.tomp2p.connection.IdleStateHandlerTomP2P}.
+ * <p>
+ * The buffer needs to announce its total length, e.g. <code>new Buffer(Unpooled.compositeBuffer(), length)</code>,
+ * and exactly this number of bytes needs to be written. This stream is not thread-safe.
+ *
+ * @author Thomas Bocek
+ */
+public class BufferOutputStream extends OutputStream {
+
+    /**
+     * The default size of the chunks that are added to the buffer.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The default number of bytes that may be pending in the channel.
+     */
+    public static final int DEFAULT_WINDOW = 4 * DEFAULT_CHUNK_SIZE;
+
+    private final FutureResponse futureResponse;
+
+    private final Buffer buffer;
+
+    private final int chunkSize;
+
+    private final long window;
+
+    private final Object lock = new Object();
+
+    private ByteBuf chunk = null;
+
+    // the bytes that have been added to the buffer, guarded by lock
+    private long added = 0;
+
+    // the bytes that have been written to the socket, guarded by lock
+    private long flushed = 0;
+
+    // guarded by lock
+    private String failed = null;
+
+    private boolean closed = false;
+
+    /**
+     * Creates a stream with the default chunk size and window.
+     *
+     * @param futureResponse
+     *            The future of the streamed request
+     * @param buffer
+     *            The buffer of the streamed request
+     */
+    public BufferOutputStream(final FutureResponse futureResponse, final Buffer buffer) {
+        this(futureResponse, buffer, DEFAULT_CHUNK_SIZE, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param futureResponse
+     *            The future of the streamed request
+     * @param buffer
+     *            The buffer of the streamed request
+     * @param chunkSize
+     *            The size of the chunks that are added to the buffer
+     * @param window
+     *            The maximum number of bytes that have been handed to the channel, but not yet written to the socket
+     */
+    public BufferOutputStream(final FutureResponse futureResponse, final Buffer buffer, final int chunkSize,
+            final long window) {
+        if (chunkSize <= 0 || window < chunkSize) {
+            throw new IllegalArgumentException("The chunk size must be positive and not larger than the window");
+        }
+        this.futureResponse = futureResponse;
+        this.buffer = buffer;
+        this.chunkSize = chunkSize;
+        this.window = window;
+        futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(final FutureResponse future) throws Exception {
+                synchronized (lock) {
+                    if (failed == null) {
+                        failed = future.isSuccess() ? "The request completed before all data has been written"
+                                : "The request failed: " + future.getFailedReason();
+                    }
+                    lock.notifyAll();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        checkOpen();
+        if (chunk == null) {
+            chunk = Unpooled.buffer(chunkSize);
+        }
+        chunk.writeByte(b);
+        if (chunk.writerIndex() == chunkSize) {
+            flushChunk();
+        }
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        checkOpen();
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            if (chunk == null) {
+                chunk = Unpooled.buffer(chunkSize);
+            }
+            final int length = Math.min(remaining, chunkSize - chunk.writerIndex());
+            chunk.writeBytes(b, offset, length);
+            offset += length;
+            remaining -= length;
+            if (chunk.writerIndex() == chunkSize) {
+                flushChunk();
+            }
+        }
+    }
+
+    /**
+     * Sends the data that has been written so far, even if the current chunk is not full.
+     */
+    @Override
+    public void flush() throws IOException {
+        checkOpen();
+        if (chunk != null && chunk.isReadable()) {
+            flushChunk();
+        }
+    }
+
+    /**
+     * Sends the remaining data. The request completes once the other peer has replied.
+     *
+     * @throws IOException
+     *             If less data has been written than the buffer has announced
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        flush();
+        closed = true;
+        synchronized (lock) {
+            if (added != buffer.length()) {
+                throw new IOException("Only " + added + " of the announced " + buffer.length()
+                        + " bytes have been written");
+            }
+        }
+    }
+
+    /**
+     * @return The number of bytes that have been written to the socket
+     */
+    public long flushed() {
+        synchronized (lock) {
+            return flushed;
+        }
+    }
+
+    private void flushChunk() throws IOException {
+        final ByteBuf toSend = chunk;
+        chunk = null;
+        final int length = toSend.readableBytes();
+        final long mark;
+        synchronized (lock) {
+            try {
+                while (failed == null && added - flushed + length > window) {
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for the channel");
+            }
+            if (added + length > buffer.length()) {
+                throw new IOException("More data written than the buffer has announced: " + buffer.length());
+            }
+            if (failed != null) {
+                throw new IOException(failed);
+            }
+            added += length;
+            mark = added;
+        }
+        buffer.addComponent(toSend);
+        toSend.release();
+        final ChannelFuture writeFuture;
+        try {
+            writeFuture = futureResponse.progressWrite();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for the channel");
+        }
+        if (writeFuture == null) {
+            throw new IOException("The request completed before it has been sent: "
+                    + futureResponse.getFailedReason());
+        }
+        writeFuture.addListener(new GenericFutureListener<ChannelFuture>() {
+            @Override
+            public void operationComplete(final ChannelFuture future) throws Exception {
+                synchronized (lock) {
+                    if (future.isSuccess()) {
+                        // the writes are in order, so everything up to the mark has been written
+                        flushed = Math.max(flushed, mark);
+                    } else if (failed == null) {
+                        failed = "Could not write to the channel: " + future.cause();
+                    }
+                    lock.notifyAll();
+                }
+            }
+        });
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("The stream is closed");
+        }
+    }
+}
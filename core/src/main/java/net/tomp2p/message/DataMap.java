@@ -1,10 +1,13 @@
 package net.tomp2p.message;
 
+import io.netty.buffer.ByteBuf;
+
 import java.util.HashMap;
 import java.util.Map;
 
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.AlternativeCompositeByteBuf;
 import net.tomp2p.storage.Data;
 import net.tomp2p.utils.Utils;
 
@@ -14,13 +17,28 @@ public class DataMap {
     private final Number160 locationKey;
     private final Number160 domainKey;
     private final Number160 versionKey;
+    private final ByteBuf encoded;
+    private boolean releaseAfterEncoding = false;
 
     public DataMap(final Map<Number640, Data> dataMap) {
+        this(dataMap, null);
+    }
+
+    /**
+     * @param dataMap
+     *            The data map
+     * @param encoded
+     *            The data map already encoded, see
+     *            {@link Encoder#encodeDataMap(DataMap, AlternativeCompositeByteBuf)}, or null. This buffer is not
+     *            released by the encoder and may be used for several messages
+     */
+    public DataMap(final Map<Number640, Data> dataMap, final ByteBuf encoded) {
         this.dataMap = dataMap;
         this.dataMapConvert = null;
         this.locationKey = null;
         this.domainKey = null;
         this.versionKey = null;
+        this.encoded = encoded;
     }
 
     public DataMap(final Number160 locationKey, final Number160 domainKey, final Number160 versionKey,
@@ -30,6 +48,7 @@ public class DataMap {
         this.locationKey = locationKey;
         this.domainKey = domainKey;
         this.versionKey = versionKey;
+        this.encoded = null;
     }
 
     public Map<Number640, Data> dataMap() {
@@ -52,6 +71,46 @@ public class DataMap {
         return versionKey;
     }
 
+    /**
+     * @return The data map already encoded or null if it needs to be encoded
+     */
+    public ByteBuf encoded() {
+        return encoded;
+    }
+
+    /**
+     * @param releaseAfterEncoding
+     *            True if the data objects are owned by this map and are released once the map is encoded, e.g., data
+     *            that has been removed from the storage and is sent back
+     * @return This class
+     */
+    public DataMap releaseAfterEncoding(final boolean releaseAfterEncoding) {
+        this.releaseAfterEncoding = releaseAfterEncoding;
+        return this;
+    }
+
+    /**
+     * @return True if the data objects are released once the map is encoded
+     */
+    public boolean isReleaseAfterEncoding() {
+        return releaseAfterEncoding;
+    }
+
+    /**
+     * Releases all data objects of this map.
+     */
+    public void release() {
+        if (dataMap != null) {
+            for (Data data : dataMap.values()) {
+                data.release();
+            }
+        } else if (dataMapConvert != null) {
+            for (Data data : dataMapConvert.values()) {
+                data.release();
+            }
+        }
+    }
+
     /**
      * @return The size of either the datamap with the number480 as key, or datamap with the number160 as key
      */
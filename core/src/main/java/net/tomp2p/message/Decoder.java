@@ -1,6 +1,7 @@
 package net.tomp2p.message;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.socket.DatagramChannel;
 import io.netty.util.Attribute;
@@ -17,9 +18,7 @@ import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
 import java.util.TreeMap;
 
 import net.tomp2p.connection.SignatureFactory;
@@ -46,7 +45,10 @@ public class Decoder {
 
 	private static final Logger LOG = LoggerFactory.getLogger(Decoder.class);
 
-	private final Queue<Content> contentTypes = new LinkedList<Message.Content>();
+	// the content types of the current message, consumed from contentIndex to contentSize
+	private final Content[] contentTypes = new Content[Message.CONTENT_TYPE_LENGTH];
+	private int contentIndex = 0;
+	private int contentSize = 0;
 
 	// private Message2 result = null;
 
@@ -74,7 +76,12 @@ public class Decoder {
 	private KeyMapByte keyMapByte = null;
 
 	private int bufferSize = -1;
+	private int bufferTransferred = 0;
 	private DataBuffer buffer = null;
+	// true if a part of the current buffer has been handed over to a streamed message
+	private boolean bufferPart = false;
+	// true if a part of a buffer has been handed over in the last call to decode
+	private boolean streamed = false;
 
 	private int trackerDataSize = -1;
 	private TrackerData trackerData = null;
@@ -82,6 +89,9 @@ public class Decoder {
 
 	private Content lastContent = null;
 
+	// the channel of the current call to decode, set on the parts of a streamed buffer
+	private Channel channel = null;
+
 	private final SignatureFactory signatureFactory;
 
 	public Decoder(SignatureFactory signatureFactory) {
@@ -94,6 +104,8 @@ public class Decoder {
 		LOG.debug("decode of TomP2P starts now");
 
 		try {
+			streamed = false;
+			channel = ctx.channel();
 			final int readerBefore = buf.readerIndex();
 			// set the sender of this message for handling timeout
 			final Attribute<InetSocketAddress> attributeInet = ctx.attr(INET_ADDRESS_KEY);
@@ -176,7 +188,7 @@ public class Decoder {
 				if (content == Content.PUBLIC_KEY_SIGNATURE) {
 					message.setHintSign();
 				}
-				contentTypes.offer(content);
+				contentTypes[contentSize++] = content;
 			}
 			LOG.debug("parsed message {}", message);
 			return true;
@@ -194,31 +206,29 @@ public class Decoder {
 		// payload comes here
 		int size;
 		PublicKey receivedPublicKey;
-		while (contentTypes.size() > 0) {
-			Content content = contentTypes.peek();
+		while (contentIndex < contentSize) {
+			Content content = contentTypes[contentIndex];
 			switch (content) {
 			case INTEGER:
 				if (buf.readableBytes() < Utils.INTEGER_BYTE_SIZE) {
 					return false;
 				}
 				message.setInteger(buf.readInt());
-				lastContent = contentTypes.poll();
+				lastContent = contentTypes[contentIndex++];
 				break;
 			case LONG:
 				if (buf.readableBytes() < Utils.LONG_BYTE_SIZE) {
 					return false;
 				}
 				message.setLong(buf.readLong());
-				lastContent = contentTypes.poll();
+				lastContent = contentTypes[contentIndex++];
 				break;
 			case KEY:
 				if (buf.readableBytes() < Number160.BYTE_ARRAY_SIZE) {
 					return false;
 				}
-				byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
-				buf.readBytes(me);
-				message.setKey(new Number160(me));
-				lastContent = contentTypes.poll();
+				message.setKey(Utils.readNumber160(buf));
+				lastContent = contentTypes[contentIndex++];
 				break;
 			case BLOOM_FILTER:
 				if (buf.readableBytes() < Utils.SHORT_BYTE_SIZE) {
@@ -229,7 +239,7 @@ public class Decoder {
 					return false;
 				}
 				message.setBloomFilter(new SimpleBloomFilter<Number160>(buf));
-				lastContent = contentTypes.poll();
+				lastContent = contentTypes[contentIndex++];
 				break;
 			case SET_NEIGHBORS:
 				if (neighborSize == -1 && buf.readableBytes() < Utils.BYTE_SIZE) {
@@ -254,7 +264,7 @@ public class Decoder {
 					neighborSet.add(pa);
 				}
 				message.setNeighborsSet(neighborSet);
-				lastContent = contentTypes.poll();
+				lastContent = contentTypes[contentIndex++];
 				neighborSize = -1;
 				neighborSet = null;
 				break;
@@ -283,7 +293,7 @@ public class Decoder {
 					peerSocketAddresses.add(PeerSocketAddress.create(buf, isIPv4));
 				}
 				message.setPeerSocketAddresses(peerSocketAddresses);
-				lastContent = contentTypes.poll();
+				lastContent = contentTypes[contentIndex++];
 				peerSocketAddressSize = -1;
 				peerSocketAddresses = null;
 				break;
@@ -304,19 +314,10 @@ public class Decoder {
 							+ Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE) {
 						return false;
 					}
-					byte[] me2 = new byte[Number160.BYTE_ARRAY_SIZE];
-					buf.readBytes(me2);
-					Number160 locationKey = new Number160(me2);
-					buf.readBytes(me2);
-					Number160 domainKey = new Number160(me2);
-					buf.readBytes(me2);
-					Number160 contentKey = new Number160(me2);
-					buf.readBytes(me2);
-					Number160 versionKey = new Number160(me2);
-					keyCollection.add(new Number640(locationKey, domainKey, contentKey, versionKey));
+					keyCollection.add(readNumber640(buf));
 				}
 				message.setKeyCollection(keyCollection);
-				lastContent = contentTypes.poll();
+				lastContent = contentTypes[contentIndex++];
 				keyCollectionSize = -1;
 				keyCollection = null;
 				break;
@@ -346,16 +347,7 @@ public class Decoder {
 								+ Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE) {
 							return false;
 						}
-						byte[] me3 = new byte[Number160.BYTE_ARRAY_SIZE];
-						buf.readBytes(me3);
-						Number160 locationKey = new Number160(me3);
-						buf.readBytes(me3);
-						Number160 domainKey = new Number160(me3);
-						buf.readBytes(me3);
-						Number160 contentKey = new Number160(me3);
-						buf.readBytes(me3);
-						Number160 versionKey = new Number160(me3);
-						key = new Number640(locationKey, domainKey, contentKey, versionKey);
+						key = readNumber640(buf);
 					}
 					data = Data.decodeHeader(buf, signatureFactory);
 					if (data == null) {
@@ -379,7 +371,7 @@ public class Decoder {
 				}
 
 				message.setDataMap(dataMap);
-				lastContent = contentTypes.poll();
+				lastContent = contentTypes[contentIndex++];
 				mapsSize = -1;
 				dataMap = null;
 				break;
@@ -399,22 +391,11 @@ public class Decoder {
 							+ Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE) {
 						return false;
 					}
-					byte[] me3 = new byte[Number160.BYTE_ARRAY_SIZE];
-					buf.readBytes(me3);
-					Number160 locationKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 domainKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 contentKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 versionKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 valueKey = new Number160(me3);
-					keyMap480.put(new Number640(locationKey, domainKey, contentKey, versionKey), valueKey);
+					keyMap480.put(readNumber640(buf), Utils.readNumber160(buf));
 				}
 
 				message.setKeyMap640(keyMap480);
-				lastContent = contentTypes.poll();
+				lastContent = contentTypes[contentIndex++];
 				keyMap480Size = -1;
 				keyMap480 = null;
 				break;
@@ -434,21 +415,11 @@ public class Decoder {
 							+ Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE + 1) {
 						return false;
 					}
-					byte[] me3 = new byte[Number160.BYTE_ARRAY_SIZE];
-					buf.readBytes(me3);
-					Number160 locationKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 domainKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 contentKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 versionKey = new Number160(me3);
-					byte value = buf.readByte();
-					keyMapByte.put(new Number640(locationKey, domainKey, contentKey, versionKey), value);
+					keyMapByte.put(readNumber640(buf), buf.readByte());
 				}
 
 				message.setKeyMapByte(keyMapByte);
-				lastContent = contentTypes.poll();
+				lastContent = contentTypes[contentIndex++];
 				keyMapByteSize = -1;
 				keyMapByte = null;
 				break;
@@ -463,23 +434,34 @@ public class Decoder {
 					buffer = new DataBuffer();
 				}
 				
-				final int already = buffer.alreadyTransferred();
-				final int remaining = bufferSize - already;
+				final int remaining = bufferSize - bufferTransferred;
 				// already finished
 				if (remaining != 0) {
-					int read = buffer.transferFrom(buf, remaining);
-					if(read != remaining) {
+					bufferTransferred += buffer.transferFrom(buf, remaining);
+					if (bufferTransferred != bufferSize) {
 						LOG.debug("we are still looking for data, indicate that we are not finished yet, "
-								+ "read = {}, size = {}", buffer.alreadyTransferred(), bufferSize);
+								+ "read = {}, size = {}", bufferTransferred, bufferSize);
+						if (message.isStreaming() && buffer.alreadyTransferred() > 0) {
+							// hand over what we have, so that a large buffer is never held as a whole
+							streamBufferPart();
+						}
 						return false;
 					}
 				}
 				
-				ByteBuf buf2 = AlternativeCompositeByteBuf.compBuffer(buffer.toByteBufs());
-				message.setBuffer(new Buffer(buf2, bufferSize));
-				lastContent = contentTypes.poll();
+				if (message.isStreaming() && bufferPart) {
+					streamBufferPart();
+				} else {
+					// the composite buffer takes over the references of the received slices
+					ByteBuf buf2 = AlternativeCompositeByteBuf.compBuffer(buffer.toByteBufs());
+					buffer.release();
+					message.setBuffer(new Buffer(buf2, bufferSize));
+				}
+				lastContent = contentTypes[contentIndex++];
 				bufferSize = -1;
+				bufferTransferred = 0;
 				buffer = null;
+				bufferPart = false;
 				break;
 			case SET_TRACKER_DATA:
 				if (trackerDataSize == -1 && buf.readableBytes() < Utils.BYTE_SIZE) {
@@ -535,7 +517,7 @@ public class Decoder {
 				}
 
 				message.setTrackerData(trackerData);
-				lastContent = contentTypes.poll();
+				lastContent = contentTypes[contentIndex++];
 				trackerDataSize = -1;
 				trackerData = null;
 				break;
@@ -551,7 +533,7 @@ public class Decoder {
 				Signature signature = signatureFactory.signatureInstance();
 				signature.initVerify(receivedPublicKey);
 				message.signatureForVerification(signature, receivedPublicKey);
-				lastContent = contentTypes.poll();
+				lastContent = contentTypes[contentIndex++];
 				break;
 			case PUBLIC_KEY:
 				receivedPublicKey = signatureFactory.decodePublicKey(buf);
@@ -559,7 +541,7 @@ public class Decoder {
 					return false;
 				}
 				message.setPublicKey(receivedPublicKey);
-				lastContent = contentTypes.poll();
+				lastContent = contentTypes[contentIndex++];
 				break;
 				
 			default:
@@ -572,41 +554,86 @@ public class Decoder {
 			if (buf.readableBytes() < Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE) {
 				return false;
 			}
-			byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
-			buf.readBytes(me);
-			Number160 number1 = new Number160(me);
-			buf.readBytes(me);
-			Number160 number2 = new Number160(me);
+			Number160 number1 = Utils.readNumber160(buf);
+			Number160 number2 = Utils.readNumber160(buf);
 			SHA1Signature signatureEncode = new SHA1Signature(number1, number2);
 			message.receivedSignature(signatureEncode);
 		}
 		return true;
 	}
 
+	/**
+	 * Sets the part of the current buffer that has been received since the last part as the buffer of the streamed
+	 * message. The consumer of the message, e.g. a {@link BufferInputStream}, sees each part once.
+	 */
+	private void streamBufferPart() {
+		final ByteBuf part = AlternativeCompositeByteBuf.compBuffer(buffer.toByteBufs());
+		buffer.release();
+		message.streamBuffer(new Buffer(part).channel(channel), bufferPart);
+		buffer = new DataBuffer();
+		bufferPart = true;
+		streamed = true;
+	}
+
+	private static Number640 readNumber640(final ByteBuf buf) {
+		final Number160 locationKey = Utils.readNumber160(buf);
+		final Number160 domainKey = Utils.readNumber160(buf);
+		final Number160 contentKey = Utils.readNumber160(buf);
+		final Number160 versionKey = Utils.readNumber160(buf);
+		return new Number640(locationKey, domainKey, contentKey, versionKey);
+	}
+
 	public Message prepareFinish() {
 		Message ret = message;
 		message.setDone();
-		contentTypes.clear();
-		//
+		reset();
+		return ret;
+	}
+
+	/**
+	 * Clears the current state, so that this decoder can be used for the next message. This is done in
+	 * {@link #prepareFinish()}, but needs to be called if a message could not be decoded completely and the decoder
+	 * is reused.
+	 */
+	public void reset() {
+		contentIndex = 0;
+		contentSize = 0;
 		message = null;
 		neighborSize = -1;
 		neighborSet = null;
+		peerSocketAddressSize = -1;
+		peerSocketAddresses = null;
 		keyCollectionSize = -1;
 		keyCollection = null;
 		mapsSize = -1;
 		dataMap = null;
 		data = null;
+		key = null;
 		keyMap480Size = -1;
 		keyMap480 = null;
+		keyMapByteSize = -1;
+		keyMapByte = null;
 		bufferSize = -1;
+		bufferTransferred = 0;
 		buffer = null;
-		return ret;
+		bufferPart = false;
+		trackerDataSize = -1;
+		trackerData = null;
+		currentTrackerData = null;
 	}
 
 	public Message message() {
 		return message;
 	}
 
+	/**
+	 * @return True if a part of a streamed buffer has been handed over to the message in the last call to
+	 *         {@link #decode(ChannelHandlerContext, ByteBuf, InetSocketAddress, InetSocketAddress)}
+	 */
+	public boolean isStreamed() {
+		return streamed;
+	}
+
 	public Content lastContent() {
 		return lastContent;
 	}
@@ -1,9 +1,12 @@
 package net.tomp2p.message;
 
+import io.netty.util.IllegalReferenceCountException;
+
 import java.io.IOException;
 import java.security.InvalidKeyException;
 import java.security.PublicKey;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -65,6 +68,59 @@ public class Encoder {
         return done;
     }
 
+    /**
+     * Encodes a data map. The payloads are not copied if the buffer is an {@link AlternativeCompositeByteBuf}.
+     * 
+     * @param dataMap
+     *            The data map to encode
+     * @param buf
+     *            The buffer to write to
+     */
+    public static void encodeDataMap(final DataMap dataMap, final AlternativeCompositeByteBuf buf) {
+        // take the references first, so that the size is known. The data objects have to be owned by the map, e.g.,
+        // duplicates from the storage layer, which takes them under its lock. A data object that has been released
+        // anyway is left out.
+        final int size = dataMap.size();
+        final List<Number640> keys = new ArrayList<Number640>(size);
+        final List<Data> duplicates = new ArrayList<Data>(size);
+        if (dataMap.isConvert()) {
+            for (Entry<Number160, Data> entry : dataMap.dataMapConvert().entrySet()) {
+                duplicate(new Number640(dataMap.locationKey(), dataMap.domainKey(), entry.getKey(),
+                        dataMap.versionKey()), entry.getValue(), keys, duplicates);
+            }
+        } else {
+            for (Entry<Number640, Data> entry : dataMap.dataMap().entrySet()) {
+                duplicate(entry.getKey(), entry.getValue(), keys, duplicates);
+            }
+        }
+        buf.writeInt(duplicates.size());
+        for (int i = 0; i < duplicates.size(); i++) {
+            final Number640 key = keys.get(i);
+            buf.writeBytes(key.getLocationKey().toByteArray());
+            buf.writeBytes(key.getDomainKey().toByteArray());
+            buf.writeBytes(key.getContentKey().toByteArray());
+            buf.writeBytes(key.getVersionKey().toByteArray());
+            final Data data = duplicates.get(i);
+            data.encodeHeader(buf);
+            data.encodeDone(buf);
+            // buf holds its own references to the payload
+            data.release();
+        }
+        if (dataMap.isReleaseAfterEncoding()) {
+            dataMap.release();
+        }
+    }
+
+    private static void duplicate(final Number640 key, final Data data, final List<Number640> keys,
+            final List<Data> duplicates) {
+        try {
+            duplicates.add(data.duplicate());
+            keys.add(key);
+        } catch (IllegalReferenceCountException e) {
+            LOG.debug("data of {} has been released before it was encoded", key);
+        }
+    }
+
     private boolean loop(AlternativeCompositeByteBuf buf) {
         NumberType next;
         while ((next = message.contentRefencencs().peek()) != null) {
@@ -128,28 +184,11 @@ public class Encoder {
                 break;
             case MAP_KEY640_DATA:
                 DataMap dataMap = message.getDataMap(next.number());
-                
-                buf.writeInt(dataMap.size());
-                if (dataMap.isConvert()) {
-                    for (Entry<Number160, Data> entry : dataMap.dataMapConvert().entrySet()) {
-                    	buf.writeBytes(dataMap.locationKey().toByteArray());
-                        buf.writeBytes(dataMap.domainKey().toByteArray());
-                        buf.writeBytes(entry.getKey().toByteArray());
-                        buf.writeBytes(dataMap.versionKey().toByteArray());
-                        Data data = entry.getValue().duplicate();
-                        data.encodeHeader(buf);
-                        data.encodeDone(buf);
-                    }
+                if (dataMap.encoded() != null) {
+                    // the composite buffer releases its components
+                    buf.addComponent(dataMap.encoded().duplicate().retain());
                 } else {
-                    for (Entry<Number640, Data> entry : dataMap.dataMap().entrySet()) {
-                        buf.writeBytes(entry.getKey().getLocationKey().toByteArray());
-                        buf.writeBytes(entry.getKey().getDomainKey().toByteArray());
-                        buf.writeBytes(entry.getKey().getContentKey().toByteArray());
-                        buf.writeBytes(entry.getKey().getVersionKey().toByteArray());
-                        Data data = entry.getValue().duplicate();
-                        data.encodeHeader(buf);
-                        data.encodeDone(buf);
-                    }
+                    encodeDataMap(dataMap, buf);
                 }
                 message.contentRefencencs().poll();
                 break;
@@ -182,12 +221,20 @@ public class Encoder {
                 if (!resume) {
                     buf.writeInt(buffer.length());
                 }
-                int readable = buffer.readable();
-                buf.writeBytes(buffer.buffer(), readable);
-                if (buffer.incRead(readable) == buffer.length()) {
+                final int read;
+                // the user may add data to a streamed buffer while we read it
+                synchronized (buffer) {
+                    int readable = buffer.readable();
+                    buf.writeBytes(buffer.buffer(), readable);
+                    read = buffer.incRead(readable);
+                    if (message.isStreaming()) {
+                        buffer.discardReadComponents();
+                    }
+                }
+                if (read == buffer.length()) {
                     message.contentRefencencs().poll();
                 } else if (message.isStreaming()) {
-                    LOG.debug("we sent a partial message of length {}", readable);
+                    LOG.debug("we sent a partial message, {} of {} bytes", read, buffer.length());
                     return false;
                 } else {
                     LOG.debug("Announced a larger buffer, but not in streaming mode. This is wrong.");
@@ -203,6 +250,7 @@ public class Encoder {
                     Data data = entry.getValue().duplicate();
                     data.encodeHeader(buf);
                     data.encodeDone(buf);
+                    data.release();
                 }
                 message.contentRefencencs().poll();
                 break;
@@ -15,15 +15,18 @@
  */
 package net.tomp2p.message;
 
+import io.netty.util.Recycler;
+
 import java.net.InetSocketAddress;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Signature;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
@@ -47,6 +50,13 @@ public class Message {
 
     public static final int CONTENT_TYPE_LENGTH = 8;
 
+    private static final Recycler<Message> RECYCLER = new Recycler<Message>() {
+        @Override
+        protected Message newObject(final Recycler.Handle handle) {
+            return new Message(handle);
+        }
+    };
+
     /**
      * 8 x 4 bit.
      */
@@ -114,7 +124,8 @@ public class Message {
     // Payload:
     // we can send 8 types
     private Content[] contentTypes = new Content[CONTENT_TYPE_LENGTH];
-    private final Queue<NumberType> contentRefencencs = new LinkedList<NumberType>();
+    // created on demand, a decoded message does not need it
+    private Queue<NumberType> contentRefencencs = null;
 
     // ********* Here comes the payload objects ************
     // The content lists:
@@ -147,14 +158,87 @@ public class Message {
     private transient boolean content = false;
     private transient Signature signature = null;
     private transient boolean verified = false;
+    private transient boolean recycleOnDone = false;
+    private final transient Recycler.Handle handle;
 
     /**
      * Creates message with a random ID.
      */
     public Message() {
+        this(null);
+    }
+
+    private Message(final Recycler.Handle handle) {
+        this.handle = handle;
         this.messageId = RND.nextInt();
     }
 
+    /**
+     * Creates a message with a random ID, which is taken from a per-thread pool. Such a message can be returned to
+     * the pool with {@link #recycle()} once it is not referenced anymore. A message from the pool behaves like a
+     * message created with the constructor.
+     * 
+     * @return A message with a random ID from the pool
+     */
+    public static Message newInstance() {
+        final Message message = RECYCLER.get();
+        message.messageId = RND.nextInt();
+        return message;
+    }
+
+    /**
+     * Clears all fields and returns this message to the pool. This message must not be used anymore afterwards.
+     * 
+     * @return True if the message was returned to the pool, false if the message was not created with
+     *         {@link #newInstance()}
+     */
+    public boolean recycle() {
+        if (handle == null) {
+            return false;
+        }
+        version = 0;
+        type = null;
+        command = 0;
+        sender = null;
+        recipient = null;
+        options = 0;
+        if (contentTypes.length == CONTENT_TYPE_LENGTH) {
+            Arrays.fill(contentTypes, null);
+        } else {
+            contentTypes = new Content[CONTENT_TYPE_LENGTH];
+        }
+        if (contentRefencencs != null) {
+            contentRefencencs.clear();
+        }
+        neighborsList = null;
+        keyList = null;
+        bloomFilterList = null;
+        dataMapList = null;
+        integerList = null;
+        longList = null;
+        keyCollectionList = null;
+        keyMap640List = null;
+        keyMapByteList = null;
+        bufferList = null;
+        trackerDataList = null;
+        publicKeyList = null;
+        peerSocketAddresses = null;
+        signatureEncode = null;
+        publicKey = null;
+        presetContentTypes = false;
+        privateKey = null;
+        senderSocket = null;
+        recipientSocket = null;
+        udp = false;
+        done = false;
+        sign = false;
+        content = false;
+        signature = null;
+        verified = false;
+        recycleOnDone = false;
+        return RECYCLER.recycle(this, handle);
+    }
+
     /**
      * Randomly generated message ID.
      * 
@@ -306,7 +390,7 @@ public class Message {
                     throw new IllegalStateException("The public key needs to be the first to be set");
                 }
                 contentTypes[i] = contentType;
-                contentRefencencs.add(new NumberType(reference, contentType));
+                contentRefencencs().add(NumberType.valueOf(reference, contentType));
                 return this;
             }
             if (contentTypes[i] == contentType) {
@@ -335,7 +419,7 @@ public class Message {
 			} else {
 				index = refs.get(contentType);
 			}
-			contentRefencencs.add(new NumberType(index, contentType));
+			contentRefencencs().add(NumberType.valueOf(index, contentType));
 			refs.put(contentType, index + 1);
 		}
 	}
@@ -370,6 +454,9 @@ public class Message {
      * @return The serialized content and references to the respective arrays
      */
     public Queue<NumberType> contentRefencencs() {
+        if (contentRefencencs == null) {
+            contentRefencencs = new ArrayDeque<NumberType>(CONTENT_TYPE_LENGTH);
+        }
         return contentRefencencs;
     }
 
@@ -377,7 +464,7 @@ public class Message {
      * @return True if we have content and not only the header
      */
     public boolean hasContent() {
-        return contentRefencencs.size() > 0 || content;
+        return (contentRefencencs != null && contentRefencencs.size() > 0) || content;
     }
 
     /**
@@ -793,6 +880,23 @@ public class Message {
         return this;
     }
 
+    /**
+     * Sets the part of a streamed buffer that has been received since the last part.
+     * 
+     * @param part
+     *            The received part
+     * @param replace
+     *            True if the previous part should be replaced, false if this is the first part of the buffer
+     * @return This class
+     */
+    Message streamBuffer(final Buffer part, final boolean replace) {
+        if (replace) {
+            bufferList.set(bufferList.size() - 1, part);
+            return this;
+        }
+        return setBuffer(part);
+    }
+
     public List<Buffer> getBufferList() {
         if (bufferList == null) {
             return Collections.emptyList();
@@ -973,6 +1077,24 @@ public class Message {
     	return this;
 	}
 
+    /**
+     * @param recycleOnDone
+     *            True if this message should be recycled by the outbound handler once it has been completely encoded.
+     *            This is only safe if nobody holds a reference to this message after sending it.
+     * @return This class
+     */
+    public Message recycleOnDone(final boolean recycleOnDone) {
+        this.recycleOnDone = recycleOnDone;
+        return this;
+    }
+
+    /**
+     * @return True if this message should be recycled by the outbound handler once it has been completely encoded
+     */
+    public boolean isRecycleOnDone() {
+        return recycleOnDone;
+    }
+
     /**
      * @param done
      *            True if message decoding or encoding is done
@@ -38,6 +38,10 @@ public final class MessageHeaderCodec {
 
     private static final Logger LOG = LoggerFactory.getLogger(MessageHeaderCodec.class);
 
+    // values() returns a new copy on every call
+    private static final Type[] TYPES = Type.values();
+    private static final Content[] CONTENTS = Content.values();
+
     /**
      * Empty constructor.
      */
@@ -99,19 +103,19 @@ public final class MessageHeaderCodec {
         final int versionAndType = buffer.readInt();
         // CHECKSTYLE:OFF
         message.setVersion(versionAndType >>> 4);
-        message.setType(Type.values()[(versionAndType & 0xf)]);
+        message.setType(TYPES[(versionAndType & 0xf)]);
         // CHECKSTYLE:ON
         message.setMessageId(buffer.readInt());
         final int command = buffer.readUnsignedByte();
         message.setCommand((byte) command);
-        final Number160 senderID = readID(buffer);
+        final Number160 senderID = Utils.readNumber160(buffer);
         final int portTCP = buffer.readUnsignedShort();
         final int portUDP = buffer.readUnsignedShort();
-        final Number160 recipientID = readID(buffer);
+        final Number160 recipientID = Utils.readNumber160(buffer);
         message.setRecipient(new PeerAddress(recipientID, recipient));
         final int contentTypes = buffer.readInt();
         message.hasContent(contentTypes != 0);
-        message.setContentTypes(decodeContentTypes(contentTypes, message));
+        decodeContentTypes(contentTypes, message);
         // set the address as we see it, important for port forwarding
         // identification
         final int options = buffer.readUnsignedByte();
@@ -127,19 +131,6 @@ public final class MessageHeaderCodec {
         return message;
     }
 
-    /**
-     * Read a 160bit number from a Netty buffer. I did not want to include ChannelBuffer in the class Number160.
-     * 
-     * @param buffer
-     *            The Netty buffer
-     * @return A 160bit number from the Netty buffer (deserialized)
-     */
-    private static Number160 readID(final ByteBuf buffer) {
-        byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
-        buffer.readBytes(me);
-        return new Number160(me);
-    }
-
     /**
      * Encodes the content types to a 32bit number. Opposite of {@link #decodeContentTypes(int)}.
      * 
@@ -165,18 +156,20 @@ public final class MessageHeaderCodec {
     }
 
     /**
-     * Decodes the content types from a 32bit number. Opposite of {@link #encodeContentTypes(Content[])}.
+     * Decodes the content types from a 32bit number. Opposite of {@link #encodeContentTypes(Content[])}. The content
+     * types are written into the array of the message, thus, no array is created.
      * 
      * @param contentTypes
      *            The 8 content types. No null values are returned
      * @param message 
+     *            The message to set the content types
      * @return The decoded content types
      */
     // CHECKSTYLE:OFF
     public static Content[] decodeContentTypes(int contentTypes, Message message) {
-        Content[] result = new Content[Message.CONTENT_TYPE_LENGTH];
+        Content[] result = message.getContentTypes();
         for (int i = 0; i < Message.CONTENT_TYPE_LENGTH; i++) {
-            Content type = Content.values()[contentTypes & Utils.MASK_0F];
+            Content type = CONTENTS[contentTypes & Utils.MASK_0F];
             result[i] = type;
             if(type == Content.PUBLIC_KEY_SIGNATURE) {
                 message.setHintSign();
@@ -3,6 +3,18 @@ package net.tomp2p.message;
 import net.tomp2p.message.Message.Content;
 
 public class NumberType {
+    
+    private static final NumberType[][] CACHE;
+    static {
+        final Content[] contents = Content.values();
+        CACHE = new NumberType[contents.length][Message.CONTENT_TYPE_LENGTH];
+        for (int i = 0; i < contents.length; i++) {
+            for (int j = 0; j < Message.CONTENT_TYPE_LENGTH; j++) {
+                CACHE[i][j] = new NumberType(j, contents[i]);
+            }
+        }
+    }
+    
     private final int number;
     private final Content content;
     public NumberType(int number, Content content) {
@@ -10,6 +22,22 @@ public class NumberType {
         this.content = content;
     }
     
+    /**
+     * Since a message has at most 8 content types, all references can be created in advance.
+     * 
+     * @param number
+     *            The reference to the n-th content of this type
+     * @param content
+     *            The content type
+     * @return A shared, immutable instance
+     */
+    public static NumberType valueOf(int number, Content content) {
+        if (number < Message.CONTENT_TYPE_LENGTH) {
+            return CACHE[content.ordinal()][number];
+        }
+        return new NumberType(number, content);
+    }
+    
     public int number() {
         return number;
     }
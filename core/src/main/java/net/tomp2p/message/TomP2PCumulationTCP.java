@@ -77,7 +77,8 @@ public class TomP2PCumulationTCP extends ChannelInboundHandlerAdapter {
 					finished = true;
 					moreData = cumulation.readableBytes() > 0;
 					ctx.fireChannelRead(decoder.prepareFinish());
-				} else if (decoder.message().isStreaming()) {
+				} else if (decoder.message().isStreaming() && decoder.isStreamed()) {
+					// the message carries the part of the buffer that has been received now
 					ctx.fireChannelRead(decoder.message());
 				}
 			}
@@ -69,6 +69,9 @@ public class TomP2POutbound extends ChannelOutboundHandlerAdapter {
                     message.done(true);
                     // we wrote the complete message, reset state
                     encoder.reset();
+                    if (message.isRecycleOnDone()) {
+                        message.recycle();
+                    }
                 }
             } else {
                 buf.release();
@@ -18,10 +18,16 @@ public class TomP2PSinglePacketUDP extends ChannelInboundHandlerAdapter {
 
     private static final Logger LOG = LoggerFactory.getLogger(TomP2PSinglePacketUDP.class);
 
-    private final SignatureFactory signatureFactory;
+    // this handler is shared among channels, but a decoder holds state, thus, every thread gets its own decoder
+    private final ThreadLocal<Decoder> decoders;
     
     public TomP2PSinglePacketUDP(final SignatureFactory signatureFactory) {
-        this.signatureFactory = signatureFactory;
+        this.decoders = new ThreadLocal<Decoder>() {
+            @Override
+            protected Decoder initialValue() {
+                return new Decoder(signatureFactory);
+            }
+        };
     }
 
     @Override
@@ -37,16 +43,18 @@ public class TomP2PSinglePacketUDP extends ChannelInboundHandlerAdapter {
         final InetSocketAddress sender = d.sender();
         final InetSocketAddress recipient = d.recipient();
 
+        final Decoder decoder = decoders.get();
         try {
-            Decoder decoder = new Decoder(signatureFactory);
             boolean finished = decoder.decode(ctx, buf, recipient, sender);
             if (finished) {
                 ctx.fireChannelRead(decoder.prepareFinish());
             } else {
                 LOG.warn("did not get the complete packet!");
+                decoder.reset();
             }
         } catch (Throwable t) {
         	LOG.error("Error in UDP decoding", t);
+        	decoder.reset();
             throw t;
         } finally {
             buf.release();
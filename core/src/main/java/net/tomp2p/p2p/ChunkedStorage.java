@@ -0,0 +1,649 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.p2p;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureChunked;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureGet;
+import net.tomp2p.futures.FuturePut;
+import net.tomp2p.p2p.builder.DHTBuilder;
+import net.tomp2p.p2p.builder.GetChunkedBuilder;
+import net.tomp2p.p2p.builder.PutChunkedBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.storage.ChunkManifest;
+import net.tomp2p.storage.Data;
+import net.tomp2p.utils.Utils;
+
+/**
+ * Stores large values in chunks on top of {@link Peer#put(Number160)} and {@link Peer#get(Number160)}. A value is
+ * split into chunks of a fixed size, and each chunk is stored with its SHA-1 hash as location and content key. Since
+ * the hashes are spread over the key space, the chunks are stored on different replica sets and are fetched in
+ * parallel from different peers, so the throughput scales with the number of peers. The {@link ChunkManifest} with
+ * the hashes is stored under the key of the value once all chunks are stored, and each fetched chunk is verified
+ * against its hash.
+ * <p>
+ * A value can also be streamed, so that only a window of chunks is held in memory, no matter how large the value is.
+ * A streamed put reads the chunks from an {@link InputStream} as the window advances, and a streamed get hands the
+ * chunks in order to an {@link InputStream} that is read by the user, see {@link FutureChunked#getInputStream()}.
+ *
+ * @author Thomas Bocek
+ */
+public final class ChunkedStorage {
+
+    /**
+     * The default size of a chunk.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * The default number of chunks that are stored or fetched at the same time.
+     */
+    public static final int DEFAULT_CONCURRENCY = 8;
+
+    private ChunkedStorage() {
+    }
+
+    /**
+     * Stores the chunks of a value and then its manifest.
+     *
+     * @param peer
+     *            The peer that stores the value
+     * @param builder
+     *            The builder with the key of the value and the options
+     * @param value
+     *            The value
+     * @return The future that completes once the manifest has been stored
+     */
+    public static FutureChunked put(final Peer peer, final PutChunkedBuilder builder, final byte[] value) {
+        final FutureChunked futureChunked = new FutureChunked(builder);
+        final ChunkManifest manifest = ChunkManifest.create(value, builder.getChunkSize());
+        futureChunked.setManifest(manifest);
+        new Window(futureChunked, manifest.chunkKeys().size(), builder.getConcurrency()) {
+            @Override
+            BaseFuture start(final int index) {
+                final Number160 chunkKey = manifest.chunkKeys().get(index);
+                final Data data = new Data(value, (int) manifest.offset(index), manifest.chunkLength(index));
+                return configure(peer.put(chunkKey), builder, true).setData(chunkKey, data).start();
+            }
+
+            @Override
+            String completed(final int index, final BaseFuture future) {
+                return null;
+            }
+
+            @Override
+            void done() {
+                putManifest(peer, builder, futureChunked, manifest);
+            }
+        }.run();
+        return futureChunked;
+    }
+
+    /**
+     * Reads the chunks of a value from a stream and stores them, and then stores the manifest. A chunk is read when a
+     * slot of the window is free, so at most the concurrency times the chunk size is held in memory.
+     *
+     * @param peer
+     *            The peer that stores the value
+     * @param builder
+     *            The builder with the key of the value and the options
+     * @param in
+     *            The stream with the value. It is read by the thread that completes the put of a chunk, so it
+     *            should not block for long, e.g. a file
+     * @param length
+     *            The number of bytes of the value that are read from the stream
+     * @return The future that completes once the manifest has been stored
+     */
+    public static FutureChunked put(final Peer peer, final PutChunkedBuilder builder, final InputStream in,
+            final long length) {
+        final FutureChunked futureChunked = new FutureChunked(builder);
+        final int chunkSize = builder.getChunkSize();
+        final long size = (length + chunkSize - 1) / chunkSize;
+        if (size > Integer.MAX_VALUE) {
+            return futureChunked.setFailed("The value has too many chunks: " + size);
+        }
+        final Number160[] chunkKeys = new Number160[(int) size];
+        new Window(futureChunked, chunkKeys.length, builder.getConcurrency()) {
+            // the chunks are read in order, no matter in which order the puts are started, guarded by in
+            private int read = 0;
+
+            @Override
+            BaseFuture start(final int index) {
+                final byte[] chunk;
+                final Number160 chunkKey;
+                synchronized (in) {
+                    final long offsetRead = (long) read * chunkSize;
+                    chunk = new byte[(int) Math.min(chunkSize, length - offsetRead)];
+                    try {
+                        int offset = 0;
+                        while (offset < chunk.length) {
+                            final int len = in.read(chunk, offset, chunk.length - offset);
+                            if (len < 0) {
+                                return new FutureDone<Void>().setFailed("The stream ended after "
+                                        + (offsetRead + offset) + " of " + length + " bytes");
+                            }
+                            offset += len;
+                        }
+                    } catch (IOException e) {
+                        return new FutureDone<Void>().setFailed("Could not read chunk " + read + ": " + e);
+                    }
+                    chunkKey = Utils.makeSHAHash(chunk);
+                    chunkKeys[read++] = chunkKey;
+                }
+                final Data data = new Data(chunk);
+                return configure(peer.put(chunkKey), builder, true).setData(chunkKey, data).start();
+            }
+
+            @Override
+            String completed(final int index, final BaseFuture future) {
+                return null;
+            }
+
+            @Override
+            void done() {
+                final ChunkManifest manifest;
+                synchronized (in) {
+                    manifest = new ChunkManifest(length, chunkSize, Arrays.asList(chunkKeys));
+                }
+                futureChunked.setManifest(manifest);
+                putManifest(peer, builder, futureChunked, manifest);
+            }
+        }.run();
+        return futureChunked;
+    }
+
+    /**
+     * Stores the manifest once all chunks are stored, so that nobody finds a manifest of chunks that are not stored.
+     */
+    private static void putManifest(final Peer peer, final PutChunkedBuilder builder,
+            final FutureChunked futureChunked, final ChunkManifest manifest) {
+        final FuturePut futurePut = configure(peer.put(builder.getLocationKey()), builder, false).setData(
+                builder.getContentKey(), manifest.toData()).start();
+        futurePut.addListener(new BaseFutureAdapter<FuturePut>() {
+            @Override
+            public void operationComplete(final FuturePut future) throws Exception {
+                if (future.isSuccess()) {
+                    futureChunked.setDone(null);
+                } else {
+                    futureChunked.setFailed("Could not store the manifest", future);
+                }
+            }
+        });
+    }
+
+    /**
+     * Fetches the manifest of a value and then its chunks. If the builder is streaming, the chunks are handed to the
+     * input stream of the future instead of being assembled in an array.
+     *
+     * @param peer
+     *            The peer that fetches the value
+     * @param builder
+     *            The builder with the key of the value and the options
+     * @return The future that completes once all chunks have been fetched and verified
+     */
+    public static FutureChunked get(final Peer peer, final GetChunkedBuilder builder) {
+        final FutureChunked futureChunked = new FutureChunked(builder);
+        final ChunkInputStream stream;
+        if (builder.isStreaming()) {
+            stream = new ChunkInputStream(futureChunked);
+            futureChunked.setInputStream(stream);
+        } else {
+            stream = null;
+        }
+        final FutureGet futureGet = configure(peer.get(builder.getLocationKey()), builder, false).setContentKey(
+                builder.getContentKey()).start();
+        futureGet.addListener(new BaseFutureAdapter<FutureGet>() {
+            @Override
+            public void operationComplete(final FutureGet future) throws Exception {
+                if (!future.isSuccess() || future.getData() == null) {
+                    futureChunked.setFailed("Manifest not found", future);
+                    return;
+                }
+                final ChunkManifest manifest = ChunkManifest.fromData(future.getData());
+                if (manifest == null) {
+                    futureChunked.setFailed("The value is not stored in chunks");
+                    return;
+                }
+                if (stream == null && manifest.length() > Integer.MAX_VALUE) {
+                    futureChunked.setFailed("The value is too large for an array: " + manifest.length());
+                    return;
+                }
+                futureChunked.setManifest(manifest);
+                if (stream == null) {
+                    getChunks(peer, builder, futureChunked, manifest);
+                } else {
+                    getChunks(peer, builder, futureChunked, manifest, stream);
+                }
+            }
+        });
+        return futureChunked;
+    }
+
+    private static void getChunks(final Peer peer, final GetChunkedBuilder builder,
+            final FutureChunked futureChunked, final ChunkManifest manifest) {
+        final byte[] value = new byte[(int) manifest.length()];
+        new Window(futureChunked, manifest.chunkKeys().size(), builder.getConcurrency()) {
+            @Override
+            BaseFuture start(final int index) {
+                final Number160 chunkKey = manifest.chunkKeys().get(index);
+                return configure(peer.get(chunkKey), builder, true).setContentKey(chunkKey).start();
+            }
+
+            @Override
+            String completed(final int index, final BaseFuture future) {
+                final Data data = ((FutureGet) future).getData();
+                final int offset = (int) manifest.offset(index);
+                final int length = manifest.chunkLength(index);
+                if (data == null || data.length() != length) {
+                    return "Chunk " + index + " not found";
+                }
+                final ByteBuf buf = data.buffer();
+                try {
+                    buf.readBytes(value, offset, length);
+                } finally {
+                    buf.release();
+                }
+                if (!Utils.makeSHAHash(value, offset, length).equals(manifest.chunkKeys().get(index))) {
+                    return "Chunk " + index + " does not match its hash";
+                }
+                return null;
+            }
+
+            @Override
+            void done() {
+                futureChunked.setDone(value);
+            }
+        }.run();
+    }
+
+    /**
+     * Fetches the chunks of a streamed get. A chunk is only fetched if it is less than twice the concurrency ahead of
+     * the chunk that is read from the stream, so a reader that is behind slows down the fetching.
+     */
+    private static void getChunks(final Peer peer, final GetChunkedBuilder builder,
+            final FutureChunked futureChunked, final ChunkManifest manifest, final ChunkInputStream stream) {
+        final int ahead = 2 * builder.getConcurrency();
+        final Window window = new Window(futureChunked, manifest.chunkKeys().size(), builder.getConcurrency()) {
+            @Override
+            BaseFuture start(final int index) {
+                final Number160 chunkKey = manifest.chunkKeys().get(index);
+                return configure(peer.get(chunkKey), builder, true).setContentKey(chunkKey).start();
+            }
+
+            @Override
+            String completed(final int index, final BaseFuture future) {
+                final Data data = ((FutureGet) future).getData();
+                final int length = manifest.chunkLength(index);
+                if (data == null || data.length() != length) {
+                    return "Chunk " + index + " not found";
+                }
+                final byte[] chunk = new byte[length];
+                final ByteBuf buf = data.buffer();
+                try {
+                    buf.readBytes(chunk);
+                } finally {
+                    buf.release();
+                }
+                if (!Utils.makeSHAHash(chunk).equals(manifest.chunkKeys().get(index))) {
+                    return "Chunk " + index + " does not match its hash";
+                }
+                stream.add(index, chunk);
+                return null;
+            }
+
+            @Override
+            int limit() {
+                return stream.position() + ahead;
+            }
+
+            @Override
+            void done() {
+                futureChunked.setDone(null);
+            }
+        };
+        if (stream.start(window, manifest.chunkKeys().size())) {
+            window.run();
+        } else {
+            futureChunked.setFailed("The stream has been closed");
+        }
+    }
+
+    /**
+     * Applies the options of a chunked put or get to the put or get of a chunk or of the manifest.
+     *
+     * @param request
+     *            The builder of the put or get
+     * @param builder
+     *            The builder of the chunked put or get
+     * @param chunk
+     *            True for a chunk, which is stored with the version key zero
+     * @return The builder of the put or get
+     */
+    private static <K extends DHTBuilder<K>> K configure(final K request, final DHTBuilder<?> builder,
+            final boolean chunk) {
+        if (builder.getDomainKey() != null) {
+            request.setDomainKey(builder.getDomainKey());
+        }
+        if (!chunk && builder.getVersionKey() != null) {
+            request.setVersionKey(builder.getVersionKey());
+        }
+        if (builder.getRoutingConfiguration() != null) {
+            request.setRoutingConfiguration(builder.getRoutingConfiguration());
+        }
+        if (builder.getRequestP2PConfiguration() != null) {
+            request.setRequestP2PConfiguration(builder.getRequestP2PConfiguration());
+        }
+        return request.setProtectDomain(builder.isProtectDomain()).keyPair(builder.keyPair());
+    }
+
+    /**
+     * The value of a streamed get. The fetched chunks are queued until they are read in order, and reading a chunk
+     * lets the window fetch the next ones. A read blocks until the next chunk has been fetched, thus this stream must
+     * be read by a thread of the user and not by an I/O thread.
+     */
+    private static final class ChunkInputStream extends InputStream {
+
+        // the fetched chunks that have not been read, guarded by this
+        private final Map<Integer, byte[]> chunks = new HashMap<Integer, byte[]>();
+
+        // the index of the next chunk to read, written while holding the lock
+        private volatile int position = 0;
+
+        private Window window = null;
+
+        private int size = -1;
+
+        private byte[] current = null;
+
+        private int offset = 0;
+
+        private String failed = null;
+
+        private boolean closed = false;
+
+        private ChunkInputStream(final FutureChunked futureChunked) {
+            futureChunked.addListener(new BaseFutureAdapter<FutureChunked>() {
+                @Override
+                public void operationComplete(final FutureChunked future) throws Exception {
+                    if (future.isFailed()) {
+                        synchronized (ChunkInputStream.this) {
+                            failed = future.getFailedReason();
+                            ChunkInputStream.this.notifyAll();
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Sets the window that fetches the chunks once the manifest is known.
+         *
+         * @return False if this stream has been closed already
+         */
+        private synchronized boolean start(final Window window, final int size) {
+            this.window = window;
+            this.size = size;
+            notifyAll();
+            return !closed;
+        }
+
+        private synchronized void add(final int index, final byte[] chunk) {
+            if (!closed) {
+                chunks.put(index, chunk);
+                notifyAll();
+            }
+        }
+
+        private int position() {
+            return position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final Window toFill;
+            final int b;
+            synchronized (this) {
+                toFill = advance();
+                if (current == null) {
+                    return -1;
+                }
+                b = current[offset++] & 0xff;
+            }
+            if (toFill != null) {
+                toFill.fill();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            final Window toFill;
+            final int length;
+            synchronized (this) {
+                toFill = advance();
+                if (current == null) {
+                    return -1;
+                }
+                length = Math.min(len, current.length - offset);
+                System.arraycopy(current, offset, b, off, length);
+                offset += length;
+            }
+            if (toFill != null) {
+                toFill.fill();
+            }
+            return length;
+        }
+
+        @Override
+        public synchronized int available() {
+            return current == null ? 0 : current.length - offset;
+        }
+
+        /**
+         * Drops the fetched chunks and stops fetching.
+         */
+        @Override
+        public void close() {
+            final Window toCancel;
+            synchronized (this) {
+                closed = true;
+                chunks.clear();
+                current = null;
+                toCancel = window;
+                notifyAll();
+            }
+            if (toCancel != null) {
+                toCancel.cancel("The stream has been closed");
+            }
+        }
+
+        /**
+         * Waits until the current chunk can be read, needs to be called while holding the lock. The caller fills the
+         * window after releasing the lock, so that the lock of the window is never taken while holding this lock.
+         *
+         * @return The window to fill if the next chunk has been taken, or null
+         */
+        private Window advance() throws IOException {
+            Window toFill = null;
+            try {
+                while (current == null || offset == current.length) {
+                    if (closed) {
+                        throw new IOException("The stream is closed");
+                    }
+                    if (size >= 0 && position == size) {
+                        current = null;
+                        break;
+                    }
+                    final byte[] chunk = chunks.remove(position);
+                    if (chunk != null) {
+                        current = chunk;
+                        offset = 0;
+                        position++;
+                        toFill = window;
+                    } else if (failed != null) {
+                        throw new IOException(failed);
+                    } else {
+                        wait();
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for a chunk");
+            }
+            return toFill;
+        }
+    }
+
+    /**
+     * Runs the operations of the chunks with a sliding window, so that at most a given number of operations are
+     * running at the same time. No operation is started after one has failed.
+     */
+    private abstract static class Window {
+        private final FutureChunked futureChunked;
+        private final int size;
+        private final int concurrency;
+
+        // guarded by this
+        private int next = 0;
+        private int running = 0;
+        private String failed = null;
+
+        private Window(final FutureChunked futureChunked, final int size, final int concurrency) {
+            this.futureChunked = futureChunked;
+            this.size = size;
+            this.concurrency = concurrency;
+        }
+
+        /**
+         * Starts the operation of a chunk.
+         */
+        abstract BaseFuture start(int index);
+
+        /**
+         * Handles a successful operation of a chunk.
+         *
+         * @return The reason of a failure or null if the chunk is done
+         */
+        abstract String completed(int index, BaseFuture future);
+
+        /**
+         * Called once the operations of all chunks have succeeded.
+         */
+        abstract void done();
+
+        /**
+         * @return The index of the first chunk that must not be started yet
+         */
+        int limit() {
+            return size;
+        }
+
+        /**
+         * Starts the operations of the first chunks, the others are started as the running ones complete.
+         */
+        void run() {
+            if (size == 0) {
+                done();
+                return;
+            }
+            fill();
+        }
+
+        /**
+         * Starts operations until the concurrency or the limit is reached.
+         */
+        void fill() {
+            while (startNext()) {
+                // start the next one
+            }
+        }
+
+        /**
+         * Starts no more operations. The future fails once the running operations have completed.
+         *
+         * @param reason
+         *            The reason of the failure
+         */
+        void cancel(final String reason) {
+            final String failed;
+            synchronized (this) {
+                if (this.failed == null) {
+                    this.failed = reason;
+                }
+                if (running > 0) {
+                    return;
+                }
+                failed = this.failed;
+            }
+            futureChunked.setFailed(failed);
+        }
+
+        private boolean startNext() {
+            final int index;
+            synchronized (this) {
+                if (failed != null || next >= size || running >= concurrency || next >= limit()) {
+                    return false;
+                }
+                index = next++;
+                running++;
+            }
+            start(index).addListener(new BaseFutureAdapter<BaseFuture>() {
+                @Override
+                public void operationComplete(final BaseFuture future) throws Exception {
+                    finish(future.isSuccess() ? completed(index, future) : "Chunk " + index + " failed: "
+                            + future.getFailedReason());
+                }
+            });
+            return true;
+        }
+
+        private void finish(final String reason) {
+            final boolean last;
+            final String failed;
+            synchronized (this) {
+                running--;
+                if (reason != null && this.failed == null) {
+                    this.failed = reason;
+                }
+                failed = this.failed;
+                last = running == 0 && (failed != null || next >= size);
+            }
+            if (reason == null) {
+                futureChunked.chunkDone();
+            }
+            if (!last) {
+                fill();
+            } else if (failed != null) {
+                futureChunked.setFailed(failed);
+            } else {
+                done();
+            }
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.p2p;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+import net.tomp2p.utils.Timings;
+
+/**
+ * A client side cache for the results of {@link DistributedHashTable#get}. The cache is bounded by the number of bytes
+ * of the cached payloads and evicts the least recently used entries. An entry expires when its data expires, see
+ * {@link Data#expirationMillis()}, or at the latest after the maximum age of this cache, since changes of other peers
+ * are not seen by this cache. Local puts, adds, and removes invalidate the affected location and domain keys.
+ * <p>
+ * The payload of a cached entry is copied, so the cache does not hold on to the buffers of a channel. Cache hits
+ * return duplicates that can be released independently of the cache.
+ *
+ * @author Thomas Bocek
+ */
+public class ClientCache {
+
+    /**
+     * The bytes that are accounted for an entry in addition to its payload.
+     */
+    public static final int ENTRY_OVERHEAD = 128;
+
+    // the number of recent invalidations that are remembered to reject results of gets that were sent before
+    private static final int MAX_INVALIDATIONS = 64;
+
+    private static final ByteBufAllocator ALLOC = UnpooledByteBufAllocator.DEFAULT;
+
+    private final long maxBytes;
+
+    private final int maxAgeMillis;
+
+    // least recently used first, guarded by itself
+    private final LinkedHashMap<Number640, CacheEntry> entries = new LinkedHashMap<Number640, CacheEntry>(16,
+            0.75f, true);
+
+    // the same entries sorted, for range invalidations
+    private final NavigableMap<Number640, CacheEntry> sorted = new TreeMap<Number640, CacheEntry>();
+
+    private final ArrayDeque<Invalidation> invalidations = new ArrayDeque<Invalidation>(MAX_INVALIDATIONS);
+
+    private long generation = 0;
+
+    // results of gets that were sent before this generation are not cached
+    private long forgottenGeneration = 0;
+
+    private long bytes = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    /**
+     * @param maxBytes
+     *            The maximum number of bytes of all cached entries, including {@link #ENTRY_OVERHEAD} per entry
+     * @param maxAgeMillis
+     *            The maximum time an entry is served from this cache, even if its data did not expire
+     */
+    public ClientCache(final long maxBytes, final int maxAgeMillis) {
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @return The current generation, which has to be passed to {@link #put(Map, long)} with the results of a get
+     */
+    public long generation() {
+        synchronized (entries) {
+            return generation;
+        }
+    }
+
+    /**
+     * Returns the data for all keys if all of them are cached and not expired.
+     *
+     * @param keys
+     *            The keys to look up
+     * @return The duplicates of the cached data or null if at least one key is not cached
+     */
+    public Map<Number640, Data> get(final Collection<Number640> keys) {
+        final long now = Timings.currentTimeMillis();
+        synchronized (entries) {
+            for (Number640 key : keys) {
+                final CacheEntry entry = entries.get(key);
+                if (entry == null || entry.expirationMillis <= now) {
+                    if (entry != null) {
+                        remove(key);
+                    }
+                    misses++;
+                    return null;
+                }
+            }
+            final Map<Number640, Data> result = new HashMap<Number640, Data>(keys.size() * 2);
+            for (Number640 key : keys) {
+                result.put(key, entries.get(key).data.duplicate());
+            }
+            hits++;
+            return result;
+        }
+    }
+
+    /**
+     * Caches the result of a get. Keys that have been invalidated since the get was sent are not cached, as the result
+     * may be older than the local change.
+     *
+     * @param dataMap
+     *            The result of the get
+     * @param generation
+     *            The generation of this cache before the get was sent, see {@link #generation()}
+     */
+    public void put(final Map<Number640, Data> dataMap, final long generation) {
+        final long now = Timings.currentTimeMillis();
+        final long maxExpirationMillis = now + maxAgeMillis;
+        final Map<Number640, CacheEntry> copies = new HashMap<Number640, CacheEntry>(dataMap.size() * 2);
+        for (Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
+            final Data data = entry.getValue();
+            final long expirationMillis = Math.min(data.expirationMillis(), maxExpirationMillis);
+            if (expirationMillis <= now || data.length() + ENTRY_OVERHEAD > maxBytes) {
+                continue;
+            }
+            copies.put(entry.getKey(), new CacheEntry(data.copy(ALLOC), expirationMillis));
+        }
+        synchronized (entries) {
+            for (Map.Entry<Number640, CacheEntry> entry : copies.entrySet()) {
+                final Number640 key = entry.getKey();
+                if (isInvalidated(key, generation)) {
+                    entry.getValue().data.release();
+                    continue;
+                }
+                remove(key);
+                entries.put(key, entry.getValue());
+                sorted.put(key, entry.getValue());
+                bytes += entry.getValue().bytes();
+            }
+            evict();
+        }
+    }
+
+    /**
+     * Removes all entries of a location and domain key.
+     *
+     * @param locationKey
+     *            The location key
+     * @param domainKey
+     *            The domain key
+     */
+    public void invalidate(final Number160 locationKey, final Number160 domainKey) {
+        invalidate(new Number640(locationKey, domainKey, Number160.ZERO, Number160.ZERO), new Number640(locationKey,
+                domainKey, Number160.MAX_VALUE, Number160.MAX_VALUE));
+    }
+
+    /**
+     * Removes all entries in a range.
+     *
+     * @param from
+     *            The first key, inclusive
+     * @param to
+     *            The last key, inclusive
+     */
+    public void invalidate(final Number640 from, final Number640 to) {
+        synchronized (entries) {
+            generation++;
+            if (invalidations.size() == MAX_INVALIDATIONS) {
+                forgottenGeneration = invalidations.removeFirst().generation;
+            }
+            invalidations.addLast(new Invalidation(from, to, generation));
+            final Iterator<Number640> iterator = sorted.subMap(from, true, to, true).keySet().iterator();
+            while (iterator.hasNext()) {
+                final CacheEntry entry = entries.remove(iterator.next());
+                iterator.remove();
+                bytes -= entry.bytes();
+                entry.data.release();
+            }
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        invalidate(Number640.ZERO, new Number640(Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE,
+                Number160.MAX_VALUE));
+    }
+
+    /**
+     * @return The number of cached entries, including expired entries that have not been removed yet
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return The number of bytes of all cached entries, including {@link #ENTRY_OVERHEAD} per entry
+     */
+    public long bytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    /**
+     * @return The number of lookups that returned cached data
+     */
+    public long hits() {
+        synchronized (entries) {
+            return hits;
+        }
+    }
+
+    /**
+     * @return The number of lookups that did not find all keys
+     */
+    public long misses() {
+        synchronized (entries) {
+            return misses;
+        }
+    }
+
+    private boolean isInvalidated(final Number640 key, final long generation) {
+        if (generation < forgottenGeneration) {
+            return true;
+        }
+        for (Iterator<Invalidation> iterator = invalidations.descendingIterator(); iterator.hasNext();) {
+            final Invalidation invalidation = iterator.next();
+            if (invalidation.generation <= generation) {
+                return false;
+            }
+            if (key.compareTo(invalidation.from) >= 0 && key.compareTo(invalidation.to) <= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void remove(final Number640 key) {
+        final CacheEntry entry = entries.remove(key);
+        if (entry != null) {
+            sorted.remove(key);
+            bytes -= entry.bytes();
+            entry.data.release();
+        }
+    }
+
+    private void evict() {
+        final Iterator<Map.Entry<Number640, CacheEntry>> iterator = entries.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            final Map.Entry<Number640, CacheEntry> eldest = iterator.next();
+            iterator.remove();
+            sorted.remove(eldest.getKey());
+            bytes -= eldest.getValue().bytes();
+            eldest.getValue().data.release();
+        }
+    }
+
+    private static final class CacheEntry {
+        private final Data data;
+        private final long expirationMillis;
+
+        private CacheEntry(final Data data, final long expirationMillis) {
+            this.data = data;
+            this.expirationMillis = expirationMillis;
+        }
+
+        private long bytes() {
+            return data.length() + ENTRY_OVERHEAD;
+        }
+    }
+
+    private static final class Invalidation {
+        private final Number640 from;
+        private final Number640 to;
+        private final long generation;
+
+        private Invalidation(final Number640 from, final Number640 to, final long generation) {
+            this.from = from;
+            this.to = to;
+            this.generation = generation;
+        }
+    }
+}
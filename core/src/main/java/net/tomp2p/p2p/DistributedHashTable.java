@@ -18,17 +18,24 @@ package net.tomp2p.p2p;
 import io.netty.buffer.ByteBuf;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
+import java.util.Queue;
 import java.util.SortedMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import net.tomp2p.connection.ChannelCreator;
 import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureBatch;
 import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureDHT;
 import net.tomp2p.futures.FutureDigest;
@@ -43,6 +50,8 @@ import net.tomp2p.futures.FutureShutdown;
 import net.tomp2p.message.Message.Type;
 import net.tomp2p.p2p.builder.AddBuilder;
 import net.tomp2p.p2p.builder.BasicBuilder;
+import net.tomp2p.p2p.builder.BatchGetBuilder;
+import net.tomp2p.p2p.builder.BatchPutBuilder;
 import net.tomp2p.p2p.builder.DigestBuilder;
 import net.tomp2p.p2p.builder.GetBuilder;
 import net.tomp2p.p2p.builder.PutBuilder;
@@ -54,6 +63,7 @@ import net.tomp2p.p2p.builder.ShutdownBuilder;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
 import net.tomp2p.rpc.DefaultBloomfilterFactory;
 import net.tomp2p.rpc.DigestInfo;
 import net.tomp2p.rpc.DigestResult;
@@ -62,6 +72,7 @@ import net.tomp2p.rpc.QuitRPC;
 import net.tomp2p.rpc.SimpleBloomFilter;
 import net.tomp2p.rpc.StorageRPC;
 import net.tomp2p.storage.Data;
+import net.tomp2p.storage.StorageLayer.PutStatus;
 import net.tomp2p.utils.Utils;
 
 import org.slf4j.Logger;
@@ -78,17 +89,39 @@ public class DistributedHashTable {
 
     private final QuitRPC quitRPC;
 
+    private final ClientCache clientCache;
+
     public DistributedHashTable(DistributedRouting routing, StorageRPC storeRCP, DirectDataRPC directDataRPC,
             QuitRPC quitRPC) {
+        this(routing, storeRCP, directDataRPC, quitRPC, null);
+    }
+
+    /**
+     * @param clientCache
+     *            The cache for the results of get() or null if gets are not cached
+     */
+    public DistributedHashTable(DistributedRouting routing, StorageRPC storeRCP, DirectDataRPC directDataRPC,
+            QuitRPC quitRPC, ClientCache clientCache) {
         this.routing = routing;
         this.storeRCP = storeRCP;
         this.directDataRPC = directDataRPC;
         this.quitRPC = quitRPC;
+        this.clientCache = clientCache;
+    }
+
+    /**
+     * @return The cache for the results of get() or null if gets are not cached
+     */
+    public ClientCache getClientCache() {
+        return clientCache;
     }
 
     public FuturePut add(final AddBuilder builder) {
         final FuturePut futureDHT = new FuturePut(builder, builder.getRequestP2PConfiguration()
                 .getMinimumResults(), builder.getDataSet().size());
+        if (clientCache != null) {
+            invalidate(futureDHT, builder.getLocationKey(), builder.getDomainKey());
+        }
         builder.getFutureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
             @Override
             public void operationComplete(final FutureChannelCreator future) throws Exception {
@@ -237,6 +270,15 @@ public class DistributedHashTable {
         final int dataSize = Utils.dataSize(putBuilder);
         final FuturePut futureDHT = new FuturePut(putBuilder, putBuilder.getRequestP2PConfiguration()
                 .getMinimumResults(), dataSize);
+        if (clientCache != null) {
+            if (putBuilder.getDataMap() != null) {
+                for (Number640 key : putBuilder.getDataMap().keySet()) {
+                    invalidate(futureDHT, key.getLocationKey(), key.getDomainKey());
+                }
+            } else {
+                invalidate(futureDHT, putBuilder.getLocationKey(), putBuilder.getDomainKey());
+            }
+        }
         putBuilder.getFutureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
             @Override
             public void operationComplete(final FutureChannelCreator future) throws Exception {
@@ -308,6 +350,19 @@ public class DistributedHashTable {
 
         final FutureGet futureDHT = new FutureGet(builder, builder.getRequestP2PConfiguration()
                 .getMinimumResults(), new VotingSchemeDHT());
+        final Collection<Number640> cacheKeys = cacheKeys(builder);
+        if (cacheKeys != null) {
+            // results of gets that were sent before a local change must not be cached
+            final long generation = clientCache.generation();
+            futureDHT.addListener(new BaseFutureAdapter<FutureGet>() {
+                @Override
+                public void operationComplete(final FutureGet future) throws Exception {
+                    if (future.isSuccess()) {
+                        clientCache.put(future.getDataMap(), generation);
+                    }
+                }
+            });
+        }
 
         builder.getFutureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
             @Override
@@ -469,6 +524,17 @@ public class DistributedHashTable {
     	final int dataSize = Utils.dataSize(builder);
         final FutureRemove futureDHT = new FutureRemove(builder, builder.getRequestP2PConfiguration()
                 .getMinimumResults(), new VotingSchemeDHT(), dataSize);
+        if (clientCache != null) {
+            if (builder.isRange()) {
+                invalidate(futureDHT, builder.from(), builder.to());
+            } else if (builder.keys() != null) {
+                for (Number640 key : builder.keys()) {
+                    invalidate(futureDHT, key.getLocationKey(), key.getDomainKey());
+                }
+            } else {
+                invalidate(futureDHT, builder.getLocationKey(), builder.getDomainKey());
+            }
+        }
 
         builder.getFutureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
             @Override
@@ -546,6 +612,445 @@ public class DistributedHashTable {
         return futureDHT;
     }
 
+    /**
+     * Serves a get from the client cache if all requested keys are cached. If the get builder asks for revalidation,
+     * a digest is sent to the responsible peers and the cached data is only returned if the versions (basedOn) of
+     * the peers match the cached data. Otherwise, the stale entries are removed and the get is sent.
+     * 
+     * @param peer
+     *            The peer that sends the get
+     * @param builder
+     *            The get builder, where the content keys have been set
+     * @return A future with the cached data or null if the get has to be sent to the network
+     */
+    public FutureGet getCached(final Peer peer, final GetBuilder builder) {
+        final Collection<Number640> cacheKeys = cacheKeys(builder);
+        if (cacheKeys == null) {
+            return null;
+        }
+        final Map<Number640, Data> cached = clientCache.get(cacheKeys);
+        if (cached == null) {
+            return null;
+        }
+        final FutureGet futureGet = new FutureGet(builder);
+        if (!builder.isRevalidate()) {
+            futureGet.setReceivedData(cachedData(peer, cached));
+            return futureGet;
+        }
+        final DigestBuilder digestBuilder = peer.digest(builder.getLocationKey())
+                .setRoutingConfiguration(builder.getRoutingConfiguration())
+                .setRequestP2PConfiguration(builder.getRequestP2PConfiguration());
+        if (builder.keys() != null) {
+            digestBuilder.setKey(builder.keys());
+        } else {
+            digestBuilder.contentKeys(builder.contentKeys()).setDomainKey(builder.getDomainKey())
+                    .setVersionKey(builder.getVersionKey());
+        }
+        digestBuilder.start().addListener(new BaseFutureAdapter<FutureDigest>() {
+            @Override
+            public void operationComplete(final FutureDigest future) throws Exception {
+                if (future.isSuccess() && isFresh(cached, future.getDigest())) {
+                    futureGet.setReceivedData(cachedData(peer, cached));
+                    return;
+                }
+                for (Map.Entry<Number640, Data> entry : cached.entrySet()) {
+                    entry.getValue().release();
+                    clientCache.invalidate(entry.getKey(), entry.getKey());
+                }
+                builder.start().addListener(new BaseFutureAdapter<FutureGet>() {
+                    @Override
+                    public void operationComplete(final FutureGet future) throws Exception {
+                        if (future.getRawData() != null) {
+                            futureGet.setReceivedData(future.getRawData());
+                        } else {
+                            futureGet.setFailed(future);
+                        }
+                    }
+                });
+            }
+        });
+        return futureGet;
+    }
+
+    /**
+     * @return The keys of a get, if the get can be served from the client cache, otherwise null
+     */
+    private Collection<Number640> cacheKeys(final GetBuilder builder) {
+        if (clientCache == null || builder.isRange() || builder.isAll() || builder.isReturnBloomFilter()
+                || builder.getKeyBloomFilter() != null || builder.getContentBloomFilter() != null) {
+            return null;
+        }
+        if (builder.keys() != null) {
+            return builder.keys();
+        }
+        if (builder.contentKeys() == null) {
+            return null;
+        }
+        final Number160 domainKey = builder.getDomainKey() == null ? Number160.ZERO : builder.getDomainKey();
+        final Number160 versionKey = builder.getVersionKey() == null ? Number160.ZERO : builder.getVersionKey();
+        final Collection<Number640> keys = new ArrayList<Number640>(builder.contentKeys().size());
+        for (Number160 contentKey : builder.contentKeys()) {
+            keys.add(new Number640(builder.getLocationKey(), domainKey, contentKey, versionKey));
+        }
+        return keys;
+    }
+
+    private static Map<PeerAddress, Map<Number640, Data>> cachedData(final Peer peer,
+            final Map<Number640, Data> cached) {
+        final Map<PeerAddress, Map<Number640, Data>> rawData = new HashMap<PeerAddress, Map<Number640, Data>>(1);
+        rawData.put(peer.getPeerAddress(), cached);
+        return rawData;
+    }
+
+    /**
+     * @return True if the peers store all cached keys with the same version (basedOn) as the cached data
+     */
+    private static boolean isFresh(final Map<Number640, Data> cached, final DigestResult digest) {
+        if (digest == null || digest.keyDigest() == null) {
+            return false;
+        }
+        for (Map.Entry<Number640, Data> entry : cached.entrySet()) {
+            final Number160 basedOn = entry.getValue().basedOn();
+            final Number160 remoteBasedOn = digest.keyDigest().get(entry.getKey());
+            if (remoteBasedOn == null || !remoteBasedOn.equals(basedOn == null ? Number160.ZERO : basedOn)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the entries of a location and domain key from the client cache now and once the future is done, since a
+     * get may have fetched the old data in between.
+     */
+    private void invalidate(final FutureDHT<?> futureDHT, final Number160 locationKey, final Number160 domainKey) {
+        clientCache.invalidate(locationKey, domainKey);
+        futureDHT.addListener(new BaseFutureAdapter<FutureDHT<?>>() {
+            @Override
+            public void operationComplete(final FutureDHT<?> future) throws Exception {
+                clientCache.invalidate(locationKey, domainKey);
+            }
+        });
+    }
+
+    private void invalidate(final FutureDHT<?> futureDHT, final Collection<Number640> keys) {
+        for (Number640 key : keys) {
+            clientCache.invalidate(key, key);
+        }
+        futureDHT.addListener(new BaseFutureAdapter<FutureDHT<?>>() {
+            @Override
+            public void operationComplete(final FutureDHT<?> future) throws Exception {
+                for (Number640 key : keys) {
+                    clientCache.invalidate(key, key);
+                }
+            }
+        });
+    }
+
+    private void invalidate(final FutureDHT<?> futureDHT, final Number640 from, final Number640 to) {
+        clientCache.invalidate(from, to);
+        futureDHT.addListener(new BaseFutureAdapter<FutureDHT<?>>() {
+            @Override
+            public void operationComplete(final FutureDHT<?> future) throws Exception {
+                clientCache.invalidate(from, to);
+            }
+        });
+    }
+
+    /**
+     * Gets the data of many keys with one request per peer. The keys are grouped by the closest peer that is known in
+     * the local peer map, which is the peer itself if it is closer than all known peers. Keys that are not found on
+     * the closest known peer are fetched with a regular get if {@link BatchGetBuilder#isRouteMissing()} is set.
+     * 
+     * @param peer
+     *            The peer that sends the gets
+     * @param builder
+     *            The batch get builder
+     * @param keys
+     *            The full keys of the data to get
+     * @return The future with the results of each peer
+     */
+    public FutureBatch<Data> batchGet(final Peer peer, final BatchGetBuilder builder,
+            final Collection<Number640> keys) {
+        final FutureBatch<Data> futureBatch = new FutureBatch<Data>(builder, keys);
+        final Collection<Number640> remaining;
+        final long generation;
+        if (clientCache != null) {
+            generation = clientCache.generation();
+            remaining = new ArrayList<Number640>(keys.size());
+            final Map<Number640, Data> cached = new HashMap<Number640, Data>();
+            for (Number640 key : keys) {
+                final Map<Number640, Data> data = clientCache.get(Collections.singleton(key));
+                if (data == null) {
+                    remaining.add(key);
+                } else {
+                    cached.putAll(data);
+                }
+            }
+            if (!cached.isEmpty()) {
+                futureBatch.addResult(peer.getPeerAddress(), cached);
+            }
+        } else {
+            generation = 0;
+            remaining = keys;
+        }
+        final Map<PeerAddress, Collection<Number640>> groups = group(peer.getPeerAddress(), remaining, 1);
+        builder.getFutureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (future.isSuccess()) {
+                    logger.debug("batch get of {} keys from {} peers", remaining.size(), groups.size());
+                    batchRequests(builder.getRequestP2PConfiguration(), groups.keySet(), futureBatch,
+                            future.getChannelCreator(), new OperationMapper<FutureBatch<Data>>() {
+                                @Override
+                                public FutureResponse create(final ChannelCreator channelCreator,
+                                        final PeerAddress address) {
+                                    return storeRCP.get(address, groups.get(address), builder, channelCreator);
+                                }
+
+                                @Override
+                                public void response(final FutureBatch<Data> futureBatch) {
+                                    if (builder.isRouteMissing()) {
+                                        routeMissing(peer, builder, futureBatch);
+                                    } else {
+                                        futureBatch.setDone();
+                                    }
+                                }
+
+                                @Override
+                                public void interMediateResponse(final FutureResponse future) {
+                                    if (future.isSuccess() && future.getResponse().isOk()) {
+                                        final Map<Number640, Data> dataMap = future.getResponse().getDataMap(0)
+                                                .dataMap();
+                                        if (clientCache != null) {
+                                            clientCache.put(dataMap, generation);
+                                        }
+                                        futureBatch.addResult(future.getRequest().getRecipient(), dataMap);
+                                    }
+                                }
+                            });
+                } else {
+                    futureBatch.setFailed(future);
+                }
+            }
+        });
+        return futureBatch;
+    }
+
+    /**
+     * Stores the data of many keys with one request per peer. The keys are grouped by the closest peers that are known
+     * in the local peer map, as many as the minimum results of the {@link RequestP2PConfiguration}.
+     * 
+     * @param peer
+     *            The peer that sends the puts
+     * @param builder
+     *            The batch put builder
+     * @param dataMap
+     *            The data with the full keys
+     * @return The future with the keys that have been stored on each peer
+     */
+    public FutureBatch<Byte> batchPut(final Peer peer, final BatchPutBuilder builder,
+            final Map<Number640, Data> dataMap) {
+        final FutureBatch<Byte> futureBatch = new FutureBatch<Byte>(builder, dataMap.keySet());
+        if (clientCache != null) {
+            invalidate(futureBatch, dataMap.keySet());
+        }
+        final int replicas = Math.max(1, builder.getRequestP2PConfiguration().getMinimumResults());
+        final Map<PeerAddress, Collection<Number640>> groups = group(peer.getPeerAddress(), dataMap.keySet(),
+                replicas);
+        builder.getFutureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (future.isSuccess()) {
+                    logger.debug("batch put of {} keys to {} peers", dataMap.size(), groups.size());
+                    batchRequests(builder.getRequestP2PConfiguration(), groups.keySet(), futureBatch,
+                            future.getChannelCreator(), new OperationMapper<FutureBatch<Byte>>() {
+                                @Override
+                                public FutureResponse create(final ChannelCreator channelCreator,
+                                        final PeerAddress address) {
+                                    final Collection<Number640> keys = groups.get(address);
+                                    final Map<Number640, Data> peerDataMap = new HashMap<Number640, Data>(
+                                            keys.size() * 2);
+                                    for (Number640 key : keys) {
+                                        peerDataMap.put(key, dataMap.get(key));
+                                    }
+                                    return storeRCP.put(address, peerDataMap, builder, channelCreator);
+                                }
+
+                                @Override
+                                public void response(final FutureBatch<Byte> futureBatch) {
+                                    futureBatch.setDone();
+                                }
+
+                                @Override
+                                public void interMediateResponse(final FutureResponse future) {
+                                    if (future.isSuccess() && future.getResponse().isOk()) {
+                                        // only the stored keys count as results
+                                        final Map<Number640, Byte> stored = new HashMap<Number640, Byte>();
+                                        for (Map.Entry<Number640, Byte> entry : future.getResponse()
+                                                .getKeyMapByte(0).keysMap().entrySet()) {
+                                            if (entry.getValue().intValue() == PutStatus.OK.ordinal()) {
+                                                stored.put(entry.getKey(), entry.getValue());
+                                            }
+                                        }
+                                        futureBatch.addResult(future.getRequest().getRecipient(), stored);
+                                    }
+                                }
+                            });
+                } else {
+                    futureBatch.setFailed(future);
+                }
+            }
+        });
+        return futureBatch;
+    }
+
+    /**
+     * Groups the keys by the peers that are responsible according to the local peer map and the routing cache.
+     * 
+     * @return The keys for each peer
+     */
+    private Map<PeerAddress, Collection<Number640>> group(final PeerAddress self, final Collection<Number640> keys,
+            final int replicas) {
+        final Map<PeerAddress, Collection<Number640>> groups = new HashMap<PeerAddress, Collection<Number640>>();
+        final Map<Number160, List<PeerAddress>> responsible = new HashMap<Number160, List<PeerAddress>>();
+        for (Number640 key : keys) {
+            List<PeerAddress> peers = responsible.get(key.getLocationKey());
+            if (peers == null) {
+                peers = new ArrayList<PeerAddress>(routing.peerMap().closestPeers(key.getLocationKey(), replicas));
+                final RoutingCache routingCache = routing.routingCache();
+                final List<PeerAddress> cached = routingCache == null ? null : routingCache.get(key
+                        .getLocationKey());
+                if (cached != null) {
+                    // a recent routing may have found closer peers than we know
+                    cached.removeAll(peers);
+                    peers.addAll(cached);
+                }
+                if (!peers.contains(self)) {
+                    peers.add(self);
+                }
+                Collections.sort(peers, PeerMap.createComparator(key.getLocationKey()));
+                peers = peers.subList(0, Math.min(replicas, peers.size()));
+                responsible.put(key.getLocationKey(), peers);
+            }
+            for (PeerAddress peerAddress : peers) {
+                Collection<Number640> peerKeys = groups.get(peerAddress);
+                if (peerKeys == null) {
+                    peerKeys = new ArrayList<Number640>();
+                    groups.put(peerAddress, peerKeys);
+                }
+                peerKeys.add(key);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Sends one request to each peer, with as many requests in parallel as the P2P configuration allows. Once all
+     * requests are finished, the channel creator is shut down and {@link OperationMapper#response(FutureDHT)} is
+     * called.
+     */
+    private static <V> void batchRequests(final RequestP2PConfiguration p2pConfiguration,
+            final Collection<PeerAddress> peers, final FutureBatch<V> futureBatch,
+            final ChannelCreator channelCreator, final OperationMapper<FutureBatch<V>> operation) {
+        final Queue<PeerAddress> queue = new ConcurrentLinkedQueue<PeerAddress>(peers);
+        // one for this method, so we do not finish while the first requests are created
+        final AtomicInteger active = new AtomicInteger(1);
+        final int parallel = Math.max(1, p2pConfiguration.getParallel());
+        for (int i = 0; i < parallel; i++) {
+            nextBatchRequest(queue, active, futureBatch, channelCreator, operation);
+        }
+        if (active.decrementAndGet() == 0) {
+            channelCreator.shutdown();
+            operation.response(futureBatch);
+        }
+    }
+
+    private static <V> void nextBatchRequest(final Queue<PeerAddress> queue, final AtomicInteger active,
+            final FutureBatch<V> futureBatch, final ChannelCreator channelCreator,
+            final OperationMapper<FutureBatch<V>> operation) {
+        final PeerAddress next = queue.poll();
+        if (next == null) {
+            return;
+        }
+        active.incrementAndGet();
+        final FutureResponse futureResponse = operation.create(channelCreator, next);
+        futureBatch.addRequests(futureResponse);
+        futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(final FutureResponse future) throws Exception {
+                operation.interMediateResponse(future);
+                nextBatchRequest(queue, active, futureBatch, channelCreator, operation);
+                if (active.decrementAndGet() == 0) {
+                    channelCreator.shutdown();
+                    operation.response(futureBatch);
+                }
+            }
+        });
+    }
+
+    /**
+     * Fetches the keys of a batch get that were not found on the closest known peer with regular gets, which route to
+     * the location keys. The keys are grouped by location, domain, and version key, and as many gets are sent in
+     * parallel as the P2P configuration allows.
+     */
+    private static void routeMissing(final Peer peer, final BatchGetBuilder builder,
+            final FutureBatch<Data> futureBatch) {
+        final Map<Number640, Collection<Number160>> missing = new HashMap<Number640, Collection<Number160>>();
+        for (Number640 key : futureBatch.getMissingKeys()) {
+            final Number640 group = new Number640(key.getLocationKey(), key.getDomainKey(), Number160.ZERO,
+                    key.getVersionKey());
+            Collection<Number160> contentKeys = missing.get(group);
+            if (contentKeys == null) {
+                contentKeys = new ArrayList<Number160>();
+                missing.put(group, contentKeys);
+            }
+            contentKeys.add(key.getContentKey());
+        }
+        logger.debug("batch get routes to {} locations", missing.size());
+        final Queue<Map.Entry<Number640, Collection<Number160>>> queue =
+                new ConcurrentLinkedQueue<Map.Entry<Number640, Collection<Number160>>>(missing.entrySet());
+        final AtomicInteger active = new AtomicInteger(1);
+        final int parallel = Math.max(1, builder.getRequestP2PConfiguration().getParallel());
+        for (int i = 0; i < parallel; i++) {
+            nextRouteMissing(peer, builder, queue, active, futureBatch);
+        }
+        if (active.decrementAndGet() == 0) {
+            futureBatch.setDone();
+        }
+    }
+
+    private static void nextRouteMissing(final Peer peer, final BatchGetBuilder builder,
+            final Queue<Map.Entry<Number640, Collection<Number160>>> queue, final AtomicInteger active,
+            final FutureBatch<Data> futureBatch) {
+        final Map.Entry<Number640, Collection<Number160>> next = queue.poll();
+        if (next == null) {
+            return;
+        }
+        active.incrementAndGet();
+        peer.get(next.getKey().getLocationKey()).setDomainKey(next.getKey().getDomainKey())
+                .setVersionKey(next.getKey().getVersionKey()).contentKeys(next.getValue())
+                .setRoutingConfiguration(builder.getRoutingConfiguration())
+                .setRequestP2PConfiguration(builder.getRequestP2PConfiguration()).keyPair(builder.keyPair())
+                .start().addListener(new BaseFutureAdapter<FutureGet>() {
+                    @Override
+                    public void operationComplete(final FutureGet future) throws Exception {
+                        if (future.isSuccess()) {
+                            for (Map.Entry<PeerAddress, Map<Number640, Data>> entry : future.getRawData()
+                                    .entrySet()) {
+                                if (entry.getValue() != null && !entry.getValue().isEmpty()) {
+                                    futureBatch.addResult(entry.getKey(), entry.getValue());
+                                }
+                            }
+                        }
+                        nextRouteMissing(peer, builder, queue, active, futureBatch);
+                        if (active.decrementAndGet() == 0) {
+                            futureBatch.setDone();
+                        }
+                    }
+                });
+    }
+
     /**
      * Send a friendly shutdown message to your close neighbors.
      * 
@@ -17,12 +17,15 @@ package net.tomp2p.p2p;
 
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.List;
 import java.util.NavigableSet;
 import java.util.Random;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import net.tomp2p.connection.ChannelCreator;
 import net.tomp2p.connection.PeerBean;
@@ -38,6 +41,7 @@ import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerStatatistic;
 import net.tomp2p.rpc.DigestInfo;
 import net.tomp2p.rpc.NeighborRPC;
 
@@ -61,6 +65,8 @@ public class DistributedRouting {
 
     private final Random rnd;
 
+    private final RoutingCache routingCache;
+
     /**
      * The routing process involves multiple RPCs, mostly UDP based.
      * 
@@ -70,8 +76,24 @@ public class DistributedRouting {
      *            The neighbor RPC that will be issues
      */
     public DistributedRouting(final PeerBean peerBean, final NeighborRPC neighbors) {
+        this(peerBean, neighbors, null);
+    }
+
+    /**
+     * The routing process involves multiple RPCs, mostly UDP based.
+     * 
+     * @param peerBean
+     *            The peer bean
+     * @param neighbors
+     *            The neighbor RPC that will be issues
+     * @param routingCache
+     *            The cache for the close peers of recent routings or null if every routing does a full lookup
+     */
+    public DistributedRouting(final PeerBean peerBean, final NeighborRPC neighbors,
+            final RoutingCache routingCache) {
         this.neighbors = neighbors;
         this.peerBean = peerBean;
+        this.routingCache = routingCache;
         // stable random number. No need to be truly random
         rnd = new Random(peerBean.serverPeerAddress().getPeerId().hashCode());
     }
@@ -124,10 +146,68 @@ public class DistributedRouting {
      * @return a FutureRouting object, is set to complete if the route has been found
      */
     public FutureRouting route(final RoutingBuilder routingBuilder, final Type type, final ChannelCreator cc) {
-        // for bad distribution, use large NO_NEW_INFORMATION
-        Collection<PeerAddress> startPeers = peerBean.peerMap().closePeers(routingBuilder.getLocationKey(),
-                routingBuilder.getParallel() * 2);
-        return routing(startPeers, routingBuilder, type, cc);
+        final Number160 locationKey = routingBuilder.getLocationKey();
+        final boolean cacheable = routingCache != null && locationKey != null && !routingBuilder.isBootstrap();
+        Collection<PeerAddress> startPeers = null;
+        if (cacheable) {
+            final List<PeerAddress> cached = routingCache.get(locationKey);
+            if (cached != null) {
+                if (type == Type.REQUEST_1) {
+                    // no digest is needed, only the close peers, which we know already
+                    return cachedRouting(locationKey, cached);
+                }
+                // the peers with the data are close to the cached peers, so start there
+                cached.remove(peerBean.serverPeerAddress());
+                if (!cached.isEmpty()) {
+                    startPeers = cached;
+                }
+            }
+        }
+        if (startPeers == null) {
+            // for bad distribution, use large NO_NEW_INFORMATION
+            startPeers = peerBean.peerMap().closePeers(locationKey, routingBuilder.getParallel() * 2);
+        }
+        final FutureRouting futureRouting = routing(startPeers, routingBuilder, type, cc);
+        if (cacheable) {
+            futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
+                @Override
+                public void operationComplete(final FutureRouting future) throws Exception {
+                    if (future.isSuccess() && future.getPotentialHits() != null) {
+                        routingCache.put(locationKey, future.getPotentialHits());
+                    }
+                }
+            });
+        }
+        return futureRouting;
+    }
+
+    /**
+     * Completes a routing with the close peers from the routing cache, without sending any request.
+     * 
+     * @param locationKey
+     *            The location key to route to
+     * @param cached
+     *            The close peers from the cache
+     * @return The completed routing with the cached peers and this peer as potential hits
+     */
+    private FutureRouting cachedRouting(final Number160 locationKey, final Collection<PeerAddress> cached) {
+        final Comparator<PeerAddress> comparator = PeerMap.createComparator(locationKey);
+        final NavigableSet<PeerAddress> potentialHits = new TreeSet<PeerAddress>(comparator);
+        potentialHits.addAll(cached);
+        potentialHits.add(peerBean.serverPeerAddress());
+        final SortedSet<PeerAddress> routingPath = new TreeSet<PeerAddress>(comparator);
+        routingPath.add(peerBean.serverPeerAddress());
+        final FutureRouting futureRouting = new FutureRouting();
+        futureRouting.setNeighbors(new TreeMap<PeerAddress, DigestInfo>(peerBean.peerMap().createComparator()),
+                potentialHits, routingPath, false, false);
+        return futureRouting;
+    }
+
+    /**
+     * @return The cache for the close peers of recent routings or null if every routing does a full lookup
+     */
+    public RoutingCache routingCache() {
+        return routingCache;
     }
 
     /**
@@ -240,6 +320,9 @@ public class DistributedRouting {
             routingMechanism.potentialHits(potentialHits);
             routingMechanism.directHits(directHits);
             routingMechanism.alreadyAsked(alreadyAsked);
+            if (routingBuilder.isLatencyAware() && !randomSearch) {
+                routingMechanism.latencyAware(peerBean.peerMap(), routingBuilder.getLocationKey());
+            }
 
             routingBuilder.routingOnlyToSelf(isRoutingOnlyToSelf);
             routingRec(routingBuilder, routingMechanism, type, cc);
@@ -320,6 +403,9 @@ public class DistributedRouting {
                 active++;
             }
         }
+        if (routingMechanism.hedged() > 0 && !randomSearch) {
+            active += hedge(routingBuilder, routingMechanism, type, channelCreator);
+        }
         if (active == 0) {
             LOG.debug("no activity, closing");
 
@@ -387,4 +473,112 @@ public class DistributedRouting {
      * futureResponses.length(); for (int i = 0; i < len; i++) { BaseFuture baseFuture = futureResponses.get(i); if
      * (baseFuture != null) { baseFuture.cancel(); } } }
      */
+
+    /**
+     * Schedules hedged requests for the running requests. The hedged request for the request at position i uses the
+     * slot parallel + i. If the request is not answered within the retransmission timeout of its peer, the next peer
+     * in the queue is asked as well. If the hedged request is answered first, the slow request is removed from its
+     * slot, so that the routing does not wait for it. The slow request is not failed, as the peer is only slow: it
+     * completes on its own and only counts as a failure of the peer if it times out. Until the hedged request is sent,
+     * the slot holds a placeholder, which fails if the request is answered in time. A placeholder or hedged request
+     * that fails leaves its slot, so that it is not joined again in a later round and counted as a failure twice.
+     * 
+     * @return The number of slots with a placeholder or a running hedged request
+     */
+    private int hedge(final RoutingBuilder routingBuilder, final RoutingMechanism routingMechanism,
+            final Type type, final ChannelCreator channelCreator) {
+        int active = 0;
+        final int parallel = routingMechanism.parallel();
+        for (int i = 0; i < routingMechanism.hedged(); i++) {
+            final int slot = parallel + i;
+            final FutureResponse current = routingMechanism.futureResponse(slot);
+            if (current != null) {
+                if (!current.isFailed()) {
+                    // running, or answered after its round, which the next fork join evaluates
+                    active++;
+                    continue;
+                }
+                routingMechanism.clearFutureResponse(slot, current);
+            }
+            final FutureResponse slow = routingMechanism.futureResponse(i);
+            if (slow == null || slow.isCompleted() || routingMechanism.isStopCreatingNewFutures()) {
+                continue;
+            }
+            final long delayMicros = retransmissionTimeout(slow.getRequest().getRecipient());
+            if (delayMicros < 0) {
+                // we don't know how fast this peer is
+                continue;
+            }
+            final FutureResponse hedged = new FutureResponse(slow.getRequest());
+            routingMechanism.futureResponse(slot, hedged);
+            active++;
+            // a failed placeholder or hedged request must not be joined again in a later round
+            hedged.addListener(new BaseFutureAdapter<FutureResponse>() {
+                @Override
+                public void operationComplete(final FutureResponse future) throws Exception {
+                    if (future.isFailed()) {
+                        routingMechanism.clearFutureResponse(slot, hedged);
+                    }
+                }
+            });
+            final int index = i;
+            final ScheduledFuture<?> scheduledFuture = neighbors.connectionBean().timer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    sendHedged(routingBuilder, routingMechanism, type, channelCreator, index, slow, hedged);
+                }
+            }, delayMicros, TimeUnit.MICROSECONDS);
+            slow.addListener(new BaseFutureAdapter<FutureResponse>() {
+                @Override
+                public void operationComplete(final FutureResponse future) throws Exception {
+                    if (scheduledFuture.cancel(false)) {
+                        hedged.setFailed("answered in time, no hedged request");
+                    }
+                }
+            });
+        }
+        return active;
+    }
+
+    private void sendHedged(final RoutingBuilder routingBuilder, final RoutingMechanism routingMechanism,
+            final Type type, final ChannelCreator channelCreator, final int index, final FutureResponse slow,
+            final FutureResponse hedged) {
+        if (slow.isCompleted() || hedged.isCompleted() || routingMechanism.isStopCreatingNewFutures()) {
+            hedged.setFailed("no hedged request");
+            return;
+        }
+        final FutureResponse futureResponse;
+        // the channels of slow requests that have been replaced by a hedged request still hold a permit
+        synchronized (routingMechanism) {
+            final int permits = routingBuilder.isForceTCP() ? channelCreator.availableTCPPermits() : channelCreator
+                    .availableUDPPermits();
+            final PeerAddress next = permits > 0 ? routingMechanism.pollFirstInQueueToAsk() : null;
+            if (next == null) {
+                hedged.setFailed("no peer or permit left for a hedged request");
+                return;
+            }
+            routingMechanism.addToAlreadyAsked(next);
+            LOG.debug("{} is slow, send hedged request to {}", slow.getRequest().getRecipient(), next);
+            futureResponse = neighbors.closeNeighbors(next, routingBuilder.searchValues(), type, channelCreator,
+                    routingBuilder);
+        }
+        futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(final FutureResponse future) throws Exception {
+                if (future.isSuccess()) {
+                    // remove the slow request first, otherwise the routing continues and waits for it. The slow
+                    // request is not failed, which would report the peer as failed and remove it from the peer map
+                    routingMechanism.clearFutureResponse(index, slow);
+                    hedged.setResponse(future.getResponse());
+                } else {
+                    hedged.setFailed(future);
+                }
+            }
+        });
+    }
+
+    private long retransmissionTimeout(final PeerAddress peerAddress) {
+        final PeerStatatistic peerStatatistic = peerBean.peerMap().peerStatatistic(peerAddress);
+        return peerStatatistic == null ? -1 : peerStatatistic.retransmissionTimeout();
+    }
 }
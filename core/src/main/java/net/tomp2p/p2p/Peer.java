@@ -36,15 +36,19 @@ import net.tomp2p.futures.FuturePeerConnection;
 import net.tomp2p.natpmp.NatPmpException;
 import net.tomp2p.p2p.builder.AddBuilder;
 import net.tomp2p.p2p.builder.AddTrackerBuilder;
+import net.tomp2p.p2p.builder.BatchGetBuilder;
+import net.tomp2p.p2p.builder.BatchPutBuilder;
 import net.tomp2p.p2p.builder.BootstrapBuilder;
 import net.tomp2p.p2p.builder.BroadcastBuilder;
 import net.tomp2p.p2p.builder.DigestBuilder;
 import net.tomp2p.p2p.builder.DiscoverBuilder;
 import net.tomp2p.p2p.builder.GetBuilder;
+import net.tomp2p.p2p.builder.GetChunkedBuilder;
 import net.tomp2p.p2p.builder.GetTrackerBuilder;
 import net.tomp2p.p2p.builder.ParallelRequestBuilder;
 import net.tomp2p.p2p.builder.PingBuilder;
 import net.tomp2p.p2p.builder.PutBuilder;
+import net.tomp2p.p2p.builder.PutChunkedBuilder;
 import net.tomp2p.p2p.builder.RemoveBuilder;
 import net.tomp2p.p2p.builder.SendBuilder;
 import net.tomp2p.p2p.builder.SendDirectBuilder;
@@ -385,6 +389,24 @@ public class Peer {
      *         connection could not be reserved, maybe due to a shutdown, null is returned.
      */
     public FuturePeerConnection createPeerConnection(final PeerAddress destination, final int heartBeatMillis) {
+        return createPeerConnection(destination, heartBeatMillis, 1);
+    }
+
+    /**
+     * Opens a TCP connection and keeps it open. Up to maxOutstanding requests can be sent over this connection without
+     * waiting for the replies of the previous requests. The replies are matched to the requests by message ID.
+     * 
+     * @param destination
+     *            The end-point to connect to
+     * @param heartBeatMillis
+     *            The interval of the heart beat that keeps the connection open
+     * @param maxOutstanding
+     *            The number of requests that can wait for a reply at the same time, 1 disables pipelining
+     * @return A class that needs to be passed to those methods that should use the already open connection. If the
+     *         connection could not be reserved, maybe due to a shutdown, null is returned.
+     */
+    public FuturePeerConnection createPeerConnection(final PeerAddress destination, final int heartBeatMillis,
+            final int maxOutstanding) {
         final FuturePeerConnection futureDone = new FuturePeerConnection(destination);
         final FutureChannelCreator fcc = getConnectionBean().reservation().createPermanent(1);
         fcc.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
@@ -392,7 +414,8 @@ public class Peer {
             public void operationComplete(final FutureChannelCreator future) throws Exception {
                 if (future.isSuccess()) {
                     final ChannelCreator cc = fcc.getChannelCreator();
-                    final PeerConnection peerConnection = new PeerConnection(destination, cc, heartBeatMillis);
+                    final PeerConnection peerConnection = new PeerConnection(destination, cc, heartBeatMillis,
+                            maxOutstanding);
                     futureDone.setDone(peerConnection);
                 } else {
                     futureDone.setFailed(future);
@@ -466,6 +489,46 @@ public class Peer {
         return new GetBuilder(this, locationKey);
     }
     
+    /**
+     * Gets the data of many keys with one request per responsible peer, see {@link BatchGetBuilder}.
+     * 
+     * @return The builder for a batch get
+     */
+    public BatchGetBuilder batchGet() {
+        return new BatchGetBuilder(this);
+    }
+
+    /**
+     * Stores the data of many keys with one request per responsible peer, see {@link BatchPutBuilder}.
+     * 
+     * @return The builder for a batch put
+     */
+    public BatchPutBuilder batchPut() {
+        return new BatchPutBuilder(this);
+    }
+
+    /**
+     * Stores a large value in chunks on different peers, see {@link ChunkedStorage}.
+     * 
+     * @param locationKey
+     *            The location key of the manifest
+     * @return The builder for a chunked put
+     */
+    public PutChunkedBuilder putChunked(Number160 locationKey) {
+        return new PutChunkedBuilder(this, locationKey);
+    }
+
+    /**
+     * Fetches a large value that has been stored in chunks, see {@link ChunkedStorage}.
+     * 
+     * @param locationKey
+     *            The location key of the manifest
+     * @return The builder for a chunked get
+     */
+    public GetChunkedBuilder getChunked(Number160 locationKey) {
+        return new GetChunkedBuilder(this, locationKey);
+    }
+
     public DigestBuilder digest(Number160 locationKey) {
         return new DigestBuilder(this, locationKey);
     }
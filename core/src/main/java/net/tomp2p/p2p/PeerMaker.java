@@ -50,10 +50,13 @@ import net.tomp2p.rpc.NeighborRPC;
 import net.tomp2p.rpc.PeerExchangeRPC;
 import net.tomp2p.rpc.PingRPC;
 import net.tomp2p.rpc.QuitRPC;
+import net.tomp2p.rpc.ResponseCache;
 import net.tomp2p.rpc.StorageRPC;
 //import net.tomp2p.rpc.TaskRPC;
 import net.tomp2p.rpc.TrackerRPC;
 import net.tomp2p.storage.IdentityManagement;
+import net.tomp2p.storage.MerkleTree;
+import net.tomp2p.storage.Storage;
 import net.tomp2p.storage.StorageLayer;
 import net.tomp2p.storage.StorageMemory;
 import net.tomp2p.storage.TrackerStorage;
@@ -93,6 +96,12 @@ public class PeerMaker {
 	private static final int MAX_PERMITS_PERMANENT_TCP = 250;
 	private static final int MAX_PERMITS_UDP = 250;
 	private static final int MAX_PERMITS_TCP = 250;
+	private static final int MAX_POOLED_TCP_PER_PEER = 2;
+	private static final int MAX_POOLED_TCP = 100;
+	// shorter than the default idle time of the other peer
+	private static final int POOLED_TCP_IDLE_MILLIS = ConnectionBean.DEFAULT_TCP_IDLE_SECONDS * 1000 / 2;
+	// the minimum retransmission timeout of TCP (RFC 6298)
+	private static final int MIN_ADAPTIVE_TIMEOUT_MILLIS = 1000;
 
 	// required
 	private final Number160 peerId;
@@ -120,10 +129,18 @@ public class PeerMaker {
 
 	private PeerStatusListener[] peerStatusListeners = null;
 
-	private StorageMemory storage = null;
+	private Storage storage = null;
 
 	private TrackerStorage trackerStorage = null;
 
+	private ClientCache clientCache = null;
+
+	private ResponseCache responseCache = null;
+
+	private RoutingCache routingCache = null;
+
+	private MerkleTree merkleTree = null;
+
 	private Boolean behindFirewall = null;
 
 	// private int workerThreads = Runtime.getRuntime().availableProcessors() +
@@ -156,6 +173,8 @@ public class PeerMaker {
 
 	private ReplicationSender replicationSender = null;
 
+	private ReplicationScheduler replicationScheduler = null;
+
 	private List<PeerInit> toInitialize = new ArrayList<PeerInit>(1);
 
 	// private ReplicationExecutor replicationExecutor;
@@ -294,6 +313,9 @@ public class PeerMaker {
 		peerBean.peerMap(peerMap);
 		peerBean.keyPair(keyPair);
 		StorageLayer sl = new StorageLayer(storage);
+		if (merkleTree != null) {
+			sl.merkleTree(merkleTree);
+		}
 		peerBean.storage(sl);
 		sl.init(connectionBean.timer(), storageIntervalMillis);
 
@@ -384,6 +406,9 @@ public class PeerMaker {
 		}
 		if (replicationExecutor != null) {
 			replicationExecutor.init(intervalMillis);
+			if (replicationScheduler != null) {
+				replicationExecutor.replicationScheduler(replicationScheduler);
+			}
 		}
 		peerBean.replicationExecutor(replicationExecutor);
 
@@ -415,6 +440,10 @@ public class PeerMaker {
 		channelClientConfiguration.maxPermitsPermanentTCP(MAX_PERMITS_PERMANENT_TCP);
 		channelClientConfiguration.maxPermitsTCP(MAX_PERMITS_TCP);
 		channelClientConfiguration.maxPermitsUDP(MAX_PERMITS_UDP);
+		channelClientConfiguration.maxPooledTCPPerPeer(MAX_POOLED_TCP_PER_PEER);
+		channelClientConfiguration.maxPooledTCP(MAX_POOLED_TCP);
+		channelClientConfiguration.pooledTCPIdleMillis(POOLED_TCP_IDLE_MILLIS);
+		channelClientConfiguration.minAdaptiveTimeoutMillis(MIN_ADAPTIVE_TIMEOUT_MILLIS);
 		channelClientConfiguration.pipelineFilter(new DefaultPipelineFilter());
 		channelClientConfiguration.signatureFactory(new DefaultSignatureFactory());
 		return channelClientConfiguration;
@@ -438,7 +467,7 @@ public class PeerMaker {
 		}
 
 		if (isEnableStorageRPC()) {
-			StorageRPC storageRPC = new StorageRPC(peerBean, connectionBean);
+			StorageRPC storageRPC = new StorageRPC(peerBean, connectionBean, responseCache);
 			peer.setStorageRPC(storageRPC);
 		}
 
@@ -479,13 +508,16 @@ public class PeerMaker {
 		// distributed communication
 
 		if (isEnableRouting() && isEnableNeighborRPC()) {
-			DistributedRouting routing = new DistributedRouting(peerBean, peer.getNeighborRPC());
+			DistributedRouting routing = new DistributedRouting(peerBean, peer.getNeighborRPC(), routingCache);
 			peer.setDistributedRouting(routing);
+			if (routingCache != null) {
+				peerBean.peerMap().addPeerStatusListener(routingCache);
+			}
 		}
 
 		if (isEnableRouting() && isEnableStorageRPC() && isEnableDirectDataRPC()) {
 			DistributedHashTable dht = new DistributedHashTable(peer.getDistributedRouting(), peer.getStoreRPC(),
-			        peer.getDirectDataRPC(), peer.getQuitRPC());
+			        peer.getDirectDataRPC(), peer.getQuitRPC(), clientCache);
 			peer.setDistributedHashMap(dht);
 		}
 		/*
@@ -690,6 +722,76 @@ public class PeerMaker {
 		return this;
 	}
 
+	public Storage storage() {
+		return storage;
+	}
+
+	public PeerMaker storage(Storage storage) {
+		this.storage = storage;
+		return this;
+	}
+
+	public ClientCache clientCache() {
+		return clientCache;
+	}
+
+	/**
+	 * @param clientCache
+	 *            The cache for the results of get(), the default is null,
+	 *            which does not cache gets
+	 * @return This class
+	 */
+	public PeerMaker clientCache(ClientCache clientCache) {
+		this.clientCache = clientCache;
+		return this;
+	}
+
+	public ResponseCache responseCache() {
+		return responseCache;
+	}
+
+	/**
+	 * @param responseCache
+	 *            The cache for the encoded responses of hot gets on this
+	 *            peer, the default is null, which does not cache responses
+	 * @return This class
+	 */
+	public PeerMaker responseCache(ResponseCache responseCache) {
+		this.responseCache = responseCache;
+		return this;
+	}
+
+	public RoutingCache routingCache() {
+		return routingCache;
+	}
+
+	/**
+	 * @param routingCache
+	 *            The cache for the close peers of recent routings, the
+	 *            default is null, which does a full lookup for every routing
+	 * @return This class
+	 */
+	public PeerMaker routingCache(RoutingCache routingCache) {
+		this.routingCache = routingCache;
+		return this;
+	}
+
+	public MerkleTree merkleTree() {
+		return merkleTree;
+	}
+
+	/**
+	 * @param merkleTree
+	 *            The Merkle tree that is updated with the stored entries, so
+	 *            that replicas can be compared by ranges, the default is null,
+	 *            which maintains no tree
+	 * @return This class
+	 */
+	public PeerMaker merkleTree(MerkleTree merkleTree) {
+		this.merkleTree = merkleTree;
+		return this;
+	}
+
 	public int storageIntervalMillis() {
 		return storageIntervalMillis;
 	}
@@ -717,6 +819,23 @@ public class PeerMaker {
 		return this;
 	}
 
+	public ReplicationScheduler replicationScheduler() {
+		return replicationScheduler;
+	}
+
+	/**
+	 * @param replicationScheduler
+	 *            The scheduler that queues the location keys of the indirect
+	 *            replication and replicates them with a limited number of
+	 *            workers and bytes per second, the default is null, which
+	 *            replicates right away
+	 * @return This class
+	 */
+	public PeerMaker replicationScheduler(ReplicationScheduler replicationScheduler) {
+		this.replicationScheduler = replicationScheduler;
+		return this;
+	}
+
 	public PeerMaker init(PeerInit init) {
 		toInitialize.add(init);
 		return this;
@@ -19,7 +19,6 @@ package net.tomp2p.p2p;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.SortedSet;
 
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
@@ -248,9 +247,11 @@ public class Replication implements PeerMapChangeListener {
      * @return The peer that is responsible for the location key, including myself.
      */
     private PeerAddress closest(final Number160 locationKey) {
-        SortedSet<PeerAddress> tmp = peerMap.closePeers(locationKey, 1);
-        tmp.add(selfAddress);
-        return tmp.iterator().next();
+        final List<PeerAddress> tmp = peerMap.closestPeers(locationKey, 1);
+        if (tmp.isEmpty() || PeerMap.isKadCloser(locationKey, selfAddress, tmp.get(0)) < 0) {
+            return selfAddress;
+        }
+        return tmp.get(0);
     }
 
     /**
@@ -267,7 +268,14 @@ public class Replication implements PeerMapChangeListener {
      */
     private boolean isInReplicationRange(final Number160 locationKey, final PeerAddress peerAddress,
             final int replicationFactor) {
-        SortedSet<PeerAddress> tmp = peerMap.closePeers(locationKey, replicationFactor);
-        return tmp.headSet(peerAddress).size() < replicationFactor;
+        // the k closest are sorted, so we can stop at the first that is not closer
+        int closer = 0;
+        for (PeerAddress close : peerMap.closestPeers(locationKey, replicationFactor)) {
+            if (PeerMap.isKadCloser(locationKey, close, peerAddress) >= 0) {
+                break;
+            }
+            closer++;
+        }
+        return closer < replicationFactor;
     }
 }
@@ -16,13 +16,14 @@
 
 package net.tomp2p.p2p;
 
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Random;
-import java.util.SortedSet;
 import java.util.TimerTask;
+import java.util.TreeSet;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -74,6 +75,8 @@ public class ReplicationExecutor implements ResponsibilityListener, Runnable {
     
     private ScheduledFuture<?> scheduledFuture;
 
+    private ReplicationScheduler replicationScheduler;
+
     /**
      * Constructor for the default indirect replication.
      * 
@@ -99,16 +102,62 @@ public class ReplicationExecutor implements ResponsibilityListener, Runnable {
     	scheduledFuture = timer.scheduleAtFixedRate(this, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
     }
 
+    public ReplicationScheduler replicationScheduler() {
+        return replicationScheduler;
+    }
+
+    /**
+     * Queues the location keys in a scheduler instead of replicating them right away.
+     * 
+     * @param replicationScheduler
+     *            The scheduler, which is started here
+     * @return This class
+     */
+    public ReplicationExecutor replicationScheduler(final ReplicationScheduler replicationScheduler) {
+        this.replicationScheduler = replicationScheduler;
+        replicationScheduler.init(new ReplicationScheduler.Replicator() {
+            @Override
+            public long replicate(final Number160 locationKey, final PeerAddress other) {
+                final Map<Number640, Data> dataMap = dataMap(locationKey);
+                try {
+                    if (other != null) {
+                        replicationSender.sendDirect(other, locationKey, dataMap);
+                        return size(dataMap);
+                    }
+                    return size(dataMap) * send(locationKey, dataMap).size();
+                } finally {
+                    Utils.release(dataMap);
+                }
+            }
+
+            @Override
+            public long refresh(final NavigableSet<Number160> locationKeys) {
+                long bytes = 0;
+                for (Map.Entry<PeerAddress, NavigableSet<Number160>> entry : replicaLocationKeys(locationKeys)
+                        .entrySet()) {
+                    replicationSender.synchronize(entry.getKey(), entry.getValue());
+                    for (Number160 locationKey : entry.getValue()) {
+                        final Map<Number640, Data> dataMap = dataMap(locationKey);
+                        bytes += size(dataMap);
+                        Utils.release(dataMap);
+                    }
+                }
+                return bytes;
+            }
+        });
+        return this;
+    }
+
     @Override
     public void otherResponsible(final Number160 locationKey, final PeerAddress other, final boolean delayed) {
         LOG.debug("Other peer {} is responsible for {}. I'm {}", other, locationKey, storageRPC.peerBean()
                 .serverPeerAddress());
-        if (!delayed) {
-            Number640 min = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
-            Number640 max = new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE,
-                    Number160.MAX_VALUE);
-            final Map<Number640, Data> dataMap = storage.get(min, max, -1, true);
+        if (!delayed && replicationScheduler != null) {
+            replicationScheduler.dirty(locationKey, other);
+        } else if (!delayed) {
+            final Map<Number640, Data> dataMap = dataMap(locationKey);
             replicationSender.sendDirect(other, locationKey, dataMap);
+            Utils.release(dataMap);
             LOG.debug("transfer from {} to {} for key {}", storageRPC.peerBean().serverPeerAddress(), other,
                     locationKey);
         } else {
@@ -124,7 +173,11 @@ public class ReplicationExecutor implements ResponsibilityListener, Runnable {
     @Override
     public void meResponsible(final Number160 locationKey) {
         LOG.debug("I ({}) now responsible for {}", storageRPC.peerBean().serverPeerAddress(), locationKey);
-        synchronizeData(locationKey);
+        if (replicationScheduler != null) {
+            replicationScheduler.dirty(locationKey, null);
+        } else {
+            synchronizeData(locationKey);
+        }
     }
 
     @Override
@@ -133,9 +186,17 @@ public class ReplicationExecutor implements ResponsibilityListener, Runnable {
         // we need to make sure that there are enough copies. The easy way is to
         // publish it again... The good way is to do a diff
         Collection<Number160> locationKeys = storage.findContentForResponsiblePeerID(peer.getPeerID());
-
-        for (Number160 locationKey : locationKeys) {
-            synchronizeData(locationKey);
+        if (replicationScheduler != null) {
+            for (Number160 locationKey : locationKeys) {
+                replicationScheduler.refresh(locationKey);
+            }
+        } else {
+            Map<PeerAddress, NavigableSet<Number160>> replicaLocationKeys = replicaLocationKeys(locationKeys);
+            for (Map.Entry<PeerAddress, NavigableSet<Number160>> entry : replicaLocationKeys.entrySet()) {
+                replicationSender.synchronize(entry.getKey(), entry.getValue());
+            }
+            LOG.debug("[storage refresh] I ({}) restore {} to {}", storageRPC.peerBean().serverPeerAddress(),
+                    locationKeys, replicaLocationKeys.keySet());
         }
         // recalculate replication factor
         int replicationFactor = ReplicationExecutor.this.replicationFactor.factor();
@@ -149,15 +210,54 @@ public class ReplicationExecutor implements ResponsibilityListener, Runnable {
      *            The location key.
      */
     private void synchronizeData(final Number160 locationKey) {
-        Number640 min = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
-        Number640 max = new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE,
-                Number160.MAX_VALUE);
-        final Map<Number640, Data> dataMap = storage.get(min, max, -1, true);
+        final Map<Number640, Data> dataMap = dataMap(locationKey);
         List<PeerAddress> closePeers = send(locationKey, dataMap);
+        Utils.release(dataMap);
         LOG.debug("[storage refresh] I ({}) restore {} to {}", storageRPC.peerBean().serverPeerAddress(),
                 locationKey, closePeers);
     }
 
+    /**
+     * Groups the location keys by replica, so that each replica is synchronized once per round.
+     * 
+     * @param locationKeys
+     *            The location keys that I'm responsible for
+     * @return The location keys of each replica
+     */
+    private Map<PeerAddress, NavigableSet<Number160>> replicaLocationKeys(final Collection<Number160> locationKeys) {
+        int replicas = replicationStorage.getReplicationFactor() - 1;
+        Map<PeerAddress, NavigableSet<Number160>> replicaLocationKeys = new HashMap<PeerAddress, NavigableSet<Number160>>();
+        for (Number160 locationKey : locationKeys) {
+            for (PeerAddress peerAddress : peer.getPeerBean().peerMap().closestPeers(locationKey, replicas)) {
+                NavigableSet<Number160> keys = replicaLocationKeys.get(peerAddress);
+                if (keys == null) {
+                    keys = new TreeSet<Number160>();
+                    replicaLocationKeys.put(peerAddress, keys);
+                }
+                keys.add(locationKey);
+            }
+        }
+        return replicaLocationKeys;
+    }
+
+    /**
+     * @return Duplicates of the stored data of the location key, which have to be released
+     */
+    private Map<Number640, Data> dataMap(final Number160 locationKey) {
+        Number640 min = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
+        Number640 max = new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE,
+                Number160.MAX_VALUE);
+        return storage.get(min, max, -1, true);
+    }
+
+    private static long size(final Map<Number640, Data> dataMap) {
+        long size = 0;
+        for (Data data : dataMap.values()) {
+            size += data.length();
+        }
+        return size;
+    }
+
     /**
      * If my peer is responsible, I'll issue a put if absent to make sure all replicas are stored.
      * 
@@ -171,17 +271,9 @@ public class ReplicationExecutor implements ResponsibilityListener, Runnable {
      */
     protected List<PeerAddress> send(final Number160 locationKey, final Map<Number640, Data> dataMapConverted) {
         int replicationFactor = replicationStorage.getReplicationFactor() - 1;
-        List<PeerAddress> closePeers = new ArrayList<PeerAddress>();
-        SortedSet<PeerAddress> sortedSet = peer.getPeerBean().peerMap()
-                .closePeers(locationKey, replicationFactor);
-        int count = 0;
-        for (PeerAddress peerAddress : sortedSet) {
-            count++;
-            closePeers.add(peerAddress);
+        List<PeerAddress> closePeers = peer.getPeerBean().peerMap().closestPeers(locationKey, replicationFactor);
+        for (PeerAddress peerAddress : closePeers) {
             replicationSender.sendDirect(peerAddress, locationKey, dataMapConverted);
-            if (count == replicationFactor) {
-                break;
-            }
         }
         return closePeers;
     }
@@ -205,35 +297,70 @@ public class ReplicationExecutor implements ResponsibilityListener, Runnable {
          *            The location key
          * @param domainKey
          *            The domain key
-         * @param dataMapConvert
-         *            The data to store
+         * @param dataMap
+         *            The data to store, which stays owned by the caller. The message holds its own duplicates until
+         *            the put has completed.
          */
         public void sendDirect(final PeerAddress other, final Number160 locationKey,
                 final Map<Number640, Data> dataMap) {
+            final Map<Number640, Data> duplicates = new HashMap<Number640, Data>(dataMap.size());
+            for (Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
+                duplicates.put(entry.getKey(), entry.getValue().duplicate());
+            }
             FutureChannelCreator futureChannelCreator = peer.getConnectionBean().reservation().create(0, 1);
             futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
                 @Override
                 public void operationComplete(final FutureChannelCreator future) throws Exception {
                     if (future.isSuccess()) {
                         PutBuilder putBuilder = new PutBuilder(peer, locationKey);
-                        putBuilder.setDataMap(dataMap);
+                        putBuilder.setDataMap(duplicates);
                         FutureResponse futureResponse = storageRPC.put(other, putBuilder,
                                 future.getChannelCreator());
+                        futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+                            @Override
+                            public void operationComplete(final FutureResponse future) throws Exception {
+                                Utils.release(duplicates);
+                            }
+                        });
                         Utils.addReleaseListener(future.getChannelCreator(), futureResponse);
                         peer.notifyAutomaticFutures(futureResponse);
                     } else {
+                        Utils.release(duplicates);
                         if (LOG.isErrorEnabled()) {
                             LOG.error("otherResponsible failed " + future.getFailedReason());
                         }
                     }
                 }
             });
-        }   
+        }
+
+        /**
+         * Sends the data of each location key, as there is no cheaper way to find out what the other peer stores.
+         * 
+         * @param other
+         *            The other peer
+         * @param locationKeys
+         *            The location keys that the other peer should store
+         */
+        public void synchronize(final PeerAddress other, final NavigableSet<Number160> locationKeys) {
+            StorageLayer storage = peer.getPeerBean().storage();
+            for (Number160 locationKey : locationKeys) {
+                Number640 min = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
+                Number640 max = new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE,
+                        Number160.MAX_VALUE);
+                final Map<Number640, Data> dataMap = storage.get(min, max, -1, true);
+                sendDirect(other, locationKey, dataMap);
+                Utils.release(dataMap);
+            }
+        }
     }
     
     public void shutdown() {
     	if(scheduledFuture!=null) {
     		scheduledFuture.cancel(false);
     	}
+    	if(replicationScheduler!=null) {
+    		replicationScheduler.shutdown();
+    	}
     }
 }
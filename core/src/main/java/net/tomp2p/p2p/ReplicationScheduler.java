@@ -0,0 +1,335 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.p2p;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.tomp2p.connection.ConnectionBean;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spreads the replication traffic of the {@link ReplicationExecutor} over time, see
+ * {@link PeerMaker#replicationScheduler(ReplicationScheduler)}. Location keys are queued instead of being replicated
+ * right away, and a fixed number of workers replicate them, limited by a token bucket of bytes per second.
+ * <p>
+ * The location keys of responsibility events are dirty, as a replica has left or joined, or new data has been
+ * stored, so they are under-replicated and are replicated before the location keys of the periodic refresh. The queue
+ * is bounded: a dirty location key replaces the oldest refresh, and a location key that does not fit is dropped, as
+ * the next refresh round queues it again.
+ *
+ * @author Thomas Bocek
+ */
+public class ReplicationScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReplicationScheduler.class);
+
+    /**
+     * The default number of location keys in the queue.
+     */
+    public static final int DEFAULT_CAPACITY = 100000;
+
+    /**
+     * The default number of workers.
+     */
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    /**
+     * The maximum number of location keys that a worker refreshes at once, so that the replicas can be compared once
+     * for several location keys.
+     */
+    public static final int REFRESH_BATCH = 64;
+
+    /**
+     * Replicates the location keys that the scheduler hands out.
+     */
+    public interface Replicator {
+        /**
+         * Replicates the data of a dirty location key.
+         *
+         * @param locationKey
+         *            The location key
+         * @param other
+         *            The peer that is responsible now, or null if this peer is responsible and the data needs to be
+         *            sent to the replicas
+         * @return The number of bytes sent
+         */
+        long replicate(Number160 locationKey, PeerAddress other);
+
+        /**
+         * Makes sure that the replicas store the data of the location keys.
+         *
+         * @param locationKeys
+         *            The location keys that this peer is responsible for
+         * @return The number of bytes sent, or an upper bound if the replicas are compared first
+         */
+        long refresh(NavigableSet<Number160> locationKeys);
+    }
+
+    private final int capacity;
+
+    private final int parallelism;
+
+    private final long bytesPerSecond;
+
+    // the dirty location keys with the peer that is responsible, or null for this peer, guarded by this
+    private final Map<Number160, PeerAddress> dirty = new LinkedHashMap<Number160, PeerAddress>();
+
+    // guarded by this
+    private final LinkedHashSet<Number160> refresh = new LinkedHashSet<Number160>();
+
+    // guarded by this
+    private long dropped = 0;
+    private boolean shutdown = false;
+
+    // the token bucket, which holds at most the bytes of one second, guarded by bucketLock
+    private final Object bucketLock = new Object();
+    private double tokens;
+    private long lastRefill;
+
+    private ExecutorService executor;
+
+    /**
+     * Creates a scheduler with the default capacity and parallelism.
+     *
+     * @param bytesPerSecond
+     *            The number of bytes per second that are sent on average, 0 for no limit
+     */
+    public ReplicationScheduler(final long bytesPerSecond) {
+        this(DEFAULT_CAPACITY, DEFAULT_PARALLELISM, bytesPerSecond);
+    }
+
+    /**
+     * @param capacity
+     *            The maximum number of location keys in the queue
+     * @param parallelism
+     *            The number of workers that replicate at the same time
+     * @param bytesPerSecond
+     *            The number of bytes per second that are sent on average, 0 for no limit
+     */
+    public ReplicationScheduler(final int capacity, final int parallelism, final long bytesPerSecond) {
+        if (capacity <= 0 || parallelism <= 0 || bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Capacity and parallelism must be positive, bytes per second must "
+                    + "not be negative");
+        }
+        this.capacity = capacity;
+        this.parallelism = parallelism;
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = bytesPerSecond;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int parallelism() {
+        return parallelism;
+    }
+
+    public long bytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Starts the workers. Location keys can be queued before.
+     *
+     * @param replicator
+     *            The replicator that is called by the workers
+     */
+    public synchronized void init(final Replicator replicator) {
+        if (executor != null) {
+            throw new IllegalStateException("The scheduler is already running");
+        }
+        executor = Executors.newFixedThreadPool(parallelism, new DefaultThreadFactory(ConnectionBean.THREAD_NAME
+                + "replication - ", true));
+        for (int i = 0; i < parallelism; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    work(replicator);
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues a location key of a responsibility event.
+     *
+     * @param locationKey
+     *            The location key
+     * @param other
+     *            The peer that is responsible now, or null if this peer is responsible
+     * @return False if the queue is full and the location key has been dropped
+     */
+    public synchronized boolean dirty(final Number160 locationKey, final PeerAddress other) {
+        if (refresh.remove(locationKey) || dirty.containsKey(locationKey)) {
+            dirty.put(locationKey, other);
+        } else if (size() < capacity) {
+            dirty.put(locationKey, other);
+        } else if (!refresh.isEmpty()) {
+            // replace the oldest refresh
+            Iterator<Number160> iterator = refresh.iterator();
+            iterator.next();
+            iterator.remove();
+            dirty.put(locationKey, other);
+        } else {
+            dropped++;
+            LOG.debug("replication queue is full, dropped {}", locationKey);
+            return false;
+        }
+        notify();
+        return true;
+    }
+
+    /**
+     * Queues a location key of the periodic refresh.
+     *
+     * @param locationKey
+     *            The location key that this peer is responsible for
+     * @return False if the queue is full and the location key has been dropped
+     */
+    public synchronized boolean refresh(final Number160 locationKey) {
+        if (dirty.containsKey(locationKey) || refresh.contains(locationKey)) {
+            return true;
+        }
+        if (size() >= capacity) {
+            dropped++;
+            return false;
+        }
+        refresh.add(locationKey);
+        notify();
+        return true;
+    }
+
+    /**
+     * @return The number of location keys in the queue
+     */
+    public synchronized int size() {
+        return dirty.size() + refresh.size();
+    }
+
+    /**
+     * @return The number of location keys that have been dropped because the queue was full
+     */
+    public synchronized long dropped() {
+        return dropped;
+    }
+
+    /**
+     * Stops the workers, the location keys in the queue are discarded.
+     */
+    public void shutdown() {
+        final ExecutorService executor;
+        synchronized (this) {
+            shutdown = true;
+            dirty.clear();
+            refresh.clear();
+            notifyAll();
+            executor = this.executor;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void work(final Replicator replicator) {
+        try {
+            while (true) {
+                acquire();
+                final Map.Entry<Number160, PeerAddress> next;
+                final NavigableSet<Number160> batch = new TreeSet<Number160>();
+                synchronized (this) {
+                    while (!shutdown && dirty.isEmpty() && refresh.isEmpty()) {
+                        wait();
+                    }
+                    if (shutdown) {
+                        return;
+                    }
+                    if (!dirty.isEmpty()) {
+                        Iterator<Map.Entry<Number160, PeerAddress>> iterator = dirty.entrySet().iterator();
+                        next = iterator.next();
+                        iterator.remove();
+                    } else {
+                        next = null;
+                        Iterator<Number160> iterator = refresh.iterator();
+                        while (iterator.hasNext() && batch.size() < REFRESH_BATCH) {
+                            batch.add(iterator.next());
+                            iterator.remove();
+                        }
+                    }
+                }
+                try {
+                    consume(next != null ? replicator.replicate(next.getKey(), next.getValue()) : replicator
+                            .refresh(batch));
+                } catch (RuntimeException e) {
+                    LOG.error("replication failed", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until the bucket is not in debt. The bytes are taken after sending, as the size is not known before, so
+     * the bucket may go into debt by the size of one replication per worker.
+     */
+    private void acquire() throws InterruptedException {
+        if (bytesPerSecond == 0) {
+            return;
+        }
+        while (true) {
+            final long waitMillis;
+            synchronized (bucketLock) {
+                refill();
+                if (tokens >= 0) {
+                    return;
+                }
+                waitMillis = (long) Math.ceil(-tokens * 1000 / bytesPerSecond);
+            }
+            Thread.sleep(Math.max(1, waitMillis));
+        }
+    }
+
+    private void consume(final long bytes) {
+        if (bytesPerSecond == 0) {
+            return;
+        }
+        synchronized (bucketLock) {
+            refill();
+            tokens -= bytes;
+        }
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        tokens = Math.min(bytesPerSecond, tokens + (now - lastRefill) * bytesPerSecond / 1e9);
+        lastRefill = now;
+    }
+}
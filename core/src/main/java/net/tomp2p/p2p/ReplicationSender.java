@@ -1,6 +1,7 @@
 package net.tomp2p.p2p;
 
 import java.util.Map;
+import java.util.NavigableSet;
 
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number640;
@@ -8,5 +9,27 @@ import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.storage.Data;
 
 public interface ReplicationSender extends PeerInit {
+    /**
+     * Sends the data of a location key to an other peer.
+     * 
+     * @param other
+     *            The peer that should store the data
+     * @param locationKey
+     *            The location key
+     * @param dataMap
+     *            The data to store, which stays owned by the caller and may be released once this method returns. An
+     *            implementation that sends the data later takes its own duplicates.
+     */
     void sendDirect(final PeerAddress other, final Number160 locationKey, final Map<Number640, Data> dataMap);
+
+    /**
+     * Makes sure that an other peer stores the data of the location keys. This is called once per replica and round,
+     * so that an implementation can first find out which location keys differ, e.g., by comparing Merkle trees.
+     * 
+     * @param other
+     *            The peer that should store replicas
+     * @param locationKeys
+     *            The location keys that the other peer should store
+     */
+    void synchronize(final PeerAddress other, final NavigableSet<Number160> locationKeys);
 }
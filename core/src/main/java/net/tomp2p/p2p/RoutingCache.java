@@ -0,0 +1,266 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.p2p;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerStatusListener;
+import net.tomp2p.utils.Timings;
+
+/**
+ * A cache for the close peers that have been found by routing. The entries are keyed by the prefix of the location
+ * key, so a routing result is reused for all keys in the same neighborhood. The cached peers are sorted by their
+ * distance to the key that is looked up. An entry is used until it is older than the freshness window or until one of
+ * its peers fails, see {@link PeerMap#addPeerStatusListener(PeerStatusListener)}.
+ * <p>
+ * The prefix should be long enough that the keys with the same prefix have the same close peers, i.e. a few bits
+ * longer than the logarithm of the network size.
+ *
+ * @author Thomas Bocek
+ */
+public class RoutingCache implements PeerStatusListener {
+
+    /**
+     * The maximum number of close peers that are stored per entry.
+     */
+    public static final int MAX_PEERS = 20;
+
+    private final int prefixBits;
+
+    private final int freshnessMillis;
+
+    // least recently used first, guarded by itself
+    private final LinkedHashMap<Number160, CacheEntry> entries;
+
+    // the prefixes of the entries a peer is in, guarded by entries
+    private final Map<Number160, Set<Number160>> peerIndex = new HashMap<Number160, Set<Number160>>();
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long invalidations = 0;
+
+    /**
+     * @param prefixBits
+     *            The number of the most significant bits of the location key that are used as the key of this cache
+     * @param maxEntries
+     *            The maximum number of cached routing results
+     * @param freshnessMillis
+     *            The time a routing result is used
+     */
+    public RoutingCache(final int prefixBits, final int maxEntries, final int freshnessMillis) {
+        if (prefixBits < 0 || prefixBits > Number160.BITS) {
+            throw new IllegalArgumentException("The prefix must be between 0 and " + Number160.BITS + " bits");
+        }
+        this.prefixBits = prefixBits;
+        this.freshnessMillis = freshnessMillis;
+        this.entries = new LinkedHashMap<Number160, CacheEntry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 5437214905471963468L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Number160, CacheEntry> eldest) {
+                if (size() > maxEntries) {
+                    unindex(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param locationKey
+     *            The location key to route to
+     * @return The cached close peers sorted by their distance to the location key, or null if there is no fresh
+     *         routing result for this neighborhood
+     */
+    public List<PeerAddress> get(final Number160 locationKey) {
+        final Number160 prefix = prefix(locationKey);
+        final List<PeerAddress> peers;
+        synchronized (entries) {
+            final CacheEntry entry = entries.get(prefix);
+            if (entry == null || entry.createdMillis + freshnessMillis <= Timings.currentTimeMillis()) {
+                if (entry != null) {
+                    entries.remove(prefix);
+                    unindex(prefix, entry);
+                }
+                misses++;
+                return null;
+            }
+            hits++;
+            peers = new ArrayList<PeerAddress>(entry.peers);
+        }
+        Collections.sort(peers, PeerMap.createComparator(locationKey));
+        return peers;
+    }
+
+    /**
+     * Caches the result of a routing.
+     *
+     * @param locationKey
+     *            The location key that was routed to
+     * @param closePeers
+     *            The close peers that were found, e.g. {@link net.tomp2p.futures.FutureRouting#getPotentialHits()}
+     */
+    public void put(final Number160 locationKey, final Collection<PeerAddress> closePeers) {
+        final List<PeerAddress> peers = new ArrayList<PeerAddress>(closePeers);
+        Collections.sort(peers, PeerMap.createComparator(locationKey));
+        final CacheEntry entry = new CacheEntry(new ArrayList<PeerAddress>(peers.subList(0,
+                Math.min(MAX_PEERS, peers.size()))), Timings.currentTimeMillis());
+        final Number160 prefix = prefix(locationKey);
+        synchronized (entries) {
+            final CacheEntry old = entries.put(prefix, entry);
+            if (old != null) {
+                unindex(prefix, old);
+            }
+            for (PeerAddress peerAddress : entry.peers) {
+                Set<Number160> prefixes = peerIndex.get(peerAddress.getPeerId());
+                if (prefixes == null) {
+                    prefixes = new HashSet<Number160>();
+                    peerIndex.put(peerAddress.getPeerId(), prefixes);
+                }
+                prefixes.add(prefix);
+            }
+        }
+    }
+
+    /**
+     * Removes all routing results that contain a peer.
+     *
+     * @param peerAddress
+     *            The peer
+     * @return True if at least one routing result was removed
+     */
+    public boolean invalidate(final PeerAddress peerAddress) {
+        synchronized (entries) {
+            final Set<Number160> prefixes = peerIndex.remove(peerAddress.getPeerId());
+            if (prefixes == null) {
+                return false;
+            }
+            for (Number160 prefix : prefixes) {
+                final CacheEntry entry = entries.remove(prefix);
+                if (entry != null) {
+                    invalidations++;
+                    unindex(prefix, entry);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Removes all routing results.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            peerIndex.clear();
+        }
+    }
+
+    @Override
+    public boolean peerFailed(final PeerAddress remotePeer, final FailReason reason) {
+        return invalidate(remotePeer);
+    }
+
+    @Override
+    public boolean peerFound(final PeerAddress remotePeer, final PeerAddress referrer) {
+        return false;
+    }
+
+    /**
+     * @return The number of cached routing results, including results that are not fresh anymore
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return The number of lookups that returned a fresh routing result
+     */
+    public long hits() {
+        synchronized (entries) {
+            return hits;
+        }
+    }
+
+    /**
+     * @return The number of lookups that did not find a fresh routing result
+     */
+    public long misses() {
+        synchronized (entries) {
+            return misses;
+        }
+    }
+
+    /**
+     * @return The number of routing results that were removed since one of its peers failed
+     */
+    public long invalidations() {
+        synchronized (entries) {
+            return invalidations;
+        }
+    }
+
+    private Number160 prefix(final Number160 locationKey) {
+        final int[] val = locationKey.toIntArray();
+        for (int i = 0; i < val.length; i++) {
+            final int bits = prefixBits - (i * Integer.SIZE);
+            if (bits <= 0) {
+                val[i] = 0;
+            } else if (bits < Integer.SIZE) {
+                val[i] &= -1 << (Integer.SIZE - bits);
+            }
+        }
+        return new Number160(val);
+    }
+
+    private void unindex(final Number160 prefix, final CacheEntry entry) {
+        for (PeerAddress peerAddress : entry.peers) {
+            final Set<Number160> prefixes = peerIndex.get(peerAddress.getPeerId());
+            if (prefixes != null) {
+                prefixes.remove(prefix);
+                if (prefixes.isEmpty()) {
+                    peerIndex.remove(peerAddress.getPeerId());
+                }
+            }
+        }
+    }
+
+    private static final class CacheEntry {
+        private final List<PeerAddress> peers;
+        private final long createdMillis;
+
+        private CacheEntry(final List<PeerAddress> peers, final long createdMillis) {
+            this.peers = peers;
+            this.createdMillis = createdMillis;
+        }
+    }
+}
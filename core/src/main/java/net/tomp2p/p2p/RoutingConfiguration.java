@@ -28,6 +28,10 @@ public class RoutingConfiguration {
 
     final private boolean forceTCP;
 
+    final private boolean latencyAware;
+
+    final private int hedged;
+
     public RoutingConfiguration(int maxNoNewInfoDiff, int maxFailures, int parallel) {
         this(Integer.MAX_VALUE, maxNoNewInfoDiff, maxFailures, 20, parallel);
     }
@@ -60,15 +64,44 @@ public class RoutingConfiguration {
      */
     public RoutingConfiguration(final int maxDirectHits, final int maxNoNewInfoDiff, final int maxFailures,
             final int maxSuccess, final int parallel, final boolean forceTCP) {
-        if (maxDirectHits < 0 || maxNoNewInfoDiff < 0 || maxFailures < 0 || parallel < 0) {
+        this(maxDirectHits, maxNoNewInfoDiff, maxFailures, maxSuccess, parallel, forceTCP, false);
+    }
+
+    /**
+     * @param latencyAware
+     *            If true, the routing asks among peers that are equally close to the target the one with the lowest
+     *            measured round-trip time first
+     */
+    public RoutingConfiguration(final int maxDirectHits, final int maxNoNewInfoDiff, final int maxFailures,
+            final int maxSuccess, final int parallel, final boolean forceTCP, final boolean latencyAware) {
+        this(maxDirectHits, maxNoNewInfoDiff, maxFailures, maxSuccess, parallel, forceTCP, latencyAware, 0);
+    }
+
+    /**
+     * @param hedged
+     *            The number of hedged requests. If a request takes longer than the retransmission timeout calculated
+     *            from the round-trip times of its peer, the next peer is asked as well, without waiting for the slow
+     *            request. At most this number of hedged requests run in addition to the parallel requests, and need
+     *            to be reserved as well.
+     */
+    public RoutingConfiguration(final int maxDirectHits, final int maxNoNewInfoDiff, final int maxFailures,
+            final int maxSuccess, final int parallel, final boolean forceTCP, final boolean latencyAware,
+            final int hedged) {
+        if (maxDirectHits < 0 || maxNoNewInfoDiff < 0 || maxFailures < 0 || parallel < 0 || hedged < 0) {
             throw new IllegalArgumentException("need to be larger or equals zero");
         }
+        if (hedged > parallel) {
+            throw new IllegalArgumentException("hedged (" + hedged + ") must not be larger than parallel ("
+                    + parallel + ")");
+        }
         this.maxDirectHits = maxDirectHits;
         this.maxNoNewInfoDiff = maxNoNewInfoDiff;
         this.maxFailures = maxFailures;
         this.maxSuccess = maxSuccess;
         this.parallel = parallel;
         this.forceTCP = forceTCP;
+        this.latencyAware = latencyAware;
+        this.hedged = hedged;
     }
 
     public int getMaxDirectHits() {
@@ -108,4 +141,15 @@ public class RoutingConfiguration {
     public boolean isForceTCP() {
         return forceTCP;
     }
+
+    public boolean isLatencyAware() {
+        return latencyAware;
+    }
+
+    /**
+     * @return The maximum number of hedged requests in addition to the parallel requests
+     */
+    public int getHedged() {
+        return hedged;
+    }
 }
@@ -1,6 +1,7 @@
 package net.tomp2p.p2p;
 
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Random;
@@ -14,7 +15,10 @@ import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.futures.FutureRouting;
 import net.tomp2p.p2p.builder.RoutingBuilder;
+import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerStatatistic;
 import net.tomp2p.rpc.DigestInfo;
 import net.tomp2p.utils.Utils;
 
@@ -33,6 +37,9 @@ import org.slf4j.LoggerFactory;
 public class RoutingMechanism {
     
     private static final Logger LOG = LoggerFactory.getLogger(RoutingMechanism.class);
+
+    // the number of equally close peers that are compared by their latency
+    private static final int LATENCY_CANDIDATES = 8;
     
     private final AtomicReferenceArray<FutureResponse> futureResponses;
     private final FutureRouting futureRoutingResponse;
@@ -52,6 +59,13 @@ public class RoutingMechanism {
     private int maxSucess;
     private boolean stopCreatingNewFutures;
 
+    // set if the peer to ask next is chosen by latency among equally close peers
+    private PeerMap peerMap;
+    private Number160 locationKey;
+
+    // the number of slots at the end of the future responses for hedged requests
+    private int hedged = 0;
+
     /**
      * Creates the routing mechanism. Make sure to set the max* fields.
      * 
@@ -72,9 +86,27 @@ public class RoutingMechanism {
 
     /**
      * @return The number of parallel requests. The number is determined by the length of the future response array
+     *         without the slots for hedged requests
      */
     public int parallel() {
-        return futureResponses.length();
+        return futureResponses.length() - hedged;
+    }
+
+    /**
+     * @return The number of hedged requests, which use the slots after the parallel requests
+     */
+    public int hedged() {
+        return hedged;
+    }
+
+    /**
+     * @param hedged
+     *            The number of slots at the end of the future responses that are used for hedged requests
+     * @return This class
+     */
+    public RoutingMechanism hedged(final int hedged) {
+        this.hedged = hedged;
+        return this;
     }
 
     /**
@@ -104,6 +136,20 @@ public class RoutingMechanism {
         return futureResponses.getAndSet(i, futureResponse);
     }
 
+    /**
+     * Clears a position, so that the routing does not wait for the future response anymore and the position can be
+     * used again.
+     * 
+     * @param i
+     *            The number of the future response to clear
+     * @param futureResponse
+     *            The future response that is expected at position i
+     * @return True if position i held the future response and has been cleared
+     */
+    public boolean clearFutureResponse(final int i, final FutureResponse futureResponse) {
+        return futureResponses.compareAndSet(i, futureResponse, null);
+    }
+
     /**
      * @param queueToAsk
      *            The queue that contains the peers that will be queried in the future
@@ -211,12 +257,67 @@ public class RoutingMechanism {
         this.maxSucess = maxSucess;
     }
 
+    /**
+     * Chooses among peers that are equally close to the target the one with the lowest round-trip time, instead of the
+     * closest peer.
+     * 
+     * @param peerMap
+     *            The peer map with the statistics of the peers
+     * @param locationKey
+     *            The target of the routing
+     * @return This class
+     */
+    public RoutingMechanism latencyAware(final PeerMap peerMap, final Number160 locationKey) {
+        this.peerMap = peerMap;
+        this.locationKey = locationKey;
+        return this;
+    }
+
     public PeerAddress pollFirstInQueueToAsk() {
         synchronized (this) {
-            return queueToAsk.pollFirst();
+            if (peerMap == null) {
+                return queueToAsk.pollFirst();
+            }
+            return pollFastestInQueueToAsk();
         }
     }
 
+    /**
+     * Peers that share the same number of prefix bits with the target bring us equally close to it, as they are in
+     * the same bag of the other peers. Among the first of those peers in the queue, we take the one that we expect to
+     * reply the fastest. Peers without a measured round-trip time are only taken if no other peer is known, so
+     * between two unknown peers the closer one is taken.
+     */
+    private PeerAddress pollFastestInQueueToAsk() {
+        if (queueToAsk.isEmpty()) {
+            return null;
+        }
+        final Iterator<PeerAddress> iterator = queueToAsk.iterator();
+        final PeerAddress first = iterator.next();
+        final int bitLength = locationKey.xorBitLength(first.getPeerId());
+        PeerAddress fastest = first;
+        long fastestRTT = smoothedRTT(first);
+        for (int i = 1; i < LATENCY_CANDIDATES && iterator.hasNext(); i++) {
+            final PeerAddress next = iterator.next();
+            if (locationKey.xorBitLength(next.getPeerId()) != bitLength) {
+                // the queue is sorted by distance, all following peers are further away
+                break;
+            }
+            final long rtt = smoothedRTT(next);
+            if (rtt >= 0 && (fastestRTT < 0 || rtt < fastestRTT)) {
+                fastest = next;
+                fastestRTT = rtt;
+            }
+        }
+        queueToAsk.remove(fastest);
+        return fastest;
+    }
+
+    private long smoothedRTT(final PeerAddress peerAddress) {
+        final PeerStatatistic peerStatatistic = peerMap.peerStatatistic(peerAddress);
+        return peerStatatistic == null ? -1 : peerStatatistic.getSmoothedRTT();
+    }
+
     public PeerAddress pollRandomInQueueToAsk(Random rnd) {
         synchronized (this) {
             return Utils.pollRandom(queueToAsk(), rnd);
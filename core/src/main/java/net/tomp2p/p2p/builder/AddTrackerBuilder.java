@@ -193,7 +193,8 @@ public class AddTrackerBuilder extends TrackerBuilder<AddTrackerBuilder> {
     private class DefaultDirectReplication implements FutureCreator<FutureTracker> {
         @Override
         public FutureTracker create() {
-            int conn = Math.max(routingConfiguration.getParallel(), trackerConfiguration.getParallel());
+            int conn = Math.max(routingConfiguration.getParallel() + routingConfiguration.getHedged(),
+                    trackerConfiguration.getParallel());
             final FutureChannelCreator futureChannelCreator = peer.getConnectionBean().getConnectionReservation()
                     .reserve(conn);
             final FutureTracker futureTracker = peer.getDistributedTracker().addToTracker(locationKey, domainKey,
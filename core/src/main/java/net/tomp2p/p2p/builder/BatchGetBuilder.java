@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.p2p.builder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import net.tomp2p.futures.FutureBatch;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+/**
+ * Gets the data of many keys at once. The keys are grouped by the closest peer that is known in the local peer map
+ * and one request is sent to each of these peers, instead of routing to every location key. Keys that are not found
+ * on the closest known peer are fetched with a regular get, which routes to the location key.
+ * 
+ * @author Thomas Bocek
+ */
+public class BatchGetBuilder extends DHTBuilder<BatchGetBuilder> {
+
+    private final static FutureBatch<Data> FUTURE_SHUTDOWN = new FutureBatch<Data>(null, null)
+            .setFailed("batch get builder - peer is shutting down");
+
+    private Collection<Number640> keys;
+
+    private Collection<Number160> locationKeys;
+
+    private boolean routeMissing = true;
+
+    public BatchGetBuilder(Peer peer) {
+        super(peer, null);
+        self(this);
+    }
+
+    /**
+     * @return The full keys of the data to get
+     */
+    public Collection<Number640> keys() {
+        return keys;
+    }
+
+    /**
+     * @param keys
+     *            The full keys of the data to get
+     * @return This class
+     */
+    public BatchGetBuilder setKeys(Collection<Number640> keys) {
+        this.keys = keys;
+        return this;
+    }
+
+    /**
+     * @return The location keys, whose data is stored with the domain and version key of this builder and the content
+     *         key zero
+     */
+    public Collection<Number160> locationKeys() {
+        return locationKeys;
+    }
+
+    /**
+     * @param locationKeys
+     *            The location keys, whose data is stored with the domain and version key of this builder and the
+     *            content key zero
+     * @return This class
+     */
+    public BatchGetBuilder setLocationKeys(Collection<Number160> locationKeys) {
+        this.locationKeys = locationKeys;
+        return this;
+    }
+
+    /**
+     * @return True if keys that are not found on the closest known peer are fetched with a regular get
+     */
+    public boolean isRouteMissing() {
+        return routeMissing;
+    }
+
+    /**
+     * @param routeMissing
+     *            True if keys that are not found on the closest known peer are fetched with a regular get. This is
+     *            needed if the local peer map does not know the closest peer of each location key. Set to false if
+     *            most keys are expected to be missing.
+     * @return This class
+     */
+    public BatchGetBuilder setRouteMissing(boolean routeMissing) {
+        this.routeMissing = routeMissing;
+        return this;
+    }
+
+    public FutureBatch<Data> start() {
+        if (peer.isShutdown()) {
+            return FUTURE_SHUTDOWN;
+        }
+        if (keys == null && locationKeys == null) {
+            throw new IllegalArgumentException("You must either set the keys or the location keys.");
+        }
+        preBuild("batch-get-builder");
+        final Collection<Number640> allKeys = new ArrayList<Number640>();
+        if (keys != null) {
+            allKeys.addAll(keys);
+        }
+        if (locationKeys != null) {
+            for (Number160 locationKey : locationKeys) {
+                allKeys.add(new Number640(locationKey, domainKey, Number160.ZERO, versionKey));
+            }
+        }
+        return peer.getDistributedHashMap().batchGet(peer, this, allKeys);
+    }
+}
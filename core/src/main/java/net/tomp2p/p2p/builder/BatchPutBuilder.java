@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.p2p.builder;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.tomp2p.futures.FutureBatch;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+/**
+ * Stores the data of many keys at once. The keys are grouped by the closest peers that are known in the local peer
+ * map, as many as the minimum results of the {@link net.tomp2p.p2p.RequestP2PConfiguration}, and one request is sent to
+ * each of these peers, instead of routing to every location key. The local peer map should know the close peers of the
+ * location keys, e.g. in a small or well maintained network, otherwise the data is stored on peers that are not the
+ * closest and may not be found with a regular get.
+ * 
+ * @author Thomas Bocek
+ */
+public class BatchPutBuilder extends DHTBuilder<BatchPutBuilder> {
+
+    private final static FutureBatch<Byte> FUTURE_SHUTDOWN = new FutureBatch<Byte>(null, null)
+            .setFailed("batch put builder - peer is shutting down");
+
+    private Map<Number640, Data> dataMap;
+
+    private Map<Number160, Data> locationDataMap;
+
+    public BatchPutBuilder(Peer peer) {
+        super(peer, null);
+        self(this);
+    }
+
+    /**
+     * @return The data with the full keys
+     */
+    public Map<Number640, Data> getDataMap() {
+        return dataMap;
+    }
+
+    /**
+     * @param dataMap
+     *            The data with the full keys
+     * @return This class
+     */
+    public BatchPutBuilder setDataMap(Map<Number640, Data> dataMap) {
+        this.dataMap = dataMap;
+        return this;
+    }
+
+    /**
+     * @return The data with the location keys, which is stored with the domain and version key of this builder and the
+     *         content key zero
+     */
+    public Map<Number160, Data> getLocationDataMap() {
+        return locationDataMap;
+    }
+
+    /**
+     * @param locationDataMap
+     *            The data with the location keys, which is stored with the domain and version key of this builder and
+     *            the content key zero
+     * @return This class
+     */
+    public BatchPutBuilder setLocationDataMap(Map<Number160, Data> locationDataMap) {
+        this.locationDataMap = locationDataMap;
+        return this;
+    }
+
+    /**
+     * Adds data to the location data map.
+     * 
+     * @param locationKey
+     *            The location key of the data
+     * @param data
+     *            The data
+     * @return This class
+     */
+    public BatchPutBuilder setData(Number160 locationKey, Data data) {
+        if (locationDataMap == null) {
+            locationDataMap = new HashMap<Number160, Data>();
+        }
+        locationDataMap.put(locationKey, data);
+        return this;
+    }
+
+    public FutureBatch<Byte> start() {
+        if (peer.isShutdown()) {
+            return FUTURE_SHUTDOWN;
+        }
+        if (dataMap == null && locationDataMap == null) {
+            throw new IllegalArgumentException(
+                    "You must either set data via setDataMap() or setData(). Cannot add nothing.");
+        }
+        preBuild("batch-put-builder");
+        final Map<Number640, Data> allData = new HashMap<Number640, Data>();
+        if (dataMap != null) {
+            allData.putAll(dataMap);
+        }
+        if (locationDataMap != null) {
+            for (Map.Entry<Number160, Data> entry : locationDataMap.entrySet()) {
+                allData.put(new Number640(entry.getKey(), domainKey, Number160.ZERO, versionKey), entry.getValue());
+            }
+        }
+        return peer.getDistributedHashMap().batchPut(peer, this, allData);
+    }
+}
@@ -290,6 +290,8 @@ public abstract class DHTBuilder<K extends DHTBuilder<K>> extends DefaultConnect
         routingBuilder.setMaxDirectHits(routingConfiguration.getMaxDirectHits());
         routingBuilder.setMaxFailures(routingConfiguration.getMaxFailures());
         routingBuilder.setMaxSuccess(routingConfiguration.getMaxSuccess());
+        routingBuilder.setLatencyAware(routingConfiguration.isLatencyAware());
+        routingBuilder.setHedged(routingConfiguration.getHedged());
         return routingBuilder;
     }
 
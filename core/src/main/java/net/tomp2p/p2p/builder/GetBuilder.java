@@ -60,6 +60,8 @@ public class GetBuilder extends DHTBuilder<GetBuilder> implements SearchableBuil
     
     private boolean bloomFilterAnd = true;
 
+    private boolean revalidate = false;
+
     private int returnNr = -1;
 
     static {
@@ -198,6 +200,28 @@ public class GetBuilder extends DHTBuilder<GetBuilder> implements SearchableBuil
         this.bloomFilterAnd = true;
         return this;
     }
+
+    public boolean isRevalidate() {
+        return revalidate;
+    }
+
+    /**
+     * If the data is found in the client cache of the peer, a digest is sent to check if the version (basedOn) is
+     * still the same before the cached data is returned. Otherwise, the data is fetched again.
+     * 
+     * @param revalidate
+     *            True if cached data should be revalidated
+     * @return This class
+     */
+    public GetBuilder setRevalidate(boolean revalidate) {
+        this.revalidate = revalidate;
+        return this;
+    }
+
+    public GetBuilder setRevalidate() {
+        this.revalidate = true;
+        return this;
+    }
     
     public boolean isBloomFilterIntersect() {
         return !bloomFilterAnd;
@@ -243,7 +267,6 @@ public class GetBuilder extends DHTBuilder<GetBuilder> implements SearchableBuil
         if (peer.isShutdown()) {
             return FUTURE_SHUTDOWN;
         }
-        preBuild("get-builder");
 
         if (all) {
             contentKeys = null;
@@ -259,6 +282,12 @@ public class GetBuilder extends DHTBuilder<GetBuilder> implements SearchableBuil
         if (evaluationScheme == null) {
             evaluationScheme = new VotingSchemeDHT();
         }
+        // no connections are reserved if the data is cached
+        final FutureGet futureCached = peer.getDistributedHashMap().getCached(peer, this);
+        if (futureCached != null) {
+            return futureCached;
+        }
+        preBuild("get-builder");
         return peer.getDistributedHashMap().get(this);
     }
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.p2p.builder;
+
+import net.tomp2p.futures.FutureChunked;
+import net.tomp2p.p2p.ChunkedStorage;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.peers.Number160;
+
+/**
+ * Fetches a large value that has been stored in chunks, see {@link ChunkedStorage}. The chunks are fetched in
+ * parallel and verified against their hashes. With {@link #setStreaming()}, the value is handed to
+ * {@link FutureChunked#getInputStream()} instead of being assembled, so that only a few chunks are held in memory.
+ * 
+ * @author Thomas Bocek
+ */
+public class GetChunkedBuilder extends DHTBuilder<GetChunkedBuilder> {
+
+    private final static FutureChunked FUTURE_SHUTDOWN = new FutureChunked(null)
+            .setFailed("get chunked builder - peer is shutting down");
+
+    private Number160 contentKey = Number160.ZERO;
+
+    private int concurrency = ChunkedStorage.DEFAULT_CONCURRENCY;
+
+    public GetChunkedBuilder(Peer peer, Number160 locationKey) {
+        super(peer, locationKey);
+        self(this);
+    }
+
+    /**
+     * @return The content key of the manifest
+     */
+    public Number160 getContentKey() {
+        return contentKey;
+    }
+
+    /**
+     * @param contentKey
+     *            The content key of the manifest, default is zero
+     * @return This class
+     */
+    public GetChunkedBuilder setContentKey(Number160 contentKey) {
+        this.contentKey = contentKey;
+        return this;
+    }
+
+    /**
+     * @return The number of chunks that are fetched at the same time
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @param concurrency
+     *            The number of chunks that are fetched at the same time
+     * @return This class
+     */
+    public GetChunkedBuilder setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    public FutureChunked start() {
+        if (peer.isShutdown()) {
+            return FUTURE_SHUTDOWN;
+        }
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("The concurrency must be positive.");
+        }
+        return ChunkedStorage.get(peer, this);
+    }
+}
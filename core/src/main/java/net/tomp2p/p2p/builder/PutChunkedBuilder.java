@@ -0,0 +1,171 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.p2p.builder;
+
+import java.io.InputStream;
+
+import net.tomp2p.futures.FutureChunked;
+import net.tomp2p.p2p.ChunkedStorage;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.peers.Number160;
+
+/**
+ * Stores a large value in chunks, see {@link ChunkedStorage}. The domain key, the routing and request configuration
+ * and the key pair of this builder are used for the chunks and the manifest, the version key only for the manifest.
+ * The value is either an array or a stream, which is read chunk by chunk, so that only a few chunks are held in
+ * memory.
+ * 
+ * @author Thomas Bocek
+ */
+public class PutChunkedBuilder extends DHTBuilder<PutChunkedBuilder> {
+
+    private final static FutureChunked FUTURE_SHUTDOWN = new FutureChunked(null)
+            .setFailed("put chunked builder - peer is shutting down");
+
+    private byte[] value;
+
+    private InputStream inputStream;
+
+    private long length;
+
+    private Number160 contentKey = Number160.ZERO;
+
+    private int chunkSize = ChunkedStorage.DEFAULT_CHUNK_SIZE;
+
+    private int concurrency = ChunkedStorage.DEFAULT_CONCURRENCY;
+
+    public PutChunkedBuilder(Peer peer, Number160 locationKey) {
+        super(peer, locationKey);
+        self(this);
+    }
+
+    /**
+     * @return The value to store
+     */
+    public byte[] getValue() {
+        return value;
+    }
+
+    /**
+     * @param value
+     *            The value to store. The array is not copied and must not be modified until the put has finished.
+     * @return This class
+     */
+    public PutChunkedBuilder setValue(byte[] value) {
+        this.value = value;
+        this.inputStream = null;
+        return this;
+    }
+
+    /**
+     * @return The stream with the value to store
+     */
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    /**
+     * @return The number of bytes that are read from the stream
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @param inputStream
+     *            The stream with the value to store. The stream is read by the thread that completes the put of a
+     *            chunk and is not closed.
+     * @param length
+     *            The number of bytes that are read from the stream
+     * @return This class
+     */
+    public PutChunkedBuilder setValue(InputStream inputStream, long length) {
+        this.inputStream = inputStream;
+        this.length = length;
+        this.value = null;
+        return this;
+    }
+
+    /**
+     * @return The content key of the manifest
+     */
+    public Number160 getContentKey() {
+        return contentKey;
+    }
+
+    /**
+     * @param contentKey
+     *            The content key of the manifest, default is zero
+     * @return This class
+     */
+    public PutChunkedBuilder setContentKey(Number160 contentKey) {
+        this.contentKey = contentKey;
+        return this;
+    }
+
+    /**
+     * @return The size of the chunks
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @param chunkSize
+     *            The size of the chunks
+     * @return This class
+     */
+    public PutChunkedBuilder setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * @return The number of chunks that are stored at the same time
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @param concurrency
+     *            The number of chunks that are stored at the same time
+     * @return This class
+     */
+    public PutChunkedBuilder setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    public FutureChunked start() {
+        if (peer.isShutdown()) {
+            return FUTURE_SHUTDOWN;
+        }
+        if (value == null && inputStream == null) {
+            throw new IllegalArgumentException("You must set a value via setValue(). Cannot add nothing.");
+        }
+        if (chunkSize <= 0 || concurrency <= 0) {
+            throw new IllegalArgumentException("The chunk size and the concurrency must be positive.");
+        }
+        if (inputStream != null) {
+            if (length < 0) {
+                throw new IllegalArgumentException("The length of the stream must not be negative.");
+            }
+            return ChunkedStorage.put(peer, this, inputStream, length);
+        }
+        return ChunkedStorage.put(peer, this, value);
+    }
+}
@@ -28,6 +28,8 @@ public class RoutingBuilder extends DefaultConnectionConfiguration {
     private int maxFailures;
     private int maxSuccess;
     private int parallel;
+    private boolean isLatencyAware;
+    private int hedged;
     private boolean isBootstrap;
     private boolean isForceRoutingOnlyToSelf;
     private boolean isRoutingToOthers;
@@ -85,6 +87,22 @@ public class RoutingBuilder extends DefaultConnectionConfiguration {
         this.parallel = parallel;
     }
 
+    public boolean isLatencyAware() {
+        return isLatencyAware;
+    }
+
+    public void setLatencyAware(boolean isLatencyAware) {
+        this.isLatencyAware = isLatencyAware;
+    }
+
+    public int getHedged() {
+        return hedged;
+    }
+
+    public void setHedged(int hedged) {
+        this.hedged = hedged;
+    }
+
     
 
     public boolean isBootstrap() {
@@ -162,9 +180,11 @@ public class RoutingBuilder extends DefaultConnectionConfiguration {
     }
 
     public RoutingMechanism createRoutingMechanism(FutureRouting futureRouting) {
-        final FutureResponse[] futureResponses = new FutureResponse[getParallel()];
+        // the hedged requests take the slots after the parallel requests
+        final FutureResponse[] futureResponses = new FutureResponse[getParallel() + getHedged()];
         RoutingMechanism routingMechanism = new RoutingMechanism(
                 new AtomicReferenceArray<FutureResponse>(futureResponses), futureRouting);
+        routingMechanism.hedged(getHedged());
         routingMechanism.setMaxDirectHits(getMaxDirectHits());
         routingMechanism.setMaxFailures(getMaxFailures());
         routingMechanism.setMaxNoNewInfo(getMaxNoNewInfo());
@@ -122,7 +122,8 @@ public abstract class TrackerBuilder<K extends TrackerBuilder<K>> extends Defaul
             trackerConfiguration = new TrackerConfiguration(Math.min(size, 3), 5, 3, 30);
         }
         if (futureChannelCreator == null) {
-            int conn = Math.max(routingConfiguration.getParallel(), trackerConfiguration.getParallel());
+            int conn = Math.max(routingConfiguration.getParallel() + routingConfiguration.getHedged(),
+                    trackerConfiguration.getParallel());
             futureChannelCreator = peer.getConnectionBean().reservation().create(conn, 0);
         }
     }
@@ -136,6 +137,8 @@ public abstract class TrackerBuilder<K extends TrackerBuilder<K>> extends Defaul
         routingBuilder.setMaxDirectHits(routingConfiguration.getMaxDirectHits());
         routingBuilder.setMaxFailures(routingConfiguration.getMaxFailures());
         routingBuilder.setMaxSuccess(routingConfiguration.getMaxSuccess());
+        routingBuilder.setLatencyAware(routingConfiguration.isLatencyAware());
+        routingBuilder.setHedged(routingConfiguration.getHedged());
         return routingBuilder;
     }
 
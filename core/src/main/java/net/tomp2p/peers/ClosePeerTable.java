@@ -0,0 +1,308 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.peers;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * A flat table of the candidates for the close peers to a key. The XOR distance of each candidate is calculated once
+ * and stored as five integers in one primitive array, so sorting compares integers and does not create a
+ * {@link Number160} for every comparison as the XOR comparator does. Only the first k candidates are sorted if only
+ * the k closest peers are needed. This class is not thread-safe and is used for one lookup only.
+ *
+ * @author Thomas Bocek
+ */
+final class ClosePeerTable {
+
+    private static final int INTS = Number160.BITS / Integer.SIZE;
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    // below this size, insertion sort is faster than partitioning
+    private static final int INSERTION_SORT_THRESHOLD = 8;
+
+    private final int[] key;
+
+    private PeerAddress[] peers = new PeerAddress[INITIAL_CAPACITY];
+
+    // the distances of the peers to the key, peer i is stored at [i * INTS, (i + 1) * INTS)
+    private int[] distances = new int[INITIAL_CAPACITY * INTS];
+
+    private int size = 0;
+
+    /**
+     * @param key
+     *            The key to which the distances are calculated
+     */
+    ClosePeerTable(final Number160 key) {
+        this.key = key.toIntArray();
+    }
+
+    /**
+     * Adds all the peers of a bag to this table.
+     *
+     * @param atLeast
+     *            The number of peers we want at least
+     * @param bag
+     *            The bag where to take the peers from
+     * @return True if the table contains at least the desired number of peers
+     */
+    boolean addAll(final int atLeast, final Map<Number160, PeerStatatistic> bag) {
+        synchronized (bag) {
+            for (final PeerStatatistic peerStatatistic : bag.values()) {
+                add(peerStatatistic.getPeerAddress());
+            }
+        }
+        return size >= atLeast;
+    }
+
+    /**
+     * Adds a peer to this table.
+     *
+     * @param peerAddress
+     *            The peer to add
+     */
+    void add(final PeerAddress peerAddress) {
+        if (size == peers.length) {
+            final PeerAddress[] tmpPeers = new PeerAddress[size * 2];
+            System.arraycopy(peers, 0, tmpPeers, 0, size);
+            peers = tmpPeers;
+            final int[] tmpDistances = new int[size * 2 * INTS];
+            System.arraycopy(distances, 0, tmpDistances, 0, size * INTS);
+            distances = tmpDistances;
+        }
+        final Number160 peerId = peerAddress.getPeerId();
+        final int offset = size * INTS;
+        for (int i = 0; i < INTS; i++) {
+            distances[offset + i] = key[i] ^ peerId.intAt(i);
+        }
+        peers[size++] = peerAddress;
+    }
+
+    /**
+     * @return The number of peers in this table
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Sorts all peers and returns them in a new set with the XOR comparator. The set is built from the sorted peers in
+     * linear time.
+     *
+     * @param comparator
+     *            The XOR comparator of the key, which is used by the set for further insertions
+     * @return A sorted set with close peers first in this set
+     */
+    NavigableSet<PeerAddress> sortedSet(final Comparator<PeerAddress> comparator) {
+        partialSort(0, size, size);
+        return new TreeSet<PeerAddress>(new SortedView(comparator));
+    }
+
+    /**
+     * Selects the closest peers without sorting the others.
+     *
+     * @param k
+     *            The number of peers to return
+     * @return The k closest peers, the closest first. The list is smaller if this table contains fewer peers
+     */
+    List<PeerAddress> closest(final int k) {
+        final int n = Math.min(k, size);
+        partialSort(0, size, n);
+        final List<PeerAddress> closest = new ArrayList<PeerAddress>(n);
+        for (int i = 0; i < n; i++) {
+            closest.add(peers[i]);
+        }
+        return closest;
+    }
+
+    /**
+     * Quicksort that does not sort the partitions that start at or after position k. Afterwards, the first k peers
+     * are the closest, in order.
+     *
+     * @param from
+     *            The first position, inclusive
+     * @param to
+     *            The last position, exclusive
+     * @param k
+     *            The number of peers that have to be in order
+     */
+    private void partialSort(final int from, final int to, final int k) {
+        int hi = to;
+        while (hi - from > INSERTION_SORT_THRESHOLD) {
+            final int pivot = partition(from, hi);
+            if (pivot + 1 < k) {
+                partialSort(pivot + 1, hi, k);
+            }
+            hi = pivot;
+        }
+        for (int i = from + 1; i < hi; i++) {
+            for (int j = i; j > from && compare(j, j - 1) < 0; j--) {
+                swap(j, j - 1);
+            }
+        }
+    }
+
+    /**
+     * Partitions the peers around the median of the first, the middle and the last peer.
+     *
+     * @return The position of the pivot, all closer peers are before and all farther peers are after it
+     */
+    private int partition(final int from, final int to) {
+        final int last = to - 1;
+        final int mid = (from + last) >>> 1;
+        if (compare(mid, from) < 0) {
+            swap(mid, from);
+        }
+        if (compare(last, from) < 0) {
+            swap(last, from);
+        }
+        // the smallest is at from, the median is the smaller of mid and last
+        if (compare(mid, last) < 0) {
+            swap(mid, last);
+        }
+        int store = from;
+        for (int i = from; i < last; i++) {
+            if (compare(i, last) < 0) {
+                swap(i, store++);
+            }
+        }
+        swap(store, last);
+        return store;
+    }
+
+    /**
+     * Compares the distances of two peers as unsigned 160 bit numbers.
+     */
+    private int compare(final int peer1, final int peer2) {
+        final int offset1 = peer1 * INTS;
+        final int offset2 = peer2 * INTS;
+        for (int i = 0; i < INTS; i++) {
+            final int d1 = distances[offset1 + i];
+            final int d2 = distances[offset2 + i];
+            if (d1 != d2) {
+                return (d1 ^ Integer.MIN_VALUE) < (d2 ^ Integer.MIN_VALUE) ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    private void swap(final int peer1, final int peer2) {
+        if (peer1 == peer2) {
+            return;
+        }
+        final PeerAddress tmpPeer = peers[peer1];
+        peers[peer1] = peers[peer2];
+        peers[peer2] = tmpPeer;
+        final int offset1 = peer1 * INTS;
+        final int offset2 = peer2 * INTS;
+        for (int i = 0; i < INTS; i++) {
+            final int tmp = distances[offset1 + i];
+            distances[offset1 + i] = distances[offset2 + i];
+            distances[offset2 + i] = tmp;
+        }
+    }
+
+    /**
+     * A read-only view of the sorted peers. {@link TreeSet} builds its tree in linear time without comparing if it is
+     * created from a sorted set with the same comparator. As with {@link Collections#unmodifiableSortedSet(SortedSet)},
+     * modifications throw an {@link UnsupportedOperationException}, and the range views are unmodifiable copies.
+     */
+    private final class SortedView extends AbstractSet<PeerAddress> implements SortedSet<PeerAddress> {
+
+        private final Comparator<PeerAddress> comparator;
+
+        private SortedView(final Comparator<PeerAddress> comparator) {
+            this.comparator = comparator;
+        }
+
+        @Override
+        public Comparator<? super PeerAddress> comparator() {
+            return comparator;
+        }
+
+        @Override
+        public Iterator<PeerAddress> iterator() {
+            return new Iterator<PeerAddress>() {
+                private int index = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return index < size;
+                }
+
+                @Override
+                public PeerAddress next() {
+                    if (index >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    return peers[index++];
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public PeerAddress first() {
+            if (size == 0) {
+                throw new NoSuchElementException();
+            }
+            return peers[0];
+        }
+
+        @Override
+        public PeerAddress last() {
+            if (size == 0) {
+                throw new NoSuchElementException();
+            }
+            return peers[size - 1];
+        }
+
+        @Override
+        public SortedSet<PeerAddress> subSet(final PeerAddress fromElement, final PeerAddress toElement) {
+            return Collections.unmodifiableSortedSet(new TreeSet<PeerAddress>(this).subSet(fromElement, toElement));
+        }
+
+        @Override
+        public SortedSet<PeerAddress> headSet(final PeerAddress toElement) {
+            return Collections.unmodifiableSortedSet(new TreeSet<PeerAddress>(this).headSet(toElement));
+        }
+
+        @Override
+        public SortedSet<PeerAddress> tailSet(final PeerAddress fromElement) {
+            return Collections.unmodifiableSortedSet(new TreeSet<PeerAddress>(this).tailSet(fromElement));
+        }
+    }
+}
@@ -21,12 +21,15 @@ import net.tomp2p.utils.Utils;
 
 /**
  * This class represents a 160 bit number. This class is preferred over BigInteger as we always have 160bit, and thus,
- * methods can be optimized.
+ * methods can be optimized. The number is stored in five int fields instead of an array, so a number is a single
+ * object and comparisons read the fields directly. The XOR distance can be compared and measured without creating a
+ * new number, see {@link #compareDistance(Number160, Number160)} and {@link #xorBitLength(Number160)}.
  * 
  * @author Thomas Bocek
  */
 public final class Number160 extends Number implements Comparable<Number160> {
-    private static final long serialVersionUID = -6386562272459272306L;
+    // changed with the fields, the int array is not stored anymore
+    private static final long serialVersionUID = -3213409006407093853L;
 
     // This key has *always* 160 bit. Do not change.
     public static final int BITS = 160;
@@ -53,8 +56,12 @@ public final class Number160 extends Number implements Comparable<Number160> {
 
     public static final int CHARS_PER_INT = 8;
 
-    // backing integer array
-    private final int[] val;
+    // the backing integers, val0 is the most significant
+    private final int val0;
+    private final int val1;
+    private final int val2;
+    private final int val3;
+    private final int val4;
 
     // constants
     public static final Number160 ZERO = new Number160(0);
@@ -65,7 +72,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
      * Create a Key with value 0.
      */
     public Number160() {
-        this.val = new int[INT_ARRAY_SIZE];
+        this(0, 0, 0, 0, 0);
     }
 
     /**
@@ -80,11 +87,36 @@ public final class Number160 extends Number implements Comparable<Number160> {
             throw new IllegalArgumentException("Can only deal with arrays of smaller or equal "
                     + INT_ARRAY_SIZE + ". Your array has " + val.length);
         }
-        this.val = new int[INT_ARRAY_SIZE];
-        final int len = val.length;
-        for (int i = len - 1, j = INT_ARRAY_SIZE - 1; i >= 0; i--, j--) {
-            this.val[j] = val[i];
-        }
+        // the array is aligned to the least significant integer
+        final int shift = INT_ARRAY_SIZE - val.length;
+        this.val0 = intAt(val, 0 - shift);
+        this.val1 = intAt(val, 1 - shift);
+        this.val2 = intAt(val, 2 - shift);
+        this.val3 = intAt(val, 3 - shift);
+        this.val4 = intAt(val, 4 - shift);
+    }
+
+    /**
+     * Create an instance with five integers, the most significant first. Same as {@link #Number160(int...)} with an
+     * array of size 5, but without creating the array.
+     * 
+     * @param val0
+     *            The most significant integer
+     * @param val1
+     *            The second integer
+     * @param val2
+     *            The third integer
+     * @param val3
+     *            The fourth integer
+     * @param val4
+     *            The least significant integer
+     */
+    public Number160(final int val0, final int val1, final int val2, final int val3, final int val4) {
+        this.val0 = val0;
+        this.val1 = val1;
+        this.val2 = val2;
+        this.val3 = val3;
+        this.val4 = val4;
     }
 
     /**
@@ -95,31 +127,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
      *            The characters allowed are [0-9a-f], which is in hexadecimal
      */
     public Number160(final String val) {
-        if (val.length() > STRING_LENGTH) {
-            throw new IllegalArgumentException(
-                    "Can only deal with strings of size smaller or equal than 42. Your string has "
-                            + val.length());
-        }
-        if (val.indexOf("0x") != 0) {
-            throw new IllegalArgumentException(val
-                    + " is not in hexadecimal form. Decimal form is not supported yet");
-        }
-        this.val = new int[INT_ARRAY_SIZE];
-        final char[] tmp = val.toCharArray();
-        final int len = tmp.length;
-        for (int i = STRING_LENGTH - len, j = 2; i < (STRING_LENGTH - 2); i++, j++) {
-            // CHECKSTYLE:OFF
-            this.val[i >> 3] <<= 4;
-
-            int digit = Character.digit(tmp[j], 16);
-            if (digit < 0) {
-                throw new RuntimeException("Not a hexadecimal number \"" + tmp[j]
-                        + "\". The range is [0-9a-f]");
-            }
-            // += or |= does not matter here
-            this.val[i >> 3] += digit & CHAR_MASK;
-            // CHECKSTYLE:ON
-        }
+        this(parse(val));
     }
 
     /**
@@ -129,8 +137,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
      *            integer value
      */
     public Number160(final int val) {
-        this.val = new int[INT_ARRAY_SIZE];
-        this.val[INT_ARRAY_SIZE - 1] = val;
+        this(0, 0, 0, 0, val);
     }
 
     /**
@@ -140,9 +147,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
      *            long value
      */
     public Number160(final long val) {
-        this.val = new int[INT_ARRAY_SIZE];
-        this.val[INT_ARRAY_SIZE - 1] = (int) val;
-        this.val[INT_ARRAY_SIZE - 2] = (int) (val >> Integer.SIZE);
+        this(0, 0, 0, (int) (val >> Integer.SIZE), (int) val);
     }
 
     /**
@@ -171,13 +176,11 @@ public final class Number160 extends Number implements Comparable<Number160> {
                     "Can only deal with byte arrays of size smaller or equal than 20. Your array has "
                             + length);
         }
-        this.val = new int[INT_ARRAY_SIZE];
-        for (int i = length + offset - 1, j = BYTE_ARRAY_SIZE - 1, k = 0; i >= offset; i--, j--, k++) {
-            // += or |= does not matter here
-            // CHECKSTYLE:OFF
-            this.val[j >> 2] |= (val[i] & BYTE_MASK) << ((k % 4) << 3);
-            // CHECKSTYLE:ON
-        }
+        this.val0 = intAt(val, offset, length, 0);
+        this.val1 = intAt(val, offset, length, 1);
+        this.val2 = intAt(val, offset, length, 2);
+        this.val3 = intAt(val, offset, length, 3);
+        this.val4 = intAt(val, offset, length, 4);
     }
 
     /**
@@ -188,10 +191,11 @@ public final class Number160 extends Number implements Comparable<Number160> {
      *            can be set to make the random values repeatable.
      */
     public Number160(final Random random) {
-        this.val = new int[INT_ARRAY_SIZE];
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            this.val[i] = random.nextInt();
-        }
+        this.val0 = random.nextInt();
+        this.val1 = random.nextInt();
+        this.val2 = random.nextInt();
+        this.val3 = random.nextInt();
+        this.val4 = random.nextInt();
     }
 
     /**
@@ -203,26 +207,21 @@ public final class Number160 extends Number implements Comparable<Number160> {
      *            The rest will be filled with this number
      */
     public Number160(final long timestamp, Number160 number96) {
-        this.val = new int[INT_ARRAY_SIZE];
-        this.val[0] = (int) timestamp;
-        this.val[1] = (int) (timestamp >> Integer.SIZE);
-        this.val[2] = number96.val[2];
-        this.val[3] = number96.val[3];
-        this.val[4] = number96.val[4];
+        this((int) timestamp, (int) (timestamp >> Integer.SIZE), number96.val2, number96.val3, number96.val4);
     }
 
     /**
      * @return The first (most significant 64bits)
      */
     public long timestamp() {
-        return ((this.val[0] & LONG_MASK) << Integer.SIZE) + (this.val[2] & LONG_MASK);
+        return ((this.val0 & LONG_MASK) << Integer.SIZE) + (this.val2 & LONG_MASK);
     }
-    
+
     /**
      * @return The lower 96 bits of the 160 bit number
      */
     public Number160 number96() {
-        return new Number160(0, 0, this.val[2], this.val[3], this.val[4]);
+        return new Number160(0, 0, this.val2, this.val3, this.val4);
     }
 
     /**
@@ -233,11 +232,60 @@ public final class Number160 extends Number implements Comparable<Number160> {
      * @return A new key with the resurt of the xor operation
      */
     public Number160 xor(final Number160 key) {
-        final int[] result = new int[INT_ARRAY_SIZE];
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            result[i] = this.val[i] ^ key.val[i];
+        return new Number160(this.val0 ^ key.val0, this.val1 ^ key.val1, this.val2 ^ key.val2,
+                this.val3 ^ key.val3, this.val4 ^ key.val4);
+    }
+
+    /**
+     * Compares the XOR distances of two numbers to this number, which is the same as
+     * <code>xor(id1).compareTo(xor(id2))</code>, but without creating the two distances.
+     * 
+     * @param id1
+     *            The first number
+     * @param id2
+     *            The second number
+     * @return -1 if the first number is closer to this number, 1 if the second number is closer, 0 if both are equal
+     */
+    public int compareDistance(final Number160 id1, final Number160 id2) {
+        int d1 = this.val0 ^ id1.val0;
+        int d2 = this.val0 ^ id2.val0;
+        if (d1 != d2) {
+            return compareUnsigned(d1, d2);
         }
-        return new Number160(result);
+        d1 = this.val1 ^ id1.val1;
+        d2 = this.val1 ^ id2.val1;
+        if (d1 != d2) {
+            return compareUnsigned(d1, d2);
+        }
+        d1 = this.val2 ^ id1.val2;
+        d2 = this.val2 ^ id2.val2;
+        if (d1 != d2) {
+            return compareUnsigned(d1, d2);
+        }
+        d1 = this.val3 ^ id1.val3;
+        d2 = this.val3 ^ id2.val3;
+        if (d1 != d2) {
+            return compareUnsigned(d1, d2);
+        }
+        d1 = this.val4 ^ id1.val4;
+        d2 = this.val4 ^ id2.val4;
+        if (d1 != d2) {
+            return compareUnsigned(d1, d2);
+        }
+        return 0;
+    }
+
+    /**
+     * Calculates the number of bits used by the XOR distance to the other number, which is the same as
+     * <code>xor(key).bitLength()</code>, but without creating the distance.
+     * 
+     * @param key
+     *            The other number
+     * @return The bits used by the distance, 0 if both numbers are equal
+     */
+    public int xorBitLength(final Number160 key) {
+        return bitLength(this.val0 ^ key.val0, this.val1 ^ key.val1, this.val2 ^ key.val2, this.val3 ^ key.val3,
+                this.val4 ^ key.val4);
     }
 
     /**
@@ -246,11 +294,31 @@ public final class Number160 extends Number implements Comparable<Number160> {
      * @return a copy of the backing array
      */
     public int[] toIntArray() {
-        final int[] retVal = new int[INT_ARRAY_SIZE];
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            retVal[i] = this.val[i];
+        return new int[] { val0, val1, val2, val3, val4 };
+    }
+
+    /**
+     * Returns an integer of the backing array without copying it.
+     * 
+     * @param index
+     *            The position in the backing array, 0 is the most significant integer
+     * @return The integer at this position
+     */
+    int intAt(final int index) {
+        switch (index) {
+        case 0:
+            return val0;
+        case 1:
+            return val1;
+        case 2:
+            return val2;
+        case 3:
+            return val3;
+        case 4:
+            return val4;
+        default:
+            throw new IndexOutOfBoundsException("index " + index);
         }
-        return retVal;
     }
 
     /**
@@ -269,11 +337,12 @@ public final class Number160 extends Number implements Comparable<Number160> {
         for (int i = 0; i < INT_ARRAY_SIZE; i++) {
             // multiply by four
             final int idx = offset + (i << 2);
+            final int val = intAt(i);
             // CHECKSTYLE:OFF
-            me[idx + 0] = (byte) (val[i] >> 24);
-            me[idx + 1] = (byte) (val[i] >> 16);
-            me[idx + 2] = (byte) (val[i] >> 8);
-            me[idx + 3] = (byte) (val[i]);
+            me[idx + 0] = (byte) (val >> 24);
+            me[idx + 1] = (byte) (val >> 16);
+            me[idx + 2] = (byte) (val >> 8);
+            me[idx + 3] = (byte) (val);
             // CHECKSTYLE:ON
         }
         return offset + BYTE_ARRAY_SIZE;
@@ -301,8 +370,9 @@ public final class Number160 extends Number implements Comparable<Number160> {
         boolean removeZero = removeLeadingZero;
         final StringBuilder sb = new StringBuilder("0x");
         for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            toHex(val[i], removeZero, sb);
-            if (removeZero && val[i] != 0) {
+            final int val = intAt(i);
+            toHex(val, removeZero, sb);
+            if (removeZero && val != 0) {
                 removeZero = false;
             }
         }
@@ -315,12 +385,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
      * @return True if this number is zero, false otherwise
      */
     public boolean isZero() {
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            if (this.val[i] != 0) {
-                return false;
-            }
-        }
-        return true;
+        return (val0 | val1 | val2 | val3 | val4) == 0;
     }
 
     /**
@@ -329,15 +394,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
      * @return The bits used
      */
     public int bitLength() {
-        int bits = 0;
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            if (this.val[i] != 0) {
-                bits += Integer.SIZE - Integer.numberOfLeadingZeros(this.val[i]);
-                bits += Integer.SIZE * (INT_ARRAY_SIZE - ++i);
-                break;
-            }
-        }
-        return bits;
+        return bitLength(val0, val1, val2, val3, val4);
     }
 
     @Override
@@ -350,7 +407,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
         double d = 0;
         for (int i = 0; i < INT_ARRAY_SIZE; i++) {
             d *= LONG_MASK + 1;
-            d += this.val[i] & LONG_MASK;
+            d += intAt(i) & LONG_MASK;
         }
         return d;
     }
@@ -362,7 +419,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
 
     @Override
     public int intValue() {
-        return this.val[INT_ARRAY_SIZE - 1];
+        return this.val4;
     }
 
     /**
@@ -373,25 +430,30 @@ public final class Number160 extends Number implements Comparable<Number160> {
      * @return the long of the unsigned int
      */
     long unsignedInt(final int pos) {
-        return this.val[pos] & LONG_MASK;
+        return intAt(pos) & LONG_MASK;
     }
 
     @Override
     public long longValue() {
-        return ((this.val[INT_ARRAY_SIZE - 1] & LONG_MASK) << Integer.SIZE)
-                + (this.val[INT_ARRAY_SIZE - 2] & LONG_MASK);
+        return ((this.val4 & LONG_MASK) << Integer.SIZE) + (this.val3 & LONG_MASK);
     }
 
     @Override
     public int compareTo(final Number160 o) {
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            long b1 = val[i] & LONG_MASK;
-            long b2 = o.val[i] & LONG_MASK;
-            if (b1 < b2) {
-                return -1;
-            } else if (b1 > b2) {
-                return 1;
-            }
+        if (val0 != o.val0) {
+            return compareUnsigned(val0, o.val0);
+        }
+        if (val1 != o.val1) {
+            return compareUnsigned(val1, o.val1);
+        }
+        if (val2 != o.val2) {
+            return compareUnsigned(val2, o.val2);
+        }
+        if (val3 != o.val3) {
+            return compareUnsigned(val3, o.val3);
+        }
+        if (val4 != o.val4) {
+            return compareUnsigned(val4, o.val4);
         }
         return 0;
     }
@@ -405,23 +467,120 @@ public final class Number160 extends Number implements Comparable<Number160> {
             return true;
         }
         final Number160 key = (Number160) obj;
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            if (key.val[i] != val[i]) {
-                return false;
-            }
-        }
-        return true;
+        return key.val0 == val0 && key.val1 == val1 && key.val2 == val2 && key.val3 == val3 && key.val4 == val4;
     }
 
     @Override
     public int hashCode() {
-        int hashCode = 0;
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
+        // same as 31 * hashCode + val for each integer, starting with 0
+        int hashCode = val0;
+        hashCode = 31 * hashCode + val1;
+        hashCode = 31 * hashCode + val2;
+        hashCode = 31 * hashCode + val3;
+        return 31 * hashCode + val4;
+    }
+
+    /**
+     * Compares two integers as unsigned numbers. Flipping the sign bit maps the unsigned order to the signed order.
+     * 
+     * @param b1
+     *            The first integer
+     * @param b2
+     *            The second integer, which must be different from the first
+     * @return -1 if the first integer is smaller, 1 otherwise
+     */
+    private static int compareUnsigned(final int b1, final int b2) {
+        return (b1 ^ Integer.MIN_VALUE) < (b2 ^ Integer.MIN_VALUE) ? -1 : 1;
+    }
+
+    /**
+     * @return The number of bits used by the five integers, most significant first
+     */
+    private static int bitLength(final int val0, final int val1, final int val2, final int val3, final int val4) {
+        if (val0 != 0) {
+            return (Integer.SIZE * 5) - Integer.numberOfLeadingZeros(val0);
+        }
+        if (val1 != 0) {
+            return (Integer.SIZE * 4) - Integer.numberOfLeadingZeros(val1);
+        }
+        if (val2 != 0) {
+            return (Integer.SIZE * 3) - Integer.numberOfLeadingZeros(val2);
+        }
+        if (val3 != 0) {
+            return (Integer.SIZE * 2) - Integer.numberOfLeadingZeros(val3);
+        }
+        return Integer.SIZE - Integer.numberOfLeadingZeros(val4);
+    }
+
+    /**
+     * @return The integer at the position of the array, or 0 if the position is before the start of the array
+     */
+    private static int intAt(final int[] val, final int index) {
+        return index < 0 ? 0 : val[index];
+    }
+
+    /**
+     * Reads an integer of a big-endian number that is aligned to the end of the byte array. Missing leading bytes are
+     * 0.
+     * 
+     * @param val
+     *            The byte array
+     * @param offset
+     *            The offset of the number in the byte array
+     * @param length
+     *            The length of the number in the byte array
+     * @param index
+     *            The position of the integer, 0 is the most significant
+     * @return The integer
+     */
+    private static int intAt(final byte[] val, final int offset, final int length, final int index) {
+        final int start = offset + length - BYTE_ARRAY_SIZE + (index << 2);
+        int result = 0;
+        for (int i = start; i < start + 4; i++) {
             // CHECKSTYLE:OFF
-            hashCode = (int) (31 * hashCode + (val[i] & LONG_MASK));
+            result <<= 8;
+            if (i >= offset) {
+                result |= val[i] & BYTE_MASK;
+            }
+            // CHECKSTYLE:ON
+        }
+        return result;
+    }
+
+    /**
+     * Parses a hexadecimal string that starts with 0x.
+     * 
+     * @param val
+     *            The characters allowed are [0-9a-f], which is in hexadecimal
+     * @return The five integers of the number
+     */
+    private static int[] parse(final String val) {
+        if (val.length() > STRING_LENGTH) {
+            throw new IllegalArgumentException(
+                    "Can only deal with strings of size smaller or equal than 42. Your string has "
+                            + val.length());
+        }
+        if (val.indexOf("0x") != 0) {
+            throw new IllegalArgumentException(val
+                    + " is not in hexadecimal form. Decimal form is not supported yet");
+        }
+        final int[] result = new int[INT_ARRAY_SIZE];
+        final char[] tmp = val.toCharArray();
+        final int len = tmp.length;
+        for (int i = STRING_LENGTH - len, j = 2; i < (STRING_LENGTH - 2); i++, j++) {
+            // CHECKSTYLE:OFF
+            result[i >> 3] <<= 4;
+
+            int digit = Character.digit(tmp[j], 16);
+            if (digit < 0) {
+                throw new RuntimeException("Not a hexadecimal number \"" + tmp[j]
+                        + "\". The range is [0-9a-f]");
+            }
+            // += or |= does not matter here
+            result[i >> 3] += digit & CHAR_MASK;
             // CHECKSTYLE:ON
         }
-        return hashCode;
+        return result;
     }
 
     /**
@@ -144,7 +144,7 @@ public final class PeerAddress implements Comparable<PeerAddress>, Serializable
         // second: five bits indicate if IPv6 or IPv4 -> in total we can save 5 addresses
         this.relaySize = (relays >>> TYPE_BIT_SIZE) & MASK_7;
         final byte b = (byte) (relays & MASK_1F);
-        this.relayType = Utils.createBitSet(b);
+        this.relayType = b == 0 ? EMPTY_RELAY_TYPE : Utils.createBitSet(b);
         // now comes the ID
         final byte[] tmp = new byte[Number160.BYTE_ARRAY_SIZE];
         System.arraycopy(me, offset, tmp, 0, Number160.BYTE_ARRAY_SIZE);
@@ -196,11 +196,9 @@ public final class PeerAddress implements Comparable<PeerAddress>, Serializable
         // second: five bits indicate if IPv6 or IPv4 -> in total we can save 5 addresses
         this.relaySize = (relays >>> TYPE_BIT_SIZE) & MASK_7;
         final byte b = (byte) (relays & MASK_1F);
-        this.relayType = Utils.createBitSet(b);
+        this.relayType = b == 0 ? EMPTY_RELAY_TYPE : Utils.createBitSet(b);
         // now comes the ID
-        byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
-        channelBuffer.readBytes(me);
-        this.peerId = new Number160(me);
+        this.peerId = Utils.readNumber160(channelBuffer);
 
         this.peerSocketAddress = PeerSocketAddress.create(channelBuffer, isIPv4());
 
@@ -23,8 +23,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
-import java.util.SortedSet;
-import java.util.TreeSet;
 
 import net.tomp2p.utils.CacheMap;
 import net.tomp2p.utils.ConcurrentCacheMap;
@@ -61,6 +59,9 @@ public class PeerMap implements PeerStatusListener, Maintainable {
     // stores listeners that will be notified if a peer gets removed or added
     private final List<PeerMapChangeListener> peerMapChangeListeners = new ArrayList<PeerMapChangeListener>();
 
+    // stores listeners that will be notified if a peer failed, even if it was not removed
+    private final List<PeerStatusListener> peerStatusListeners = new ArrayList<PeerStatusListener>();
+
     private final PeerFilter peerFilter;
 
     // the number of failures until a peer is considered offline
@@ -157,6 +158,31 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         }
     }
 
+    /**
+     * Add a listener that is notified whenever {@link #peerFailed(PeerAddress, FailReason)} is called for a peer
+     * other than this peer. This is thread-safe
+     * 
+     * @param peerStatusListener
+     *            The listener
+     */
+    public void addPeerStatusListener(final PeerStatusListener peerStatusListener) {
+        synchronized (peerStatusListeners) {
+            peerStatusListeners.add(peerStatusListener);
+        }
+    }
+
+    /**
+     * Remove a listener that is notified if a peer failed. This is thread-safe
+     * 
+     * @param peerStatusListener
+     *            The listener
+     */
+    public void removePeerStatusListener(final PeerStatusListener peerStatusListener) {
+        synchronized (peerStatusListeners) {
+            peerStatusListeners.remove(peerStatusListener);
+        }
+    }
+
     /**
      * Notifies on insert. Since listeners are never changed, this is thread safe.
      * 
@@ -336,6 +362,11 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         if (remotePeer.getPeerId().isZero() || self().equals(remotePeer.getPeerId())) {
             return false;
         }
+        synchronized (peerStatusListeners) {
+            for (PeerStatusListener listener : peerStatusListeners) {
+                listener.peerFailed(remotePeer, reason);
+            }
+        }
         final int classMember = classMember(remotePeer.getPeerId());
         if (reason != FailReason.Timeout) {
             if(reason == FailReason.ProbablyOffline) {
@@ -378,6 +409,49 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         return false;
     }
 
+    /**
+     * Adds a measured round-trip time to the statistics of a peer. This method is thread-safe.
+     * 
+     * @param remotePeer
+     *            The peer that replied
+     * @param rttMicros
+     *            The time between sending the request and receiving the reply in microseconds
+     * @return True if the peer is in the verified or overflow map and its statistics have been updated
+     */
+    public boolean peerRTT(final PeerAddress remotePeer, final long rttMicros) {
+        final PeerStatatistic peerStatatistic = peerStatatistic(remotePeer);
+        if (peerStatatistic == null) {
+            return false;
+        }
+        peerStatatistic.addRTT(rttMicros);
+        return true;
+    }
+
+    /**
+     * @param peerAddress
+     *            The peer to look up
+     * @return The statistics of the peer from the verified map or the overflow map, or null if we don't know this
+     *         peer
+     */
+    public PeerStatatistic peerStatatistic(final PeerAddress peerAddress) {
+        final int classMember = classMember(peerAddress.getPeerId());
+        if (classMember == -1) {
+            // -1 means we searched for ourself and we never are our neighbor
+            return null;
+        }
+        PeerStatatistic peerStatatistic = get(peerMapVerified.get(classMember), peerAddress.getPeerId());
+        if (peerStatatistic == null) {
+            peerStatatistic = get(peerMapOverflow.get(classMember), peerAddress.getPeerId());
+        }
+        return peerStatatistic;
+    }
+
+    private static PeerStatatistic get(final Map<Number160, PeerStatatistic> tmp, final Number160 peerId) {
+        synchronized (tmp) {
+            return tmp.get(peerId);
+        }
+    }
+
     /**
      * Checks if a peer address in either in the verified map.
      * 
@@ -440,39 +514,72 @@ public class PeerMap implements PeerStatusListener, Maintainable {
     }
 
     public static NavigableSet<PeerAddress> closePeers(final Number160 self, final Number160 other, final int atLeast, List<Map<Number160, PeerStatatistic>> peerMap) {
-        final NavigableSet<PeerAddress> set = new TreeSet<PeerAddress>(createComparator(other));
+        return fillTable(self, other, atLeast, peerMap).sortedSet(createComparator(other));
+    }
+
+    /**
+     * Returns exactly the closest peers to a given key from the verified map. Other than
+     * {@link #closePeers(Number160, int)}, which returns all peers of the bags it looked at, only the k closest peers
+     * are sorted and returned. This method is tread-safe.
+     * 
+     * @param id
+     *            The key that should be close to the keys in the map
+     * @param k
+     *            The number of peers to return
+     * @return The k closest peers, the closest first. The list is smaller if this map contains fewer peers
+     */
+    public List<PeerAddress> closestPeers(final Number160 id, final int k) {
+        return fillTable(self(), id, k, peerMapVerified).closest(k);
+    }
+
+    /**
+     * Collects the candidates for the close peers. The bag of the key contains the closest peers, followed by all the
+     * smaller bags, whose peers are in the same distance range and need to be sorted together, followed by the larger
+     * bags in ascending order.
+     * 
+     * @param self
+     *            The id of the peer that owns the bags
+     * @param other
+     *            The key that should be close to the peers
+     * @param atLeast
+     *            The number we want to find at least
+     * @param peerMap
+     *            The bags
+     * @return The table with the candidates, which contains at least atLeast peers if the bags have that many
+     */
+    private static ClosePeerTable fillTable(final Number160 self, final Number160 other, final int atLeast,
+            final List<Map<Number160, PeerStatatistic>> peerMap) {
+        final ClosePeerTable table = new ClosePeerTable(other);
         final int classMember = classMember(self, other);
         // special treatment, as we can start iterating from 0
         if (classMember == -1) {
             for (int j = 0; j < Number160.BITS; j++) {
-                final Map<Number160, PeerStatatistic> tmp = peerMap.get(j);
-                if (fillSet(atLeast, set, tmp)) {
-                    return set;
+                if (table.addAll(atLeast, peerMap.get(j))) {
+                    return table;
                 }
             }
-            return set;
+            return table;
         }
 
-        Map<Number160, PeerStatatistic> tmp = peerMap.get(classMember);
-        if (fillSet(atLeast, set, tmp)) {
-            return set;
+        if (table.addAll(atLeast, peerMap.get(classMember))) {
+            return table;
         }
 
         // in this case we have to go over all the bags that are smaller
         boolean last = false;
         for (int i = 0; i < classMember; i++) {
-            tmp = peerMap.get(i);
-            last = fillSet(atLeast, set, tmp);
+            last = table.addAll(atLeast, peerMap.get(i));
         }
         if (last) {
-            return set;
+            return table;
         }
-        // in this case we have to go over all the bags that are larger
+        // in this case we have to go over the bags that are larger, each one is farther away than the previous one
         for (int i = classMember + 1; i < Number160.BITS; i++) {
-            tmp = peerMap.get(i);
-            fillSet(atLeast, set, tmp);
+            if (table.addAll(atLeast, peerMap.get(i))) {
+                return table;
+            }
         }
-        return set;
+        return table;
     }
     
     @Override
@@ -610,7 +717,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * @return -1 if key1 is closer to key, otherwise 1. 0 is returned if both are equal.
      */
     public static int isCloser(final Number160 id, final Number160 rn, final Number160 rn2) {
-        return distance(id, rn).compareTo(distance(id, rn2));
+        return id.compareDistance(rn, rn2);
     }
 
     /**
@@ -637,7 +744,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * @return -1 if first peer is closer, 1 otherwise, 0 if both are equal
      */
     public static int isKadCloser(final Number160 id, final PeerAddress rn, final PeerAddress rn2) {
-        return distance(id, rn.getPeerId()).compareTo(distance(id, rn2.getPeerId()));
+        return id.compareDistance(rn.getPeerId(), rn2.getPeerId());
     }
 
     /**
@@ -645,7 +752,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * 
      * @param id
      *            The id of this peer
-     * @return The XOR comparator
+     * @return The XOR comparator, which compares without creating the distances
      */
     public static Comparator<PeerAddress> createComparator(final Number160 id) {
         return new Comparator<PeerAddress>() {
@@ -666,7 +773,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * @return returns the bit difference and -1 if they are equal
      */
     static int classMember(final Number160 id1, final Number160 id2) {
-        return distance(id1, id2).bitLength() - 1;
+        return id1.xorBitLength(id2) - 1;
     }
 
     /**
@@ -735,28 +842,6 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         return null;
     }
 
-    /**
-     * Fills the set with peer addresses. Fills it until a limit is reach. However, this is a soft limit, as the bag may
-     * contain close peers in a random manner.
-     * 
-     * @param atLeast
-     *            The number of addresses we want at least. It does not matter if its more.
-     * @param set
-     *            The set where to store the results
-     * @param tmp
-     *            The bag where to take the addresses from
-     * @return True if the desired size has been reached
-     */
-    private static boolean fillSet(final int atLeast, final SortedSet<PeerAddress> set,
-            final Map<Number160, PeerStatatistic> tmp) {
-        synchronized (tmp) {
-            for (final PeerStatatistic peerStatatistic : tmp.values()) {
-                set.add(peerStatatistic.getPeerAddress());
-            }
-        }
-        return set.size() >= atLeast;
-    }
-
 	public int bagSizeVerified() {
 	    return bagSizeVerified;
     }
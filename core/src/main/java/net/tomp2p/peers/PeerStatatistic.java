@@ -31,6 +31,12 @@ public class PeerStatatistic implements Serializable {
     
 	private static final long serialVersionUID = -6225586345726672194L;
 
+	// the smallest variance that is added to the retransmission timeout
+	private static final long CLOCK_GRANULARITY_MICROS = 1000;
+
+	// the maximum number of times the retransmission timeout is doubled
+	private static final int MAX_BACKOFF = 6;
+
 	private final AtomicLong lastSeenOnline = new AtomicLong(0);
 
     private final long created = Timings.currentTimeMillis();
@@ -39,6 +45,10 @@ public class PeerStatatistic implements Serializable {
 
     private final AtomicInteger failed = new AtomicInteger(0);
 
+    // smoothed round-trip time and its variance in microseconds, -1 if not measured yet
+    private volatile long smoothedRTT = -1;
+    private volatile long rttVariance = -1;
+
     private PeerAddress peerAddress;
 
     /**
@@ -89,6 +99,60 @@ public class PeerStatatistic implements Serializable {
         return failed.incrementAndGet();
     }
 
+    /**
+     * Adds a measured round-trip time. The smoothed RTT and its variance are calculated as in TCP (RFC 6298), with a
+     * gain of 1/8 for the RTT and 1/4 for the variance.
+     * 
+     * @param rttMicros
+     *            The time between sending a request and receiving its reply in microseconds
+     * @return The smoothed round-trip time in microseconds
+     */
+    public synchronized long addRTT(final long rttMicros) {
+        if (smoothedRTT < 0) {
+            smoothedRTT = rttMicros;
+            rttVariance = rttMicros / 2;
+        } else {
+            rttVariance = (3 * rttVariance + Math.abs(smoothedRTT - rttMicros)) / 4;
+            smoothedRTT = (7 * smoothedRTT + rttMicros) / 8;
+        }
+        return smoothedRTT;
+    }
+
+    /**
+     * Calculates the retransmission timeout as in TCP (RFC 6298), which is the smoothed RTT plus four times its
+     * variance. For every failed check since the last successful one, the timeout is doubled.
+     * 
+     * @return The time after which a request to this peer can be considered lost in microseconds, or -1 if no reply
+     *         has been measured yet
+     */
+    public long retransmissionTimeout() {
+        final long srtt;
+        final long variance;
+        synchronized (this) {
+            srtt = smoothedRTT;
+            variance = rttVariance;
+        }
+        if (srtt < 0) {
+            return -1;
+        }
+        final long rto = srtt + Math.max(CLOCK_GRANULARITY_MICROS, 4 * variance);
+        return rto << Math.min(failed.get(), MAX_BACKOFF);
+    }
+
+    /**
+     * @return The smoothed round-trip time in microseconds, or -1 if no reply has been measured yet
+     */
+    public long getSmoothedRTT() {
+        return smoothedRTT;
+    }
+
+    /**
+     * @return The variance of the round-trip time in microseconds, or -1 if no reply has been measured yet
+     */
+    public long getRTTVariance() {
+        return rttVariance;
+    }
+
     /**
      * @return The time of creating this peer (statistic)
      */
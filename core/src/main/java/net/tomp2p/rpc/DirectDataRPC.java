@@ -145,6 +145,10 @@ public class DirectDataRPC extends DispatchHandler {
                 LOG.debug("handling request1");
                 final Buffer replyBuffer = rawDataReply2.reply(message.getSender(), requestBuffer,
                         message.isDone());
+                if (!message.isDone() && (replyBuffer == null || replyBuffer == requestBuffer)) {
+                    // a part of a streamed request has been consumed, we reply once the request is complete
+                    return;
+                }
                 if (replyBuffer == null && message.isDone()) {
                     responseMessage.setType(Type.NOT_FOUND);
                 } else if (replyBuffer != requestBuffer) {
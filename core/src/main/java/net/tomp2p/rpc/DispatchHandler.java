@@ -113,7 +113,7 @@ public abstract class DispatchHandler {
     }
     
     public static Message createResponseMessage(final Message requestMessage, final Type replyType, final PeerAddress peerAddress) {
-        Message replyMessage = new Message();
+        Message replyMessage = Message.newInstance();
         // this will have the ports > 40'000 that we need to know for sendig the reply
         replyMessage.senderSocket(requestMessage.senderSocket());
         replyMessage.recipientSocket(requestMessage.recipientSocket());
@@ -32,12 +32,13 @@ public interface RawDataReply {
      * @param sender
      *            The sender to from which the request came
      * @param requestBuffer
-     *            The incoming buffer
+     *            The incoming buffer. For a streamed request, this is only the part that has been received since the
+     *            last call, see {@link net.tomp2p.message.BufferInputStream}
      * @param complete
      *            Indication if the request buffer is complete
      * @return A ChannelBuffer with the result. If null is returned, then the message will contain NOT_FOUND, if the
      *         same buffer as requestBuffer is sent back, the message will contain OK, otherwise the payload will be
-     *         set.
+     *         set. If the request is not complete and null or requestBuffer is returned, no reply is sent.
      * @throws Exception
      *             In case of an exception, a stacktrack will be printed to System.err and a log output will be
      *             generated
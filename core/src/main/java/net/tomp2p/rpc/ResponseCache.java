@@ -0,0 +1,337 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.rpc;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tomp2p.message.DataMap;
+import net.tomp2p.message.Encoder;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.AlternativeCompositeByteBuf;
+import net.tomp2p.storage.Data;
+import net.tomp2p.storage.StorageLayer;
+import net.tomp2p.utils.Utils;
+
+/**
+ * A cache for the encoded responses of get requests on the storage peer. A hot key or range is looked up in the
+ * storage and encoded only once and the encoded response is reused until the data changes. A response is only cached
+ * if the same request was seen before, so keys that are read once do not evict hot keys. Since the cache is accessed
+ * concurrently, it is separated in segments, as in {@link net.tomp2p.utils.ConcurrentCacheMap}, and each segment
+ * evicts its least recently used responses once it exceeds its share of the bytes.
+ * <p>
+ * The cache is invalidated with versions of the {@link StorageLayer}. The version is read before the storage is read
+ * and a cached response is only used if the version has not changed since.
+ *
+ * @author Thomas Bocek
+ */
+public class ResponseCache {
+
+    /**
+     * Number of segments that can be accessed concurrently.
+     */
+    public static final int SEGMENT_NR = 16;
+
+    // the estimated bytes of the keys and the header of an entry in an encoded response
+    private static final int ENTRY_OVERHEAD = 90;
+
+    private final Segment[] segments;
+
+    private final long maxBytesSegment;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param maxBytes
+     *            The maximum number of bytes of all encoded responses
+     * @param maxEntries
+     *            The maximum number of requests that are remembered to decide if a request is hot
+     */
+    public ResponseCache(final long maxBytes, final int maxEntries) {
+        this.maxBytesSegment = maxBytes / SEGMENT_NR;
+        this.segments = new Segment[SEGMENT_NR];
+        for (int i = 0; i < SEGMENT_NR; i++) {
+            segments[i] = new Segment(Math.max(1, maxEntries / SEGMENT_NR));
+        }
+    }
+
+    /**
+     * @param keys
+     *            The keys of a get request
+     * @return The request, which is used as a key for this cache
+     */
+    public static Object request(final Collection<Number640> keys) {
+        return new Request(new ArrayList<Number640>(keys), null, null, -1, true);
+    }
+
+    /**
+     * @param from
+     *            The first key of a range, inclusive
+     * @param to
+     *            The last key of a range, inclusive
+     * @param limit
+     *            The maximum number of entries or -1
+     * @param ascending
+     *            The order in which the entries are returned if a limit is set
+     * @return The request, which is used as a key for this cache
+     */
+    public static Object request(final Number640 from, final Number640 to, final int limit,
+            final boolean ascending) {
+        return new Request(null, from, to, limit, ascending);
+    }
+
+    /**
+     * @param request
+     *            The request, see {@link #request(Collection)}
+     * @param version
+     *            The version of the storage before it is read, see {@link StorageLayer#version()}
+     * @return The encoded response or null if it is not cached or the storage has changed
+     */
+    public DataMap get(final Object request, final long version) {
+        final Segment segment = segment(request);
+        synchronized (segment) {
+            final Response response = segment.responses.get(request);
+            if (response != null) {
+                if (response.version == version) {
+                    hits.incrementAndGet();
+                    return response.dataMap;
+                }
+                segment.remove(request);
+                invalidations.incrementAndGet();
+                // the request was hot, cache it again right away
+                segment.seen.put(request, Boolean.TRUE);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches the response to a request if the request was seen before.
+     *
+     * @param request
+     *            The request, see {@link #request(Collection)}
+     * @param version
+     *            The version of the storage before it was read
+     * @param result
+     *            The data that was read. The data objects are owned by the cache from now on and are released once
+     *            they are encoded
+     * @return The data map for the response, which is encoded if it has been cached
+     */
+    public DataMap put(final Object request, final long version, final Map<Number640, Data> result) {
+        final Segment segment = segment(request);
+        synchronized (segment) {
+            if (segment.seen.put(request, Boolean.TRUE) == null) {
+                return new DataMap(result).releaseAfterEncoding(true);
+            }
+        }
+        long estimate = 0;
+        for (Data data : result.values()) {
+            estimate += data.length() + ENTRY_OVERHEAD;
+        }
+        if (estimate > maxBytesSegment) {
+            return new DataMap(result).releaseAfterEncoding(true);
+        }
+        // the payloads are copied into the encoded response, which does not need the data objects anymore
+        final ByteBuf encoded = encode(new DataMap(result).releaseAfterEncoding(true));
+        final DataMap dataMap = new DataMap(Collections.<Number640, Data> emptyMap(), encoded);
+        synchronized (segment) {
+            segment.remove(request);
+            segment.responses.put(request, new Response(dataMap, version));
+            segment.bytes += dataMap.encoded().capacity();
+            segment.evict();
+        }
+        return dataMap;
+    }
+
+    /**
+     * @return The number of requests that were answered with a cached response
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of requests that were not cached or whose cached response was outdated
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of cached responses that were outdated since the data has changed
+     */
+    public long invalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * @return The ratio of the requests that were answered with a cached response, or 0 if there were no requests
+     */
+    public double hitRate() {
+        final long hits = this.hits.get();
+        final long total = hits + misses.get();
+        return total == 0 ? 0 : hits / (double) total;
+    }
+
+    /**
+     * @return The number of cached responses
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.responses.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return The number of bytes of all cached responses
+     */
+    public long bytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += segment.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    private Segment segment(final Object request) {
+        // spread the bits, as in ConcurrentHashMap
+        int h = request.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & (SEGMENT_NR - 1)];
+    }
+
+    /**
+     * Encodes a data map into one buffer. The payloads are copied, so the encoded response does not hold on to the
+     * buffers of the storage. The buffer is not pooled and not released when the response is evicted, since it may
+     * still be used by messages that are being sent. It is reclaimed by the garbage collector.
+     */
+    private static ByteBuf encode(final DataMap dataMap) {
+        final AlternativeCompositeByteBuf buf = AlternativeCompositeByteBuf.compBuffer();
+        try {
+            Encoder.encodeDataMap(dataMap, buf);
+            final ByteBuf encoded = Unpooled.directBuffer(buf.readableBytes());
+            encoded.writeBytes(buf);
+            return encoded;
+        } finally {
+            buf.release();
+        }
+    }
+
+    private final class Segment {
+        // least recently used first
+        private final LinkedHashMap<Object, Response> responses = new LinkedHashMap<Object, Response>(16, 0.75f,
+                true);
+
+        private final LinkedHashMap<Object, Boolean> seen;
+
+        private long bytes = 0;
+
+        private Segment(final int maxEntries) {
+            this.seen = new LinkedHashMap<Object, Boolean>(16, 0.75f, true) {
+                private static final long serialVersionUID = -1947346397815361224L;
+
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<Object, Boolean> eldest) {
+                    return size() > maxEntries;
+                }
+            };
+        }
+
+        private void remove(final Object request) {
+            final Response response = responses.remove(request);
+            if (response != null) {
+                bytes -= response.dataMap.encoded().capacity();
+            }
+        }
+
+        private void evict() {
+            final Iterator<Response> iterator = responses.values().iterator();
+            while (bytes > maxBytesSegment && iterator.hasNext()) {
+                final Response response = iterator.next();
+                iterator.remove();
+                bytes -= response.dataMap.encoded().capacity();
+            }
+        }
+    }
+
+    private static final class Response {
+        private final DataMap dataMap;
+        private final long version;
+
+        private Response(final DataMap dataMap, final long version) {
+            this.dataMap = dataMap;
+            this.version = version;
+        }
+    }
+
+    private static final class Request {
+        private final Collection<Number640> keys;
+        private final Number640 from;
+        private final Number640 to;
+        private final int limit;
+        private final boolean ascending;
+
+        private Request(final Collection<Number640> keys, final Number640 from, final Number640 to,
+                final int limit, final boolean ascending) {
+            this.keys = keys;
+            this.from = from;
+            this.to = to;
+            this.limit = limit;
+            this.ascending = ascending;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = keys == null ? 0 : keys.hashCode();
+            hash = hash * 31 + (from == null ? 0 : from.hashCode());
+            hash = hash * 31 + (to == null ? 0 : to.hashCode());
+            return hash * 31 + limit * 2 + (ascending ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof Request)) {
+                return false;
+            }
+            final Request r = (Request) obj;
+            return limit == r.limit && ascending == r.ascending && Utils.equals(keys, r.keys)
+                    && Utils.equals(from, r.from) && Utils.equals(to, r.to);
+        }
+    }
+}
@@ -39,6 +39,7 @@ import net.tomp2p.message.KeyMapByte;
 import net.tomp2p.message.Message;
 import net.tomp2p.message.Message.Type;
 import net.tomp2p.p2p.builder.AddBuilder;
+import net.tomp2p.p2p.builder.DHTBuilder;
 import net.tomp2p.p2p.builder.DigestBuilder;
 import net.tomp2p.p2p.builder.GetBuilder;
 import net.tomp2p.p2p.builder.PutBuilder;
@@ -48,6 +49,7 @@ import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.storage.Data;
+import net.tomp2p.storage.StorageLayer;
 import net.tomp2p.storage.StorageLayer.PutStatus;
 import net.tomp2p.utils.Pair;
 import net.tomp2p.utils.Utils;
@@ -67,6 +69,8 @@ public class StorageRPC extends DispatchHandler {
 
     private final BloomfilterFactory factory;
 
+    private final ResponseCache responseCache;
+
     /**
      * Register the store rpc for put, compare put, get, add, and remove.
      * 
@@ -76,7 +80,23 @@ public class StorageRPC extends DispatchHandler {
      *            The connection bean
      */
     public StorageRPC(final PeerBean peerBean, final ConnectionBean connectionBean) {
+        this(peerBean, connectionBean, null);
+    }
+
+    /**
+     * Register the store rpc for put, compare put, get, add, and remove.
+     * 
+     * @param peerBean
+     *            The peer bean
+     * @param connectionBean
+     *            The connection bean
+     * @param responseCache
+     *            The cache for the responses of hot gets or null if responses are not cached
+     */
+    public StorageRPC(final PeerBean peerBean, final ConnectionBean connectionBean,
+            final ResponseCache responseCache) {
         super(peerBean, connectionBean);
+        this.responseCache = responseCache;
         register(RPC.Commands.PUT.getNr(), 
         		RPC.Commands.GET.getNr(), RPC.Commands.ADD.getNr(), 
         		RPC.Commands.REMOVE.getNr(), RPC.Commands.DIGEST.getNr(), 
@@ -84,6 +104,13 @@ public class StorageRPC extends DispatchHandler {
         this.factory = peerBean.bloomfilterFactory();
     }
 
+    /**
+     * @return The cache for the responses of hot gets or null if responses are not cached
+     */
+    public ResponseCache responseCache() {
+        return responseCache;
+    }
+
     /**
      * Stores data on a remote peer. Overwrites data if the data already exists. This is an RPC.
      * 
@@ -474,6 +501,67 @@ public class StorageRPC extends DispatchHandler {
         }
     }
 
+    /**
+     * Gets the data of many keys from a peer in one request. The keys may belong to different location keys. This is
+     * an RPC.
+     * 
+     * @param remotePeer
+     *            The remote peer to send this request
+     * @param keys
+     *            The full keys of the data
+     * @param builder
+     *            The builder with the connection and signature options
+     * @param channelCreator
+     *            The channel creator that creates connections
+     * @return The future response to keep track of future events
+     */
+    public FutureResponse get(final PeerAddress remotePeer, final Collection<Number640> keys,
+            final DHTBuilder<?> builder, final ChannelCreator channelCreator) {
+        final Message message = createMessage(remotePeer, RPC.Commands.GET.getNr(), Type.REQUEST_1);
+        if (builder.isSign()) {
+            message.setPublicKeyAndSign(builder.keyPair());
+        }
+        message.setKeyCollection(new KeyCollection(keys));
+        return send(message, builder, channelCreator);
+    }
+
+    /**
+     * Stores the data of many keys on a peer in one request. The keys may belong to different location keys. This is
+     * an RPC.
+     * 
+     * @param remotePeer
+     *            The remote peer to store the data
+     * @param dataMap
+     *            The data with the full keys
+     * @param builder
+     *            The builder with the connection and signature options
+     * @param channelCreator
+     *            The channel creator that creates connections
+     * @return FutureResponse that stores which keys have been stored.
+     */
+    public FutureResponse put(final PeerAddress remotePeer, final Map<Number640, Data> dataMap,
+            final DHTBuilder<?> builder, final ChannelCreator channelCreator) {
+        final Type type = builder.isProtectDomain() ? Type.REQUEST_2 : Type.REQUEST_1;
+        final Message message = createMessage(remotePeer, RPC.Commands.PUT.getNr(), type);
+        if (builder.isSign()) {
+            message.setPublicKeyAndSign(builder.keyPair());
+        }
+        message.setDataMap(new DataMap(dataMap));
+        return send(message, builder, channelCreator);
+    }
+
+    private FutureResponse send(final Message message, final DHTBuilder<?> builder,
+            final ChannelCreator channelCreator) {
+        final FutureResponse futureResponse = new FutureResponse(message);
+        final RequestHandler<FutureResponse> request = new RequestHandler<FutureResponse>(futureResponse,
+                peerBean(), connectionBean(), builder);
+        if (!builder.isForceUDP()) {
+            return request.sendTCP(channelCreator);
+        } else {
+            return request.sendUDP(channelCreator);
+        }
+    }
+
     /**
      * Removes data from a peer. This is an RPC.
      * 
@@ -718,7 +806,42 @@ public class StorageRPC extends DispatchHandler {
         final boolean isRange = contentKeys != null && returnNr != null;
         final boolean isCollection = contentKeys != null && returnNr == null;
         final boolean isBloomFilterAnd = isBloomFilterAnd(message);
+        final boolean isCached = responseCache != null && contentBloomFilter == null && versionBloomFilter == null;
+
+        final Number640 min;
+        final Number640 max;
+        if (isCollection) {
+            min = null;
+            max = null;
+        } else if (isRange) {
+            // get min/max
+            Iterator<Number640> iterator = contentKeys.keys().iterator();
+            min = iterator.next();
+            max = iterator.next();
+        } else {
+            min = new Number640(locationKey, domainKey, Number160.ZERO, Number160.ZERO);
+            max = new Number640(locationKey, domainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
+        }
+
+        Object request = null;
+        long version = 0;
+        if (isCached) {
+            // the version has to be read before the storage is read
+            if (isCollection) {
+                request = ResponseCache.request(contentKeys.keys());
+                version = version(peerBean().storage(), contentKeys.keys());
+            } else {
+                request = ResponseCache.request(min, max, limit, ascending);
+                version = version(peerBean().storage(), min, max);
+            }
+            final DataMap dataMap = responseCache.get(request, version);
+            if (dataMap != null) {
+                responseMessage.setDataMap(dataMap);
+                return responseMessage;
+            }
+        }
 
+        // the storage returns duplicates, which are released once the response is encoded
         final Map<Number640, Data> result;
         if (isCollection) {
             result = new HashMap<Number640, Data>();
@@ -729,26 +852,43 @@ public class StorageRPC extends DispatchHandler {
                 }
             }
         } else if (isRange) {
-            // get min/max
-            Iterator<Number640> iterator = contentKeys.keys().iterator();
-            Number640 min = iterator.next();
-            Number640 max = iterator.next();
             result = peerBean().storage().get(min, max, limit, ascending);
 
         } else if (contentBloomFilter != null || versionBloomFilter != null) {
-            Number640 min = new Number640(locationKey, domainKey, Number160.ZERO, Number160.ZERO);
-            Number640 max = new Number640(locationKey, domainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
             result = peerBean().storage().get(min, max, contentBloomFilter, versionBloomFilter, limit, ascending, isBloomFilterAnd);
         } else {
             // get all
-            Number640 min = new Number640(locationKey, domainKey, Number160.ZERO, Number160.ZERO);
-            Number640 max = new Number640(locationKey, domainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
             result = peerBean().storage().get(min, max, limit, ascending);
         }
-        responseMessage.setDataMap(new DataMap(result));
+        if (isCached) {
+            responseMessage.setDataMap(responseCache.put(request, version, result));
+        } else {
+            responseMessage.setDataMap(new DataMap(result).releaseAfterEncoding(true));
+        }
         return responseMessage;
     }
 
+    private static long version(final StorageLayer storage, final Number640 from, final Number640 to) {
+        if (from.getLocationKey().equals(to.getLocationKey())) {
+            return storage.version(from.getLocationKey());
+        }
+        return storage.version();
+    }
+
+    private static long version(final StorageLayer storage, final Collection<Number640> keys) {
+        final Iterator<Number640> iterator = keys.iterator();
+        if (!iterator.hasNext()) {
+            return storage.version();
+        }
+        final Number160 locationKey = iterator.next().getLocationKey();
+        while (iterator.hasNext()) {
+            if (!locationKey.equals(iterator.next().getLocationKey())) {
+                return storage.version();
+            }
+        }
+        return storage.version(locationKey);
+    }
+
     private Message handleDigest(final Message message, final Message responseMessage, final boolean isReturnBloomfilter) {
 
         final Number160 locationKey = message.getKey(0);
@@ -852,8 +992,8 @@ public class StorageRPC extends DispatchHandler {
             responseMessage.setKeyMapByte(new KeyMapByte(result2));
         } else {
             // make a copy, so the iterator in the codec wont conflict with
-            // concurrent calls
-            responseMessage.setDataMap(new DataMap(result1));
+            // concurrent calls. The removed data is owned by the response.
+            responseMessage.setDataMap(new DataMap(result1).releaseAfterEncoding(true));
         }
         return responseMessage;
     }
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.utils.Utils;
+
+/**
+ * The manifest of a large value that is stored in chunks. A value is split into chunks of a fixed size and each chunk
+ * is stored with its SHA-1 hash as the location key. The manifest lists the hashes in order, so the value can be
+ * reassembled and each chunk can be verified.
+ *
+ * @author Thomas Bocek
+ */
+public class ChunkManifest {
+
+    // marks a manifest, so that it is not confused with a regular value
+    private static final int MAGIC = 0x546d4331;
+
+    private static final int HEADER_SIZE = Utils.INTEGER_BYTE_SIZE + Utils.LONG_BYTE_SIZE + Utils.INTEGER_BYTE_SIZE
+            + Utils.INTEGER_BYTE_SIZE;
+
+    private final long length;
+
+    private final int chunkSize;
+
+    private final List<Number160> chunkKeys;
+
+    /**
+     * @param length
+     *            The length of the value
+     * @param chunkSize
+     *            The size of the chunks, the last chunk may be smaller
+     * @param chunkKeys
+     *            The hashes of the chunks in order
+     */
+    public ChunkManifest(final long length, final int chunkSize, final List<Number160> chunkKeys) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("The chunk size must be positive");
+        }
+        if (chunkKeys.size() != (length + chunkSize - 1) / chunkSize) {
+            throw new IllegalArgumentException("The number of chunks does not match the length");
+        }
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.chunkKeys = Collections.unmodifiableList(new ArrayList<Number160>(chunkKeys));
+    }
+
+    /**
+     * Splits a value in chunks and hashes them.
+     *
+     * @param value
+     *            The value
+     * @param chunkSize
+     *            The size of the chunks
+     * @return The manifest of the value
+     */
+    public static ChunkManifest create(final byte[] value, final int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("The chunk size must be positive");
+        }
+        final List<Number160> chunkKeys = new ArrayList<Number160>((value.length + chunkSize - 1) / chunkSize);
+        for (int offset = 0; offset < value.length; offset += chunkSize) {
+            chunkKeys.add(Utils.makeSHAHash(value, offset, Math.min(chunkSize, value.length - offset)));
+        }
+        return new ChunkManifest(value.length, chunkSize, chunkKeys);
+    }
+
+    /**
+     * @return The length of the value
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return The size of the chunks, the last chunk may be smaller
+     */
+    public int chunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return The hashes of the chunks in order, which are the location keys of the chunks
+     */
+    public List<Number160> chunkKeys() {
+        return chunkKeys;
+    }
+
+    /**
+     * @param index
+     *            The index of a chunk
+     * @return The offset of the chunk in the value
+     */
+    public long offset(final int index) {
+        return (long) index * chunkSize;
+    }
+
+    /**
+     * @param index
+     *            The index of a chunk
+     * @return The length of the chunk
+     */
+    public int chunkLength(final int index) {
+        return (int) Math.min(chunkSize, length - offset(index));
+    }
+
+    /**
+     * @return The manifest as data that can be stored
+     */
+    public Data toData() {
+        final ByteBuf buf = Unpooled.buffer(HEADER_SIZE + chunkKeys.size() * Number160.BYTE_ARRAY_SIZE);
+        buf.writeInt(MAGIC);
+        buf.writeLong(length);
+        buf.writeInt(chunkSize);
+        buf.writeInt(chunkKeys.size());
+        for (Number160 chunkKey : chunkKeys) {
+            buf.writeBytes(chunkKey.toByteArray());
+        }
+        return new Data(buf.array(), buf.arrayOffset(), buf.readableBytes());
+    }
+
+    /**
+     * @param data
+     *            The stored manifest
+     * @return The manifest or null if the data is not a manifest
+     */
+    public static ChunkManifest fromData(final Data data) {
+        final ByteBuf buf = data.buffer();
+        try {
+            if (buf.readableBytes() < HEADER_SIZE || buf.readInt() != MAGIC) {
+                return null;
+            }
+            final long length = buf.readLong();
+            final int chunkSize = buf.readInt();
+            final int size = buf.readInt();
+            if (chunkSize <= 0 || size < 0 || buf.readableBytes() != size * Number160.BYTE_ARRAY_SIZE
+                    || size != (length + chunkSize - 1) / chunkSize) {
+                return null;
+            }
+            final List<Number160> chunkKeys = new ArrayList<Number160>(size);
+            for (int i = 0; i < size; i++) {
+                chunkKeys.add(Utils.readNumber160(buf));
+            }
+            return new ChunkManifest(length, chunkSize, chunkKeys);
+        } finally {
+            buf.release();
+        }
+    }
+}
@@ -16,6 +16,7 @@
 package net.tomp2p.storage;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -39,6 +40,14 @@ import net.tomp2p.utils.Utils;
  * and a hash may be created. It is reasonable to create the hash on the remote
  * peer, but not on the local peer. The remote peer uses the hash to tell the
  * other peers, which version is stored and its used quite often.
+ * <p>
+ * A received data object does not copy its payload, but keeps slices of the
+ * buffers of the channel, see {@link DataBuffer}. The owner of a data object
+ * calls {@link #release()} once it is not used anymore, and whoever keeps the
+ * payload beyond that takes its own reference with {@link #duplicate()}.
+ * Buffers returned by {@link #buffer()} hold a reference as well, so every
+ * call to {@link #buffer()} has to be matched by a release of the returned
+ * buffer.
  * 
  * @author Thomas Bocek
  */
@@ -291,7 +300,12 @@ public class Data {
 	}
 
 	public boolean verify(PublicKey publicKey) throws InvalidKeyException, SignatureException, IOException {
-		return signatureFactory().verify(publicKey, buffer.toByteBuf(), signature);
+		final ByteBuf buf = buffer.toByteBuf();
+		try {
+			return signatureFactory().verify(publicKey, buf, signature);
+		} finally {
+			buf.release();
+		}
 	}
 
 	public void encodeHeader(final AlternativeCompositeByteBuf buf) {
@@ -302,7 +316,7 @@ public class Data {
 		if (flag1) {
 			header |= 0x04;
 		}
-		if (flag1) {
+		if (flag2) {
 			header |= 0x08;
 		}
 		if (protectedEntry) {
@@ -368,10 +382,28 @@ public class Data {
 		}
 	}
 
+	/**
+	 * Returns a view of the payload. The view is not a copy, it has its own
+	 * reader and writer index and holds its own reference to the payload, so
+	 * it stays readable after this data object is released. The caller owns
+	 * this reference and has to call {@link ByteBuf#release()} on the view
+	 * once it is done, otherwise a pooled payload never returns to its pool.
+	 * 
+	 * @return The payload, not copied. The caller has to release it
+	 */
 	public ByteBuf buffer() {
 		return buffer.toByteBuf();
 	}
 
+	/**
+	 * Releases the payload. Duplicates and buffers returned by
+	 * {@link #buffer()} hold their own references and are not affected. The
+	 * payload must not be accessed after calling this method.
+	 */
+	public void release() {
+		buffer.release();
+	}
+
 	public Object object() throws ClassNotFoundException, IOException {
 		return Utils.decodeJavaObject(buffer);
 	}
@@ -383,7 +415,12 @@ public class Data {
 	public Data sign(KeyPair keyPair) throws InvalidKeyException, SignatureException, IOException {
 		if (this.signature == null) {
 			this.signed = true;
-			this.signature = signatureFactory().sign(keyPair.getPrivate(), buffer.toByteBuf());
+			final ByteBuf buf = buffer.toByteBuf();
+			try {
+				this.signature = signatureFactory().sign(keyPair.getPrivate(), buf);
+			} finally {
+				buf.release();
+			}
 			this.publicKey = keyPair.getPublic();
 			this.publicKeyFlag = true;
 		}
@@ -393,7 +430,12 @@ public class Data {
 	public Data sign(PrivateKey privateKey) throws InvalidKeyException, SignatureException, IOException {
 		if (this.signature == null) {
 			this.signed = true;
-			this.signature = signatureFactory().sign(privateKey, buffer.toByteBuf());
+			final ByteBuf buf = buffer.toByteBuf();
+			try {
+				this.signature = signatureFactory().sign(privateKey, buf);
+			} finally {
+				buf.release();
+			}
 		}
 		return this;
 	}
@@ -530,10 +572,37 @@ public class Data {
 
 	/**
 	 * @return A shallow copy where the data is shared but the reader and writer
-	 *         index is not shared
+	 *         index is not shared. The copy holds its own references to the
+	 *         payload and can be released independently
 	 */
 	public Data duplicate() {
-		Data data = new Data(buffer.shallowCopy(), length).publicKey(publicKey).signatureFactory(signatureFactory)
+		return duplicate(buffer.shallowCopy());
+	}
+
+	/**
+	 * @param alloc
+	 *            The allocator for the new payload buffer, e.g., a pooled
+	 *            direct buffer allocator to keep the payload off-heap
+	 * @return A copy where the payload is copied to a direct buffer from the
+	 *         allocator and the meta data is the same as in this object
+	 */
+	public Data copy(final ByteBufAllocator alloc) {
+		final ByteBuf buf = buffer.toByteBuf();
+		final ByteBuf copy;
+		try {
+			copy = alloc.directBuffer(buf.readableBytes());
+			copy.writeBytes(buf);
+		} finally {
+			buf.release();
+		}
+		final Data data = duplicate(new DataBuffer(copy));
+		// the DataBuffer retains the buffer, so we can release our reference
+		copy.release();
+		return data;
+	}
+
+	private Data duplicate(final DataBuffer buffer) {
+		Data data = new Data(buffer, length).publicKey(publicKey).signatureFactory(signatureFactory)
 				.signature(signature).basedOn(basedOn).ttlSeconds(ttlSeconds);
 		// set all the flags. Although signature, basedOn, and ttlSeconds set a
 		// flag, they will be overwritten with the data from this class
@@ -600,13 +669,18 @@ public class Data {
 	public byte[] toBytes() {
 		// we do copy the buffer here
 		ByteBuf buf = buffer.toByteBuf();
-		byte[] me = new byte[buf.readableBytes()];
-		buf.readBytes(me);
-		return me;
+		try {
+			byte[] me = new byte[buf.readableBytes()];
+			buf.readBytes(me);
+			return me;
+		} finally {
+			buf.release();
+		}
 	}
 
 	/**
-	 * @return The ByteBuffers that is the payload. We do not make a copy here
+	 * @return The ByteBuffers that is the payload. We do not make a copy here,
+	 *         the buffers are only valid as long as this object is not released
 	 */
 	public ByteBuffer[] toByteBuffers() {
 		return buffer.toByteBuffer();
@@ -670,7 +744,7 @@ public class Data {
 
 	public Number160 hash() {
 		if (hash == null) {
-			hash = Utils.makeSHAHash(buffer.toByteBuf());
+			hash = Utils.makeSHAHash(buffer);
 		}
 		return hash;
 	}
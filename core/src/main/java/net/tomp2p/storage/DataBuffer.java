@@ -1,18 +1,33 @@
 package net.tomp2p.storage;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.IllegalReferenceCountException;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * The payload of a {@link Data} object, which consists of one or more slices of Netty buffers. If the payload was
+ * received, the slices point to the buffers of the channel and no copy is made. Each slice holds a reference to its
+ * buffer. The references are reference counted explicitly and are only given back with {@link #release()}; garbage
+ * collection does not release them. If the channel uses a pooled allocator and {@link #release()} is never called, the
+ * memory does not return to the pool. A {@link #shallowCopy()} and the views returned by {@link #toByteBuf()} and
+ * {@link #toByteBufs()} hold their own references and have to be released separately.
+ * 
+ * @author Thomas Bocek
+ */
 public class DataBuffer {
 
 	private final List<ByteBuf> buffers;
 
 	private int alreadyTransferred = 0;
 
+	private boolean released = false;
+
 	public DataBuffer() {
 		buffers = new ArrayList<ByteBuf>(1);
 	}
@@ -23,16 +38,18 @@ public class DataBuffer {
 
 	public DataBuffer(final byte[] buffer, final int offset, final int length) {
 		buffers = new ArrayList<ByteBuf>(1);
-		final ByteBuf buf = Unpooled.wrappedBuffer(buffer);
+		final ByteBuf buf = Unpooled.wrappedBuffer(buffer, offset, length);
 		buffers.add(buf);
 		// no need to retain, as we initialized here and ref counter is set to 1
 	}
 
 	/**
-	 * Creates a DataBuffer and adds the ByteBuf to this DataBuffer
+	 * Creates a DataBuffer with a slice of the ByteBuf. The ByteBuf is retained, so this DataBuffer holds its own
+	 * reference and the caller still has to release its reference. The reference of this DataBuffer is given back with
+	 * {@link #release()}.
 	 * 
 	 * @param buf
-	 *            The ByteBuf is only added, but no retain() is called!
+	 *            The ByteBuf to slice, which is retained once
 	 */
 	public DataBuffer(final ByteBuf buf) {
 		buffers = new ArrayList<ByteBuf>(1);
@@ -48,25 +65,64 @@ public class DataBuffer {
 		}
 	}
 
-	// from here, work with shallow copies
+	/**
+	 * @return A copy that shares the payload, but has its own reader and writer indices and its own references to the
+	 *         buffers. The copy needs to be released separately.
+	 * @throws IllegalReferenceCountException
+	 *             If this object has been released
+	 */
 	public DataBuffer shallowCopy() {
 		synchronized (buffers) {
-			DataBuffer db = new DataBuffer(buffers);
-			return db;
+			checkReleased();
+			return new DataBuffer(buffers);
 		}
 	}
 
 	/**
-	 * Always make a copy with shallowCopy before using the buffer directly.
-	 * This buffer is not thread safe!
-	 * 
-	 * @return The backing list of byte buffers
+	 * @return Duplicates of the buffers, each holding its own reference to the buffer
+	 */
+	private ByteBuf[] retainedDuplicates() {
+		synchronized (buffers) {
+			checkReleased();
+			final int size = buffers.size();
+			final ByteBuf[] duplicates = new ByteBuf[size];
+			for (int i = 0; i < size; i++) {
+				duplicates[i] = buffers.get(i).duplicate().retain();
+			}
+			return duplicates;
+		}
+	}
+
+	/**
+	 * @return Duplicates of the buffers without taking a reference, thus, only valid as long as this object is not
+	 *         released.
+	 */
+	private ByteBuf[] duplicates() {
+		synchronized (buffers) {
+			checkReleased();
+			final int size = buffers.size();
+			final ByteBuf[] duplicates = new ByteBuf[size];
+			for (int i = 0; i < size; i++) {
+				duplicates[i] = buffers.get(i).duplicate();
+			}
+			return duplicates;
+		}
+	}
+
+	private void checkReleased() {
+		if (released) {
+			throw new IllegalReferenceCountException(0);
+		}
+	}
+
+	/**
+	 * @return The payload as a list of NIO buffers. The payload is not copied and only valid as long as this object
+	 *         is not released.
 	 */
 	public List<ByteBuffer> bufferList() {
-		final DataBuffer copy = shallowCopy();
-		final List<ByteBuffer> nioBuffers = new ArrayList<ByteBuffer>(
-				copy.buffers.size());
-		for (final ByteBuf buf : copy.buffers) {
+		final ByteBuf[] duplicates = duplicates();
+		final List<ByteBuffer> nioBuffers = new ArrayList<ByteBuffer>(duplicates.length);
+		for (final ByteBuf buf : duplicates) {
 			for (final ByteBuffer bb : buf.nioBuffers()) {
 				nioBuffers.add(bb);
 			}
@@ -75,29 +131,52 @@ public class DataBuffer {
 	}
 
 	/**
-	 * @return The wrapped ByteBuf backed by the buffers stored in here. The buffer is
-	 *         not copied here.
+	 * @return A view of the payload that holds its own reference, so it stays valid if this object is released. The
+	 *         payload is not copied. The caller has to release the returned buffer.
+	 * @throws IllegalReferenceCountException
+	 *             If this object has been released
 	 */
 	public ByteBuf toByteBuf() {
-		final DataBuffer copy = shallowCopy();
-		return Unpooled.wrappedBuffer(copy.buffers.toArray(new ByteBuf[0]));
+		final ByteBuf[] duplicates = retainedDuplicates();
+		int readable = 0;
+		for (int i = 0; i < duplicates.length; i++) {
+			if (duplicates[i].isReadable()) {
+				duplicates[readable++] = duplicates[i];
+			} else {
+				duplicates[i].release();
+			}
+		}
+		if (readable == 0) {
+			return Unpooled.EMPTY_BUFFER;
+		} else if (readable == 1) {
+			return duplicates[0];
+		}
+		// a composite buffer with more than its maximum number of components consolidates them, so the maximum must
+		// not be smaller than the number of slices. The composite buffer releases the duplicates.
+		final CompositeByteBuf composite = new CompositeByteBuf(UnpooledByteBufAllocator.DEFAULT, false, readable);
+		for (int i = 0; i < readable; i++) {
+			composite.addComponent(duplicates[i]);
+		}
+		return composite.writerIndex(composite.capacity());
 	}
-	
+
 	/**
-	 * @return The ByteBuf arrays backed by the buffers stored in here. The buffer is
-	 *         not copied here.
+	 * @return Views of the buffers stored in here, each holding its own reference. The payload is not copied. The
+	 *         caller has to release each of the returned buffers.
+	 * @throws IllegalReferenceCountException
+	 *             If this object has been released
 	 */
 	public ByteBuf[] toByteBufs() {
-		final DataBuffer copy = shallowCopy();
-		return copy.buffers.toArray(new ByteBuf[0]);
+		return retainedDuplicates();
 	}
 
 	/**
-	 * @return The ByteBuffers backed by the buffers stored in here. The buffer
-	 *         is not copied here.
+	 * @return The ByteBuffers backed by the buffers stored in here. The buffer is not copied here and only valid as
+	 *         long as this object is not released.
 	 */
 	public ByteBuffer[] toByteBuffer() {
-		return toByteBuf().nioBuffers();
+		final List<ByteBuffer> nioBuffers = bufferList();
+		return nioBuffers.toArray(new ByteBuffer[nioBuffers.size()]);
 	}
 
 	/**
@@ -108,8 +187,8 @@ public class DataBuffer {
 	 *            transfered to
 	 */
 	public void transferTo(final AlternativeCompositeByteBuf buf) {
-		final DataBuffer copy = shallowCopy();
-		for (final ByteBuf buffer : copy.buffers) {
+		for (final ByteBuf buffer : retainedDuplicates()) {
+			// the composite buffer releases its components
 			buf.addComponent(buffer);
 			alreadyTransferred += buffer.readableBytes();
 		}
@@ -170,14 +249,33 @@ public class DataBuffer {
 			return true;
 		}
 		final DataBuffer m = (DataBuffer) obj;
-		return m.toByteBuf().equals(toByteBuf());
+		final ByteBuf buf1 = toByteBuf();
+		try {
+			final ByteBuf buf2 = m.toByteBuf();
+			try {
+				return buf1.equals(buf2);
+			} finally {
+				buf2.release();
+			}
+		} finally {
+			buf1.release();
+		}
 	}
 
-	@Override
-	protected void finalize() throws Throwable {
-		final DataBuffer copy = shallowCopy();
-		for (ByteBuf buf : copy.buffers) {
-			buf.release();
+	/**
+	 * Releases the references to the buffers that were taken when this object was created or filled. Calling this
+	 * method more than once has no effect. The payload must not be accessed afterwards, but shallow copies stay valid
+	 * as they hold their own references.
+	 */
+	public void release() {
+		synchronized (buffers) {
+			if (released) {
+				return;
+			}
+			released = true;
+			for (final ByteBuf buf : buffers) {
+				buf.release();
+			}
 		}
 	}
 }
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.tomp2p.peers.Number640;
+import net.tomp2p.utils.Timings;
+
+/**
+ * The expiration index of a {@link Storage}, which is a timing wheel. The time is split into buckets of a fixed
+ * number of milliseconds, and the wheel has a slot for each of the next buckets, starting with the bucket of the
+ * cursor. Keys that expire later than the wheel reaches are kept in an overflow map per bucket and are moved to their
+ * slot as the cursor advances. Thus, adding and removing a key costs a hash map operation, and finding the expired
+ * keys only visits the slots that are due, so that it can stop after a limit and continue with the next call.
+ * <p>
+ * A slot keeps the exact expiration of each key, so a key expires at the same time as with a sorted index. Keys that
+ * are overdue when they are added go to the slot of the cursor, which is never advanced past a slot with keys.
+ *
+ * @author Thomas Bocek
+ */
+public class ExpiryWheel {
+
+    /**
+     * The default number of milliseconds of a bucket.
+     */
+    public static final int DEFAULT_BUCKET_MILLIS = 1000;
+
+    /**
+     * The default number of slots, which covers about 17 minutes with the default bucket.
+     */
+    public static final int DEFAULT_SLOTS = 1024;
+
+    private final long bucketMillis;
+
+    private final int mask;
+
+    // the slots, which are created when needed, guarded by this
+    private final Map<Number640, Long>[] slots;
+
+    // the keys that expire after the last slot, by bucket, guarded by this
+    private final TreeMap<Long, Map<Number640, Long>> overflow = new TreeMap<Long, Map<Number640, Long>>();
+
+    // the bucket of the first slot, guarded by this
+    private long cursor;
+    private int wheelSize = 0;
+    private int size = 0;
+
+    /**
+     * Creates a wheel with the default bucket and number of slots.
+     */
+    public ExpiryWheel() {
+        this(DEFAULT_BUCKET_MILLIS, DEFAULT_SLOTS);
+    }
+
+    /**
+     * @param bucketMillis
+     *            The number of milliseconds of a bucket
+     * @param slots
+     *            The number of slots, which must be a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public ExpiryWheel(final int bucketMillis, final int slots) {
+        if (bucketMillis <= 0 || slots <= 0 || Integer.bitCount(slots) != 1) {
+            throw new IllegalArgumentException("The bucket must be positive and the slots a power of two");
+        }
+        this.bucketMillis = bucketMillis;
+        this.mask = slots - 1;
+        this.slots = new Map[slots];
+        this.cursor = bucket(Timings.currentTimeMillis());
+    }
+
+    /**
+     * Adds a key. A key that is already in the wheel needs to be removed first.
+     *
+     * @param key
+     *            The key
+     * @param expiration
+     *            The time in milliseconds when the key expires
+     */
+    public synchronized void add(final Number640 key, final long expiration) {
+        final long bucket = bucket(expiration);
+        if (bucket < cursor + slots.length) {
+            if (slot(Math.max(bucket, cursor)).put(key, expiration) == null) {
+                wheelSize++;
+                size++;
+            }
+        } else {
+            Map<Number640, Long> tmp = overflow.get(bucket);
+            if (tmp == null) {
+                tmp = new HashMap<Number640, Long>();
+                overflow.put(bucket, tmp);
+            }
+            if (tmp.put(key, expiration) == null) {
+                size++;
+            }
+        }
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @param key
+     *            The key
+     * @param expiration
+     *            The expiration that the key has been added with
+     * @return True if the key was in the wheel with this expiration
+     */
+    public synchronized boolean remove(final Number640 key, final long expiration) {
+        final long bucket = bucket(expiration);
+        if (bucket < cursor + slots.length) {
+            if (!remove(slots[(int) (Math.max(bucket, cursor) & mask)], key, expiration)) {
+                return false;
+            }
+            wheelSize--;
+        } else {
+            final Map<Number640, Long> tmp = overflow.get(bucket);
+            if (!remove(tmp, key, expiration)) {
+                return false;
+            }
+            if (tmp.isEmpty()) {
+                overflow.remove(bucket);
+            }
+        }
+        size--;
+        return true;
+    }
+
+    private static boolean remove(final Map<Number640, Long> slot, final Number640 key, final long expiration) {
+        if (slot == null) {
+            return false;
+        }
+        final Long tmp = slot.get(key);
+        if (tmp == null || tmp.longValue() != expiration) {
+            return false;
+        }
+        slot.remove(key);
+        return true;
+    }
+
+    /**
+     * Finds the keys that expire before a time. The keys stay in the wheel until they are removed.
+     *
+     * @param to
+     *            The time in milliseconds, exclusive
+     * @param limit
+     *            The maximum number of keys
+     * @return The keys that expire before the time, at most limit keys
+     */
+    public synchronized List<Number640> expired(final long to, final int limit) {
+        final List<Number640> result = new ArrayList<Number640>(Math.min(limit, Math.min(size, 1024)));
+        if (limit <= 0) {
+            return result;
+        }
+        advance(to);
+        for (long bucket = cursor; bucket < cursor + slots.length && bucket * bucketMillis < to; bucket++) {
+            if (collect(slots[(int) (bucket & mask)], to, limit, result)) {
+                return result;
+            }
+        }
+        // only if the cursor is stuck at keys that have not been removed
+        for (Map<Number640, Long> tmp : overflow.headMap(bucket(to), true).values()) {
+            if (collect(tmp, to, limit, result)) {
+                return result;
+            }
+        }
+        return result;
+    }
+
+    private static boolean collect(final Map<Number640, Long> slot, final long to, final int limit,
+            final List<Number640> result) {
+        if (slot == null) {
+            return false;
+        }
+        for (Map.Entry<Number640, Long> entry : slot.entrySet()) {
+            if (entry.getValue() < to) {
+                result.add(entry.getKey());
+                if (result.size() >= limit) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Advances the cursor over the empty slots that are over, and skips to the time or to the next overflow if the
+     * wheel is empty.
+     */
+    private void advance(final long to) {
+        final long now = bucket(to);
+        while (cursor < now && isEmpty(slots[(int) (cursor & mask)])) {
+            slots[(int) (cursor & mask)] = null;
+            if (wheelSize == 0) {
+                cursor = overflow.isEmpty() ? now : Math.max(cursor + 1, Math.min(now, overflow.firstKey()));
+            } else {
+                cursor++;
+            }
+            while (!overflow.isEmpty() && overflow.firstKey() < cursor + slots.length) {
+                final Map.Entry<Long, Map<Number640, Long>> entry = overflow.pollFirstEntry();
+                final Map<Number640, Long> slot = slot(Math.max(entry.getKey(), cursor));
+                slot.putAll(entry.getValue());
+                wheelSize += entry.getValue().size();
+            }
+        }
+    }
+
+    private static boolean isEmpty(final Map<Number640, Long> slot) {
+        return slot == null || slot.isEmpty();
+    }
+
+    private Map<Number640, Long> slot(final long bucket) {
+        final int index = (int) (bucket & mask);
+        Map<Number640, Long> slot = slots[index];
+        if (slot == null) {
+            slot = new HashMap<Number640, Long>();
+            slots[index] = slot;
+        }
+        return slot;
+    }
+
+    private long bucket(final long millis) {
+        return Math.max(0, millis) / bucketMillis;
+    }
+
+    /**
+     * @return The number of keys
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Removes all keys.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = null;
+        }
+        overflow.clear();
+        cursor = bucket(Timings.currentTimeMillis());
+        wheelSize = 0;
+        size = 0;
+    }
+}
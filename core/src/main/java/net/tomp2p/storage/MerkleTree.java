@@ -0,0 +1,324 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.utils.Utils;
+
+/**
+ * A Merkle tree over the stored entries, which is updated with each put and remove, see
+ * {@link StorageLayer#merkleTree(MerkleTree)}. The tree splits the space of the location keys by their leading bits,
+ * with 16 children per node, and each leaf covers a range of location keys. Below the leaves, the tree keeps one hash
+ * per location key.
+ * <p>
+ * The hash of an entry is the hash of its key and the hash of its data, and the hash of a node or a location key is
+ * the XOR of the hashes of all entries below it. Thus, an update only needs to XOR the hash of the entry into the
+ * nodes on its path, and two peers that store the same entries in a range have the same hashes for that range. Peers
+ * compare the hashes of the nodes and only descend into the nodes that differ, so a synchronization costs in the
+ * order of the difference and not in the order of the number of entries.
+ *
+ * @author Thomas Bocek
+ */
+public class MerkleTree {
+
+    /**
+     * The number of bits of the location key per level.
+     */
+    public static final int BITS_PER_LEVEL = 4;
+
+    /**
+     * The number of children of a node.
+     */
+    public static final int FANOUT = 1 << BITS_PER_LEVEL;
+
+    /**
+     * The default number of levels below the root, which results in 4096 leaves.
+     */
+    public static final int DEFAULT_LEVELS = 3;
+
+    private static final int INTS = Number160.INT_ARRAY_SIZE;
+
+    private final int levels;
+
+    // the index of the first node of each level, the nodes of a level are in the order of their location keys
+    private final int[] offsets;
+
+    // the hashes of the nodes, INTS per node, guarded by this
+    private final int[] hashes;
+
+    // the number of entries of each node, guarded by this
+    private final int[] counts;
+
+    // the hash and the number of entries of each location key, guarded by this
+    private final TreeMap<Number160, int[]> locations = new TreeMap<Number160, int[]>();
+
+    /**
+     * Creates a tree with the default number of levels.
+     */
+    public MerkleTree() {
+        this(DEFAULT_LEVELS);
+    }
+
+    /**
+     * @param levels
+     *            The number of levels below the root. More levels mean smaller leaves, but more memory, as the nodes
+     *            of all levels are kept in arrays
+     */
+    public MerkleTree(final int levels) {
+        if (levels < 0 || levels * BITS_PER_LEVEL > Integer.SIZE - 2) {
+            throw new IllegalArgumentException("The number of levels must be between 0 and "
+                    + ((Integer.SIZE - 2) / BITS_PER_LEVEL));
+        }
+        this.levels = levels;
+        this.offsets = new int[levels + 1];
+        int nodes = 0;
+        for (int level = 0; level <= levels; level++) {
+            offsets[level] = nodes;
+            nodes += 1 << (level * BITS_PER_LEVEL);
+        }
+        this.hashes = new int[nodes * INTS];
+        this.counts = new int[nodes];
+    }
+
+    /**
+     * @return The number of levels below the root, the leaves are on this level
+     */
+    public int levels() {
+        return levels;
+    }
+
+    /**
+     * @param level
+     *            The level
+     * @return The number of nodes on this level
+     */
+    public static int size(final int level) {
+        return 1 << (level * BITS_PER_LEVEL);
+    }
+
+    /**
+     * @param locationKey
+     *            The location key
+     * @param level
+     *            The level
+     * @return The index of the node on this level that covers the location key
+     */
+    public static int index(final Number160 locationKey, final int level) {
+        if (level == 0) {
+            return 0;
+        }
+        return locationKey.toIntArray()[0] >>> (Integer.SIZE - level * BITS_PER_LEVEL);
+    }
+
+    /**
+     * @param level
+     *            The level
+     * @param index
+     *            The index of the node on this level
+     * @return The smallest location key that is covered by the node
+     */
+    public static Number160 from(final int level, final int index) {
+        if (level == 0) {
+            return Number160.ZERO;
+        }
+        return new Number160(index << (Integer.SIZE - level * BITS_PER_LEVEL), 0, 0, 0, 0);
+    }
+
+    /**
+     * @param level
+     *            The level
+     * @param index
+     *            The index of the node on this level
+     * @return The largest location key that is covered by the node
+     */
+    public static Number160 to(final int level, final int index) {
+        if (level == 0) {
+            return Number160.MAX_VALUE;
+        }
+        final int shift = Integer.SIZE - level * BITS_PER_LEVEL;
+        return new Number160((index << shift) | ((1 << shift) - 1), -1, -1, -1, -1);
+    }
+
+    /**
+     * @param key
+     *            The key of an entry
+     * @param dataHash
+     *            The hash of the data of the entry, see {@link Data#hash()}
+     * @return The hash of the entry
+     */
+    public static Number160 entryHash(final Number640 key, final Number160 dataHash) {
+        final ByteBuffer buffer = ByteBuffer.allocate(5 * Number160.BYTE_ARRAY_SIZE);
+        buffer.put(key.getLocationKey().toByteArray());
+        buffer.put(key.getDomainKey().toByteArray());
+        buffer.put(key.getContentKey().toByteArray());
+        buffer.put(key.getVersionKey().toByteArray());
+        buffer.put(dataHash.toByteArray());
+        buffer.flip();
+        return Utils.makeSHAHash(buffer);
+    }
+
+    /**
+     * Adds an entry to the tree.
+     *
+     * @param key
+     *            The key of the entry
+     * @param dataHash
+     *            The hash of the data of the entry
+     */
+    public void add(final Number640 key, final Number160 dataHash) {
+        update(key.getLocationKey(), entryHash(key, dataHash).toIntArray(), 1);
+    }
+
+    /**
+     * Removes an entry from the tree. The entry must have been added with the same hash of the data.
+     *
+     * @param key
+     *            The key of the entry
+     * @param dataHash
+     *            The hash of the data of the entry
+     */
+    public void remove(final Number640 key, final Number160 dataHash) {
+        update(key.getLocationKey(), entryHash(key, dataHash).toIntArray(), -1);
+    }
+
+    private synchronized void update(final Number160 locationKey, final int[] entryHash, final int delta) {
+        final int top = locationKey.toIntArray()[0];
+        for (int level = 0; level <= levels; level++) {
+            final int index = level == 0 ? 0 : top >>> (Integer.SIZE - level * BITS_PER_LEVEL);
+            final int node = offsets[level] + index;
+            xor(hashes, node * INTS, entryHash);
+            counts[node] += delta;
+        }
+        int[] location = locations.get(locationKey);
+        if (location == null) {
+            location = new int[INTS + 1];
+            locations.put(locationKey, location);
+        }
+        xor(location, 0, entryHash);
+        location[INTS] += delta;
+        if (location[INTS] <= 0) {
+            locations.remove(locationKey);
+        }
+    }
+
+    private static void xor(final int[] target, final int offset, final int[] entryHash) {
+        for (int i = 0; i < INTS; i++) {
+            target[offset + i] ^= entryHash[i];
+        }
+    }
+
+    /**
+     * @return The hash of all entries
+     */
+    public Number160 root() {
+        return hash(0, 0);
+    }
+
+    /**
+     * @param level
+     *            The level
+     * @param index
+     *            The index of the node on this level
+     * @return The hash of the node, which is zero if the node has no entries
+     */
+    public synchronized Number160 hash(final int level, final int index) {
+        final int offset = node(level, index) * INTS;
+        return new Number160(hashes[offset], hashes[offset + 1], hashes[offset + 2], hashes[offset + 3],
+                hashes[offset + 4]);
+    }
+
+    /**
+     * @param level
+     *            The level
+     * @param index
+     *            The index of the node on this level
+     * @return The number of entries below the node
+     */
+    public synchronized int count(final int level, final int index) {
+        return counts[node(level, index)];
+    }
+
+    /**
+     * @param level
+     *            The level of a node that is not a leaf
+     * @param index
+     *            The index of the node on this level
+     * @return The hashes of the children that have entries, by their index on the next level
+     */
+    public synchronized Map<Integer, Number160> children(final int level, final int index) {
+        if (level >= levels) {
+            throw new IllegalArgumentException("A leaf has no children");
+        }
+        final Map<Integer, Number160> children = new TreeMap<Integer, Number160>();
+        final int first = index << BITS_PER_LEVEL;
+        for (int child = first; child < first + FANOUT; child++) {
+            if (counts[node(level + 1, child)] > 0) {
+                final int offset = node(level + 1, child) * INTS;
+                children.put(child, new Number160(hashes[offset], hashes[offset + 1], hashes[offset + 2],
+                        hashes[offset + 3], hashes[offset + 4]));
+            }
+        }
+        return children;
+    }
+
+    /**
+     * @param locationKey
+     *            The location key
+     * @return The hash of all entries of the location key, or null if there are none
+     */
+    public synchronized Number160 locationHash(final Number160 locationKey) {
+        final int[] location = locations.get(locationKey);
+        return location == null ? null : new Number160(location[0], location[1], location[2], location[3],
+                location[4]);
+    }
+
+    /**
+     * @param from
+     *            The smallest location key
+     * @param to
+     *            The largest location key
+     * @return The hashes of the location keys in the range that have entries
+     */
+    public synchronized NavigableMap<Number160, Number160> locationHashes(final Number160 from, final Number160 to) {
+        final NavigableMap<Number160, Number160> result = new TreeMap<Number160, Number160>();
+        for (Map.Entry<Number160, int[]> entry : locations.subMap(from, true, to, true).entrySet()) {
+            final int[] location = entry.getValue();
+            result.put(entry.getKey(), new Number160(location[0], location[1], location[2], location[3],
+                    location[4]));
+        }
+        return result;
+    }
+
+    /**
+     * @return The number of location keys that have entries
+     */
+    public synchronized int locationCount() {
+        return locations.size();
+    }
+
+    private int node(final int level, final int index) {
+        if (level < 0 || level > levels || index < 0 || index >= size(level)) {
+            throw new IllegalArgumentException("No node " + index + " on level " + level);
+        }
+        return offsets[level] + index;
+    }
+}
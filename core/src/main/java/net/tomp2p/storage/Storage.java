@@ -29,9 +29,7 @@ import net.tomp2p.peers.Number640;
  * stores the values which are present in the DHT. If you plan to do transactions (put/get), make sure you do the
  * locking in order to not interfere with other threads that use this map. Although the storage is threadsafe, there may
  * be concurrency issues with respect to transactions (e.g., do a get before a put). Please use
- * {@link StorageLayer#getLockStorage()} for full locking, and {@link StorageLayer#getLockNumber160()},
- * {@link StorageLayer#getLockNumber320()}, {@link StorageLayer#getLockNumber480()},
- * {@link StorageLayer#getLockNumber640()} for fine grained locking.
+ * {@link StorageLayer#getLock()}, which locks per location key, or {@link StripedLock#lockAll()} for full locking.
  * 
  * 
  * @author Thomas Bocek
@@ -64,6 +62,15 @@ public interface Storage extends ReplicationStorage {
 
     public abstract Collection<Number640> subMapTimeout(long to);
 
+    /**
+     * @param to
+     *            The time in milliseconds, exclusive
+     * @param limit
+     *            The maximum number of keys
+     * @return The keys that expire before the time, at most limit keys, so that they can be removed in batches
+     */
+    public abstract Collection<Number640> subMapTimeout(long to, int limit);
+
     // Domain / entry protection
     public abstract boolean protectDomain(Number320 key, PublicKey publicKey);
 
@@ -21,10 +21,14 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.NavigableSet;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number320;
@@ -43,6 +47,10 @@ public class StorageLayer {
 
 	private static final Logger LOG = LoggerFactory.getLogger(StorageLayer.class);
 
+	// The maximum number of expired entries that are removed at once, so that
+	// the maintenance task does not block the timer for long
+	public static final int EXPIRY_BATCH = 10000;
+
 	public enum ProtectionEnable {
 		ALL, NONE
 	};
@@ -72,22 +80,59 @@ public class StorageLayer {
 	// anyone
 	final private Collection<Number160> removedDomains = new HashSet<Number160>();
 
-	final private KeyLock<Storage> dataLock = new KeyLock<Storage>();
-
-	final private KeyLock<Number160> dataLock160 = new KeyLock<Number160>();
-
-	final private KeyLock<Number320> dataLock320 = new KeyLock<Number320>();
+	// Locked by location key, so that a range operation within a location key
+	// sees a consistent state. Reads hold the lock only while they take their
+	// references to the payloads, so that a write cannot release a payload
+	// before the reader has its own reference.
+	final private StripedLock<Number160> dataLock = new StripedLock<Number160>();
 
-	final private KeyLock<Number480> dataLock480 = new KeyLock<Number480>();
+	// Incremented after each change, for the lock stripe of the location key
+	// and in total, see version(). Always incremented while the lock is held.
+	final private AtomicLongArray versions = new AtomicLongArray(dataLock.size());
 
-	final private KeyLock<Number640> dataLock640 = new KeyLock<Number640>();
+	final private AtomicLong version = new AtomicLong();
 
 	final private Storage backend;
 
+	// optional, updated while the lock of the location key is held
+	private volatile MerkleTree merkleTree = null;
+
 	public StorageLayer(Storage backend) {
 		this.backend = backend;
 	}
 
+	/**
+	 * Sets the Merkle tree that is updated with each put and remove, so that
+	 * replicas can compare their data by ranges. The entries that are already
+	 * stored are added to the tree.
+	 * 
+	 * @param merkleTree
+	 *            The empty Merkle tree or null to stop updating a tree
+	 * @return This class
+	 */
+	public StorageLayer merkleTree(MerkleTree merkleTree) {
+		StripedLock<Number160>.Stripe lock = dataLock.lockAll();
+		try {
+			if (merkleTree != null) {
+				for (Map.Entry<Number640, Data> entry : backend.map().entrySet()) {
+					merkleTree.add(entry.getKey(), entry.getValue().hash());
+				}
+			}
+			this.merkleTree = merkleTree;
+		} finally {
+			lock.unlock();
+		}
+		return this;
+	}
+
+	/**
+	 * @return The Merkle tree of the stored entries or null if none is
+	 *         maintained
+	 */
+	public MerkleTree merkleTree() {
+		return merkleTree;
+	}
+
 	public void setProtection(ProtectionEnable protectionDomainEnable, ProtectionMode protectionDomainMode,
 	        ProtectionEnable protectionEntryEnable, ProtectionMode protectionEntryMode) {
 		setProtectionDomainEnable(protectionDomainEnable);
@@ -139,7 +184,7 @@ public class StorageLayer {
 	public Enum<?> put(final Number640 key, Data newData, PublicKey publicKey, boolean putIfAbsent,
 	        boolean domainProtection) {
 		boolean retVal = false;
-		KeyLock<Number640>.RefCounterLock lock = dataLock640.lock(key);
+		StripedLock<Number160>.Stripe lock = dataLock.lock(key.getLocationKey());
 		try {
 			if (!securityDomainCheck(key.locationAndDomainKey(), publicKey, publicKey, domainProtection)) {
 				return PutStatus.FAILED_SECURITY;
@@ -153,20 +198,31 @@ public class StorageLayer {
 			if (putIfAbsent && contains) {
 				return PutStatus.FAILED_NOT_ABSENT;
 			}
+			final MerkleTree merkleTree = this.merkleTree;
+			// the backend releases the old data object when it is overwritten
+			final Data oldData = merkleTree != null && contains ? backend.get(key) : null;
+			final Number160 oldHash = oldData != null ? oldData.hash() : null;
 			retVal = backend.put(key, newData);
 			if (retVal) {
 				long expiration = newData.expirationMillis();
 				// handle timeout
 				backend.addTimeout(key, expiration);
+				if (merkleTree != null) {
+					if (oldHash != null) {
+						merkleTree.remove(key, oldHash);
+					}
+					merkleTree.add(key, newData.hash());
+				}
 			}
 		} finally {
-			dataLock640.unlock(lock);
+			changed(key.getLocationKey());
+			lock.unlock();
 		}
 		return retVal ? PutStatus.OK : PutStatus.FAILED;
 	}
 
 	public Pair<Data, Enum<?>> remove(Number640 key, PublicKey publicKey, boolean returnData) {
-		KeyLock<Number640>.RefCounterLock lock = dataLock640.lock(key);
+		StripedLock<Number160>.Stripe lock = dataLock.lock(key.getLocationKey());
 		try {
 			if (!canClaimDomain(key.locationAndDomainKey(), publicKey)) {
 				return new Pair<Data, Enum<?>>(null, PutStatus.FAILED_SECURITY);
@@ -179,55 +235,99 @@ public class StorageLayer {
 			}
 			backend.removeTimeout(key);
 			backend.removeResponsibility(key.getLocationKey());
-			return new Pair<Data, Enum<?>>(backend.remove(key, returnData), PutStatus.OK);
+			final MerkleTree merkleTree = this.merkleTree;
+			final Data data = backend.remove(key, returnData || merkleTree != null);
+			if (merkleTree != null && data != null) {
+				merkleTree.remove(key, data.hash());
+			}
+			if (!returnData && data != null) {
+				data.release();
+				return new Pair<Data, Enum<?>>(null, PutStatus.OK);
+			}
+			return new Pair<Data, Enum<?>>(data, PutStatus.OK);
 		} finally {
-			dataLock640.unlock(lock);
+			changed(key.getLocationKey());
+			lock.unlock();
 		}
 	}
 
+	/**
+	 * @param key
+	 *            The key of the data object
+	 * @return A duplicate of the stored data object or null if none is
+	 *         stored. The duplicate holds its own reference to the payload and
+	 *         has to be released by the caller
+	 */
 	public Data get(Number640 key) {
-		KeyLock<Number640>.RefCounterLock lock = dataLock640.lock(key);
+		StripedLock<Number160>.Stripe lock = dataLock.lock(key.getLocationKey());
 		try {
-			return getInternal(key);
+			final Data data = backend.get(key);
+			return data == null ? null : data.duplicate();
 		} finally {
-			dataLock640.unlock(lock);
+			lock.unlock();
 		}
 	}
 
-	private Data getInternal(Number640 key) {
-		return backend.get(key);
-	}
-
+	/**
+	 * @return Duplicates of the stored data objects in the range, see
+	 *         {@link #get(Number640)}. The caller has to release them, e.g.,
+	 *         with {@link Utils#release(Map)}
+	 */
 	public NavigableMap<Number640, Data> get(Number640 from, Number640 to, int limit, boolean ascending) {
-		KeyLock<?>.RefCounterLock lock = findAndLock(from, to);
+		StripedLock<Number160>.Stripe lock = findAndLock(from, to);
 		try {
-			return backend.subMap(from, to, limit, ascending);
+			return duplicate(backend.subMap(from, to, limit, ascending));
 		} finally {
 			lock.unlock();
 		}
 	}
 
+	/**
+	 * @return Duplicates of all stored data objects, see
+	 *         {@link #get(Number640)}. The caller has to release them, e.g.,
+	 *         with {@link Utils#release(Map)}
+	 */
 	public NavigableMap<Number640, Data> get() {
-		KeyLock<Storage>.RefCounterLock lock = dataLock.lock(backend);
+		StripedLock<Number160>.Stripe lock = dataLock.lockAll();
 		try {
-			return backend.map();
+			return duplicate(backend.map());
 		} finally {
 			lock.unlock();
 		}
 	}
 
-	public boolean contains(Number640 key) {
-		KeyLock<Number640>.RefCounterLock lock = dataLock640.lock(key);
-		try {
-			return backend.contains(key);
-		} finally {
-			dataLock640.unlock(lock);
+	/**
+	 * @return The keys of all stored data objects, without taking references
+	 *         to the payloads
+	 */
+	public NavigableSet<Number640> keySet() {
+		return new TreeSet<Number640>(backend.map().keySet());
+	}
+
+	/**
+	 * Must be called while the location keys of the map are locked, so that
+	 * no write releases a payload before it is duplicated.
+	 */
+	private static NavigableMap<Number640, Data> duplicate(NavigableMap<Number640, Data> map) {
+		final NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>(map.comparator());
+		for (Map.Entry<Number640, Data> entry : map.entrySet()) {
+			retVal.put(entry.getKey(), entry.getValue().duplicate());
 		}
+		return retVal;
+	}
+
+	public boolean contains(Number640 key) {
+		return backend.contains(key);
 	}
 
+	/**
+	 * @return Duplicates of the stored data objects in the range that match
+	 *         the bloom filters, see {@link #get(Number640)}. The caller has to
+	 *         release them, e.g., with {@link Utils#release(Map)}
+	 */
 	public Map<Number640, Data> get(Number640 from, Number640 to, SimpleBloomFilter<Number160> contentBloomFilter,
 	        SimpleBloomFilter<Number160> versionBloomFilter, int limit, boolean ascending, boolean isBloomFilterAnd) {
-		KeyLock<?>.RefCounterLock lock = findAndLock(from, to);
+		StripedLock<Number160>.Stripe lock = findAndLock(from, to);
 		try {
 			NavigableMap<Number640, Data> tmp = backend.subMap(from, to, limit, ascending);
 			Iterator<Map.Entry<Number640, Data>> iterator = tmp.entrySet().iterator();
@@ -252,38 +352,23 @@ public class StorageLayer {
 					}
 				}
 			}
-
-			return tmp;
+			return duplicate(tmp);
 		} finally {
 			lock.unlock();
 		}
 	}
 
-	private KeyLock<?>.RefCounterLock findAndLock(Number640 from, Number640 to) {
+	private StripedLock<Number160>.Stripe findAndLock(Number640 from, Number640 to) {
 		if (!from.getLocationKey().equals(to.getLocationKey())) {
-			// everything is different, return a 640 lock
-			KeyLock<Storage>.RefCounterLock lock = dataLock.lock(backend);
-			return lock;
-		} else if (!from.getDomainKey().equals(to.getDomainKey())) {
-			// location key is the same, rest is different
-			KeyLock<Number160>.RefCounterLock lock = dataLock160.lock(from.getLocationKey());
-			return lock;
-		} else if (!from.getContentKey().equals(to.getContentKey())) {
-			// location and domain key are same, rest is different
-			KeyLock<Number320>.RefCounterLock lock = dataLock320.lock(from.locationAndDomainKey());
-			return lock;
-		} else if (!from.getVersionKey().equals(to.getVersionKey())) {
-			// location, domain, and content key are the same, rest is different
-			KeyLock<Number480>.RefCounterLock lock = dataLock480.lock(from.locationDomainAndContentKey());
-			return lock;
+			// the range spans multiple location keys
+			return dataLock.lockAll();
 		} else {
-			KeyLock<Number640>.RefCounterLock lock = dataLock640.lock(from);
-			return lock;
+			return dataLock.lock(from.getLocationKey());
 		}
 	}
 
 	public SortedMap<Number640, Data> removeReturnData(Number640 from, Number640 to, PublicKey publicKey) {
-		KeyLock<?>.RefCounterLock lock = findAndLock(from, to);
+		StripedLock<Number160>.Stripe lock = findAndLock(from, to);
 		try {
 			Map<Number640, Data> tmp = backend.subMap(from, to, -1, true);
 
@@ -298,12 +383,17 @@ public class StorageLayer {
 				}
 			}
 			SortedMap<Number640, Data> result = backend.remove(from, to, true);
+			final MerkleTree merkleTree = this.merkleTree;
 			for (Map.Entry<Number640, Data> entry : result.entrySet()) {
 				Data data = entry.getValue();
+				if (merkleTree != null) {
+					merkleTree.remove(entry.getKey(), data.hash());
+				}
 				if (data.publicKey() == null || data.publicKey().equals(publicKey)) {
 					backend.removeTimeout(entry.getKey());
 					backend.removeResponsibility((entry.getKey().getLocationKey()));
 				}
+				changed(entry.getKey().getLocationKey());
 			}
 			return result;
 		} finally {
@@ -312,7 +402,7 @@ public class StorageLayer {
 	}
 
 	public SortedMap<Number640, Byte> removeReturnStatus(Number640 from, Number640 to, PublicKey publicKey) {
-		KeyLock<?>.RefCounterLock lock = findAndLock(from, to);
+		StripedLock<Number160>.Stripe lock = findAndLock(from, to);
 		try {
 			Map<Number640, Data> tmp = backend.subMap(from, to, -1, true);
 			SortedMap<Number640, Byte> result = new TreeMap<Number640, Byte>();
@@ -326,31 +416,50 @@ public class StorageLayer {
 		}
 	}
 
+	/**
+	 * Removes all expired entries, in batches of {@link #EXPIRY_BATCH}.
+	 */
 	public void checkTimeout() {
+		while (checkTimeout(EXPIRY_BATCH) >= EXPIRY_BATCH) {
+			// more entries may have expired
+		}
+	}
+
+	/**
+	 * Removes expired entries.
+	 * 
+	 * @param limit
+	 *            The maximum number of entries to remove
+	 * @return The number of removed entries, if this is the limit, more
+	 *         entries may have expired
+	 */
+	public int checkTimeout(int limit) {
 		long time = Timings.currentTimeMillis();
-		Collection<Number640> toRemove = backend.subMapTimeout(time);
+		Collection<Number640> toRemove = backend.subMapTimeout(time, limit);
 		if (toRemove.size() > 0) {
 			for (Number640 key : toRemove) {
-				KeyLock<Number640>.RefCounterLock lock = dataLock640.lock(key);
-				try {
-					backend.remove(key, false);
-					backend.removeTimeout(key);
-				} finally {
-					lock.unlock();
-				}
-				// remove responsibility if we don't have any data stored under
-				// locationkey
 				Number160 locationKey = key.getLocationKey();
-				KeyLock<Number160>.RefCounterLock lock1 = dataLock160.lock(locationKey);
+				StripedLock<Number160>.Stripe lock = dataLock.lock(locationKey);
 				try {
+					final MerkleTree merkleTree = this.merkleTree;
+					final Data data = backend.remove(key, merkleTree != null);
+					if (merkleTree != null && data != null) {
+						merkleTree.remove(key, data.hash());
+						data.release();
+					}
+					backend.removeTimeout(key);
+					// remove responsibility if we don't have any data stored
+					// under locationkey
 					if (isEmpty(locationKey)) {
 						backend.removeResponsibility(locationKey);
 					}
 				} finally {
-					lock1.unlock();
+					changed(locationKey);
+					lock.unlock();
 				}
 			}
 		}
+		return toRemove.size();
 	}
 
 	private boolean isEmpty(Number160 locationKey) {
@@ -362,26 +471,23 @@ public class StorageLayer {
 
 	public DigestInfo digest(Number640 from, Number640 to, int limit, boolean ascending) {
 		DigestInfo digestInfo = new DigestInfo();
-		KeyLock<?>.RefCounterLock lock = findAndLock(from, to);
-		try {
-			Map<Number640, Data> tmp = backend.subMap(from, to, limit, ascending);
-			for (Map.Entry<Number640, Data> entry : tmp.entrySet()) {
-				Number160 basedOn = entry.getValue().basedOn();
-				digestInfo.put(entry.getKey(), basedOn == null ? Number160.ZERO : basedOn);
-			}
-			return digestInfo;
-		} finally {
-			lock.unlock();
+		Map<Number640, Data> tmp = backend.subMap(from, to, limit, ascending);
+		for (Map.Entry<Number640, Data> entry : tmp.entrySet()) {
+			Number160 basedOn = entry.getValue().basedOn();
+			digestInfo.put(entry.getKey(), basedOn == null ? Number160.ZERO : basedOn);
 		}
+		return digestInfo;
 	}
 
 	public DigestInfo digest(Number320 locationAndDomainKey, SimpleBloomFilter<Number160> keyBloomFilter,
 	        SimpleBloomFilter<Number160> contentBloomFilter, int limit, boolean ascending, boolean isBloomFilterAnd) {
 		DigestInfo digestInfo = new DigestInfo();
-		KeyLock<Number320>.RefCounterLock lock = dataLock320.lock(locationAndDomainKey);
+		Number640 from = new Number640(locationAndDomainKey, Number160.ZERO, Number160.ZERO);
+		Number640 to = new Number640(locationAndDomainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
+		// the hash may be calculated from the payload, which must not be
+		// released in the meantime
+		StripedLock<Number160>.Stripe lock = dataLock.lock(locationAndDomainKey.getLocationKey());
 		try {
-			Number640 from = new Number640(locationAndDomainKey, Number160.ZERO, Number160.ZERO);
-			Number640 to = new Number640(locationAndDomainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
 			Map<Number640, Data> tmp = backend.subMap(from, to, limit, ascending);
 			for (Map.Entry<Number640, Data> entry : tmp.entrySet()) {
 				if (isBloomFilterAnd) {
@@ -400,24 +506,21 @@ public class StorageLayer {
 					}
 				}
 			}
-			return digestInfo;
 		} finally {
 			lock.unlock();
 		}
+		return digestInfo;
 	}
 
 	public DigestInfo digest(Collection<Number640> number640s) {
 		DigestInfo digestInfo = new DigestInfo();
 		for (Number640 number640 : number640s) {
-			KeyLock<Number640>.RefCounterLock lock = dataLock640.lock(number640);
-			try {
-				if (backend.contains(number640)) {
-					Data data = getInternal(number640);
-					Number160 basedOn = data.basedOn();
-					digestInfo.put(number640, basedOn == null ? Number160.ZERO : basedOn);
-				}
-			} finally {
-				lock.unlock();
+			// no contains() before the get(), the entry may be removed in
+			// between
+			Data data = backend.get(number640);
+			if (data != null) {
+				Number160 basedOn = data.basedOn();
+				digestInfo.put(number640, basedOn == null ? Number160.ZERO : basedOn);
 			}
 		}
 		return digestInfo;
@@ -527,35 +630,36 @@ public class StorageLayer {
 		return key.equals(Utils.makeSHAHash(publicKey.getEncoded()));
 	}
 
-	public KeyLock<Storage> getLockStorage() {
+	/**
+	 * @return The lock that protects writes, striped by location key
+	 */
+	public StripedLock<Number160> getLock() {
 		return dataLock;
 	}
 
-	public KeyLock<Number160> getLockNumber160() {
-		return dataLock160;
-	}
-
-	public KeyLock<Number320> getLockNumber320() {
-		return dataLock320;
-	}
-
-	public KeyLock<Number480> getLockNumber480() {
-		return dataLock480;
-	}
-
 	public Collection<Number160> findContentForResponsiblePeerID(Number160 peerID) {
 		return backend.findContentForResponsiblePeerID(peerID);
 	}
 
 	private class StorageMaintenanceTask implements Runnable {
+		private final ScheduledExecutorService timer;
+
+		private StorageMaintenanceTask(ScheduledExecutorService timer) {
+			this.timer = timer;
+		}
+
 		@Override
 		public void run() {
-			checkTimeout();
+			// one batch per run, the next batch is queued behind the other
+			// tasks of the timer
+			if (checkTimeout(EXPIRY_BATCH) >= EXPIRY_BATCH && !timer.isShutdown()) {
+				timer.execute(this);
+			}
 		}
 	}
 
 	public void init(ScheduledExecutorService timer, int storageIntervalMillis) {
-		timer.scheduleAtFixedRate(new StorageMaintenanceTask(), storageIntervalMillis, storageIntervalMillis,
+		timer.scheduleAtFixedRate(new StorageMaintenanceTask(timer), storageIntervalMillis, storageIntervalMillis,
 		        TimeUnit.MILLISECONDS);
 	}
 
@@ -568,7 +672,7 @@ public class StorageLayer {
 
 	public Enum<?> updateMeta(PublicKey publicKey, Number640 key, Data newData) {
 		boolean found = false;
-		KeyLock<Number640>.RefCounterLock lock = dataLock640.lock(key);
+		StripedLock<Number160>.Stripe lock = dataLock.lock(key.getLocationKey());
 		try {
 			if (!securityEntryCheck(key.locationDomainAndContentKey(), publicKey, newData.publicKey(),
 			        newData.isProtectedEntry())) {
@@ -593,8 +697,36 @@ public class StorageLayer {
 			// handle timeout
 			backend.addTimeout(key, expiration);
 		} finally {
-			dataLock640.unlock(lock);
+			changed(key.getLocationKey());
+			lock.unlock();
 		}
 		return found ? PutStatus.OK : PutStatus.NOT_FOUND;
 	}
+
+	/**
+	 * Returns a version that changes whenever data of the location key may
+	 * have changed. If the version is read before reading the data and is the
+	 * same later, the data read has not changed in between. Location keys share
+	 * versions, so a version may also change if other data changed.
+	 * 
+	 * @param locationKey
+	 *            The location key
+	 * @return The version of the location key
+	 */
+	public long version(Number160 locationKey) {
+		return versions.get(dataLock.index(locationKey));
+	}
+
+	/**
+	 * @return A version that changes whenever any data may have changed, see
+	 *         {@link #version(Number160)}
+	 */
+	public long version() {
+		return version.get();
+	}
+
+	private void changed(Number160 locationKey) {
+		versions.incrementAndGet(dataLock.index(locationKey));
+		version.incrementAndGet();
+	}
 }
\ No newline at end of file
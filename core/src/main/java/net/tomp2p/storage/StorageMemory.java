@@ -17,14 +17,10 @@
 package net.tomp2p.storage;
 
 import java.security.PublicKey;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NavigableMap;
-import java.util.Set;
-import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
@@ -34,6 +30,13 @@ import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.Number480;
 import net.tomp2p.peers.Number640;
 
+/**
+ * A storage that keeps everything on the heap. The storage holds its own reference to each stored data object, so the
+ * caller keeps the ownership of the object that it puts. The stored object is released once it is removed or
+ * overwritten, unless a remove returns it, which hands it over to the caller. The objects returned by the other methods
+ * are only valid until they are removed or overwritten, a caller that keeps one beyond that takes a
+ * {@link Data#duplicate()}.
+ */
 public class StorageMemory implements Storage {
 
     // Core
@@ -41,7 +44,7 @@ public class StorageMemory implements Storage {
 
     // Maintenance
     final private Map<Number640, Long> timeoutMap = new ConcurrentHashMap<Number640, Long>();
-    final private ConcurrentSkipListMap<Long, Set<Number640>> timeoutMapRev = new ConcurrentSkipListMap<Long, Set<Number640>>();
+    final private ExpiryWheel expiryWheel = new ExpiryWheel();
 
     // Protection
     final private Map<Number320, PublicKey> protectedMap = new ConcurrentHashMap<Number320, PublicKey>();
@@ -51,10 +54,24 @@ public class StorageMemory implements Storage {
     // Core
     @Override
     public boolean put(Number640 key, Data value) {
-        dataMap.put(key, value);
+        // StorageLayer.updateMeta stores the same object again
+        final Data stored = dataMap.get(key) == value ? value : store(value);
+        final Data old = dataMap.put(key, stored);
+        if (old != null && old != stored) {
+            old.release();
+        }
         return true;
     }
 
+    /**
+     * @param value
+     *            The data object to store, owned by the caller
+     * @return The data object that is stored, which holds its own reference to the payload
+     */
+    protected Data store(Data value) {
+        return value.duplicate();
+    }
+
     @Override
     public Data get(Number640 key) {
         return dataMap.get(key);
@@ -73,14 +90,30 @@ public class StorageMemory implements Storage {
 
     @Override
     public Data remove(Number640 key, boolean returnData) {
-    	return dataMap.remove(key);
+        final Data data = dataMap.remove(key);
+        if (data != null && !returnData) {
+            data.release();
+            return null;
+        }
+        return data;
     }
 
     @Override
     public NavigableMap<Number640, Data> remove(Number640 fromKey, Number640 toKey, boolean returnData) {
         NavigableMap<Number640, Data> tmp = dataMap.subMap(fromKey, true, toKey, true);
-        NavigableMap<Number640, Data> copy = new TreeMap<Number640, Data>(tmp);
-        tmp.clear();
+        NavigableMap<Number640, Data> copy = new TreeMap<Number640, Data>();
+        Iterator<Map.Entry<Number640, Data>> iterator = tmp.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Number640, Data> entry = iterator.next();
+            // only the thread that removes an entry owns it
+            if (dataMap.remove(entry.getKey(), entry.getValue())) {
+                if (returnData) {
+                    copy.put(entry.getKey(), entry.getValue());
+                } else {
+                    entry.getValue().release();
+                }
+            }
+        }
         return copy;
     }
 
@@ -112,13 +145,10 @@ public class StorageMemory implements Storage {
     @Override
     public void addTimeout(Number640 key, long expiration) {
         Long oldExpiration = timeoutMap.put(key, expiration);
-        Set<Number640> tmp = putIfAbsent2(expiration,
-                Collections.newSetFromMap(new ConcurrentHashMap<Number640, Boolean>()));
-        tmp.add(key);
-        if (oldExpiration == null) {
-            return;
+        if (oldExpiration != null) {
+            expiryWheel.remove(key, oldExpiration);
         }
-        removeRevTimeout(key, oldExpiration);
+        expiryWheel.add(key, expiration);
     }
 
     @Override
@@ -127,27 +157,17 @@ public class StorageMemory implements Storage {
         if (expiration == null) {
             return;
         }
-        removeRevTimeout(key, expiration);
+        expiryWheel.remove(key, expiration);
     }
 
-    private void removeRevTimeout(Number640 key, Long expiration) {
-        Set<Number640> tmp = timeoutMapRev.get(expiration);
-        if (tmp != null) {
-            tmp.remove(key);
-            if (tmp.isEmpty()) {
-                timeoutMapRev.remove(expiration);
-            }
-        }
+    @Override
+    public Collection<Number640> subMapTimeout(long to) {
+        return expiryWheel.expired(to, Integer.MAX_VALUE);
     }
 
     @Override
-    public Collection<Number640> subMapTimeout(long to) {
-        SortedMap<Long, Set<Number640>> tmp = timeoutMapRev.subMap(0L, to);
-        Collection<Number640> toRemove = new ArrayList<Number640>();
-        for (Set<Number640> set : tmp.values()) {
-            toRemove.addAll(set);
-        }
-        return toRemove;
+    public Collection<Number640> subMapTimeout(long to, int limit) {
+        return expiryWheel.expired(to, limit);
     }
 
     // Protection
@@ -166,11 +186,6 @@ public class StorageMemory implements Storage {
         return !other.equals(publicKey);
     }
 
-    private Set<Number640> putIfAbsent2(long expiration, Set<Number640> hashSet) {
-        Set<Number640> timeouts = timeoutMapRev.putIfAbsent(expiration, hashSet);
-        return timeouts == null ? hashSet : timeouts;
-    }
-
     @Override
     public Number160 findPeerIDForResponsibleContent(Number160 locationKey) {
         return storageMemoryReplication.findPeerIDForResponsibleContent(locationKey);
@@ -194,10 +209,14 @@ public class StorageMemory implements Storage {
     // Misc
     @Override
     public void close() {
-        dataMap.clear();
+        for (Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
+            if (dataMap.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().release();
+            }
+        }
         protectedMap.clear();
         timeoutMap.clear();
-        timeoutMapRev.clear();
+        expiryWheel.clear();
     }
 
 	@Override
@@ -40,7 +40,7 @@ public class StorageMemoryReplication implements ReplicationStorage {
     // maps peerid to content (locationKey)
     final private Map<Number160, Set<Number160>> responsibilityMapRev = new ConcurrentHashMap<Number160, Set<Number160>>();
 
-    final private KeyLock<Number160> responsibilityLock = new KeyLock<Number160>();
+    final private StripedLock<Number160> responsibilityLock = new StripedLock<Number160>();
 
     public Number160 findPeerIDForResponsibleContent(Number160 locationKey) {
         return responsibilityMap.get(locationKey);
@@ -51,11 +51,11 @@ public class StorageMemoryReplication implements ReplicationStorage {
         if (contentIDs == null) {
             return Collections.<Number160> emptyList();
         } else {
-            KeyLock<Number160>.RefCounterLock lock = responsibilityLock.lock(peerID);
+            StripedLock<Number160>.Stripe lock = responsibilityLock.lock(peerID);
             try {
                 return new ArrayList<Number160>(contentIDs);
             } finally {
-                responsibilityLock.unlock(lock);
+                lock.unlock();
             }
         }
     }
@@ -67,22 +67,22 @@ public class StorageMemoryReplication implements ReplicationStorage {
         boolean isNew = true;
         Number160 oldPeerId = responsibilityMap.put(locationKey, peerId);
         // add to the reverse map
-        KeyLock<Number160>.RefCounterLock lock1 = responsibilityLock.lock(peerId);
+        StripedLock<Number160>.Stripe lock1 = responsibilityLock.lock(peerId);
         try {
             Set<Number160> contentIDs = putIfAbsent1(peerId, new HashSet<Number160>());
             contentIDs.add(locationKey);
         } finally {
-            responsibilityLock.unlock(lock1);
+            lock1.unlock();
         }
         if (oldPeerId != null) {
             isNew = !oldPeerId.equals(peerId);
             if (isNew) {
-                KeyLock<Number160>.RefCounterLock lock2 = responsibilityLock.lock(oldPeerId);
+                StripedLock<Number160>.Stripe lock2 = responsibilityLock.lock(oldPeerId);
                 try {
                     // clean up reverse map
                     removeRevResponsibility(oldPeerId, locationKey);
                 } finally {
-                    responsibilityLock.unlock(lock2);
+                    lock2.unlock();
                 }
             }
         }
@@ -100,11 +100,11 @@ public class StorageMemoryReplication implements ReplicationStorage {
         if (peerId == null) {
             return;
         }
-        KeyLock<Number160>.RefCounterLock lock = responsibilityLock.lock(peerId);
+        StripedLock<Number160>.Stripe lock = responsibilityLock.lock(peerId);
         try {
             removeRevResponsibility(peerId, locationKey);
         } finally {
-            responsibilityLock.unlock(lock);
+            lock.unlock();
         }
     }
 
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import net.tomp2p.peers.Number640;
+
+/**
+ * A storage that keeps the sorted key index, the timeouts, and the protection
+ * information on the heap, but the payload of the data objects in direct
+ * buffers. Thus, large values do not add up to the heap size and do not have
+ * to be scanned by the garbage collector. The payload is copied to a direct
+ * buffer when it is stored, and the buffer is returned to the allocator when
+ * the data object is removed, overwritten, or expires, or when the last
+ * reference that was taken from the stored object is released. Since this
+ * class inherits the maps from {@link StorageMemory}, it supports the full
+ * {@link Storage} interface and can be used as a drop-in replacement.
+ * <p>
+ * The key index is the skip list of {@link StorageMemory}. It holds only the
+ * keys and a small data object per entry, while the payloads usually make up
+ * most of the heap, so they are moved off-heap and the index is not. A more
+ * compact index, e.g., sorted arrays of packed keys, is not provided.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class StorageOffHeap extends StorageMemory {
+
+    private final ByteBufAllocator alloc;
+
+    /**
+     * Creates an off-heap storage that uses the default pooled allocator.
+     */
+    public StorageOffHeap() {
+        this(PooledByteBufAllocator.DEFAULT);
+    }
+
+    /**
+     * Creates an off-heap storage.
+     *
+     * @param alloc
+     *            The allocator for the direct buffers that hold the payload
+     */
+    public StorageOffHeap(final ByteBufAllocator alloc) {
+        this.alloc = alloc;
+    }
+
+    @Override
+    protected Data store(final Data value) {
+        return value.copy(alloc);
+    }
+}
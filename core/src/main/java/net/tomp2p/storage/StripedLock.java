@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed number of locks, where a key is mapped to a lock by its hash. There is no global lock and no allocation
+ * when locking, unlike a map of locks per key. Two keys may share the same lock, which is fine as long as the lock is not held
+ * while waiting for something else. All locks can be acquired at once for operations that span many keys. The locks
+ * are always acquired in ascending order, thus, {@link #lockAll()} does not deadlock with {@link #lock(Object)}.
+ *
+ * @author Thomas Bocek
+ *
+ * @param <K>
+ *            The type of the key
+ */
+public class StripedLock<K> {
+
+    public static final int DEFAULT_STRIPES = 256;
+
+    /**
+     * A range of locks that are held together.
+     */
+    public final class Stripe {
+        private final int from;
+        private final int to;
+
+        private Stripe(final int from, final int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        private Stripe lock() {
+            for (int i = from; i <= to; i++) {
+                locks[i].lock();
+            }
+            return this;
+        }
+
+        public void unlock() {
+            for (int i = to; i >= from; i--) {
+                locks[i].unlock();
+            }
+        }
+    }
+
+    private final ReentrantLock[] locks;
+
+    private final Stripe[] stripes;
+
+    private final Stripe all;
+
+    private final int mask;
+
+    /**
+     * Creates a striped lock with {@link #DEFAULT_STRIPES} locks.
+     */
+    public StripedLock() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param nrStripes
+     *            The number of locks, will be rounded up to the next power of two
+     */
+    public StripedLock(final int nrStripes) {
+        int size = 1;
+        while (size < nrStripes) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.locks = new ReentrantLock[size];
+        this.stripes = new StripedLock.Stripe[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+            stripes[i] = new Stripe(i, i);
+        }
+        this.all = new Stripe(0, size - 1);
+    }
+
+    /**
+     * @param key
+     *            The key to lock
+     * @return The locked stripe, call {@link Stripe#unlock()} in a finally block
+     */
+    public Stripe lock(final K key) {
+        return stripes[index(key)].lock();
+    }
+
+    /**
+     * @return All stripes locked, call {@link Stripe#unlock()} in a finally block
+     */
+    public Stripe lockAll() {
+        return all.lock();
+    }
+
+    public int size() {
+        return locks.length;
+    }
+
+    /**
+     * @param key
+     *            The key
+     * @return The index of the lock of the key, from 0 to {@link #size()} - 1
+     */
+    int index(final K key) {
+        // spread the bits, as in ConcurrentHashMap
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h & mask;
+    }
+}
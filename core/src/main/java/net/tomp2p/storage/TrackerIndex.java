@@ -0,0 +1,550 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.storage;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.tomp2p.message.TrackerData;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.utils.Timings;
+
+/**
+ * A compact index of the peers of the swarms on a tracker, see {@link TrackerStorage}. A swarm is a location and
+ * domain key. Each peer is stored once and referenced by a number, which is found by its peer ID in an open addressing
+ * table. A swarm keeps the numbers of its peers and the expiration of each membership in int arrays, and each peer
+ * keeps its swarms, so that a peer that goes offline can be removed from all swarms. Thus, a membership costs about
+ * {@link #MEMBERSHIP_BYTES} bytes instead of a map entry, a peer address and an attachment.
+ * <p>
+ * A membership expires after the timeout unless the peer is stored again, and expired memberships are removed when
+ * their swarm is accessed. The memory is bounded by an estimate of the bytes: if the index grows beyond the bound, the
+ * least recently used swarms are evicted. All methods are synchronized, as the operations are short.
+ *
+ * @author Thomas Bocek
+ */
+public class TrackerIndex {
+
+    /**
+     * The default max. number of bytes.
+     */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * The estimated bytes of a swarm: its key, the swarm, the map entry and the empty arrays.
+     */
+    public static final int SWARM_BYTES = 200;
+
+    /**
+     * The estimated bytes of a peer: the peer address with its peer ID and IP address, the slot in the table and the
+     * array of its swarms.
+     */
+    public static final int PEER_BYTES = 240;
+
+    /**
+     * The estimated bytes of a membership: the number of the peer and the expiration in the swarm, the swarm in the
+     * array of the peer, and the unused capacity of the arrays.
+     */
+    public static final int MEMBERSHIP_BYTES = 16;
+
+    /**
+     * The estimated bytes of an attachment in addition to its length.
+     */
+    public static final int ATTACHMENT_BYTES = 64;
+
+    private static final int EMPTY = -1;
+
+    private final int timeoutSeconds;
+
+    private final long maxBytes;
+
+    private final long startMillis = Timings.currentTimeMillis();
+
+    // the swarms in access order, the eldest is evicted first
+    private final LinkedHashMap<Number320, Swarm> swarms = new LinkedHashMap<Number320, Swarm>(16, 0.75f, true);
+
+    // the peers by number, with the swarms of each peer
+    private PeerAddress[] peers = new PeerAddress[16];
+    private Swarm[][] peerSwarms = new Swarm[16][];
+    private int[] peerSwarmCount = new int[16];
+
+    // the numbers that are not used below nextPeer
+    private int[] freePeers = new int[16];
+    private int freePeerCount = 0;
+    private int nextPeer = 0;
+    private int peerCount = 0;
+
+    // the numbers of the peers by peer ID, open addressing with linear probing
+    private int[] table = newTable(32);
+
+    private long memberships = 0;
+    private long bytes = 0;
+
+    /**
+     * @param timeoutSeconds
+     *            The time after which a membership expires unless it is stored again
+     * @param maxBytes
+     *            The max. estimated number of bytes
+     */
+    public TrackerIndex(final int timeoutSeconds, final long maxBytes) {
+        this.timeoutSeconds = timeoutSeconds;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Adds a peer to a swarm or updates its address, attachment and expiration.
+     *
+     * @param key
+     *            The location and domain key of the swarm
+     * @param peerAddress
+     *            The peer
+     * @param attachment
+     *            The attachment or null
+     * @param maxSize
+     *            A new peer is only added if the swarm has not more peers than this
+     * @return False if the swarm is full
+     */
+    public synchronized boolean put(final Number320 key, final PeerAddress peerAddress, final Data attachment,
+            final int maxSize) {
+        final int now = now();
+        Swarm swarm = swarms.get(key);
+        if (swarm != null && expire(swarm, now)) {
+            swarm = null;
+        }
+        int peer = find(peerAddress.getPeerId());
+        final int index = peer == EMPTY || swarm == null ? -1 : swarm.indexOf(peer);
+        if (index >= 0) {
+            peers[peer] = peerAddress;
+            swarm.expirations[index] = now + timeoutSeconds;
+            bytes += attachmentBytes(attachment) - attachmentBytes(swarm.attachment(index));
+            swarm.attachment(index, attachment(attachment));
+            return true;
+        }
+        if (swarm != null && swarm.size > maxSize) {
+            return false;
+        }
+        if (swarm == null) {
+            swarm = new Swarm(key);
+            swarms.put(key, swarm);
+            bytes += SWARM_BYTES;
+        }
+        if (peer == EMPTY) {
+            peer = intern(peerAddress);
+        } else {
+            peers[peer] = peerAddress;
+        }
+        swarm.add(peer, now + timeoutSeconds, attachment(attachment));
+        addSwarm(peer, swarm);
+        memberships++;
+        bytes += MEMBERSHIP_BYTES + attachmentBytes(attachment);
+        evict(swarm);
+        return true;
+    }
+
+    /**
+     * @param key
+     *            The location and domain key of the swarm
+     * @return A copy of the peers of the swarm with their attachments, or null if there are none
+     */
+    public synchronized Map<PeerAddress, Data> peers(final Number320 key) {
+        final Swarm swarm = swarms.get(key);
+        if (swarm == null || expire(swarm, now())) {
+            return null;
+        }
+        final Map<PeerAddress, Data> result = new HashMap<PeerAddress, Data>(swarm.size * 2);
+        for (int i = 0; i < swarm.size; i++) {
+            final Data attachment = swarm.attachment(i);
+            result.put(peers[swarm.peers[i]], attachment == null ? TrackerData.EMTPY_DATA : attachment);
+        }
+        return result;
+    }
+
+    /**
+     * @param key
+     *            The location and domain key of the swarm
+     * @return The number of peers of the swarm
+     */
+    public synchronized int size(final Number320 key) {
+        final Swarm swarm = swarms.get(key);
+        if (swarm == null || expire(swarm, now())) {
+            return 0;
+        }
+        return swarm.size;
+    }
+
+    /**
+     * @param key
+     *            The location and domain key of the swarm
+     * @param peerId
+     *            The peer ID
+     * @return True if the peer is in the swarm
+     */
+    public synchronized boolean contains(final Number320 key, final Number160 peerId) {
+        final Swarm swarm = swarms.get(key);
+        if (swarm == null || expire(swarm, now())) {
+            return false;
+        }
+        final int peer = find(peerId);
+        return peer != EMPTY && swarm.indexOf(peer) >= 0;
+    }
+
+    /**
+     * Removes a peer from a swarm.
+     *
+     * @param key
+     *            The location and domain key of the swarm
+     * @param peerId
+     *            The peer ID
+     * @return The peer with its attachment or null if the peer was not in the swarm
+     */
+    public synchronized Map.Entry<PeerAddress, Data> remove(final Number320 key, final Number160 peerId) {
+        final Swarm swarm = swarms.get(key);
+        final int peer = find(peerId);
+        if (swarm == null || peer == EMPTY) {
+            return null;
+        }
+        final int index = swarm.indexOf(peer);
+        if (index < 0) {
+            return null;
+        }
+        final PeerAddress peerAddress = peers[peer];
+        final Data attachment = swarm.attachment(index);
+        removeMembership(swarm, index);
+        removeIfEmpty(swarm);
+        return new AbstractMap.SimpleImmutableEntry<PeerAddress, Data>(peerAddress,
+                attachment == null ? TrackerData.EMTPY_DATA : attachment);
+    }
+
+    /**
+     * Removes a peer from all swarms.
+     *
+     * @param peerId
+     *            The peer ID
+     * @return True if the peer was in a swarm
+     */
+    public synchronized boolean remove(final Number160 peerId) {
+        final int peer = find(peerId);
+        if (peer == EMPTY) {
+            return false;
+        }
+        final Swarm[] tmp = Arrays.copyOf(peerSwarms[peer], peerSwarmCount[peer]);
+        for (Swarm swarm : tmp) {
+            removeMembership(swarm, swarm.indexOf(peer));
+            removeIfEmpty(swarm);
+        }
+        return tmp.length > 0;
+    }
+
+    /**
+     * @param locationKey
+     *            The location key
+     * @return The domain keys of the swarms with this location key
+     */
+    public synchronized Collection<Number160> domainKeys(final Number160 locationKey) {
+        final Collection<Number160> result = new ArrayList<Number160>();
+        for (Number320 key : swarms.keySet()) {
+            if (key.getLocationKey().equals(locationKey)) {
+                result.add(key.getDomainKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The number of swarms
+     */
+    public synchronized int swarms() {
+        return swarms.size();
+    }
+
+    /**
+     * @return The number of distinct peers
+     */
+    public synchronized int peers() {
+        return peerCount;
+    }
+
+    /**
+     * @return The number of memberships of peers in swarms
+     */
+    public synchronized long memberships() {
+        return memberships;
+    }
+
+    /**
+     * @return The estimated number of bytes
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Removes the expired memberships of a swarm.
+     *
+     * @return True if the swarm is empty and has been removed
+     */
+    private boolean expire(final Swarm swarm, final int now) {
+        // backwards, as the last membership is moved to a removed one
+        for (int i = swarm.size - 1; i >= 0; i--) {
+            if (swarm.expirations[i] <= now) {
+                removeMembership(swarm, i);
+            }
+        }
+        return removeIfEmpty(swarm);
+    }
+
+    /**
+     * Evicts the least recently used swarms until the bytes are below the bound, but not the swarm that has been
+     * changed.
+     */
+    private void evict(final Swarm current) {
+        final Iterator<Swarm> iterator = swarms.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            final Swarm swarm = iterator.next();
+            if (swarm == current) {
+                break;
+            }
+            for (int i = swarm.size - 1; i >= 0; i--) {
+                removeMembership(swarm, i);
+            }
+            iterator.remove();
+            bytes -= SWARM_BYTES;
+        }
+    }
+
+    private boolean removeIfEmpty(final Swarm swarm) {
+        if (swarm.size > 0) {
+            return false;
+        }
+        swarms.remove(swarm.key);
+        bytes -= SWARM_BYTES;
+        return true;
+    }
+
+    private void removeMembership(final Swarm swarm, final int index) {
+        final int peer = swarm.peers[index];
+        bytes -= MEMBERSHIP_BYTES + attachmentBytes(swarm.attachment(index));
+        memberships--;
+        swarm.remove(index);
+        final Swarm[] tmp = peerSwarms[peer];
+        final int count = --peerSwarmCount[peer];
+        for (int i = 0; i <= count; i++) {
+            if (tmp[i] == swarm) {
+                tmp[i] = tmp[count];
+                tmp[count] = null;
+                break;
+            }
+        }
+        if (count == 0) {
+            release(peer);
+        }
+    }
+
+    private void addSwarm(final int peer, final Swarm swarm) {
+        Swarm[] tmp = peerSwarms[peer];
+        final int count = peerSwarmCount[peer];
+        if (tmp == null) {
+            tmp = new Swarm[2];
+            peerSwarms[peer] = tmp;
+        } else if (count == tmp.length) {
+            tmp = Arrays.copyOf(tmp, count * 2);
+            peerSwarms[peer] = tmp;
+        }
+        tmp[count] = swarm;
+        peerSwarmCount[peer] = count + 1;
+    }
+
+    private int intern(final PeerAddress peerAddress) {
+        final int peer;
+        if (freePeerCount > 0) {
+            peer = freePeers[--freePeerCount];
+        } else {
+            if (nextPeer == peers.length) {
+                final int length = peers.length * 2;
+                peers = Arrays.copyOf(peers, length);
+                peerSwarms = Arrays.copyOf(peerSwarms, length);
+                peerSwarmCount = Arrays.copyOf(peerSwarmCount, length);
+            }
+            peer = nextPeer++;
+        }
+        peers[peer] = peerAddress;
+        if ((peerCount + 1) * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        final int mask = table.length - 1;
+        int slot = hash(peerAddress.getPeerId()) & mask;
+        while (table[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = peer;
+        peerCount++;
+        bytes += PEER_BYTES;
+        return peer;
+    }
+
+    private void release(final int peer) {
+        final int mask = table.length - 1;
+        int gap = hash(peers[peer].getPeerId()) & mask;
+        while (table[gap] != peer) {
+            gap = (gap + 1) & mask;
+        }
+        // move the following entries of the probe sequence back into the gap
+        for (int next = (gap + 1) & mask; table[next] != EMPTY; next = (next + 1) & mask) {
+            final int home = hash(peers[table[next]].getPeerId()) & mask;
+            // the entry has to stay if its home is cyclically in (gap, next]
+            if (gap < next ? (home <= gap || home > next) : (home <= gap && home > next)) {
+                table[gap] = table[next];
+                gap = next;
+            }
+        }
+        table[gap] = EMPTY;
+        peers[peer] = null;
+        peerSwarms[peer] = null;
+        if (freePeerCount == freePeers.length) {
+            freePeers = Arrays.copyOf(freePeers, freePeerCount * 2);
+        }
+        freePeers[freePeerCount++] = peer;
+        peerCount--;
+        bytes -= PEER_BYTES;
+    }
+
+    private int find(final Number160 peerId) {
+        final int mask = table.length - 1;
+        int slot = hash(peerId) & mask;
+        while (true) {
+            final int peer = table[slot];
+            if (peer == EMPTY) {
+                return EMPTY;
+            }
+            if (peers[peer].getPeerId().equals(peerId)) {
+                return peer;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void rehash(final int length) {
+        final int[] old = table;
+        table = newTable(length);
+        final int mask = length - 1;
+        for (int peer : old) {
+            if (peer != EMPTY) {
+                int slot = hash(peers[peer].getPeerId()) & mask;
+                while (table[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = peer;
+            }
+        }
+    }
+
+    private static int[] newTable(final int length) {
+        final int[] table = new int[length];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+
+    private static int hash(final Number160 peerId) {
+        final int hash = peerId.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    private static Data attachment(final Data attachment) {
+        return attachment == null || attachment == TrackerData.EMTPY_DATA || attachment.length() == 0 ? null
+                : attachment;
+    }
+
+    private static long attachmentBytes(final Data attachment) {
+        return attachment(attachment) == null ? 0 : ATTACHMENT_BYTES + attachment.length();
+    }
+
+    private int now() {
+        return (int) ((Timings.currentTimeMillis() - startMillis) / 1000);
+    }
+
+    /**
+     * The peers of a swarm, which are a few dozens at most, so they are searched linearly.
+     */
+    private static final class Swarm {
+        private final Number320 key;
+        private int size = 0;
+        private int[] peers = new int[4];
+        private int[] expirations = new int[4];
+        // only created if a peer has an attachment
+        private Data[] attachments = null;
+
+        private Swarm(final Number320 key) {
+            this.key = key;
+        }
+
+        private int indexOf(final int peer) {
+            for (int i = 0; i < size; i++) {
+                if (peers[i] == peer) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private Data attachment(final int index) {
+            return attachments == null ? null : attachments[index];
+        }
+
+        private void attachment(final int index, final Data attachment) {
+            if (attachment != null && attachments == null) {
+                attachments = new Data[peers.length];
+            }
+            if (attachments != null) {
+                attachments[index] = attachment;
+            }
+        }
+
+        private void add(final int peer, final int expiration, final Data attachment) {
+            if (size == peers.length) {
+                peers = Arrays.copyOf(peers, size * 2);
+                expirations = Arrays.copyOf(expirations, size * 2);
+                if (attachments != null) {
+                    attachments = Arrays.copyOf(attachments, size * 2);
+                }
+            }
+            peers[size] = peer;
+            expirations[size] = expiration;
+            attachment(size, attachment);
+            size++;
+        }
+
+        private void remove(final int index) {
+            final int last = --size;
+            peers[index] = peers[last];
+            expirations[index] = expirations[last];
+            if (attachments != null) {
+                attachments[index] = attachments[last];
+                attachments[last] = null;
+            }
+        }
+    }
+}
@@ -16,7 +16,6 @@
 package net.tomp2p.storage;
 
 import java.security.PublicKey;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -44,6 +43,9 @@ import org.slf4j.LoggerFactory;
  * a Bloom filter with peers, that he knows are offline. TrackerStorage stores the data in memory only. TODO: check
  * availability of secondary peers and periodically check if peers from the mesh are still online, right now we rely on
  * the PeerMap mechanism
+ * <p>
+ * The mesh and the secondary peers are kept in a {@link TrackerIndex} each, which stores every peer once and is bounded
+ * in bytes.
  * 
  * @author draft
  */
@@ -65,16 +67,11 @@ public class TrackerStorage implements PeerStatusListener, Digest, ReplicationSt
     // K=location and domain, V=peerId and attachment
     private final ConcurrentMap<Number320, TrackerData> trackerDataActive;
 
-    private final ConcurrentCacheMap<Number320, TrackerData> trackerDataMesh;
+    // the indices know which peer is in which swarm, to remove an offline
+    // peer from the primary and secondary tracker
+    private final TrackerIndex trackerDataMesh;
 
-    private final ConcurrentCacheMap<Number320, TrackerData> trackerDataSecondary;
-
-    // for timeouts we need to know which peer stores what data to remove it
-    // from the primary and secondary tracker
-    // K=peerId of the offline peer, V=location and domain
-    private final ConcurrentCacheMap<Number160, Collection<Number320>> reverseTrackerDataMesh;
-
-    private final ConcurrentCacheMap<Number160, Collection<Number320>> reverseTrackerDataSecondary;
+    private final TrackerIndex trackerDataSecondary;
 
     // K=peerId of the offline peer, V=reporter
     private final ConcurrentCacheMap<Number160, Collection<Number160>> peerOffline;
@@ -102,20 +99,31 @@ public class TrackerStorage implements PeerStatusListener, Digest, ReplicationSt
 
     public TrackerStorage(IdentityManagement identityManagement, int trackerTimoutSeconds,
             Replication replication, Maintenance maintenance) {
+        this(identityManagement, trackerTimoutSeconds, replication, maintenance, TrackerIndex.DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param identityManagement
+     *            The identity of this peer and the public keys of the others
+     * @param trackerTimoutSeconds
+     *            The time after which a peer expires unless it is stored again
+     * @param replication
+     *            The replication of the tracker data, or null
+     * @param maintenance
+     *            The maintenance of the referred peers
+     * @param maxBytes
+     *            The max. estimated number of bytes of the mesh peers and of the secondary peers each, the least
+     *            recently used swarms are evicted beyond
+     */
+    public TrackerStorage(IdentityManagement identityManagement, int trackerTimoutSeconds,
+            Replication replication, Maintenance maintenance, long maxBytes) {
         this.trackerTimoutSeconds = trackerTimoutSeconds;
         this.identityManagement = identityManagement;
         this.replication = replication;
         this.maintenance = maintenance;
         trackerDataActive = new ConcurrentHashMap<Number320, TrackerData>();
-        trackerDataMesh = new ConcurrentCacheMap<Number320, TrackerData>(trackerTimoutSeconds,
-                TRACKER_CACHE_SIZE, true);
-        trackerDataSecondary = new ConcurrentCacheMap<Number320, TrackerData>(trackerTimoutSeconds,
-                TRACKER_CACHE_SIZE, true);
-        //
-        reverseTrackerDataMesh = new ConcurrentCacheMap<Number160, Collection<Number320>>(
-                trackerTimoutSeconds, TRACKER_CACHE_SIZE, true);
-        reverseTrackerDataSecondary = new ConcurrentCacheMap<Number160, Collection<Number320>>(
-                trackerTimoutSeconds, TRACKER_CACHE_SIZE, true);
+        trackerDataMesh = new TrackerIndex(trackerTimoutSeconds, maxBytes);
+        trackerDataSecondary = new TrackerIndex(trackerTimoutSeconds, maxBytes);
 
         // if everything is perfect, a factor of 2 is enough, to be on the safe
         // side factor 5 is used.
@@ -137,28 +145,20 @@ public class TrackerStorage implements PeerStatusListener, Digest, ReplicationSt
     }
 
     public TrackerData meshPeers(Number160 locationKey, Number160 domainKey) {
-        Number320 keys = new Number320(locationKey, domainKey);
-        TrackerData data = trackerDataMesh.get(keys);
-        if (data == null) {
+        // the index returns a copy
+        Map<PeerAddress, Data> peers = trackerDataMesh.peers(new Number320(locationKey, domainKey));
+        if (peers == null) {
             return null;
         }
-        // return a copy
-        synchronized (data) {
-            return new TrackerData(data.getPeerAddresses(), identityManagement.getPeerAddress());
-        }
-
+        return new TrackerData(peers, identityManagement.getPeerAddress());
     }
 
     public TrackerData secondaryPeers(Number160 locationKey, Number160 domainKey) {
-        Number320 keys = new Number320(locationKey, domainKey);
-        TrackerData data = trackerDataSecondary.get(keys);
-        if (data == null) {
+        Map<PeerAddress, Data> peers = trackerDataSecondary.peers(new Number320(locationKey, domainKey));
+        if (peers == null) {
             return null;
         }
-        // return a copy
-        synchronized (data) {
-            return new TrackerData(data.getPeerAddresses(), identityManagement.getPeerAddress());
-        }
+        return new TrackerData(peers, identityManagement.getPeerAddress());
     }
 
     public void addActive(Number160 locationKey, Number160 domainKey, PeerAddress remotePeer, Data attachement) {
@@ -208,8 +208,7 @@ public class TrackerStorage implements PeerStatusListener, Digest, ReplicationSt
         if (canStorePrimary(locationKey, domainKey, false)) {
             // we have space in our primary tracker, store them there!
             Number320 key = new Number320(locationKey, domainKey);
-            if (storeData(peerAddress, attachement, peerId, key, trackerDataMesh, reverseTrackerDataMesh,
-                    getPrimanyFactor())) {
+            if (trackerDataMesh.put(key, peerAddress, attachement, TRACKER_SIZE * getPrimanyFactor())) {
                 if (replication != null) {
                     replication.updateAndNotifyResponsibilities(locationKey);
                 }
@@ -230,15 +229,13 @@ public class TrackerStorage implements PeerStatusListener, Digest, ReplicationSt
 
     public boolean putReferred(Number160 locationKey, Number160 domainKey, PeerAddress peerAddress,
             PeerAddress referrer, Data attachement, ReferrerType type) {
-        Number160 peerId = peerAddress.getPeerId();
         // we cannot do public key check, because these data is referenced from
         // other peers and we don't know about the timeouts as well
         // store the data
         if (canStoreSecondary(locationKey, domainKey)) {
             // maybe we have space in our secondary tracker, store them there!
             Number320 key = new Number320(locationKey, domainKey);
-            if (storeData(peerAddress, attachement, peerId, key, trackerDataSecondary,
-                    reverseTrackerDataSecondary, getSecondaryFactor())) {
+            if (trackerDataSecondary.put(key, peerAddress, attachement, TRACKER_SIZE * getSecondaryFactor())) {
                 if (ReferrerType.MESH == type) {
                     if (!isSecondaryTracker(locationKey, domainKey)) {
                         maintenance
@@ -254,72 +251,13 @@ public class TrackerStorage implements PeerStatusListener, Digest, ReplicationSt
     public boolean moveFromSecondaryToMesh(PeerAddress peerAddress, PeerAddress referrer,
             Number160 locationKey, Number160 domainKey, PublicKey publicKey) {
         Number320 key = new Number320(locationKey, domainKey);
-        TrackerData map = trackerDataSecondary.get(key);
-        if (map == null) {
-            return false;
-        }
-        synchronized (map) {
-            Map.Entry<PeerAddress, Data> data = map.remove(peerAddress.getPeerId());
-            if (data != null) {
-                return put(locationKey, domainKey, data.getKey(), publicKey, data.getValue());
-            }
+        Map.Entry<PeerAddress, Data> data = trackerDataSecondary.remove(key, peerAddress.getPeerId());
+        if (data != null) {
+            return put(locationKey, domainKey, data.getKey(), publicKey, data.getValue());
         }
         return false;
     }
 
-    private boolean storeData(PeerAddress peerAddress, Data attachement, Number160 peerId, Number320 key,
-            ConcurrentMap<Number320, TrackerData> trackerData,
-            ConcurrentMap<Number160, Collection<Number320>> reverseTrackerData, int factor) {
-        TrackerData data = trackerData.get(key);
-        if (data == null) {
-            data = new TrackerData(new HashMap<PeerAddress, Data>(), null);
-            trackerData.put(key, data);
-        }
-
-        synchronized (data) {
-            if (data.size() > TRACKER_SIZE * factor) {
-                return false;
-            }
-            data.put(peerAddress, attachement);
-        }
-
-        Collection<Number320> collection = reverseTrackerData.get(peerId);
-        if (collection == null) {
-            collection = new HashSet<Number320>();
-        }
-        synchronized (collection) {
-            collection.add(key);
-        }
-
-        return true;
-    }
-
-    private boolean remove(Number160 peerId, ConcurrentMap<Number320, TrackerData> trackerData,
-            ConcurrentMap<Number160, Collection<Number320>> reverseTrackerData) {
-        boolean retVal = false;
-        Collection<Number320> collection = reverseTrackerData.remove(peerId);
-        if (collection == null) {
-            return false;
-        }
-        synchronized (collection) {
-            for (Number320 key : collection) {
-                TrackerData data = trackerData.get(key);
-                if (data == null) {
-                    continue;
-                }
-                synchronized (data) {
-                    if (data.remove(peerId) != null) {
-                        retVal = true;
-                    }
-                    if (data.size() == 0) {
-                        trackerData.remove(key);
-                    }
-                }
-            }
-        }
-        return retVal;
-    }
-
     private boolean canStorePrimary(Number160 locationKey, Number160 domainKey, boolean referred) {
         if (!referred || isFillPrimaryStorageFast()) {
             return sizePrimary(locationKey, domainKey) <= (TRACKER_SIZE * getPrimanyFactor());
@@ -333,24 +271,25 @@ public class TrackerStorage implements PeerStatusListener, Digest, ReplicationSt
     }
 
     public int sizePrimary(Number160 locationKey, Number160 domainKey) {
-        return size(locationKey, domainKey, trackerDataMesh);
+        return trackerDataMesh.size(new Number320(locationKey, domainKey));
     }
 
     public int sizeSecondary(Number160 locationKey, Number160 domainKey) {
-        return size(locationKey, domainKey, trackerDataSecondary);
+        return trackerDataSecondary.size(new Number320(locationKey, domainKey));
     }
 
-    private int size(Number160 locationKey, Number160 domainKey,
-            ConcurrentMap<Number320, TrackerData> trackerData) {
-        Number320 key = new Number320(locationKey, domainKey);
-        TrackerData data = trackerData.get(key);
-        if (data == null) {
-            return 0;
-        } else {
-            synchronized (data) {
-                return data.size();
-            }
-        }
+    /**
+     * @return The index of the mesh peers
+     */
+    public TrackerIndex meshIndex() {
+        return trackerDataMesh;
+    }
+
+    /**
+     * @return The index of the secondary peers
+     */
+    public TrackerIndex secondaryIndex() {
+        return trackerDataSecondary;
     }
 
     public void setSecondaryFactor(int secondaryFactor) {
@@ -377,8 +316,8 @@ public class TrackerStorage implements PeerStatusListener, Digest, ReplicationSt
 
     private void peerOffline(Number160 peerId, Number160 referrerId) {
         indicateOffline(peerId, referrerId);
-        remove(peerId, trackerDataMesh, reverseTrackerDataMesh);
-        remove(peerId, trackerDataSecondary, reverseTrackerDataSecondary);
+        trackerDataMesh.remove(peerId);
+        trackerDataSecondary.remove(peerId);
     }
 
     private void indicateOffline(Number160 peerId, Number160 referrerId) {
@@ -395,13 +334,11 @@ public class TrackerStorage implements PeerStatusListener, Digest, ReplicationSt
     }
 
     private DigestInfo digest(Number160 locationKey, Number160 domainKey) {
-        TrackerData data = trackerDataMesh.get(new Number320(locationKey, domainKey));
-        if (data == null) {
+        int size = trackerDataMesh.size(new Number320(locationKey, domainKey));
+        if (size == 0) {
             return EMPTY_DIGEST_INFO;
         }
-        synchronized (data) {
-            return new DigestInfo(data.size());
-        }
+        return new DigestInfo(size);
     }
 
     // TODO: merge with digest
@@ -410,17 +347,10 @@ public class TrackerStorage implements PeerStatusListener, Digest, ReplicationSt
         if (contentKey == null) {
             return digest(locationKey, domainKey);
         }
-        TrackerData data = trackerDataMesh.get(new Number320(locationKey, domainKey));
-        if (data == null) {
+        if (!trackerDataMesh.contains(new Number320(locationKey, domainKey), contentKey)) {
             return EMPTY_DIGEST_INFO;
         }
-        int counter = 0;
-        synchronized (data) {
-            if (data.containsKey(contentKey)) {
-                counter++;
-            }
-        }
-        return new DigestInfo(counter);
+        return new DigestInfo(1);
     }
 
     public void removeReferred(Number160 locationKey, Number160 domainKey, Number160 key, PeerAddress referrer) {
@@ -448,25 +378,12 @@ public class TrackerStorage implements PeerStatusListener, Digest, ReplicationSt
      * @return
      */
     public boolean isSecondaryTracker(Number160 locationKey, Number160 domainKey) {
-        Number320 keys = new Number320(locationKey, domainKey);
-        TrackerData data = trackerDataMesh.get(keys);
-        if (data == null)
-            return false;
-        // return a copy
-        synchronized (data) {
-            return data.containsKey(identityManagement.getSelf());
-        }
+        return trackerDataMesh.contains(new Number320(locationKey, domainKey), identityManagement.getSelf());
     }
 
     // TODO: seems a bit inefficient, but it works for the moment
     public Collection<Number160> responsibleDomains(Number160 locationKey) {
-        Collection<Number160> retVal = new ArrayList<Number160>();
-        for (Number320 number320 : trackerDataMesh.keySet()) {
-            if (number320.getLocationKey().equals(locationKey)) {
-                retVal.add(number320.getDomainKey());
-            }
-        }
-        return retVal;
+        return trackerDataMesh.domainKeys(locationKey);
     }
 
     @Override
@@ -171,11 +171,22 @@ public class Utils {
         }
     }
 
+    /**
+     * Reads a 160bit number from a Netty buffer. The number is read as 5 integers, thus, no intermediate byte array
+     * is needed.
+     *
+     * @param buf
+     *            The buffer to read from
+     * @return The 160bit number
+     */
+    public static Number160 readNumber160(final ByteBuf buf) {
+        return new Number160(buf.readInt(), buf.readInt(), buf.readInt(), buf.readInt(), buf.readInt());
+    }
+
     public static Number160 makeSHAHash(DataBuffer buffer) {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-1");
-            DataBuffer copy = buffer.shallowCopy();
-            for (ByteBuffer byteBuffer : copy.bufferList()) {
+            for (ByteBuffer byteBuffer : buffer.bufferList()) {
                 md.update(byteBuffer);
             }
             byte[] digest = md.digest();
@@ -186,6 +197,21 @@ public class Utils {
         }
     }
 
+    /**
+     * Releases the data objects of a map, e.g., the duplicates returned by the storage.
+     * 
+     * @param dataMap
+     *            The map with the data objects to release, may be null
+     */
+    public static void release(final Map<?, Data> dataMap) {
+        if (dataMap == null) {
+            return;
+        }
+        for (Data data : dataMap.values()) {
+            data.release();
+        }
+    }
+
     public static Number160 makeSHAHash(byte[] buffer) {
         return makeSHAHash(ByteBuffer.wrap(buffer));
     }
@@ -299,9 +325,9 @@ public class Utils {
         return obj;
     }
 
-    public static synchronized Object decodeJavaObject(DataBuffer dataBuffer) throws ClassNotFoundException, IOException {
-        
-        List<ByteBuffer> buffers = dataBuffer.shallowCopy().bufferList();
+    public static Object decodeJavaObject(DataBuffer dataBuffer) throws ClassNotFoundException, IOException {
+        // the NIO buffers are views of the payload, nothing is copied
+        List<ByteBuffer> buffers = dataBuffer.bufferList();
         int count = buffers.size();
         Vector<InputStream> is = new Vector<InputStream>(count);
         for (ByteBuffer byteBuffer : buffers) {
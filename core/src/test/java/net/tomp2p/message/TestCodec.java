@@ -1,8 +1,16 @@
 package net.tomp2p.message;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.net.InetAddress;
 import java.util.Random;
 
 import net.tomp2p.message.Message.Content;
+import net.tomp2p.message.Message.Type;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.storage.AlternativeCompositeByteBuf;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -28,6 +36,68 @@ public class TestCodec {
         }
     }
 
+    @Test
+    public void testRecycle() {
+        Message msg = new Message();
+        Assert.assertFalse(msg.recycle());
+
+        Message pooled = Message.newInstance();
+        pooled.setType(Type.OK).setCommand((byte) 5).setKey(Number160.ONE).setInteger(42).recycleOnDone(true);
+        Assert.assertTrue(pooled.hasContent());
+        pooled.recycle();
+        Assert.assertNull(pooled.getType());
+        Assert.assertEquals(0, pooled.getCommand());
+        Assert.assertNull(pooled.getContentTypes()[0]);
+        Assert.assertTrue(pooled.getKeyList().isEmpty());
+        Assert.assertFalse(pooled.hasContent());
+        Assert.assertFalse(pooled.isRecycleOnDone());
+    }
+
+    @Test
+    public void testDecoderReuse() throws Exception {
+        final InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        final PeerAddress sender = new PeerAddress(new Number160(1), localhost, 8001, 8002);
+        final PeerAddress recipient = new PeerAddress(new Number160(2), localhost, 8003, 8004);
+
+        Message m1 = new Message().setSender(sender).setRecipient(recipient).setType(Type.REQUEST_1);
+        m1.setKey(new Number160(3)).setInteger(7);
+        Message m2 = new Message().setSender(sender).setRecipient(recipient).setType(Type.OK);
+        m2.setLong(9L);
+
+        final ByteBuf buf1 = encode(m1);
+        final ByteBuf buf2 = encode(m2);
+        final Decoder decoder = new Decoder(null);
+
+        // an incomplete packet leaves state behind, which is cleared by reset
+        final ByteBuf partial = buf1.slice(0, buf1.readableBytes() - 1);
+        Assert.assertTrue(decoder.decodeHeader(partial, recipient.createSocketUDP(), sender.createSocketUDP()));
+        Assert.assertFalse(decoder.decodePayload(partial));
+        decoder.reset();
+
+        Assert.assertTrue(decoder.decodeHeader(buf2, recipient.createSocketUDP(), sender.createSocketUDP()));
+        Assert.assertTrue(decoder.decodePayload(buf2));
+        Message d2 = decoder.prepareFinish();
+        Assert.assertEquals(Long.valueOf(9L), d2.getLong(0));
+        Assert.assertTrue(d2.getKeyList().isEmpty());
+
+        Assert.assertTrue(decoder.decodeHeader(buf1, recipient.createSocketUDP(), sender.createSocketUDP()));
+        Assert.assertTrue(decoder.decodePayload(buf1));
+        Message d1 = decoder.prepareFinish();
+        Assert.assertEquals(new Number160(3), d1.getKey(0));
+        Assert.assertEquals(Integer.valueOf(7), d1.getInteger(0));
+        Assert.assertEquals(sender.getPeerId(), d1.getSender().getPeerId());
+        Assert.assertEquals(m1.getMessageId(), d1.getMessageId());
+    }
+
+    private static ByteBuf encode(final Message message) throws Exception {
+        final AlternativeCompositeByteBuf buf = AlternativeCompositeByteBuf.compBuffer();
+        new Encoder(null).write(buf, message);
+        final byte[] me = new byte[buf.readableBytes()];
+        buf.readBytes(me);
+        buf.release();
+        return Unpooled.wrappedBuffer(me);
+    }
+
     private void compare(Content[] types2, Content[] types1) {
         Assert.assertEquals(types1.length, types2.length);
         for(int i=0;i<types1.length;i++) {
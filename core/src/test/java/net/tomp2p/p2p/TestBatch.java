@@ -0,0 +1,113 @@
+package net.tomp2p.p2p;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Random;
+
+import net.tomp2p.Utils2;
+import net.tomp2p.futures.FutureBatch;
+import net.tomp2p.futures.FutureGet;
+import net.tomp2p.futures.FutureProgres;
+import net.tomp2p.futures.FuturePut;
+import net.tomp2p.p2p.builder.BatchPutBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestBatch {
+    final private static Random rnd = new Random(42L);
+
+    @Test
+    public void testBatchPutGet() throws Exception {
+        Peer master = null;
+        try {
+            Peer[] peers = Utils2.createNodes(20, rnd, 4001);
+            master = peers[0];
+            Utils2.perfectRouting(peers);
+            Collection<Number160> locationKeys = new ArrayList<Number160>();
+            BatchPutBuilder batchPut = peers[1].batchPut();
+            for (int i = 0; i < 100; i++) {
+                Number160 locationKey = Number160.createHash("key" + i);
+                locationKeys.add(locationKey);
+                batchPut.setData(locationKey, new Data("value" + i));
+            }
+            FutureBatch<Byte> futurePut = batchPut.start().awaitUninterruptibly();
+            Assert.assertTrue(futurePut.isSuccess());
+            Assert.assertEquals(100, futurePut.getResults().size());
+            Assert.assertTrue(futurePut.getMissingKeys().isEmpty());
+            // each key is stored on three peers, with one request per peer
+            int stored = 0;
+            for (Map<Number640, Byte> peerResult : futurePut.getRawData().values()) {
+                stored += peerResult.size();
+            }
+            Assert.assertEquals(300, stored);
+
+            // the data is stored on the responsible peers, so a regular get finds it
+            FutureGet futureGet = peers[5].get(Number160.createHash("key42")).start().awaitUninterruptibly();
+            Assert.assertEquals("value42", futureGet.getData().object());
+
+            Collection<Number160> withMissing = new ArrayList<Number160>(locationKeys);
+            withMissing.add(Number160.createHash("missing"));
+            FutureBatch<Data> futureBatch = peers[3].batchGet().setLocationKeys(withMissing)
+                    .setRouteMissing(false).start();
+            // the results are streamed per peer
+            int streamed = 0;
+            FutureProgres<Map<Number640, Data>> progres = futureBatch.getProgres();
+            while (progres != null) {
+                progres.awaitUninterruptibly();
+                streamed += progres.getObject().size();
+                progres = progres.getNext();
+            }
+            futureBatch.awaitUninterruptibly();
+            Assert.assertTrue(futureBatch.isSuccess());
+            Assert.assertEquals(100, streamed);
+            Assert.assertEquals(100, futureBatch.getResults().size());
+            Assert.assertEquals(Arrays.asList(new Number640(Number160.createHash("missing"), Number160.ZERO,
+                    Number160.ZERO, Number160.ZERO)), futureBatch.getMissingKeys());
+            Number640 key7 = new Number640(Number160.createHash("key7"), Number160.ZERO, Number160.ZERO,
+                    Number160.ZERO);
+            Assert.assertEquals("value7", futureBatch.getResults().get(key7).object());
+        } finally {
+            if (master != null) {
+                master.shutdown().await();
+            }
+        }
+    }
+
+    @Test
+    public void testBatchGetRouteMissing() throws Exception {
+        Peer master = null;
+        try {
+            Peer[] peers = Utils2.createNodes(21, rnd, 4001);
+            master = peers[0];
+            Peer[] network = Arrays.copyOf(peers, 20);
+            Utils2.perfectRouting(network);
+            // the client only knows the master
+            Peer client = peers[20];
+            client.getPeerBean().peerMap().peerFound(master.getPeerAddress(), null);
+            Collection<Number160> locationKeys = new ArrayList<Number160>();
+            for (int i = 0; i < 20; i++) {
+                Number160 locationKey = Number160.createHash("key" + i);
+                locationKeys.add(locationKey);
+                FuturePut futurePut = peers[1].put(locationKey).setData(new Data("value" + i)).start()
+                        .awaitUninterruptibly();
+                Assert.assertTrue(futurePut.isSuccess());
+            }
+
+            FutureBatch<Data> futureBatch = client.batchGet().setLocationKeys(locationKeys).start()
+                    .awaitUninterruptibly();
+            Assert.assertTrue(futureBatch.isSuccess());
+            Assert.assertEquals(20, futureBatch.getResults().size());
+            Assert.assertTrue(futureBatch.getMissingKeys().isEmpty());
+        } finally {
+            if (master != null) {
+                master.shutdown().await();
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package net.tomp2p.p2p;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import net.tomp2p.Utils2;
+import net.tomp2p.futures.FutureChunked;
+import net.tomp2p.futures.FutureGet;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.ChunkManifest;
+import net.tomp2p.storage.Data;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestChunked {
+    final private static Random rnd = new Random(42L);
+
+    @Test
+    public void testChunkedPutGet() throws Exception {
+        Peer master = null;
+        try {
+            Peer[] peers = Utils2.createNodes(20, rnd, 4001);
+            master = peers[0];
+            Utils2.perfectRouting(peers);
+            byte[] value = new byte[1024 * 1024 + 123];
+            rnd.nextBytes(value);
+            Number160 locationKey = Number160.createHash("large");
+
+            FutureChunked futurePut = peers[1].putChunked(locationKey).setValue(value).setChunkSize(64 * 1024)
+                    .start().awaitUninterruptibly();
+            Assert.assertTrue(futurePut.getFailedReason(), futurePut.isSuccess());
+            Assert.assertEquals(17, futurePut.getManifest().chunkKeys().size());
+            Assert.assertEquals(17, futurePut.getChunksDone());
+
+            // the chunks are spread over the peers
+            int peersWithChunks = 0;
+            for (Peer peer : peers) {
+                for (Number160 chunkKey : futurePut.getManifest().chunkKeys()) {
+                    if (peer.getPeerBean().storage()
+                            .contains(new Number640(chunkKey, Number160.ZERO, chunkKey, Number160.ZERO))) {
+                        peersWithChunks++;
+                        break;
+                    }
+                }
+            }
+            Assert.assertTrue(peersWithChunks > 5);
+
+            FutureChunked futureGet = peers[7].getChunked(locationKey).setConcurrency(4).start()
+                    .awaitUninterruptibly();
+            Assert.assertTrue(futureGet.getFailedReason(), futureGet.isSuccess());
+            Assert.assertArrayEquals(value, futureGet.getValue());
+            Assert.assertEquals(17, futureGet.getChunksDone());
+
+            // a regular get returns the manifest
+            FutureGet futureManifest = peers[3].get(locationKey).start().awaitUninterruptibly();
+            Assert.assertEquals(futurePut.getManifest().chunkKeys(),
+                    ChunkManifest.fromData(futureManifest.getData()).chunkKeys());
+
+            FutureChunked futureMissing = peers[7].getChunked(Number160.createHash("missing")).start()
+                    .awaitUninterruptibly();
+            Assert.assertTrue(futureMissing.isFailed());
+        } finally {
+            if (master != null) {
+                master.shutdown().await();
+            }
+        }
+    }
+
+    @Test
+    public void testChunkedStreaming() throws Exception {
+        Peer master = null;
+        try {
+            Peer[] peers = Utils2.createNodes(20, rnd, 4001);
+            master = peers[0];
+            Utils2.perfectRouting(peers);
+            byte[] value = new byte[1024 * 1024 + 123];
+            rnd.nextBytes(value);
+            Number160 locationKey = Number160.createHash("large");
+
+            // the chunks are read from the stream as they are stored
+            FutureChunked futurePut = peers[1].putChunked(locationKey)
+                    .setValue(new ByteArrayInputStream(value), value.length).setChunkSize(64 * 1024)
+                    .setConcurrency(2).start().awaitUninterruptibly();
+            Assert.assertTrue(futurePut.getFailedReason(), futurePut.isSuccess());
+            Assert.assertEquals(ChunkManifest.create(value, 64 * 1024).chunkKeys(),
+                    futurePut.getManifest().chunkKeys());
+
+            // the chunks are fetched as the stream is read
+            FutureChunked futureGet = peers[7].getChunked(locationKey).setConcurrency(2).setStreaming().start();
+            InputStream in = futureGet.getInputStream();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] b = new byte[10000];
+            int read;
+            while ((read = in.read(b)) >= 0) {
+                out.write(b, 0, read);
+            }
+            in.close();
+            futureGet.awaitUninterruptibly();
+            Assert.assertTrue(futureGet.getFailedReason(), futureGet.isSuccess());
+            Assert.assertNull(futureGet.getValue());
+            Assert.assertArrayEquals(value, out.toByteArray());
+            Assert.assertEquals(17, futureGet.getChunksDone());
+
+            // a stream that is shorter than announced fails the put
+            FutureChunked futureShort = peers[1].putChunked(Number160.createHash("short"))
+                    .setValue(new ByteArrayInputStream(new byte[100]), 200).start().awaitUninterruptibly();
+            Assert.assertTrue(futureShort.isFailed());
+
+            // a stream of a missing value fails the read
+            FutureChunked futureMissing = peers[7].getChunked(Number160.createHash("missing")).setStreaming()
+                    .start();
+            try {
+                futureMissing.getInputStream().read();
+                Assert.fail();
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            if (master != null) {
+                master.shutdown().await();
+            }
+        }
+    }
+
+    @Test
+    public void testManifest() throws Exception {
+        byte[] value = new byte[1000];
+        rnd.nextBytes(value);
+        ChunkManifest manifest = ChunkManifest.create(value, 300);
+        Assert.assertEquals(4, manifest.chunkKeys().size());
+        Assert.assertEquals(900, manifest.offset(3));
+        Assert.assertEquals(100, manifest.chunkLength(3));
+        ChunkManifest decoded = ChunkManifest.fromData(manifest.toData());
+        Assert.assertEquals(1000, decoded.length());
+        Assert.assertEquals(300, decoded.chunkSize());
+        Assert.assertEquals(manifest.chunkKeys(), decoded.chunkKeys());
+        Assert.assertNull(ChunkManifest.fromData(new Data("not a manifest")));
+        Assert.assertEquals(0, ChunkManifest.create(new byte[0], 300).chunkKeys().size());
+    }
+}
@@ -0,0 +1,115 @@
+package net.tomp2p.p2p;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.tomp2p.Utils2;
+import net.tomp2p.futures.FutureGet;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestClientCache {
+
+    @Test
+    public void testCache() throws Exception {
+        ClientCache clientCache = new ClientCache(1024 * 1024, 60 * 1000);
+        Number640 key1 = new Number640(Number160.ONE, Number160.ZERO, Number160.ONE, Number160.ZERO);
+        Number640 key2 = new Number640(Number160.ONE, Number160.ZERO, Number160.MAX_VALUE, Number160.ZERO);
+        Map<Number640, Data> dataMap = new HashMap<Number640, Data>();
+        dataMap.put(key1, new Data(new byte[] { 1 }));
+        clientCache.put(dataMap, clientCache.generation());
+        Assert.assertEquals(1, clientCache.get(Collections.singleton(key1)).size());
+        // all keys must be cached
+        Assert.assertNull(clientCache.get(Arrays.asList(key1, key2)));
+        Assert.assertEquals(1, clientCache.hits());
+        Assert.assertEquals(1, clientCache.misses());
+        // a put in between invalidates the result of a get that was sent before
+        long generation = clientCache.generation();
+        clientCache.invalidate(Number160.ONE, Number160.ZERO);
+        Assert.assertEquals(0, clientCache.size());
+        dataMap.put(key2, new Data(new byte[] { 2 }));
+        clientCache.put(dataMap, generation);
+        Assert.assertEquals(0, clientCache.size());
+        // other location keys are not affected
+        Number640 key3 = new Number640(Number160.MAX_VALUE, Number160.ZERO, Number160.ONE, Number160.ZERO);
+        clientCache.put(Collections.singletonMap(key3, new Data(new byte[] { 3 })), generation);
+        Assert.assertEquals(1, clientCache.size());
+        Assert.assertEquals(1 + ClientCache.ENTRY_OVERHEAD, clientCache.bytes());
+    }
+
+    @Test
+    public void testEvictionAndExpiration() throws Exception {
+        ClientCache clientCache = new ClientCache(3 * (10 + ClientCache.ENTRY_OVERHEAD), 60 * 1000);
+        for (int i = 0; i < 4; i++) {
+            Number640 key = new Number640(new Number160(i), Number160.ZERO, Number160.ZERO, Number160.ZERO);
+            clientCache.put(Collections.singletonMap(key, new Data(new byte[10])), clientCache.generation());
+        }
+        Assert.assertEquals(3, clientCache.size());
+        Number640 key0 = new Number640(new Number160(0), Number160.ZERO, Number160.ZERO, Number160.ZERO);
+        Assert.assertNull(clientCache.get(Collections.singleton(key0)));
+
+        Number640 key = new Number640(Number160.ONE, Number160.ONE, Number160.ONE, Number160.ONE);
+        clientCache.put(Collections.singletonMap(key, new Data(new byte[1]).ttlSeconds(1)),
+                clientCache.generation());
+        Assert.assertNotNull(clientCache.get(Collections.singleton(key)));
+        Thread.sleep(1100);
+        Assert.assertNull(clientCache.get(Collections.singleton(key)));
+    }
+
+    @Test
+    public void testGetFromCache() throws Exception {
+        Peer master = null;
+        try {
+            master = new PeerMaker(Number160.createHash(1)).setEnableIndirectReplication(false).ports(5000)
+                    .makeAndListen();
+            Peer client = new PeerMaker(Number160.createHash(2)).setEnableIndirectReplication(false)
+                    .clientCache(new ClientCache(1024 * 1024, 60 * 1000)).masterPeer(master).makeAndListen();
+            Peer writer = new PeerMaker(Number160.createHash(3)).setEnableIndirectReplication(false)
+                    .masterPeer(master).makeAndListen();
+            Utils2.perfectRouting(master, client, writer);
+            ClientCache clientCache = client.getDistributedHashMap().getClientCache();
+            Number160 locationKey = Number160.createHash("location");
+
+            client.put(locationKey).setData(new Data("test1")).start().awaitListenersUninterruptibly();
+            FutureGet futureGet = client.get(locationKey).start().awaitUninterruptibly();
+            Assert.assertEquals("test1", futureGet.getData().object());
+            Assert.assertEquals(1, clientCache.size());
+
+            futureGet = client.get(locationKey).start().awaitUninterruptibly();
+            Assert.assertEquals("test1", futureGet.getData().object());
+            Assert.assertEquals(client.getPeerAddress(), futureGet.getRawData().keySet().iterator().next());
+            Assert.assertEquals(1, clientCache.hits());
+
+            // a local put invalidates the cache, also once it is done, which rejects gets that were sent before
+            client.put(locationKey).setData(new Data("test2")).start().awaitListenersUninterruptibly();
+            futureGet = client.get(locationKey).start().awaitUninterruptibly();
+            Assert.assertEquals("test2", futureGet.getData().object());
+
+            // a put from another peer is only seen if the version is revalidated
+            writer.put(locationKey).setData(new Data("test3").basedOn(Number160.ONE)).start()
+                    .awaitUninterruptibly();
+            futureGet = client.get(locationKey).start().awaitUninterruptibly();
+            Assert.assertEquals("test2", futureGet.getData().object());
+            futureGet = client.get(locationKey).setRevalidate().start().awaitUninterruptibly();
+            Assert.assertEquals("test3", futureGet.getData().object());
+            futureGet = client.get(locationKey).setRevalidate().start().awaitUninterruptibly();
+            Assert.assertEquals("test3", futureGet.getData().object());
+            Assert.assertEquals(client.getPeerAddress(), futureGet.getRawData().keySet().iterator().next());
+
+            // a local remove invalidates the cache
+            client.remove(locationKey).start().awaitListenersUninterruptibly();
+            futureGet = client.get(locationKey).start().awaitUninterruptibly();
+            Assert.assertNull(futureGet.getData());
+        } finally {
+            if (master != null) {
+                master.shutdown().await();
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package net.tomp2p.p2p;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.Utils2;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestReplicationScheduler {
+
+    @Test
+    public void testPriority() throws Exception {
+        ReplicationScheduler scheduler = new ReplicationScheduler(10, 1, 0);
+        for (int i = 1; i <= 3; i++) {
+            Assert.assertTrue(scheduler.refresh(new Number160(i)));
+        }
+        PeerAddress other = Utils2.createAddress(99);
+        // a dirty location key is replicated before the refresh, even if it was queued for a refresh before
+        Assert.assertTrue(scheduler.dirty(new Number160(4), null));
+        Assert.assertTrue(scheduler.dirty(new Number160(2), other));
+        Assert.assertEquals(4, scheduler.size());
+
+        Recorder recorder = new Recorder(3);
+        scheduler.init(recorder);
+        Assert.assertTrue(recorder.latch.await(10, TimeUnit.SECONDS));
+        scheduler.shutdown();
+        Assert.assertEquals("4 null", recorder.calls.get(0));
+        Assert.assertEquals("2 " + other, recorder.calls.get(1));
+        // the remaining refreshes are batched
+        Assert.assertEquals("[1, 3]", recorder.calls.get(2));
+    }
+
+    @Test
+    public void testCapacity() throws Exception {
+        ReplicationScheduler scheduler = new ReplicationScheduler(2, 1, 0);
+        Assert.assertTrue(scheduler.refresh(new Number160(1)));
+        Assert.assertTrue(scheduler.refresh(new Number160(2)));
+        Assert.assertFalse(scheduler.refresh(new Number160(3)));
+        // dirty location keys replace refreshes
+        Assert.assertTrue(scheduler.dirty(new Number160(4), null));
+        Assert.assertTrue(scheduler.dirty(new Number160(5), null));
+        Assert.assertFalse(scheduler.dirty(new Number160(6), null));
+        Assert.assertEquals(2, scheduler.size());
+        Assert.assertEquals(2, scheduler.dropped());
+        scheduler.shutdown();
+        Assert.assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void testRate() throws Exception {
+        // 1000 bytes per second with a burst of 1000 bytes, 6 replications of 500 bytes take at least one second
+        ReplicationScheduler scheduler = new ReplicationScheduler(100, 2, 1000);
+        for (int i = 0; i < 6; i++) {
+            scheduler.dirty(new Number160(i + 1), null);
+        }
+        Recorder recorder = new Recorder(6);
+        long start = System.currentTimeMillis();
+        scheduler.init(recorder);
+        Assert.assertTrue(recorder.latch.await(10, TimeUnit.SECONDS));
+        long duration = System.currentTimeMillis() - start;
+        scheduler.shutdown();
+        Assert.assertTrue("too fast: " + duration, duration >= 900);
+    }
+
+    private static class Recorder implements ReplicationScheduler.Replicator {
+        private final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        private final CountDownLatch latch;
+
+        private Recorder(int count) {
+            this.latch = new CountDownLatch(count);
+        }
+
+        @Override
+        public long replicate(Number160 locationKey, PeerAddress other) {
+            calls.add(locationKey.intValue() + " " + other);
+            latch.countDown();
+            return 500;
+        }
+
+        @Override
+        public long refresh(NavigableSet<Number160> locationKeys) {
+            List<Integer> keys = new ArrayList<Integer>();
+            for (Number160 locationKey : locationKeys) {
+                keys.add(locationKey.intValue());
+            }
+            calls.add(keys.toString());
+            latch.countDown();
+            return 500;
+        }
+    }
+}
@@ -6,6 +6,7 @@ import java.util.Collection;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NavigableSet;
 import java.util.Random;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -13,15 +14,21 @@ import java.util.TreeSet;
 import net.tomp2p.Utils2;
 import net.tomp2p.connection.Bindings;
 import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.connection.PeerConnection;
+import net.tomp2p.connection.Responder;
 import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureRouting;
 import net.tomp2p.futures.FutureWrapper;
+import net.tomp2p.message.Message;
 import net.tomp2p.message.Message.Type;
 import net.tomp2p.p2p.builder.RoutingBuilder;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerMapConfiguration;
+import net.tomp2p.rpc.NeighborRPC;
+import net.tomp2p.utils.Timings;
 import net.tomp2p.utils.Utils;
 
 import org.junit.Assert;
@@ -60,6 +67,31 @@ public class TestRouting {
         Assert.assertEquals(false, testb);
     }
 
+    @Test
+    public void testLatencyAware() throws UnknownHostException {
+        final Number160 locationKey = Number160.ZERO;
+        PeerMap peerMap = new PeerMap(new PeerMapConfiguration(new Number160("0x1000")));
+        NavigableSet<PeerAddress> queueToAsk = new TreeSet<PeerAddress>(PeerMap.createComparator(locationKey));
+        for (int i = 4; i <= 8; i++) {
+            PeerAddress peer = Utils2.createAddress(i);
+            peerMap.peerFound(peer, null);
+            queueToAsk.add(peer);
+        }
+        // 4 to 7 are equally close to the location key, 8 is further away
+        peerMap.peerRTT(Utils2.createAddress(5), 900);
+        peerMap.peerRTT(Utils2.createAddress(6), 100);
+        peerMap.peerRTT(Utils2.createAddress(8), 10);
+        RoutingMechanism routingMechanism = new RoutingMechanism(null, null).latencyAware(peerMap, locationKey);
+        routingMechanism.queueToAsk(queueToAsk);
+        Assert.assertEquals(Utils2.createAddress(6), routingMechanism.pollFirstInQueueToAsk());
+        Assert.assertEquals(Utils2.createAddress(5), routingMechanism.pollFirstInQueueToAsk());
+        // without measurements, the closer peer is asked first
+        Assert.assertEquals(Utils2.createAddress(4), routingMechanism.pollFirstInQueueToAsk());
+        Assert.assertEquals(Utils2.createAddress(7), routingMechanism.pollFirstInQueueToAsk());
+        Assert.assertEquals(Utils2.createAddress(8), routingMechanism.pollFirstInQueueToAsk());
+        Assert.assertNull(routingMechanism.pollFirstInQueueToAsk());
+    }
+
     @Test
     public void testEvaluate() throws UnknownHostException {
         // setup
@@ -495,6 +527,61 @@ public class TestRouting {
         }
     }
 
+    @Test
+    public void testRoutingHedged() throws Exception {
+        Peer master = null;
+        ChannelCreator cc = null;
+        try {
+            // setup
+            Peer[] peers = Utils2.createNodes(200, rnd, 4001);
+            master = peers[0];
+            Utils2.perfectRouting(peers);
+            final Number160 locationKey = new Number160(rnd);
+            // the peer that is asked first does not reply
+            final PeerAddress slow = peers[100].getPeerBean().peerMap().closePeers(locationKey, 1).iterator().next();
+            for (Peer peer : peers) {
+                if (peer.getPeerAddress().equals(slow)) {
+                    new NeighborRPC(peer.getPeerBean(), peer.getConnectionBean()) {
+                        @Override
+                        public void handleResponse(final Message message, final PeerConnection peerConnection,
+                                final boolean sign, final Responder responder) {
+                            LOG.debug("drop {}", message);
+                        }
+                    };
+                }
+            }
+            // the peer usually replies within a millisecond
+            peers[100].getPeerBean().peerMap().peerRTT(slow, 1000);
+            // do testing
+            FutureChannelCreator fcc = peers[100].getConnectionBean().reservation().create(2, 0);
+            fcc.awaitUninterruptibly();
+            cc = fcc.getChannelCreator();
+            RoutingBuilder routingBuilder = new RoutingBuilder();
+            routingBuilder.setLocationKey(locationKey);
+            routingBuilder.setMaxDirectHits(0);
+            routingBuilder.setMaxNoNewInfo(0);
+            routingBuilder.setMaxFailures(0);
+            routingBuilder.setMaxSuccess(100);
+            routingBuilder.setParallel(1);
+            routingBuilder.setHedged(1);
+            final long start = Timings.currentTimeMillis();
+            FutureRouting fr = peers[100].getDistributedRouting().route(routingBuilder, Type.REQUEST_1, cc);
+            fr.awaitUninterruptibly();
+            // do verification
+            Assert.assertEquals(true, fr.isSuccess());
+            Assert.assertFalse(fr.getPotentialHits().contains(slow));
+            // the routing does not wait until the request to the slow peer times out after at least one second
+            Assert.assertTrue(Timings.currentTimeMillis() - start < 1000);
+        } finally {
+            if (cc != null) {
+                cc.shutdown().awaitListenersUninterruptibly();
+            }
+            if (master != null) {
+                master.shutdown().await();
+            }
+        }
+    }
+
     @Test
     public void testRoutingBulk() throws Exception {
         testRoutingBulk(true, Type.REQUEST_1);
@@ -0,0 +1,93 @@
+package net.tomp2p.p2p;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import net.tomp2p.Utils2;
+import net.tomp2p.futures.FutureGet;
+import net.tomp2p.futures.FuturePut;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerStatusListener.FailReason;
+import net.tomp2p.storage.Data;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestRoutingCache {
+    final private static Random rnd = new Random(42L);
+
+    @Test
+    public void testCache() throws Exception {
+        RoutingCache routingCache = new RoutingCache(8, 100, 60 * 1000);
+        PeerAddress peer1 = Utils2.createAddress(new Number160("0x0100000000000000000000000000000000000000"));
+        PeerAddress peer2 = Utils2.createAddress(new Number160("0x0200000000000000000000000000000000000000"));
+        PeerAddress peer3 = Utils2.createAddress(new Number160("0x8000000000000000000000000000000000000000"));
+        routingCache.put(new Number160("0x0100000000000000000000000000000000000001"),
+                Arrays.asList(peer3, peer2, peer1));
+        // a key with the same prefix, sorted by the distance to this key
+        List<PeerAddress> cached = routingCache.get(new Number160("0x01ff000000000000000000000000000000000001"));
+        Assert.assertEquals(Arrays.asList(peer1, peer2, peer3), cached);
+        // the first 8 bits differ
+        Assert.assertNull(routingCache.get(new Number160("0x1000000000000000000000000000000000000001")));
+        Assert.assertEquals(1, routingCache.hits());
+        Assert.assertEquals(1, routingCache.misses());
+        // a failed peer invalidates all entries it is in
+        Assert.assertTrue(routingCache.peerFailed(peer2, FailReason.Timeout));
+        Assert.assertNull(routingCache.get(new Number160("0x0100000000000000000000000000000000000001")));
+        Assert.assertEquals(1, routingCache.invalidations());
+        Assert.assertFalse(routingCache.peerFailed(peer1, FailReason.Timeout));
+
+        routingCache = new RoutingCache(8, 100, 100);
+        routingCache.put(Number160.ONE, Arrays.asList(peer1));
+        Assert.assertNotNull(routingCache.get(Number160.ONE));
+        Thread.sleep(150);
+        Assert.assertNull(routingCache.get(Number160.ONE));
+        Assert.assertEquals(0, routingCache.size());
+    }
+
+    @Test
+    public void testRoutingWithCache() throws Exception {
+        Peer master = null;
+        try {
+            Peer[] peers = Utils2.createNodes(30, rnd, 4001);
+            master = peers[0];
+            Utils2.perfectRouting(peers);
+            RoutingCache routingCache = new RoutingCache(16, 100, 60 * 1000);
+            Peer client = new PeerMaker(new Number160(rnd)).routingCache(routingCache).masterPeer(master)
+                    .makeAndListen();
+            client.getPeerBean().peerMap().peerFound(master.getPeerAddress(), null);
+
+            Number160 locationKey = Number160.createHash("key");
+            FuturePut futurePut = client.put(locationKey).setData(new Data("value1")).start()
+                    .awaitUninterruptibly();
+            Assert.assertTrue(futurePut.isSuccess());
+            Assert.assertEquals(1, routingCache.size());
+
+            // a nearby key with the same prefix goes straight to the replicas
+            int[] val = locationKey.toIntArray();
+            Number160 nearbyKey = new Number160(val[0], val[1], val[2], val[3], val[4] ^ 1);
+            futurePut = client.put(nearbyKey).setData(new Data("value2")).start().awaitUninterruptibly();
+            Assert.assertTrue(futurePut.isSuccess());
+            Assert.assertEquals(1, routingCache.hits());
+            FutureGet futureGet = peers[7].get(nearbyKey).start().awaitUninterruptibly();
+            Assert.assertEquals("value2", futureGet.getData().object());
+
+            // a get uses the cached peers as start peers and finds the data
+            futureGet = client.get(locationKey).start().awaitUninterruptibly();
+            Assert.assertEquals("value1", futureGet.getData().object());
+            Assert.assertEquals(2, routingCache.hits());
+
+            // failure events of the peer map invalidate the entry
+            PeerAddress replica = futurePut.getRawResult().keySet().iterator().next();
+            client.getPeerBean().peerMap().peerFailed(replica, FailReason.Shutdown);
+            Assert.assertEquals(1, routingCache.invalidations());
+            Assert.assertEquals(0, routingCache.size());
+        } finally {
+            if (master != null) {
+                master.shutdown().await();
+            }
+        }
+    }
+}
@@ -66,6 +66,28 @@ public class TestNumber160 {
         }
     }
 
+    @Test
+    public void testCompareDistance() {
+        for (int i = 0; i < 1000; i++) {
+            Number160 key = new Number160(rnd);
+            Number160 ki1 = new Number160(rnd);
+            // share a prefix with the first, so that the distances also differ in the lower integers
+            Number160 ki2 = i % 2 == 0 ? new Number160(rnd) : new Number160(ki1.toIntArray()[0],
+                    ki1.toIntArray()[1], rnd.nextInt(), rnd.nextInt(), rnd.nextInt());
+            BigInteger bkey = new BigInteger(1, key.toByteArray());
+            BigInteger bi1 = new BigInteger(1, ki1.toByteArray());
+            BigInteger bi2 = new BigInteger(1, ki2.toByteArray());
+            Assert.assertEquals(bkey.xor(bi1).compareTo(bkey.xor(bi2)), key.compareDistance(ki1, ki2));
+            Assert.assertEquals(bi1.compareTo(bi2), ki1.compareTo(ki2));
+            Assert.assertEquals(bkey.xor(bi1).bitLength(), key.xorBitLength(ki1));
+            Assert.assertEquals(key.xor(ki2).bitLength(), key.xorBitLength(ki2));
+        }
+        Number160 key = new Number160(rnd);
+        Assert.assertEquals(0, key.compareDistance(key, key));
+        Assert.assertEquals(0, key.xorBitLength(key));
+        Assert.assertEquals(160, Number160.ZERO.xorBitLength(Number160.MAX_VALUE));
+    }
+
     @Test
     public void testFromIntArray() {
         int[] tmp = new int[] { 1, 2, 3, 4, 5 };
@@ -138,6 +160,18 @@ public class TestNumber160 {
         Assert.assertEquals(true, ki2.compareTo(ki3) > 0);
     }
 
+    @Test
+    public void testFromByteArrayOffset() {
+        byte[] me = new byte[30];
+        Number160 ki2 = new Number160("0x357116889007843534245232322114545905234a");
+        ki2.toByteArray(me, 7);
+        Assert.assertEquals(ki2, new Number160(me, 7, Number160.BYTE_ARRAY_SIZE));
+        // a shorter number is aligned to the least significant byte
+        Assert.assertEquals(new Number160("0x5905234a"), new Number160(me, 23, 4));
+        Assert.assertEquals(new Number160(1, 2, 3, 4, 5), new Number160(new int[] { 1, 2, 3, 4, 5 }));
+        Assert.assertEquals(new Number160(0, 0, 0, 1, 2).hashCode(), new Number160(1, 2).hashCode());
+    }
+
     @Test
     public void testSerialization() {
         Number160 ki2 = new Number160("0x357116889007843534245232322114545905234a");
@@ -528,4 +528,66 @@ public class TestPeerMap {
             }
         }
     }
+
+    @Test
+    public void testClosestPeers() throws UnknownHostException {
+        Random rnd = new Random(42);
+        PeerMapConfiguration conf = new PeerMapConfiguration(new Number160(rnd));
+        conf.bagSizeVerified(1000).bagSizeOverflow(1000);
+        conf.offlineCount(1000).offlineTimeout(100);
+        conf.peerFilter(new DefaultPeerFilter()).maintenance(new DefaultMaintenance(0, new int[] {}));
+        final PeerMap peerMap = new PeerMap(conf);
+        List<PeerAddress> peers = new ArrayList<PeerAddress>();
+        for (int i = 0; i < 1000; i++) {
+            PeerAddress r1 = new PeerAddress(new Number160(rnd));
+            peers.add(r1);
+            peerMap.peerFound(r1, null);
+        }
+        for (int j = 0; j < 100; j++) {
+            Number160 key = new Number160(rnd);
+            TreeSet<PeerAddress> set = new TreeSet<PeerAddress>(PeerMap.createComparator(key));
+            set.addAll(peers);
+            List<PeerAddress> expected = new ArrayList<PeerAddress>(set).subList(0, 20);
+            // exactly the k closest
+            Assert.assertEquals(expected, peerMap.closestPeers(key, 20));
+            // all peers of the bags, sorted and closest first
+            NavigableSet<PeerAddress> close = peerMap.closePeers(key, 20);
+            Assert.assertTrue(close.size() >= 20);
+            Assert.assertEquals(expected, new ArrayList<PeerAddress>(close).subList(0, 20));
+            Assert.assertEquals(new ArrayList<PeerAddress>(set).subList(0, close.size()),
+                    new ArrayList<PeerAddress>(close));
+            // the returned set still sorts new peers
+            PeerAddress self = new PeerAddress(key);
+            close.add(self);
+            Assert.assertEquals(self, close.first());
+        }
+        Assert.assertEquals(1000, peerMap.closestPeers(Number160.ZERO, 2000).size());
+    }
+
+    @Test
+    public void testRTT() throws UnknownHostException {
+        PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+        conf.bagSizeVerified(10).bagSizeOverflow(10);
+        conf.offlineCount(1000).offlineTimeout(100);
+        conf.peerFilter(new DefaultPeerFilter()).maintenance(new DefaultMaintenance(0, new int[] {}));
+        final PeerMap peerMap = new PeerMap(conf);
+        PeerAddress peer = Utils2.createAddress(12);
+        // unknown peers have no statistic
+        Assert.assertFalse(peerMap.peerRTT(peer, 1000));
+        Assert.assertNull(peerMap.peerStatatistic(peer));
+        peerMap.peerFound(peer, null);
+        Assert.assertEquals(-1, peerMap.peerStatatistic(peer).getSmoothedRTT());
+        // the first sample sets the mean, the variation is half of it
+        Assert.assertTrue(peerMap.peerRTT(peer, 1000));
+        Assert.assertEquals(1000, peerMap.peerStatatistic(peer).getSmoothedRTT());
+        Assert.assertEquals(500, peerMap.peerStatatistic(peer).getRTTVariance());
+        // further samples are smoothed
+        peerMap.peerRTT(peer, 1800);
+        Assert.assertEquals(1100, peerMap.peerStatatistic(peer).getSmoothedRTT());
+        Assert.assertEquals(575, peerMap.peerStatatistic(peer).getRTTVariance());
+        // the retransmission timeout is the RTT plus four times the variance, doubled for every failure
+        Assert.assertEquals(1100 + 4 * 575, peerMap.peerStatatistic(peer).retransmissionTimeout());
+        peerMap.peerFailed(peer, FailReason.Timeout);
+        Assert.assertEquals(2 * (1100 + 4 * 575), peerMap.peerStatatistic(peer).retransmissionTimeout());
+    }
 }
@@ -3,6 +3,9 @@ package net.tomp2p.rpc;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -10,7 +13,9 @@ import io.netty.channel.ChannelHandler;
 import io.netty.util.concurrent.EventExecutorGroup;
 import net.tomp2p.connection.ChannelClientConfiguration;
 import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.connection.ConnectionBean;
 import net.tomp2p.connection.ChannelServerConficuration;
+import net.tomp2p.connection.ChannelPool;
 import net.tomp2p.connection.PeerConnection;
 import net.tomp2p.connection.PipelineFilter;
 import net.tomp2p.futures.BaseFutureAdapter;
@@ -20,6 +25,8 @@ import net.tomp2p.futures.FuturePeerConnection;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.futures.ProgressListener;
 import net.tomp2p.message.Buffer;
+import net.tomp2p.message.BufferInputStream;
+import net.tomp2p.message.BufferOutputStream;
 import net.tomp2p.message.CountConnectionOutboundHandler;
 import net.tomp2p.message.Message;
 import net.tomp2p.p2p.Peer;
@@ -199,6 +206,118 @@ public class TestDirect {
         }
     }
 
+    @Test
+    public void testDirectStreaming() throws Exception {
+        Peer sender = null;
+        Peer recv1 = null;
+        try {
+            sender = new PeerMaker(new Number160("0x50")).p2pId(55).ports(2424).makeAndListen();
+            recv1 = new PeerMaker(new Number160("0x20")).p2pId(55).ports(8088).makeAndListen();
+            streaming(sender, recv1, 32 * 1024 * 1024, ConnectionBean.DEFAULT_TCP_IDLE_SECONDS, 0);
+        } finally {
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
+
+    /**
+     * The consumer stops reading for longer than the idle timeout of both channels. The receiver suspends reading and
+     * the sender waits for the socket, which must not be mistaken for an idle channel.
+     */
+    @Test
+    public void testDirectStreamingStalled() throws Exception {
+        Peer sender = null;
+        Peer recv1 = null;
+        try {
+            PeerMaker pm1 = new PeerMaker(new Number160("0x50")).p2pId(55).ports(2424);
+            ChannelServerConficuration css = pm1.createDefaultChannelServerConfiguration();
+            css.idleTCPSeconds(1);
+            pm1.channelServerConfiguration(css);
+            sender = pm1.makeAndListen();
+            PeerMaker pm2 = new PeerMaker(new Number160("0x20")).p2pId(55).ports(8088);
+            pm2.channelServerConfiguration(css);
+            recv1 = pm2.makeAndListen();
+            streaming(sender, recv1, 32 * 1024 * 1024, 1, 3000);
+        } finally {
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
+
+    private void streaming(final Peer sender, final Peer recv1, final int length, final int idleTCPSeconds,
+            final long stallMillis) throws Exception {
+        final int capacity = 256 * 1024;
+        // the parts are consumed by a slow reader, while they are still being received
+        final BufferInputStream in = new BufferInputStream(capacity);
+        final AtomicLong maxQueued = new AtomicLong();
+        recv1.setRawDataReply(new RawDataReply() {
+            @Override
+            public Buffer reply(PeerAddress sender, Buffer requestBuffer, boolean complete) throws Exception {
+                in.offer(requestBuffer, complete);
+                maxQueued.set(Math.max(maxQueued.get(), in.queued()));
+                return requestBuffer;
+            }
+        });
+        final CRC32 received = new CRC32();
+        final AtomicLong receivedBytes = new AtomicLong();
+        final AtomicReference<Exception> readerFailure = new AtomicReference<Exception>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] b = new byte[8 * 1024];
+                int read;
+                try {
+                    while ((read = in.read(b, 0, b.length)) >= 0) {
+                        received.update(b, 0, read);
+                        long total = receivedBytes.addAndGet(read);
+                        if (stallMillis > 0 && total - read < 1024 * 1024 && total >= 1024 * 1024) {
+                            // the queue fills up while the consumer stalls
+                            Thread.sleep(stallMillis);
+                        } else if (total % (1024 * 1024) < read) {
+                            Thread.sleep(10);
+                        }
+                    }
+                } catch (Exception e) {
+                    readerFailure.set(e);
+                }
+            }
+        });
+        reader.start();
+
+        Buffer buffer = new Buffer(Unpooled.compositeBuffer(), length);
+        FutureDirect futureDirect = sender.sendDirect(recv1.getPeerAddress()).setBuffer(buffer)
+                .setStreaming().idleTCPSeconds(idleTCPSeconds).start();
+        BufferOutputStream out = new BufferOutputStream(futureDirect.getFutureResponse(), buffer);
+        CRC32 sent = new CRC32();
+        byte[] b = new byte[10000];
+        for (int written = 0; written < length; written += b.length) {
+            for (int i = 0; i < b.length; i++) {
+                b[i] = (byte) (written + i * 31);
+            }
+            int len = Math.min(b.length, length - written);
+            sent.update(b, 0, len);
+            out.write(b, 0, len);
+        }
+        out.close();
+        futureDirect.awaitUninterruptibly();
+        reader.join();
+        Assert.assertNull("the reader failed", readerFailure.get());
+        Assert.assertTrue(futureDirect.getFailedReason(), futureDirect.isSuccess());
+        Assert.assertEquals(length, receivedBytes.get());
+        Assert.assertEquals(sent.getValue(), received.getValue());
+        // reading stops once the channel has finished its current reads, so the queue exceeds the capacity by the
+        // data of a few reads, but not by the size of the transfer
+        Assert.assertTrue(maxQueued.get() < 4 * 1024 * 1024);
+    }
+
     @Test
     public void testOrder() throws Exception {
         Peer sender = null;
@@ -313,6 +432,68 @@ public class TestDirect {
         }
     }
 
+    @Test
+    public void testDirectPipelined() throws Exception {
+        Peer sender = null;
+        Peer recv1 = null;
+        try {
+
+        	final CountConnectionOutboundHandler ccohTCP = new CountConnectionOutboundHandler();
+        	final CountConnectionOutboundHandler ccohUDP = new CountConnectionOutboundHandler();
+        	PipelineFilter pf = new PipelineFilter() {
+				@Override
+				public Map<String, Pair<EventExecutorGroup, ChannelHandler>> filter(Map<String, Pair<EventExecutorGroup, ChannelHandler>> channelHandlers, boolean tcp,
+				        boolean client) {
+					
+					Map<String, Pair<EventExecutorGroup, ChannelHandler>> retVal = new LinkedHashMap<String, Pair<EventExecutorGroup, ChannelHandler>>();
+					retVal.put("counter", new Pair<EventExecutorGroup, ChannelHandler>(null, tcp? ccohTCP:ccohUDP));
+					retVal.putAll(channelHandlers);
+					return retVal;
+				}
+			};
+			ChannelServerConficuration csc = PeerMaker.createDefaultChannelServerConfiguration();
+			ChannelClientConfiguration ccc = PeerMaker.createDefaultChannelClientConfiguration();
+			csc.pipelineFilter(pf);
+			ccc.pipelineFilter(pf);
+            sender = new PeerMaker(new Number160("0x50")).p2pId(55).ports(2424).setEnableMaintenance(false)
+                    .channelClientConfiguration(ccc).channelServerConfiguration(csc).makeAndListen();
+            recv1 = new PeerMaker(new Number160("0x20")).p2pId(55).ports(8088).setEnableMaintenance(false)
+            		.channelClientConfiguration(ccc).channelServerConfiguration(csc).makeAndListen();
+            recv1.setObjectDataReply(new ObjectDataReply() {
+                @Override
+                public Object reply(PeerAddress sender, Object request) throws Exception {
+                    return "re:" + request;
+                }
+            });
+            FuturePeerConnection peerConnection = sender.createPeerConnection(recv1.getPeerAddress(),
+                    PeerConnection.HEART_BEAT_MILLIS, 10);
+            ccohTCP.reset();
+            ccohUDP.reset();
+
+            // all requests are written before the first reply arrives
+            FutureDirect[] futures = new FutureDirect[10];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = sender.sendDirect(peerConnection).setObject("test" + i)
+                        .connectionTimeoutTCPMillis(2000).idleTCPSeconds(5).start();
+            }
+            for (int i = 0; i < futures.length; i++) {
+                futures[i].awaitUninterruptibly();
+                Assert.assertEquals(true, futures[i].isSuccess());
+                Assert.assertEquals("re:test" + i, futures[i].object());
+            }
+            Assert.assertEquals(1, ccohTCP.total());
+            Assert.assertEquals(0, ccohUDP.total());
+            peerConnection.close().await();
+        } finally {
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
+
     @Test
     public void testDirect2() throws Exception {
         Peer sender = null;
@@ -372,4 +553,72 @@ public class TestDirect {
             }
         }
     }
+
+    @Test
+    public void testDirectPooled() throws Exception {
+        Peer sender = null;
+        Peer recv1 = null;
+        try {
+
+        	final CountConnectionOutboundHandler ccohTCP = new CountConnectionOutboundHandler();
+        	final CountConnectionOutboundHandler ccohUDP = new CountConnectionOutboundHandler();
+        	PipelineFilter pf = new PipelineFilter() {
+				@Override
+				public Map<String, Pair<EventExecutorGroup, ChannelHandler>> filter(Map<String, Pair<EventExecutorGroup, ChannelHandler>> channelHandlers, boolean tcp,
+				        boolean client) {
+					
+					Map<String, Pair<EventExecutorGroup, ChannelHandler>> retVal = new LinkedHashMap<String, Pair<EventExecutorGroup, ChannelHandler>>();
+					retVal.put("counter", new Pair<EventExecutorGroup, ChannelHandler>(null, tcp? ccohTCP:ccohUDP));
+					retVal.putAll(channelHandlers);
+					return retVal;
+				}
+			};
+			ChannelServerConficuration csc = PeerMaker.createDefaultChannelServerConfiguration();
+			ChannelClientConfiguration ccc = PeerMaker.createDefaultChannelClientConfiguration();
+			csc.pipelineFilter(pf);
+			ccc.pipelineFilter(pf);
+			ccc.pooledTCPIdleMillis(1000);
+            sender = new PeerMaker(new Number160("0x50")).p2pId(55).ports(2424).setEnableMaintenance(false)
+                    .channelClientConfiguration(ccc).channelServerConfiguration(csc).makeAndListen();
+            recv1 = new PeerMaker(new Number160("0x20")).p2pId(55).ports(8088).setEnableMaintenance(false)
+            		.channelClientConfiguration(ccc).channelServerConfiguration(csc).makeAndListen();
+            recv1.setObjectDataReply(new ObjectDataReply() {
+                @Override
+                public Object reply(PeerAddress sender, Object request) throws Exception {
+                    return "re:" + request;
+                }
+            });
+            ChannelPool channelPool = sender.getConnectionBean().sender().channelPool();
+            ccohTCP.reset();
+            ccohUDP.reset();
+
+            // one request after the other, each with its own channel creator, uses the same connection
+            for (int i = 0; i < 5; i++) {
+                FutureDirect fd = sender.sendDirect(recv1.getPeerAddress()).setObject("test" + i).start();
+                fd.awaitUninterruptibly();
+                Assert.assertEquals(true, fd.isSuccess());
+                Assert.assertEquals("re:test" + i, fd.object());
+                Assert.assertEquals(1, channelPool.idle(recv1.getPeerAddress()));
+            }
+            Assert.assertEquals(1, ccohTCP.total());
+            Assert.assertEquals(1, ccohTCP.current());
+
+            // the idle connection is closed, the next request opens a new one
+            Timings.sleep(2000);
+            Assert.assertEquals(0, channelPool.idle());
+            Assert.assertEquals(0, ccohTCP.current());
+            FutureDirect fd = sender.sendDirect(recv1.getPeerAddress()).setObject("test").start();
+            fd.awaitUninterruptibly();
+            Assert.assertEquals(true, fd.isSuccess());
+            Assert.assertEquals(2, ccohTCP.total());
+            Assert.assertEquals(0, ccohUDP.total());
+        } finally {
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
 }
@@ -5,6 +5,7 @@ import java.util.List;
 
 import net.tomp2p.connection.Bindings;
 import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.connection.ConnectionBean;
 import net.tomp2p.connection.DefaultConnectionConfiguration;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureChannelCreator;
@@ -167,6 +168,80 @@ public class TestPing {
         }
     }
 
+    @Test
+    public void testPingUDPExecutor() throws Exception {
+        Peer sender = null;
+        Peer recv1 = null;
+        ChannelCreator cc = null;
+        try {
+            sender = new PeerMaker(new Number160("0x9876")).p2pId(55).ports(2424).makeAndListen();
+            PingRPC handshake = new PingRPC(sender.getPeerBean(), sender.getConnectionBean());
+            recv1 = new PeerMaker(new Number160("0x1234")).p2pId(55).ports(8088)
+                    .channelServerConfiguration(PeerMaker.createDefaultChannelServerConfiguration()
+                            .udpExecutorThreads(2)).makeAndListen();
+            new PingRPC(recv1.getPeerBean(), recv1.getConnectionBean());
+            FutureChannelCreator fcc = recv1.getConnectionBean().reservation().create(1, 0);
+            fcc.awaitUninterruptibly();
+            cc = fcc.getChannelCreator();
+            FutureResponse fr = handshake.pingUDP(recv1.getPeerAddress(), cc,
+                    new DefaultConnectionConfiguration());
+            fr.awaitUninterruptibly();
+            Assert.assertEquals(true, fr.isSuccess());
+        } finally {
+            if (cc != null) {
+                cc.shutdown().await();
+            }
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
+
+    @Test
+    public void testPingAdaptiveTimeoutUDP() throws Exception {
+        Peer sender = null;
+        Peer recv1 = null;
+        ChannelCreator cc = null;
+        try {
+            sender = new PeerMaker(new Number160("0x9876")).p2pId(55).ports(2424).makeAndListen();
+            recv1 = new PeerMaker(new Number160("0x1234")).p2pId(55).ports(8088).makeAndListen();
+            FutureChannelCreator fcc = sender.getConnectionBean().reservation().create(1, 0);
+            fcc.awaitUninterruptibly();
+            cc = fcc.getChannelCreator();
+            // measure the round-trip time to the other peer
+            for (int i = 0; i < 3; i++) {
+                FutureResponse fr = sender.getHandshakeRPC().pingUDP(recv1.getPeerAddress(), cc,
+                        new DefaultConnectionConfiguration());
+                fr.awaitUninterruptibly();
+                Assert.assertEquals(true, fr.isSuccess());
+            }
+            Assert.assertTrue(sender.getPeerBean().peerMap().peerStatatistic(recv1.getPeerAddress())
+                    .retransmissionTimeout() > 0);
+            // the other peer does not reply anymore
+            new PingRPC(recv1.getPeerBean(), recv1.getConnectionBean(), false, true, false);
+            final long start = Timings.currentTimeMillis();
+            FutureResponse fr = sender.getHandshakeRPC().pingUDP(recv1.getPeerAddress(), cc,
+                    new DefaultConnectionConfiguration());
+            fr.awaitUninterruptibly();
+            Assert.assertEquals(false, fr.isSuccess());
+            // the timeout is calculated from the round-trip times, which is shorter than the idle time
+            Assert.assertTrue(Timings.currentTimeMillis() - start < ConnectionBean.DEFAULT_UDP_IDLE_SECONDS * 1000);
+        } finally {
+            if (cc != null) {
+                cc.shutdown().await();
+            }
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
+
     @Test
     public void testPingHandlerError() throws Exception {
         Peer sender = null;
@@ -373,6 +373,72 @@ public class TestStorage {
         }
     }
 
+    @Test
+    public void testResponseCache() throws Exception {
+        Peer sender = null;
+        Peer recv1 = null;
+        ChannelCreator cc = null;
+        try {
+            sender = new PeerMaker(new Number160("0x50")).p2pId(55).ports(2424).makeAndListen();
+            recv1 = new PeerMaker(new Number160("0x20")).p2pId(55).ports(8088).makeAndListen();
+            StorageRPC smmSender = new StorageRPC(sender.getPeerBean(), sender.getConnectionBean());
+            recv1.getPeerBean().storage(new StorageLayer(new StorageMemory()));
+            ResponseCache responseCache = new ResponseCache(1024 * 1024, 1000);
+            new StorageRPC(recv1.getPeerBean(), recv1.getConnectionBean(), responseCache);
+            Map<Number160, Data> tmp = new HashMap<Number160, Data>();
+            tmp.put(new Number160(77), new Data(new byte[] { 1, 2, 3 }));
+            tmp.put(new Number160(88), new Data(new byte[] { 2, 3, 4 }));
+
+            FutureChannelCreator fcc = recv1.getConnectionBean().reservation().create(0, 1);
+            fcc.awaitUninterruptibly();
+            cc = fcc.getChannelCreator();
+
+            PutBuilder putBuilder = new PutBuilder(recv1, new Number160(33));
+            putBuilder.setDomainKey(Number160.createHash("test"));
+            putBuilder.setDataMapContent(tmp);
+            putBuilder.setVersionKey(Number160.ZERO);
+            smmSender.put(recv1.getPeerAddress(), putBuilder, cc).awaitUninterruptibly();
+
+            GetBuilder getBuilder = new GetBuilder(recv1, new Number160(33));
+            getBuilder.setDomainKey(Number160.createHash("test"));
+            getBuilder.contentKeys(tmp.keySet());
+            getBuilder.setVersionKey(Number160.ZERO);
+
+            // the first request is only remembered, the second is cached
+            for (int i = 0; i < 3; i++) {
+                FutureResponse fr = smmSender.get(recv1.getPeerAddress(), getBuilder, cc).awaitUninterruptibly();
+                Assert.assertEquals(true, fr.isSuccess());
+                compare(new DataMap(new Number160(33), Number160.createHash("test"), Number160.ZERO, tmp)
+                        .convertToMap640(), fr.getResponse().getDataMap(0).dataMap());
+            }
+            Assert.assertEquals(1, responseCache.hits());
+            Assert.assertEquals(2, responseCache.misses());
+            Assert.assertEquals(1, responseCache.size());
+
+            // a put invalidates the cached response
+            tmp.put(new Number160(77), new Data(new byte[] { 5, 6, 7 }));
+            smmSender.put(recv1.getPeerAddress(), putBuilder, cc).awaitUninterruptibly();
+            for (int i = 0; i < 2; i++) {
+                FutureResponse fr = smmSender.get(recv1.getPeerAddress(), getBuilder, cc).awaitUninterruptibly();
+                compare(new DataMap(new Number160(33), Number160.createHash("test"), Number160.ZERO, tmp)
+                        .convertToMap640(), fr.getResponse().getDataMap(0).dataMap());
+            }
+            Assert.assertEquals(1, responseCache.invalidations());
+            Assert.assertEquals(2, responseCache.hits());
+            Assert.assertEquals(0.4, responseCache.hitRate(), 0.001);
+        } finally {
+            if (cc != null) {
+                cc.shutdown().awaitListenersUninterruptibly();
+            }
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
+
     @Test
     public void testStorePutGetUDP() throws Exception {
         StorageMemory storeSender = new StorageMemory();
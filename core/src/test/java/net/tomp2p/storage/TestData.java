@@ -1,7 +1,9 @@
 package net.tomp2p.storage;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
+import io.netty.util.IllegalReferenceCountException;
 
 import java.io.IOException;
 import java.security.InvalidKeyException;
@@ -49,7 +51,9 @@ public class TestData {
         ByteBuf pa1 = Unpooled.wrappedBuffer(new byte[50000]);
         boolean done1 = data.decodeBuffer(pa1);
         Assert.assertEquals(true, done1);
-        transfer.writeBytes(data.buffer());
+        ByteBuf payload = data.buffer();
+        transfer.writeBytes(payload);
+        payload.release();
         data.encodeDone(transfer);
 
         Data newData = Data.decodeHeader(transfer, new DefaultSignatureFactory());
@@ -59,6 +63,7 @@ public class TestData {
         Assert.assertEquals(data, newData);
         ByteBuf test = newData.buffer();
         Assert.assertEquals(100000, test.readableBytes());
+        test.release();
     }
     
     @Test
@@ -85,6 +90,7 @@ public class TestData {
         Assert.assertEquals(data, newData);
         ByteBuf test = newData.buffer();
         Assert.assertEquals(100000, test.readableBytes());
+        test.release();
     }
     
     @Test
@@ -101,7 +107,9 @@ public class TestData {
         ByteBuf pa1 = Unpooled.wrappedBuffer(new byte[50000]);
         boolean done1 = data.decodeBuffer(pa1);
         Assert.assertEquals(true, done1);
-        transfer.writeBytes(data.buffer());
+        ByteBuf payload = data.buffer();
+        transfer.writeBytes(payload);
+        payload.release();
         data.encodeDone(transfer);
 
         newData.decodeBuffer(transfer);
@@ -110,6 +118,7 @@ public class TestData {
         Assert.assertEquals(data, newData);
         ByteBuf test = newData.buffer();
         Assert.assertEquals(100000, test.readableBytes());
+        test.release();
     }
     
     @Test
@@ -146,6 +155,58 @@ public class TestData {
         Assert.assertEquals(data, newData);
     }
 
+    /**
+     * A received data object keeps a slice of the pooled buffer. The buffer goes back to the pool only when the data
+     * object and all its duplicates are released.
+     */
+    @Test
+    public void testDataPooledRelease() throws Exception {
+        Data data = new Data(new byte[100000]);
+        AlternativeCompositeByteBuf transfer = AlternativeCompositeByteBuf.compBuffer();
+        data.encodeHeader(transfer);
+        data.encodeDone(transfer);
+        ByteBuf pooled = PooledByteBufAllocator.DEFAULT.directBuffer(transfer.readableBytes());
+        pooled.writeBytes(transfer);
+        transfer.release();
+
+        Data newData = Data.decodeHeader(pooled, new DefaultSignatureFactory());
+        newData.decodeBuffer(pooled);
+        newData.decodeDone(pooled, null);
+        // the channel releases its buffer after decoding
+        pooled.release();
+        Assert.assertEquals(1, pooled.refCnt());
+        Assert.assertEquals(data, newData);
+
+        // encoding does not copy and does not keep a reference
+        AlternativeCompositeByteBuf out = AlternativeCompositeByteBuf.compBuffer();
+        Data encode = newData.duplicate();
+        encode.encodeHeader(out);
+        encode.encodeDone(out);
+        encode.release();
+        Assert.assertEquals(2, pooled.refCnt());
+        out.release();
+        Assert.assertEquals(1, pooled.refCnt());
+
+        Data copy = newData.duplicate();
+        // a view holds its own reference and stays valid after the data object is released
+        ByteBuf view = newData.buffer();
+        newData.release();
+        newData.release();
+        Assert.assertEquals(2, pooled.refCnt());
+        Assert.assertEquals(100000, view.readableBytes());
+        view.release();
+        Assert.assertEquals(1, pooled.refCnt());
+        try {
+            newData.buffer();
+            Assert.fail("the payload of a released data object must not be accessed");
+        } catch (IllegalReferenceCountException e) {
+            // expected
+        }
+        Assert.assertEquals(data.hash(), copy.hash());
+        copy.release();
+        Assert.assertEquals(0, pooled.refCnt());
+    }
+
 	private Data encodeDecode(Data data) {
 	    
 		AlternativeCompositeByteBuf transfer = AlternativeCompositeByteBuf.compBuffer();
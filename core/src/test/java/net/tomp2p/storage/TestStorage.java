@@ -1,17 +1,22 @@
 package net.tomp2p.storage;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.PublicKey;
+import java.util.Arrays;
 import java.util.SortedMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.storage.StorageLayer.PutStatus;
+import net.tomp2p.utils.Timings;
 import net.tomp2p.utils.Utils;
 
 import org.junit.After;
@@ -191,6 +196,53 @@ public class TestStorage {
         Assert.assertEquals(true, tmp == null);
     }
     
+    @Test
+    public void testExpiryWheel() throws Exception {
+        long now = Timings.currentTimeMillis();
+        ExpiryWheel expiryWheel = new ExpiryWheel(100, 4);
+        Number640 overdue = new Number640(new Number160(1), Number160.ZERO, Number160.ZERO, Number160.ZERO);
+        Number640 soon = new Number640(new Number160(2), Number160.ZERO, Number160.ZERO, Number160.ZERO);
+        Number640 late = new Number640(new Number160(3), Number160.ZERO, Number160.ZERO, Number160.ZERO);
+        expiryWheel.add(overdue, now - 1000);
+        expiryWheel.add(soon, now + 150);
+        // beyond the 4 slots of 100ms
+        expiryWheel.add(late, now + 1000);
+        Assert.assertEquals(3, expiryWheel.size());
+        Assert.assertEquals(Arrays.asList(overdue), expiryWheel.expired(now, 10));
+        // the keys stay until they are removed
+        Assert.assertEquals(2, expiryWheel.expired(now + 200, 10).size());
+        Assert.assertEquals(1, expiryWheel.expired(now + 200, 1).size());
+        Assert.assertTrue(expiryWheel.remove(overdue, now - 1000));
+        Assert.assertFalse(expiryWheel.remove(soon, now + 151));
+        Assert.assertTrue(expiryWheel.remove(soon, now + 150));
+        // the exact expiration counts, not the bucket
+        Assert.assertEquals(0, expiryWheel.expired(now + 1000, 10).size());
+        Assert.assertEquals(Arrays.asList(late), expiryWheel.expired(now + 1001, 10));
+        Assert.assertTrue(expiryWheel.remove(late, now + 1000));
+        Assert.assertEquals(0, expiryWheel.size());
+        Assert.assertEquals(0, expiryWheel.expired(Long.MAX_VALUE, 10).size());
+    }
+
+    @Test
+    public void testCheckTimeoutBatches() throws Exception {
+        StorageMemory storageM = new StorageMemory();
+        StorageLayer storage = new StorageLayer(storageM);
+        int count = StorageLayer.EXPIRY_BATCH + 10;
+        for (int i = 0; i < count; i++) {
+            Data data = new Data("string");
+            data.ttlSeconds(1);
+            storage.put(new Number640(new Number160(i), domainKey, content1, Number160.ZERO), data, null, false,
+                    false);
+        }
+        Thread.sleep(2000);
+        Assert.assertEquals(StorageLayer.EXPIRY_BATCH, storage.checkTimeout(StorageLayer.EXPIRY_BATCH));
+        Assert.assertEquals(10, storageM.subMapTimeout(Long.MAX_VALUE).size());
+        storage.checkTimeout();
+        Assert.assertEquals(0, storageM.subMapTimeout(Long.MAX_VALUE).size());
+        Assert.assertEquals(0, storageM.map().size());
+        storageM.close();
+    }
+
     @Test
     public void testTTLLeak() throws Exception {
         StorageMemory storageM = new StorageMemory();
@@ -209,6 +261,113 @@ public class TestStorage {
         Assert.assertEquals(true, tmp == null);
     }
 
+    @Test
+    public void testRelease() throws Exception {
+        StorageMemory storageM = new StorageMemory();
+        StorageLayer storage = new StorageLayer(storageM);
+        // the storage holds its own reference, so the caller releases what it put
+        ByteBuf buf1 = pooled(storage, key1, -1);
+        ByteBuf buf2 = pooled(storage, key2, -1);
+        ByteBuf buf3 = pooled(storage, key3, 1);
+        Assert.assertEquals(1, buf1.refCnt());
+        // overwritten
+        storage.put(key1, new Data("test"), null, false, false);
+        Assert.assertEquals(0, buf1.refCnt());
+        // removed
+        storage.remove(key2, null, false);
+        Assert.assertEquals(0, buf2.refCnt());
+        // expired
+        Thread.sleep(2000);
+        storage.checkTimeout();
+        Assert.assertEquals(0, buf3.refCnt());
+        // removed data is handed over
+        ByteBuf buf4 = pooled(storage, key4, -1);
+        Data removed = storage.remove(key4, null, true).element0();
+        Assert.assertEquals(1, buf4.refCnt());
+        removed.release();
+        Assert.assertEquals(0, buf4.refCnt());
+        storageM.close();
+    }
+
+    @Test
+    public void testGetHoldsReference() throws Exception {
+        StorageMemory storageM = new StorageMemory();
+        StorageLayer storage = new StorageLayer(storageM);
+        ByteBuf buf1 = pooled(storage, key1, -1);
+        // a reader keeps the payload while the entry is overwritten
+        Data read = storage.get(key1);
+        Assert.assertEquals(2, buf1.refCnt());
+        storage.put(key1, new Data("test"), null, false, false);
+        Assert.assertEquals(1, buf1.refCnt());
+        Assert.assertEquals(10, read.toBytes().length);
+        read.release();
+        Assert.assertEquals(0, buf1.refCnt());
+        storageM.close();
+    }
+
+    private static ByteBuf pooled(StorageLayer storage, Number640 key, int ttlSeconds) {
+        ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer(10).writeZero(10);
+        Data data = new Data(new DataBuffer(buf), 10);
+        buf.release();
+        if (ttlSeconds > 0) {
+            data.ttlSeconds(ttlSeconds);
+        }
+        storage.put(key, data, null, false, false);
+        data.release();
+        return buf;
+    }
+
+    @Test
+    public void testMerkleTree() throws Exception {
+        StorageMemory storageM = new StorageMemory();
+        StorageLayer storage = new StorageLayer(storageM);
+        MerkleTree merkleTree = new MerkleTree();
+        storage.merkleTree(merkleTree);
+        Assert.assertEquals(Number160.ZERO, merkleTree.root());
+        store(storage);
+        storage.put(key3, new Data("test3"), null, false, false);
+        storage.put(key3, new Data("test4"), null, false, false);
+        Data data = new Data("test5");
+        data.ttlSeconds(1);
+        storage.put(new Number640(content4, domainKey, content4, Number160.ZERO), data, null, false, false);
+        storage.remove(key2, null, false);
+        // a tree that is built from the stored entries is the same as the one updated with each change
+        MerkleTree rebuilt = new MerkleTree();
+        new StorageLayer(storageM).merkleTree(rebuilt);
+        Assert.assertEquals(rebuilt.root(), merkleTree.root());
+        Assert.assertEquals(3, merkleTree.count(0, 0));
+        Assert.assertEquals(2, merkleTree.locationCount());
+        Assert.assertEquals(merkleTree.root(), merkleTree.locationHash(locationKey).xor(
+                merkleTree.locationHash(content4)));
+        Thread.sleep(2000);
+        storage.checkTimeout();
+        Assert.assertEquals(1, merkleTree.locationCount());
+        Assert.assertEquals(merkleTree.root(), merkleTree.locationHash(locationKey));
+        storage.remove(key1, null, false);
+        storage.remove(key3, null, false);
+        Assert.assertEquals(Number160.ZERO, merkleTree.root());
+        Assert.assertEquals(0, merkleTree.count(0, 0));
+        storageM.close();
+    }
+
+    @Test
+    public void testMerkleTreeNodes() throws Exception {
+        MerkleTree merkleTree = new MerkleTree(2);
+        Number160 locationKey1 = new Number160("0x1234");
+        Number160 locationKey2 = new Number160("0xff00000000000000000000000000000000000000");
+        merkleTree.add(new Number640(locationKey1, domainKey, content1, Number160.ZERO), Number160.ONE);
+        merkleTree.add(new Number640(locationKey2, domainKey, content1, Number160.ZERO), Number160.ONE);
+        Assert.assertEquals(2, merkleTree.children(0, 0).size());
+        Assert.assertEquals(1, merkleTree.children(1, 0).size());
+        Assert.assertEquals(0, MerkleTree.index(locationKey1, 2));
+        Assert.assertEquals(255, MerkleTree.index(locationKey2, 2));
+        Assert.assertEquals(merkleTree.hash(2, 255), merkleTree.children(1, 15).get(255));
+        Assert.assertEquals(locationKey2, merkleTree.locationHashes(MerkleTree.from(2, 255), MerkleTree.to(2, 255))
+                .firstKey());
+        Assert.assertEquals(Number160.MAX_VALUE, MerkleTree.to(2, 255));
+        Assert.assertEquals(1, merkleTree.locationHashes(MerkleTree.from(2, 0), MerkleTree.to(2, 0)).size());
+    }
+
     @Test
     public void testResponsibility() throws Exception {
         StorageMemory storageM = new StorageMemory();
@@ -251,66 +410,129 @@ public class TestStorage {
     }
 
     @Test
-    public void testLock1() {
-        KeyLock<Number160> lock = new KeyLock<Number160>();
-        KeyLock<Number160>.RefCounterLock tmp = lock.lock(Number160.createHash("test"));
-        Assert.assertEquals(1, lock.cacheSize());
-        lock.unlock(tmp);
-        Assert.assertEquals(0, lock.cacheSize());
-        lock.unlock(tmp);
+    public void testOffHeap() throws Exception {
+        StorageOffHeap storageO = new StorageOffHeap();
+        StorageLayer storage = new StorageLayer(storageO);
+        testPut(storage);
+        Data stored = storage.get(key1);
+        ByteBuf buf = stored.buffer();
+        Assert.assertEquals(true, buf.isDirect());
+        buf.release();
+        stored.release();
+        Assert.assertEquals(3, storageO.contains(key1, key4));
+        storageO.close();
+        storageO = new StorageOffHeap();
+        testGet(new StorageLayer(storageO));
+        storageO.close();
+        storageO = new StorageOffHeap();
+        testRemove(new StorageLayer(storageO));
+        storageO.close();
     }
 
     @Test
-    public void testLock2() {
-        KeyLock<Number160> lock = new KeyLock<Number160>();
-        KeyLock<Number160>.RefCounterLock tmp1 = lock.lock(Number160.createHash("test1"));
-        KeyLock<Number160>.RefCounterLock tmp2 = lock.lock(Number160.createHash("test2"));
-        Assert.assertEquals(2, lock.cacheSize());
-        lock.unlock(tmp1);
-        lock.unlock(tmp2);
-        Assert.assertEquals(0, lock.cacheSize());
+    public void testOffHeapTTL() throws Exception {
+        StorageOffHeap storageO = new StorageOffHeap();
+        testTTL2(new StorageLayer(storageO));
+        Assert.assertEquals(0, storageO.subMapTimeout(Long.MAX_VALUE).size());
+        storageO.close();
     }
 
     @Test
-    public void testLockConcurrent() throws InterruptedException {
-        final KeyLock<Number160> lock = new KeyLock<Number160>();
-        for (int i = 0; i < 100; i++) {
-            final int ii = i;
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    KeyLock<Number160>.RefCounterLock tmp1 = lock.lock(Number160.createHash("test1"));
-                    KeyLock<Number160>.RefCounterLock tmp2 = lock.lock(Number160.createHash("test2"));
-                    lock.unlock(tmp1);
-                    lock.unlock(tmp2);
-                    System.err.print("a" + ii + " ");
-                }
-            }).start();
+    public void testOffHeapRelease() throws Exception {
+        StorageOffHeap storageO = new StorageOffHeap();
+        StorageLayer storage = new StorageLayer(storageO);
+        ByteBuf buf1 = offHeap(storage, key1, -1);
+        ByteBuf buf2 = offHeap(storage, key2, -1);
+        ByteBuf buf3 = offHeap(storage, key3, 1);
+        ByteBuf buf4 = offHeap(storage, key4, -1);
+        Assert.assertEquals(1, buf1.refCnt());
+        // overwritten
+        storage.put(key1, new Data("test"), null, false, false);
+        Assert.assertEquals(0, buf1.refCnt());
+        // removed
+        storage.remove(key2, null, false);
+        Assert.assertEquals(0, buf2.refCnt());
+        // expired
+        Thread.sleep(2000);
+        storage.checkTimeout();
+        Assert.assertEquals(0, buf3.refCnt());
+        storageO.close();
+        Assert.assertEquals(0, buf4.refCnt());
+    }
+
+    /**
+     * @return A view of the direct buffer of the stored copy, without a reference
+     */
+    private static ByteBuf offHeap(StorageLayer storage, Number640 key, int ttlSeconds) {
+        Data data = new Data(new byte[10]);
+        if (ttlSeconds > 0) {
+            data.ttlSeconds(ttlSeconds);
         }
-        for (int i = 0; i < 100; i++) {
-            final int ii = i;
-            new Thread(new Runnable() {
+        storage.put(key, data, null, false, false);
+        Data stored = storage.get(key);
+        ByteBuf buf = stored.buffer();
+        Assert.assertEquals(true, buf.isDirect());
+        buf.release();
+        stored.release();
+        return buf;
+    }
+
+    @Test
+    public void testStripedLock() {
+        StripedLock<Number160> lock = new StripedLock<Number160>(100);
+        Assert.assertEquals(128, lock.size());
+        for (int i = 0; i < 1000; i++) {
+            int index = lock.index(new Number160(i));
+            Assert.assertTrue(index >= 0 && index < lock.size());
+        }
+        // the locks are reentrant, so a stripe can be locked while all stripes are held
+        StripedLock<Number160>.Stripe all = lock.lockAll();
+        StripedLock<Number160>.Stripe tmp = lock.lock(Number160.createHash("test"));
+        tmp.unlock();
+        all.unlock();
+    }
+
+    @Test
+    public void testStripedLockConcurrent() throws InterruptedException {
+        final StripedLock<Number160> lock = new StripedLock<Number160>();
+        final AtomicInteger counter = new AtomicInteger();
+        final int[] values = new int[4];
+        Thread[] threads = new Thread[100];
+        for (int i = 0; i < threads.length; i++) {
+            final Number160 key = Number160.createHash("test" + (i % values.length));
+            final int slot = i % values.length;
+            threads[i] = new Thread(new Runnable() {
                 @Override
                 public void run() {
-                    KeyLock<Number160>.RefCounterLock tmp1 = lock.lock(Number160.createHash("test3"));
-                    KeyLock<Number160>.RefCounterLock tmp2 = lock.lock(Number160.createHash("test4"));
-                    lock.unlock(tmp1);
-                    lock.unlock(tmp2);
-                    System.err.print("b" + ii + " ");
+                    for (int j = 0; j < 1000; j++) {
+                        StripedLock<Number160>.Stripe tmp = lock.lock(key);
+                        try {
+                            values[slot]++;
+                        } finally {
+                            tmp.unlock();
+                        }
+                        if (j % 100 == 0) {
+                            StripedLock<Number160>.Stripe all = lock.lockAll();
+                            try {
+                                counter.incrementAndGet();
+                            } finally {
+                                all.unlock();
+                            }
+                        }
+                    }
                 }
-            }).start();
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(threads.length * 10, counter.get());
+        for (int value : values) {
+            Assert.assertEquals(threads.length / values.length * 1000, value);
         }
-        Thread.sleep(500);
-        Assert.assertEquals(0, lock.cacheSize());
-        KeyLock<Number160>.RefCounterLock tmp1 = lock.lock(Number160.createHash("test1"));
-        KeyLock<Number160>.RefCounterLock tmp2 = lock.lock(Number160.createHash("test2"));
-        Assert.assertEquals(2, lock.cacheSize());
-        lock.unlock(tmp1);
-        Assert.assertEquals(1, lock.cacheSize());
-        lock.unlock(tmp2);
-        Assert.assertEquals(0, lock.cacheSize());
     }
-    
+
     @Test
     public void testConcurrency() throws InterruptedException, IOException {
         final StorageMemory sM = new StorageMemory();
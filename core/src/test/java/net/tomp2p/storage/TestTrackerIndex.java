@@ -0,0 +1,119 @@
+package net.tomp2p.storage;
+
+import java.util.Map;
+
+import net.tomp2p.Utils2;
+import net.tomp2p.message.TrackerData;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.PeerAddress;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestTrackerIndex {
+
+    private static final Number320 SWARM1 = new Number320(new Number160(1), Number160.ZERO);
+    private static final Number320 SWARM2 = new Number320(new Number160(2), Number160.ZERO);
+    private static final Number320 SWARM3 = new Number320(new Number160(3), Number160.ZERO);
+
+    @Test
+    public void testPutRemove() throws Exception {
+        TrackerIndex index = new TrackerIndex(60, Long.MAX_VALUE);
+        PeerAddress peer1 = Utils2.createAddress(11);
+        PeerAddress peer2 = Utils2.createAddress(12);
+        Data attachment = new Data("attachment");
+        Assert.assertTrue(index.put(SWARM1, peer1, null, 10));
+        Assert.assertTrue(index.put(SWARM1, peer2, attachment, 10));
+        Assert.assertTrue(index.put(SWARM2, peer1, null, 10));
+        // stored again
+        Assert.assertTrue(index.put(SWARM2, peer1, null, 10));
+        // a peer is stored once for all its swarms
+        Assert.assertEquals(2, index.peers());
+        Assert.assertEquals(2, index.swarms());
+        Assert.assertEquals(3, index.memberships());
+
+        Map<PeerAddress, Data> peers = index.peers(SWARM1);
+        Assert.assertEquals(2, peers.size());
+        Assert.assertEquals(TrackerData.EMTPY_DATA, peers.get(peer1));
+        Assert.assertEquals(attachment, peers.get(peer2));
+        Assert.assertTrue(index.contains(SWARM2, peer1.getPeerId()));
+        Assert.assertFalse(index.contains(SWARM2, peer2.getPeerId()));
+
+        Map.Entry<PeerAddress, Data> entry = index.remove(SWARM1, peer2.getPeerId());
+        Assert.assertEquals(peer2, entry.getKey());
+        Assert.assertEquals(attachment, entry.getValue());
+        Assert.assertNull(index.remove(SWARM1, peer2.getPeerId()));
+        Assert.assertEquals(1, index.peers());
+
+        // offline, removed from all swarms
+        Assert.assertTrue(index.remove(peer1.getPeerId()));
+        Assert.assertNull(index.peers(SWARM1));
+        Assert.assertEquals(0, index.size(SWARM2));
+        Assert.assertEquals(0, index.swarms());
+        Assert.assertEquals(0, index.peers());
+        Assert.assertEquals(0, index.memberships());
+        Assert.assertEquals(0, index.bytes());
+    }
+
+    @Test
+    public void testManyPeers() throws Exception {
+        TrackerIndex index = new TrackerIndex(60, Long.MAX_VALUE);
+        for (int i = 0; i < 1000; i++) {
+            Number320 swarm = new Number320(new Number160(i % 10), Number160.ZERO);
+            Assert.assertTrue(index.put(swarm, Utils2.createAddress(i), null, 1000));
+        }
+        Assert.assertEquals(1000, index.peers());
+        // removing peers moves others in the table, all remaining ones must still be found
+        for (int i = 0; i < 1000; i += 2) {
+            Assert.assertTrue(index.remove(new Number160(i)));
+        }
+        for (int i = 0; i < 1000; i++) {
+            Number320 swarm = new Number320(new Number160(i % 10), Number160.ZERO);
+            Assert.assertEquals(i % 2 == 1, index.contains(swarm, new Number160(i)));
+        }
+        Assert.assertEquals(500, index.peers());
+        Assert.assertEquals(500, index.memberships());
+    }
+
+    @Test
+    public void testFull() throws Exception {
+        TrackerIndex index = new TrackerIndex(60, Long.MAX_VALUE);
+        // as in the tracker storage, a swarm may have one more peer than the limit
+        for (int i = 0; i < 2; i++) {
+            Assert.assertTrue(index.put(SWARM1, Utils2.createAddress(i), null, 1));
+        }
+        Assert.assertFalse(index.put(SWARM1, Utils2.createAddress(2), null, 1));
+        // existing peers can still be updated
+        Assert.assertTrue(index.put(SWARM1, Utils2.createAddress(0), null, 1));
+        Assert.assertEquals(2, index.size(SWARM1));
+        Assert.assertEquals(2, index.peers());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        long swarmBytes = TrackerIndex.SWARM_BYTES + TrackerIndex.PEER_BYTES + TrackerIndex.MEMBERSHIP_BYTES;
+        TrackerIndex index = new TrackerIndex(60, 2 * swarmBytes);
+        index.put(SWARM1, Utils2.createAddress(1), null, 10);
+        index.put(SWARM2, Utils2.createAddress(2), null, 10);
+        // the first swarm is used, so the second one is evicted
+        Assert.assertEquals(1, index.size(SWARM1));
+        index.put(SWARM3, Utils2.createAddress(3), null, 10);
+        Assert.assertEquals(2, index.swarms());
+        Assert.assertEquals(1, index.size(SWARM1));
+        Assert.assertEquals(0, index.size(SWARM2));
+        Assert.assertEquals(1, index.size(SWARM3));
+        Assert.assertEquals(2 * swarmBytes, index.bytes());
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+        TrackerIndex index = new TrackerIndex(1, Long.MAX_VALUE);
+        index.put(SWARM1, Utils2.createAddress(1), null, 10);
+        Thread.sleep(2100);
+        index.put(SWARM1, Utils2.createAddress(2), null, 10);
+        Assert.assertEquals(1, index.size(SWARM1));
+        Assert.assertFalse(index.contains(SWARM1, new Number160(1)));
+        Assert.assertEquals(1, index.peers());
+    }
+}
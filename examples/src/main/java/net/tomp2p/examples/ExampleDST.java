@@ -36,6 +36,7 @@ import net.tomp2p.peers.Number640;
 import net.tomp2p.storage.Data;
 import net.tomp2p.storage.StorageLayer;
 import net.tomp2p.storage.StorageMemory;
+import net.tomp2p.utils.Utils;
 
 /**
  * Example how to do range queries.
@@ -100,7 +101,11 @@ public final class ExampleDST {
         		@Override
         		public NavigableMap<Number640, Data> get(Number640 from, Number640 to, int limit, boolean ascending) {
         			NavigableMap<Number640, Data> tmp = super.get(from, to, limit, ascending);
-        			return wrap(tmp);
+        			try {
+        				return wrap(tmp);
+        			} finally {
+        				Utils.release(tmp);
+        			}
         		}
         		
         		 /**
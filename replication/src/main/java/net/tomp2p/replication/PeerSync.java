@@ -35,4 +35,8 @@ public class PeerSync implements PeerInit{
         return new SynchronizationDirectBuilder(this, other);
     }
 
+    public SynchronizationMerkleBuilder merkle(PeerAddress other) {
+        return new SynchronizationMerkleBuilder(this, other);
+    }
+
 }
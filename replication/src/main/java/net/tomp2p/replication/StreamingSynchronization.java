@@ -0,0 +1,520 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.replication;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.utils.Utils;
+
+/**
+ * The rsync algorithm on buffers, which replaces {@link Synchronization} for the synchronization of replicas. The
+ * values are read through {@link ByteBuf#nioBuffers(int, int)}, so a value that has been received in several parts is
+ * not copied into an array. The replica sends the {@link #checksums(ByteBuf, int, int)} of the blocks of its value,
+ * the responsible peer sends the {@link #delta(ByteBuf, ByteBuf, Number160, int)} with references to the blocks that
+ * the replica already has and the literal data of the rest, and the replica {@link #reconstruct(ByteBuf, ByteBuf)}s
+ * the new value.
+ * <p>
+ * The block size grows with the square root of the length of the value, so the checksums stay small for large values.
+ * The weak checksums are looked up in a hash table of primitive arrays. Besides the result, the memory used is in the
+ * order of the number of blocks. The checksums of the blocks and the scan of the segments of a large value run in
+ * parallel.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public final class StreamingSynchronization {
+
+    /**
+     * The smallest block size.
+     */
+    public static final int MIN_BLOCK_SIZE = 512;
+
+    /**
+     * The largest block size.
+     */
+    public static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * The default number of blocks or segments that are processed at the same time.
+     */
+    public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    // a segment that is scanned by one task, a block that spans two segments is sent as literal data
+    private static final int MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final int MIN_BLOCKS_PER_TASK = 256;
+
+    private static final int STRONG_SIZE = 16;
+
+    private static final int CHECKSUM_SIZE = Utils.INTEGER_BYTE_SIZE + STRONG_SIZE;
+
+    private static final int HEADER_SIZE = Utils.INTEGER_BYTE_SIZE + Utils.LONG_BYTE_SIZE;
+
+    // the worker threads are daemon threads
+    private static final ForkJoinPool POOL = new ForkJoinPool();
+
+    private StreamingSynchronization() {
+    }
+
+    /**
+     * @param length
+     *            The length of a value
+     * @return The block size for a value of this length
+     */
+    public static int blockSize(final long length) {
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, (long) Math.sqrt(length)));
+    }
+
+    /**
+     * Calculates the weak and strong checksums of the blocks of the value of the replica. The format is the block size,
+     * the length of the value, and a weak checksum and an MD5 hash for each block.
+     *
+     * @param value
+     *            The value of the replica, which is not modified
+     * @param blockSize
+     *            The block size, see {@link #blockSize(long)}
+     * @param parallelism
+     *            The number of blocks that are processed at the same time
+     * @return The checksums
+     */
+    public static ByteBuf checksums(final ByteBuf value, final int blockSize, final int parallelism) {
+        final int length = value.readableBytes();
+        final int blocks = blocks(length, blockSize);
+        final ByteBuf checksums = Unpooled.buffer(HEADER_SIZE + blocks * CHECKSUM_SIZE);
+        checksums.writeInt(blockSize);
+        checksums.writeLong(length);
+        checksums.writerIndex(checksums.capacity());
+        final int tasks = Math.max(1, Math.min(parallelism, blocks / MIN_BLOCKS_PER_TASK));
+        final List<Callable<Void>> callables = new ArrayList<Callable<Void>>(tasks);
+        for (int task = 0; task < tasks; task++) {
+            final int from = (int) ((long) blocks * task / tasks);
+            final int to = (int) ((long) blocks * (task + 1) / tasks);
+            callables.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    final MessageDigest md5 = md5();
+                    final byte[] strong = new byte[STRONG_SIZE];
+                    for (int block = from; block < to; block++) {
+                        final int offset = block * blockSize;
+                        final int blockLength = Math.min(blockSize, length - offset);
+                        final int index = HEADER_SIZE + block * CHECKSUM_SIZE;
+                        checksums.setInt(index, weak(value, value.readerIndex() + offset, blockLength));
+                        strong(md5, value, value.readerIndex() + offset, blockLength, strong);
+                        checksums.setBytes(index + Utils.INTEGER_BYTE_SIZE, strong);
+                    }
+                    return null;
+                }
+            });
+        }
+        invoke(callables);
+        return checksums;
+    }
+
+    /**
+     * Calculates the delta of the new value to the value of the replica. The format is the hash of the new value, the
+     * block size and the length of the new value, followed by the instructions: a non-negative integer references a
+     * block of the replica, a negative integer is followed by as many bytes of literal data.
+     *
+     * @param newValue
+     *            The value of the responsible peer, which is not modified
+     * @param checksums
+     *            The checksums of the replica
+     * @param hash
+     *            The hash of the new value, which lets the replica skip values that it already has
+     * @param parallelism
+     *            The number of segments that are scanned at the same time
+     * @return The delta
+     */
+    public static ByteBuf delta(final ByteBuf newValue, final ByteBuf checksums, final Number160 hash,
+            final int parallelism) {
+        final int blockSize = checksums.getInt(checksums.readerIndex());
+        final long oldLength = checksums.getLong(checksums.readerIndex() + Utils.INTEGER_BYTE_SIZE);
+        if (blockSize <= 0 || oldLength < 0 || oldLength > Integer.MAX_VALUE
+                || checksums.readableBytes() != HEADER_SIZE + blocks(oldLength, blockSize) * CHECKSUM_SIZE) {
+            throw new IllegalArgumentException("The checksums are not valid");
+        }
+        final Blocks blocks = new Blocks(checksums, blockSize, (int) oldLength);
+        final int length = newValue.readableBytes();
+        final int segments = Math.max(1, Math.min(parallelism, length / Math.max(MIN_SEGMENT_SIZE, 16 * blockSize)));
+        final List<Callable<ByteBuf>> callables = new ArrayList<Callable<ByteBuf>>(segments);
+        for (int segment = 0; segment < segments; segment++) {
+            final int from = (int) ((long) length * segment / segments);
+            final int to = (int) ((long) length * (segment + 1) / segments);
+            callables.add(new Callable<ByteBuf>() {
+                @Override
+                public ByteBuf call() throws Exception {
+                    return scan(newValue, from, to, to == length, blocks);
+                }
+            });
+        }
+        final List<ByteBuf> parts = invoke(callables);
+        final ByteBuf header = Unpooled.buffer(Number160.BYTE_ARRAY_SIZE + HEADER_SIZE);
+        header.writeBytes(hash.toByteArray());
+        header.writeInt(blockSize);
+        header.writeLong(length);
+        parts.add(0, header);
+        int size = 0;
+        for (ByteBuf part : parts) {
+            size += part.readableBytes();
+        }
+        final ByteBuf delta = Unpooled.buffer(size);
+        for (ByteBuf part : parts) {
+            delta.writeBytes(part);
+        }
+        return delta;
+    }
+
+    /**
+     * Reconstructs the new value from the value of the replica and the delta.
+     *
+     * @param oldValue
+     *            The value of the replica, which is not modified
+     * @param delta
+     *            The delta from the responsible peer
+     * @return The new value
+     */
+    public static ByteBuf reconstruct(final ByteBuf oldValue, final ByteBuf delta) {
+        int index = delta.readerIndex() + Number160.BYTE_ARRAY_SIZE;
+        final int blockSize = delta.getInt(index);
+        final long newLength = delta.getLong(index + Utils.INTEGER_BYTE_SIZE);
+        index += HEADER_SIZE;
+        if (blockSize <= 0 || newLength < 0 || newLength > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The delta is not valid");
+        }
+        final int oldLength = oldValue.readableBytes();
+        final ByteBuf newValue = Unpooled.buffer((int) newLength);
+        while (index < delta.writerIndex()) {
+            final int instruction = delta.getInt(index);
+            index += Utils.INTEGER_BYTE_SIZE;
+            if (instruction >= 0) {
+                final long offset = (long) instruction * blockSize;
+                if (offset >= oldLength) {
+                    throw new IllegalArgumentException("The delta references an unknown block " + instruction);
+                }
+                newValue.writeBytes(oldValue, oldValue.readerIndex() + (int) offset,
+                        (int) Math.min(blockSize, oldLength - offset));
+            } else {
+                newValue.writeBytes(delta, index, -instruction);
+                index -= instruction;
+            }
+        }
+        if (newValue.readableBytes() != newLength) {
+            throw new IllegalArgumentException("The delta does not match the old value");
+        }
+        return newValue;
+    }
+
+    /**
+     * @param delta
+     *            The delta
+     * @return The hash of the new value
+     */
+    public static Number160 hash(final ByteBuf delta) {
+        final byte[] hash = new byte[Number160.BYTE_ARRAY_SIZE];
+        delta.getBytes(delta.readerIndex(), hash);
+        return new Number160(hash);
+    }
+
+    /**
+     * @param delta
+     *            The delta
+     * @return The number of bytes of the new value that are sent as literal data
+     */
+    public static long literalLength(final ByteBuf delta) {
+        long literal = 0;
+        int index = delta.readerIndex() + Number160.BYTE_ARRAY_SIZE + HEADER_SIZE;
+        while (index < delta.writerIndex()) {
+            final int instruction = delta.getInt(index);
+            index += Utils.INTEGER_BYTE_SIZE;
+            if (instruction < 0) {
+                literal -= instruction;
+                index -= instruction;
+            }
+        }
+        return literal;
+    }
+
+    /**
+     * Scans a segment of the new value with a rolling checksum.
+     *
+     * @param last
+     *            True if this is the last segment, which may end with the shorter last block of the replica
+     * @return The instructions for the segment
+     */
+    private static ByteBuf scan(final ByteBuf newValue, final int from, final int to, final boolean last,
+            final Blocks blocks) throws DigestException {
+        final ByteBuf out = Unpooled.buffer();
+        final int blockSize = blocks.blockSize;
+        final int base = newValue.readerIndex();
+        final MessageDigest md5 = md5();
+        final byte[] strong = new byte[STRONG_SIZE];
+        int literalStart = from;
+        int position = from;
+        if (blocks.fullBlocks > 0 && to - from >= blockSize) {
+            // the incoming and the outgoing bytes of the window
+            final Cursor head = new Cursor(newValue, base + from, to - from);
+            final Cursor tail = new Cursor(newValue, base + from, to - from);
+            int a = 0;
+            int b = 0;
+            for (int i = 0; i < blockSize; i++) {
+                final int in = head.next();
+                a += in;
+                b += (blockSize - i) * in;
+            }
+            while (true) {
+                final int block = blocks.find((a & 0xffff) | (b << 16), md5, newValue, base + position, strong);
+                if (block >= 0) {
+                    literal(out, newValue, base + literalStart, position - literalStart);
+                    out.writeInt(block);
+                    position += blockSize;
+                    literalStart = position;
+                    if (position + blockSize > to) {
+                        break;
+                    }
+                    tail.skip(blockSize);
+                    a = 0;
+                    b = 0;
+                    for (int i = 0; i < blockSize; i++) {
+                        final int in = head.next();
+                        a += in;
+                        b += (blockSize - i) * in;
+                    }
+                } else {
+                    if (position + blockSize >= to) {
+                        break;
+                    }
+                    final int outgoing = tail.next();
+                    a += head.next() - outgoing;
+                    b += a - blockSize * outgoing;
+                    position++;
+                }
+            }
+        }
+        final int lastLength = blocks.lastLength;
+        if (last && lastLength > 0 && to - literalStart >= lastLength
+                && blocks.matches(blocks.fullBlocks, weak(newValue, base + to - lastLength, lastLength), md5,
+                        newValue, base + to - lastLength, lastLength, strong)) {
+            literal(out, newValue, base + literalStart, to - lastLength - literalStart);
+            out.writeInt(blocks.fullBlocks);
+        } else {
+            literal(out, newValue, base + literalStart, to - literalStart);
+        }
+        return out;
+    }
+
+    private static void literal(final ByteBuf out, final ByteBuf value, final int index, final int length) {
+        if (length > 0) {
+            out.writeInt(-length);
+            out.writeBytes(value, index, length);
+        }
+    }
+
+    private static int blocks(final long length, final int blockSize) {
+        return (int) ((length + blockSize - 1) / blockSize);
+    }
+
+    /**
+     * The weak checksum of Adler-32 with unsigned bytes, which can be rolled over the value.
+     */
+    private static int weak(final ByteBuf value, final int index, final int length) {
+        final Cursor cursor = new Cursor(value, index, length);
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            final int in = cursor.next();
+            a += in;
+            b += (length - i) * in;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    private static void strong(final MessageDigest md5, final ByteBuf value, final int index, final int length,
+            final byte[] strong) throws DigestException {
+        for (ByteBuffer buffer : value.nioBuffers(index, length)) {
+            md5.update(buffer);
+        }
+        md5.digest(strong, 0, STRONG_SIZE);
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+
+    private static <K> List<K> invoke(final List<Callable<K>> callables) {
+        final List<K> results = new ArrayList<K>(callables.size());
+        try {
+            if (callables.size() == 1) {
+                results.add(callables.get(0).call());
+                return results;
+            }
+            for (Future<K> future : POOL.invokeAll(callables)) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Synchronization failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while synchronizing", e);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Synchronization failed", e);
+        }
+    }
+
+    /**
+     * Reads the bytes of a region of a buffer in order, without copying them.
+     */
+    private static final class Cursor {
+        private final ByteBuffer[] buffers;
+        private int current = 0;
+        private ByteBuffer buffer;
+
+        private Cursor(final ByteBuf value, final int index, final int length) {
+            this.buffers = value.nioBuffers(index, length);
+            this.buffer = buffers.length == 0 ? ByteBuffer.allocate(0) : buffers[0];
+        }
+
+        private int next() {
+            while (!buffer.hasRemaining()) {
+                buffer = buffers[++current];
+            }
+            return buffer.get() & 0xff;
+        }
+
+        private void skip(final int length) {
+            int remaining = length;
+            while (remaining > 0) {
+                while (!buffer.hasRemaining()) {
+                    buffer = buffers[++current];
+                }
+                final int step = Math.min(remaining, buffer.remaining());
+                buffer.position(buffer.position() + step);
+                remaining -= step;
+            }
+        }
+    }
+
+    /**
+     * The checksums of the replica with a hash table from the weak checksums of the full blocks to the blocks, which
+     * uses open addressing and links the blocks with the same weak checksum.
+     */
+    private static final class Blocks {
+        private final int blockSize;
+        private final int fullBlocks;
+        private final int lastLength;
+        private final int[] weak;
+        private final byte[] strong;
+        private final int[] keys;
+        // the first block + 1, 0 for an empty slot
+        private final int[] heads;
+        // the next block with the same weak checksum or -1
+        private final int[] next;
+        private final int mask;
+
+        private Blocks(final ByteBuf checksums, final int blockSize, final int oldLength) {
+            this.blockSize = blockSize;
+            this.fullBlocks = oldLength / blockSize;
+            this.lastLength = oldLength % blockSize;
+            final int blocks = blocks(oldLength, blockSize);
+            this.weak = new int[blocks];
+            this.strong = new byte[blocks * STRONG_SIZE];
+            int index = checksums.readerIndex() + HEADER_SIZE;
+            for (int block = 0; block < blocks; block++) {
+                weak[block] = checksums.getInt(index);
+                checksums.getBytes(index + Utils.INTEGER_BYTE_SIZE, strong, block * STRONG_SIZE, STRONG_SIZE);
+                index += CHECKSUM_SIZE;
+            }
+            final int capacity = Integer.highestOneBit(Math.max(1, fullBlocks) * 2 - 1) << 1;
+            this.keys = new int[capacity];
+            this.heads = new int[capacity];
+            this.next = new int[fullBlocks];
+            this.mask = capacity - 1;
+            // in reverse, so that the chains start with the first block
+            for (int block = fullBlocks - 1; block >= 0; block--) {
+                final int slot = slot(weak[block]);
+                keys[slot] = weak[block];
+                next[block] = heads[slot] - 1;
+                heads[slot] = block + 1;
+            }
+        }
+
+        private int slot(final int weakChecksum) {
+            final int hash = weakChecksum * 0x9e3779b9;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (heads[slot] != 0 && keys[slot] != weakChecksum) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /**
+         * @return The full block with the same checksums as the window or -1
+         */
+        private int find(final int weakChecksum, final MessageDigest md5, final ByteBuf value, final int index,
+                final byte[] window) throws DigestException {
+            boolean hashed = false;
+            for (int block = heads[slot(weakChecksum)] - 1; block >= 0; block = next[block]) {
+                if (!hashed) {
+                    strong(md5, value, index, blockSize, window);
+                    hashed = true;
+                }
+                if (sameStrong(block, window)) {
+                    return block;
+                }
+            }
+            return -1;
+        }
+
+        private boolean matches(final int block, final int weakChecksum, final MessageDigest md5,
+                final ByteBuf value, final int index, final int length, final byte[] window) throws DigestException {
+            if (weak[block] != weakChecksum) {
+                return false;
+            }
+            strong(md5, value, index, length, window);
+            return sameStrong(block, window);
+        }
+
+        private boolean sameStrong(final int block, final byte[] window) {
+            final int offset = block * STRONG_SIZE;
+            for (int i = 0; i < STRONG_SIZE; i++) {
+                if (strong[offset + i] != window[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
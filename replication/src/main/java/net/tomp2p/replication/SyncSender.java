@@ -1,7 +1,10 @@
 package net.tomp2p.replication;
 
+import java.util.HashMap;
 import java.util.Map;
+import java.util.NavigableSet;
 
+import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureDone;
 import net.tomp2p.message.DataMap;
 import net.tomp2p.p2p.Peer;
@@ -11,6 +14,7 @@ import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.storage.Data;
+import net.tomp2p.utils.Utils;
 
 public class SyncSender implements ReplicationSender, PeerInit {
 
@@ -29,8 +33,45 @@ public class SyncSender implements ReplicationSender, PeerInit {
 
     @Override
     public void sendDirect(PeerAddress other, Number160 locationKey, Map<Number640, Data> dataMap) {
+        // the synchronization runs after this method returns, so it needs its own references
+        final Map<Number640, Data> duplicates = new HashMap<Number640, Data>(dataMap.size());
+        for (Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
+            duplicates.put(entry.getKey(), entry.getValue().duplicate());
+        }
         FutureDone<SynchronizationStatistics> future = peerSync.synchronize(other)
-                .dataMap(new DataMap(dataMap)).start();
+                .dataMap(new DataMap(duplicates)).start();
+        future.addListener(new BaseFutureAdapter<FutureDone<SynchronizationStatistics>>() {
+            @Override
+            public void operationComplete(FutureDone<SynchronizationStatistics> future) throws Exception {
+                Utils.release(duplicates);
+            }
+        });
+        peer.notifyAutomaticFutures(future);
+    }
+
+    /**
+     * Compares the Merkle trees first and only synchronizes the location keys that differ. If the trees cannot be
+     * compared, all location keys are synchronized.
+     */
+    @Override
+    public void synchronize(final PeerAddress other, final NavigableSet<Number160> locationKeys) {
+        FutureDone<NavigableSet<Number160>> future = peerSync.merkle(other).locationKeys(locationKeys).start();
+        future.addListener(new BaseFutureAdapter<FutureDone<NavigableSet<Number160>>>() {
+            @Override
+            public void operationComplete(FutureDone<NavigableSet<Number160>> future) throws Exception {
+                NavigableSet<Number160> differing = future.isSuccess() ? future.getObject() : locationKeys;
+                for (Number160 locationKey : differing) {
+                    Number640 min = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
+                    Number640 max = new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE,
+                            Number160.MAX_VALUE);
+                    Map<Number640, Data> dataMap = peer.getPeerBean().storage().get(min, max, -1, true);
+                    if (!dataMap.isEmpty()) {
+                        sendDirect(other, locationKey, dataMap);
+                    }
+                    Utils.release(dataMap);
+                }
+            }
+        });
         peer.notifyAutomaticFutures(future);
     }
 }
@@ -16,6 +16,8 @@
 
 package net.tomp2p.replication;
 
+import io.netty.buffer.ByteBuf;
+
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
@@ -123,7 +125,8 @@ public class SynchronizationDirectBuilder extends DHTBuilder<SynchronizationDire
                 }
             }
             if (newDataMap.size() > 0) {
-                return new DataMap(newDataMap);
+                // the storage returns duplicates, which are released once they are sent
+                return new DataMap(newDataMap).releaseAfterEncoding(true);
             } else {
                 throw new IllegalArgumentException("Need either dataMap, key, or keys!");
             }
@@ -138,16 +141,25 @@ public class SynchronizationDirectBuilder extends DHTBuilder<SynchronizationDire
             dataMapHash.putAll(dataMap.convertToHash());
         }
         if (key != null) {
-            dataMapHash.put(key, peer.getPeerBean().storage().get(key).hash());
+            dataMapHash.put(key, hash(key));
         }
         if (keys != null) {
             for (Number640 key : keys) {
-                dataMapHash.put(key, peer.getPeerBean().storage().get(key).hash());
+                dataMapHash.put(key, hash(key));
             }
         }
         return dataMapHash;
     }
 
+    private Number160 hash(final Number640 key) {
+        final Data data = peer.getPeerBean().storage().get(key);
+        try {
+            return data.hash();
+        } finally {
+            data.release();
+        }
+    }
+
     public ArrayList<Instruction> instructions() {
         return instructions;
     }
@@ -215,20 +227,24 @@ public class SynchronizationDirectBuilder extends DHTBuilder<SynchronizationDire
                             } else {
                                 // put diff
                                 secondMessageRequired = true;
-                                ArrayList<Checksum> checksums = Synchronization.decodeChecksumList(data);
                                 Data data2 = peer.getPeerBean().storage().get(entry.getKey());
-                                ArrayList<Instruction> instructions = Synchronization.getInstructions(
-                                        data2.toBytes(), checksums, Synchronization.SIZE);
-                                for (Instruction instruction : instructions) {
-                                    if (instruction.getReference() != -1) {
-                                        dataNotCopied += Synchronization.SIZE;
-                                    } else {
-                                        dataCopy += instruction.literalSize();
-                                    }
+                                final ByteBuf value = data2.buffer();
+                                final ByteBuf checksums = entry.getValue().buffer();
+                                final ByteBuf delta;
+                                try {
+                                    delta = StreamingSynchronization.delta(value, checksums,
+                                            dataMapHash.get(entry.getKey()),
+                                            StreamingSynchronization.DEFAULT_PARALLELISM);
+                                } finally {
+                                    value.release();
+                                    checksums.release();
+                                    data2.release();
                                 }
-                                byte[] endoced = Synchronization.encodeInstructionList(instructions,
-                                        dataMapHash.get(entry.getKey()));
-                                Data data1 = new Data(endoced).setFlag1();
+                                int literalLength = (int) StreamingSynchronization.literalLength(delta);
+                                dataCopy += literalLength;
+                                dataNotCopied += data2.length() - literalLength;
+                                Data data1 = new Data(delta.array(), delta.arrayOffset(), delta.readableBytes())
+                                        .setFlag1();
                                 retVal.put(entry.getKey(), data1);
                                 diffCount++;
                             }
@@ -238,7 +254,8 @@ public class SynchronizationDirectBuilder extends DHTBuilder<SynchronizationDire
                         syncStat.dataCopyCount(dataCopyCount);
                         syncStat.diffCount(diffCount);
                         syncStat.dataNotCopied(dataNotCopied);
-                        SynchronizationDirectBuilder.this.dataMap = new DataMap(retVal);
+                        // the data copied from the storage is released once it is sent
+                        SynchronizationDirectBuilder.this.dataMap = new DataMap(retVal).releaseAfterEncoding(true);
 
                         if (secondMessageRequired) {
                             FutureResponse fr = peerSync.getSynchronizationRPC().syncMessage(other,
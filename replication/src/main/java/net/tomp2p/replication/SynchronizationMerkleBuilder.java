@@ -0,0 +1,279 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.replication;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.KeyMap640;
+import net.tomp2p.message.Message.Type;
+import net.tomp2p.p2p.builder.DHTBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.storage.MerkleTree;
+import net.tomp2p.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The builder that compares the Merkle tree of this peer with the Merkle tree of an other peer, see
+ * {@link net.tomp2p.p2p.PeerMaker#merkleTree(MerkleTree)}. It starts with the root and only descends into the nodes
+ * that differ and that cover location keys of interest, one level per round trip. The result are the location keys
+ * whose entries differ, so that only those need to be synchronized. If one of the peers does not maintain a tree, all
+ * location keys of interest are returned.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class SynchronizationMerkleBuilder extends DHTBuilder<SynchronizationMerkleBuilder> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SynchronizationMerkleBuilder.class);
+
+    private static final FutureDone<NavigableSet<Number160>> FUTURE_SHUTDOWN = new FutureDone<NavigableSet<Number160>>()
+            .setFailed("merkle builder - peer is shutting down");
+
+    private NavigableSet<Number160> locationKeys;
+
+    private final PeerAddress other;
+
+    private final PeerSync peerSync;
+
+    /**
+     * Constructor.
+     *
+     * @param peerSync
+     *            The synchronization of the responsible peer
+     * @param other
+     *            The peer to compare with
+     */
+    public SynchronizationMerkleBuilder(final PeerSync peerSync, final PeerAddress other) {
+        super(peerSync.peer(), Number160.ZERO);
+        self(this);
+        this.other = other;
+        this.peerSync = peerSync;
+    }
+
+    public NavigableSet<Number160> locationKeys() {
+        return locationKeys;
+    }
+
+    /**
+     * @param locationKeys
+     *            The location keys to compare, the default is null, which compares all location keys of this peer
+     * @return This class
+     */
+    public SynchronizationMerkleBuilder locationKeys(final NavigableSet<Number160> locationKeys) {
+        this.locationKeys = locationKeys;
+        return this;
+    }
+
+    @Override
+    public SynchronizationMerkleBuilder setDomainKey(final Number160 domainKey) {
+        throw new IllegalArgumentException("Cannot be set here");
+    }
+
+    public FutureDone<NavigableSet<Number160>> start() {
+        if (peer.isShutdown()) {
+            return FUTURE_SHUTDOWN;
+        }
+        final FutureDone<NavigableSet<Number160>> futureMerkle = new FutureDone<NavigableSet<Number160>>();
+        final MerkleTree merkleTree = peer.getPeerBean().storage().merkleTree();
+        if (merkleTree == null) {
+            futureMerkle.setDone(candidates(null));
+            return futureMerkle;
+        }
+        final NavigableMap<Number640, Number160> root = new TreeMap<Number640, Number160>();
+        root.put(nodeKey(0, 0, merkleTree.levels()), merkleTree.root());
+        round(merkleTree, root, new TreeSet<Number160>(), futureMerkle);
+        return futureMerkle;
+    }
+
+    /**
+     * Sends the nodes of one level and descends into the children of the nodes that differ.
+     */
+    private void round(final MerkleTree merkleTree, final NavigableMap<Number640, Number160> nodes,
+            final NavigableSet<Number160> differing, final FutureDone<NavigableSet<Number160>> futureMerkle) {
+        FutureChannelCreator futureChannelCreator = peer.getConnectionBean().reservation().create(0, 1);
+        futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future2) throws Exception {
+                if (!future2.isSuccess()) {
+                    futureMerkle.setFailed(future2);
+                    LOG.error("merkle failed {}", future2.getFailedReason());
+                    return;
+                }
+                final FutureResponse futureResponse = peerSync.getSynchronizationRPC().merkleMessage(other, nodes,
+                        SynchronizationMerkleBuilder.this, future2.getChannelCreator());
+                Utils.addReleaseListener(future2.getChannelCreator(), futureResponse);
+                futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+                    @Override
+                    public void operationComplete(final FutureResponse future) throws Exception {
+                        if (future.isFailed()) {
+                            futureMerkle.setFailed(future);
+                            LOG.error("merkle failed {}", future.getFailedReason());
+                            return;
+                        }
+                        if (future.getResponse().getType() == Type.NOT_FOUND) {
+                            // the other peer cannot compare trees
+                            futureMerkle.setDone(candidates(merkleTree));
+                            return;
+                        }
+                        final KeyMap640 reply = future.getResponse().getKeyMap640(0);
+                        final NavigableMap<Number640, Number160> next = descend(merkleTree, nodes,
+                                reply == null ? new TreeMap<Number640, Number160>() : reply.keysMap(), differing);
+                        if (next.isEmpty()) {
+                            futureMerkle.setDone(differing);
+                        } else {
+                            round(merkleTree, next, differing, futureMerkle);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Compares the reply of the other peer with this tree.
+     *
+     * @param merkleTree
+     *            The tree of this peer
+     * @param nodes
+     *            The nodes that have been sent
+     * @param reply
+     *            The nodes that differ with their children, or with the location keys for leaves
+     * @param differing
+     *            The location keys that differ, which are added here
+     * @return The children that differ and that need to be sent in the next round
+     */
+    private NavigableMap<Number640, Number160> descend(final MerkleTree merkleTree,
+            final NavigableMap<Number640, Number160> nodes, final NavigableMap<Number640, Number160> reply,
+            final NavigableSet<Number160> differing) {
+        final NavigableMap<Number640, Number160> next = new TreeMap<Number640, Number160>();
+        final int levels = merkleTree.levels();
+        for (Number640 node : nodes.keySet()) {
+            if (!reply.containsKey(node)) {
+                // same on both peers
+                continue;
+            }
+            final int level = level(node);
+            final int index = MerkleTree.index(node.getLocationKey(), level);
+            if (level < levels) {
+                for (Map.Entry<Integer, Number160> child : merkleTree.children(level, index).entrySet()) {
+                    final Number640 childKey = nodeKey(level + 1, child.getKey(), levels);
+                    if (!child.getValue().equals(reply.get(childKey)) && covers(level + 1, child.getKey())) {
+                        next.put(childKey, child.getValue());
+                    }
+                }
+            } else {
+                for (Map.Entry<Number160, Number160> location : merkleTree.locationHashes(
+                        MerkleTree.from(level, index), MerkleTree.to(level, index)).entrySet()) {
+                    if ((locationKeys == null || locationKeys.contains(location.getKey()))
+                            && !location.getValue().equals(reply.get(locationKey(location.getKey())))) {
+                        differing.add(location.getKey());
+                    }
+                }
+            }
+        }
+        return next;
+    }
+
+    /**
+     * @return True if the node covers location keys of interest
+     */
+    private boolean covers(final int level, final int index) {
+        return locationKeys == null
+                || !locationKeys.subSet(MerkleTree.from(level, index), true, MerkleTree.to(level, index), true)
+                        .isEmpty();
+    }
+
+    /**
+     * @return The location keys that need to be synchronized if the trees cannot be compared
+     */
+    private NavigableSet<Number160> candidates(final MerkleTree merkleTree) {
+        if (locationKeys != null) {
+            return locationKeys;
+        }
+        if (merkleTree != null) {
+            return new TreeSet<Number160>(merkleTree.locationHashes(Number160.ZERO, Number160.MAX_VALUE).keySet());
+        }
+        final NavigableSet<Number160> candidates = new TreeSet<Number160>();
+        for (Number640 key : peer.getPeerBean().storage().keySet()) {
+            candidates.add(key.getLocationKey());
+        }
+        return candidates;
+    }
+
+    /**
+     * Encodes a node of the tree as a key, with the smallest covered location key as the location key, the level as
+     * the domain key and the number of levels of the tree as the content key.
+     *
+     * @param level
+     *            The level of the node
+     * @param index
+     *            The index of the node on this level
+     * @param levels
+     *            The number of levels of the tree
+     * @return The key of the node
+     */
+    static Number640 nodeKey(final int level, final int index, final int levels) {
+        return new Number640(MerkleTree.from(level, index), new Number160(level), new Number160(levels),
+                Number160.ZERO);
+    }
+
+    /**
+     * Encodes a location key of a leaf as a key, which has the maximum value as domain key to distinguish it from a
+     * node.
+     *
+     * @param locationKey
+     *            The location key
+     * @return The key of the location key
+     */
+    static Number640 locationKey(final Number160 locationKey) {
+        return new Number640(locationKey, Number160.MAX_VALUE, Number160.ZERO, Number160.ZERO);
+    }
+
+    /**
+     * @param key
+     *            A key that has been sent
+     * @param levels
+     *            The number of levels of the tree of this peer
+     * @return True if the key is a node of a tree with the same number of levels
+     */
+    static boolean isNode(final Number640 key, final int levels) {
+        final int level = level(key);
+        return level >= 0 && level <= levels && key.getDomainKey().equals(new Number160(level))
+                && key.getContentKey().equals(new Number160(levels));
+    }
+
+    /**
+     * @param node
+     *            The key of a node
+     * @return The level of the node
+     */
+    static int level(final Number640 node) {
+        return node.getDomainKey().intValue();
+    }
+}
@@ -16,6 +16,8 @@
 
 package net.tomp2p.replication;
 
+import io.netty.buffer.ByteBuf;
+
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
@@ -23,6 +25,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 
 import net.tomp2p.connection.ChannelCreator;
 import net.tomp2p.connection.ConnectionBean;
@@ -41,6 +45,7 @@ import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.rpc.DispatchHandler;
 import net.tomp2p.storage.Data;
+import net.tomp2p.storage.MerkleTree;
 import net.tomp2p.storage.StorageLayer.PutStatus;
 
 import org.slf4j.Logger;
@@ -59,6 +64,7 @@ public class SynchronizationRPC extends DispatchHandler {
 
     public static final byte INFO_COMMAND = 13;
     public static final byte SYNC_COMMAND = 14;
+    public static final byte MERKLE_COMMAND = 15;
 
     /**
      * Constructor that registers this RPC with the message handler.
@@ -70,7 +76,7 @@ public class SynchronizationRPC extends DispatchHandler {
      */
     public SynchronizationRPC(final PeerBean peerBean, final ConnectionBean connectionBean) {
         super(peerBean, connectionBean);
-        register(INFO_COMMAND, SYNC_COMMAND);
+        register(INFO_COMMAND, SYNC_COMMAND, MERKLE_COMMAND);
     }
 
     /**
@@ -134,17 +140,54 @@ public class SynchronizationRPC extends DispatchHandler {
         return requestHandler.sendTCP(channelCreator);
     }
 
+    /**
+     * Sends the hashes of nodes of the Merkle tree and gets the hashes of the children of the nodes that differ, or the
+     * hashes of the location keys for leaves that differ. This is an RPC.
+     * 
+     * @param remotePeer
+     *            The remote peer to send this request
+     * @param nodes
+     *            The nodes with their hashes, see {@link SynchronizationMerkleBuilder#nodeKey(int, int, int)}
+     * @param synchronizationBuilder
+     *            Used for keeping parameters that are sent
+     * @param channelCreator
+     *            The channel creator that creates connections
+     * @return The future response to keep track of future events
+     */
+    public FutureResponse merkleMessage(final PeerAddress remotePeer, final NavigableMap<Number640, Number160> nodes,
+            final SynchronizationMerkleBuilder synchronizationBuilder, final ChannelCreator channelCreator) {
+        final Message message = createMessage(remotePeer, MERKLE_COMMAND, Type.REQUEST_1);
+
+        if (synchronizationBuilder.isSign()) {
+            message.setPublicKeyAndSign(synchronizationBuilder.keyPair());
+        }
+
+        message.setKeyMap640(new KeyMap640(nodes));
+
+        FutureResponse futureResponse = new FutureResponse(message);
+        final RequestHandler<FutureResponse> requestHandler = new RequestHandler<FutureResponse>(
+                futureResponse, peerBean(), connectionBean(), synchronizationBuilder);
+        LOG.debug("Merkle sent {}", message);
+        return requestHandler.sendTCP(channelCreator);
+    }
+
     @Override
     public void handleResponse(final Message message, PeerConnection peerConnection, final boolean sign, Responder responder) throws Exception {
-        if (!(message.getCommand() == INFO_COMMAND || message.getCommand() == SYNC_COMMAND)) {
+        if (!(message.getCommand() == INFO_COMMAND || message.getCommand() == SYNC_COMMAND || message
+                .getCommand() == MERKLE_COMMAND)) {
             throw new IllegalArgumentException("Message content is wrong");
         }
         final Message responseMessage = createResponseMessage(message, Type.OK);
         switch (message.getCommand()) {
         case INFO_COMMAND:
             handleInfo(message, responseMessage, responder);
+            break;
         case SYNC_COMMAND:
             handleSync(message, responseMessage, responder);
+            break;
+        case MERKLE_COMMAND:
+            handleMerkle(message, responseMessage, responder);
+            break;
         default:
             throw new IllegalArgumentException("Message content is wrong");
         }
@@ -174,18 +217,28 @@ public class SynchronizationRPC extends DispatchHandler {
         for (Map.Entry<Number640, Number160> entry : keysMap.keysMap().entrySet()) {
             Data data = peerBean().storage().get(entry.getKey());
             if (data != null) {
-                // found, check if same
-                if (entry.getValue().equals(data.hash())) {
-                    retVal.put(entry.getKey(), new Data(new byte[] { 0 }));
-                    LOG.debug("no sync required");
-                } else {
-                    // get the checksums
-                    ArrayList<Checksum> checksums = Synchronization.getChecksums(data.toBytes(),
-                            Synchronization.SIZE);
-                    
-                    byte[] encoded = Synchronization.encodeChecksumList(checksums);
-                    retVal.put(entry.getKey(), new Data(encoded));
-                    LOG.debug("sync required");
+                try {
+                    // found, check if same
+                    if (entry.getValue().equals(data.hash())) {
+                        retVal.put(entry.getKey(), new Data(new byte[] { 0 }));
+                        LOG.debug("no sync required");
+                    } else {
+                        // get the checksums
+                        final ByteBuf buf = data.buffer();
+                        final ByteBuf checksums;
+                        try {
+                            checksums = StreamingSynchronization.checksums(buf,
+                                    StreamingSynchronization.blockSize(data.length()),
+                                    StreamingSynchronization.DEFAULT_PARALLELISM);
+                        } finally {
+                            buf.release();
+                        }
+                        retVal.put(entry.getKey(), new Data(checksums.array(), checksums.arrayOffset(),
+                                checksums.readableBytes()));
+                        LOG.debug("sync required");
+                    }
+                } finally {
+                    data.release();
                 }
             } else {
                 // not found
@@ -197,6 +250,53 @@ public class SynchronizationRPC extends DispatchHandler {
         responder.response(responseMessage);
     }
 
+    /**
+     * Handles the Merkle message. For each node that differs, the node and its children are returned, or the location
+     * keys of a leaf. Nodes that are the same are left out. If this peer does not maintain a Merkle tree with the same
+     * number of levels, {@link Type#NOT_FOUND} is returned.
+     * 
+     * @param message
+     *            The message from a responsible peer
+     * @param responseMessage
+     *            The response message to a responsible peer
+     */
+    private void handleMerkle(final Message message, final Message responseMessage, Responder responder) {
+        LOG.debug("Merkle received: {} -> {}", message.getSender().getPeerId(), message.getRecipient()
+                .getPeerId());
+
+        final MerkleTree merkleTree = peerBean().storage().merkleTree();
+        final KeyMap640 nodes = message.getKeyMap640(0);
+        final NavigableMap<Number640, Number160> retVal = new TreeMap<Number640, Number160>();
+        for (Map.Entry<Number640, Number160> entry : nodes.keysMap().entrySet()) {
+            final Number640 node = entry.getKey();
+            if (merkleTree == null || !SynchronizationMerkleBuilder.isNode(node, merkleTree.levels())) {
+                responseMessage.setType(Type.NOT_FOUND);
+                responder.response(responseMessage);
+                return;
+            }
+            final int level = SynchronizationMerkleBuilder.level(node);
+            final int index = MerkleTree.index(node.getLocationKey(), level);
+            final Number160 hash = merkleTree.hash(level, index);
+            if (hash.equals(entry.getValue())) {
+                continue;
+            }
+            retVal.put(node, hash);
+            if (level < merkleTree.levels()) {
+                for (Map.Entry<Integer, Number160> child : merkleTree.children(level, index).entrySet()) {
+                    retVal.put(SynchronizationMerkleBuilder.nodeKey(level + 1, child.getKey(), merkleTree.levels()),
+                            child.getValue());
+                }
+            } else {
+                for (Map.Entry<Number160, Number160> location : merkleTree.locationHashes(
+                        MerkleTree.from(level, index), MerkleTree.to(level, index)).entrySet()) {
+                    retVal.put(SynchronizationMerkleBuilder.locationKey(location.getKey()), location.getValue());
+                }
+            }
+        }
+        responseMessage.setKeyMap640(new KeyMap640(retVal));
+        responder.response(responseMessage);
+    }
+
     /**
      * Handles the sync message by putting the changed part of data into a hash table. This is an RPC.
      * 
@@ -224,19 +324,34 @@ public class SynchronizationRPC extends DispatchHandler {
             } else if (entry.getValue().length() > 0) {
                 if (entry.getValue().isFlag1()) {
                     // diff
-                    ArrayList<Instruction> instructions = Synchronization.decodeInstructionList(entry
-                            .getValue().toBytes());
-                    Number160 hash = Synchronization.decodeHash(entry.getValue().toBytes());
-
-                    Data data = peerBean().storage().get(entry.getKey());
+                    final ByteBuf delta = entry.getValue().buffer();
+                    final ByteBuf reconstructedValue;
+                    try {
+                        Number160 hash = StreamingSynchronization.hash(delta);
 
-                    if (hash.equals(data.hash())) {
-                        continue;
+                        Data data = peerBean().storage().get(entry.getKey());
+                        if (data == null) {
+                            continue;
+                        }
+                        try {
+                            if (hash.equals(data.hash())) {
+                                continue;
+                            }
+                            final ByteBuf buf = data.buffer();
+                            try {
+                                reconstructedValue = StreamingSynchronization.reconstruct(buf, delta);
+                            } finally {
+                                buf.release();
+                            }
+                        } finally {
+                            data.release();
+                        }
+                    } finally {
+                        delta.release();
                     }
-                    byte[] reconstructedValue = Synchronization.getReconstructedValue(data.toBytes(),
-                            instructions, Synchronization.SIZE);
                     //TODO: domain protection?, make the flags configurable
-                    Enum<?> status = peerBean().storage().put(entry.getKey(), new Data(reconstructedValue), publicKey, false, false);
+                    Enum<?> status = peerBean().storage().put(entry.getKey(), new Data(reconstructedValue.array(),
+                            reconstructedValue.arrayOffset(), reconstructedValue.readableBytes()), publicKey, false, false);
                     if (status == PutStatus.OK) {
                         retVal.add(entry.getKey());
                     }
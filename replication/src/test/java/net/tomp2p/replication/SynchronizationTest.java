@@ -1,5 +1,8 @@
 package net.tomp2p.replication;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
@@ -8,7 +11,9 @@ import java.math.BigInteger;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.NavigableSet;
 import java.util.Random;
+import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicReference;
 
 import net.tomp2p.futures.BaseFutureAdapter;
@@ -22,6 +27,8 @@ import net.tomp2p.p2p.PeerMaker;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.storage.Data;
+import net.tomp2p.storage.MerkleTree;
+import net.tomp2p.storage.StorageLayer;
 import net.tomp2p.utils.Utils;
 
 import org.junit.Assert;
@@ -516,6 +523,182 @@ public class SynchronizationTest {
         }
     }
 
+    @Test
+    public void testMerkle() throws IOException, InterruptedException {
+        Peer sender = null;
+        Peer receiver = null;
+        try {
+            final PeerSync senderSync = new PeerSync();
+            final SyncSender syncSender = new SyncSender(senderSync);
+            sender = new PeerMaker(new Number160(9)).ports(4009).merkleTree(new MerkleTree())
+                    .replicationSender(syncSender).makeAndListen();
+            receiver = new PeerMaker(new Number160(10)).ports(4010).merkleTree(new MerkleTree())
+                    .replicationSender(new SyncSender(new PeerSync())).makeAndListen();
+
+            StorageLayer senderStorage = sender.getPeerBean().storage();
+            StorageLayer receiverStorage = receiver.getPeerBean().storage();
+            NavigableSet<Number160> locationKeys = new TreeSet<Number160>();
+            for (int i = 0; i < 500; i++) {
+                Number160 locationKey = new Number160(random);
+                Number640 key = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
+                senderStorage.put(key, new Data("value" + i), null, false, false);
+                receiverStorage.put(key, new Data("value" + i), null, false, false);
+                locationKeys.add(locationKey);
+            }
+
+            FutureDone<NavigableSet<Number160>> future = senderSync.merkle(receiver.getPeerAddress()).start();
+            future.awaitUninterruptibly();
+            Assert.assertEquals(true, future.isSuccess());
+            Assert.assertEquals(0, future.getObject().size());
+
+            // one changed, one only on the sender, one only on the receiver, which the sender does not need to send
+            Number160 changed = locationKeys.first();
+            senderStorage.put(new Number640(changed, Number160.ZERO, Number160.ZERO, Number160.ZERO), new Data(
+                    "changed"), null, false, false);
+            Number160 added = new Number160(random);
+            senderStorage.put(new Number640(added, Number160.ZERO, Number160.ZERO, Number160.ZERO), new Data(
+                    "added"), null, false, false);
+            receiverStorage.put(new Number640(new Number160(random), Number160.ZERO, Number160.ZERO,
+                    Number160.ZERO), new Data("other"), null, false, false);
+
+            future = senderSync.merkle(receiver.getPeerAddress()).start();
+            future.awaitUninterruptibly();
+            Assert.assertEquals(true, future.isSuccess());
+            NavigableSet<Number160> expected = new TreeSet<Number160>();
+            expected.add(changed);
+            expected.add(added);
+            Assert.assertEquals(expected, future.getObject());
+
+            // only the location keys of interest
+            future = senderSync.merkle(receiver.getPeerAddress()).locationKeys(locationKeys).start();
+            future.awaitUninterruptibly();
+            Assert.assertEquals(1, future.getObject().size());
+            Assert.assertEquals(changed, future.getObject().first());
+
+            // the differing location keys are synchronized
+            syncSender.synchronize(receiver.getPeerAddress(), locationKeys);
+            for (int i = 0; i < 50 && !senderStorage.merkleTree().locationHash(changed)
+                    .equals(receiverStorage.merkleTree().locationHash(changed)); i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertEquals(senderStorage.merkleTree().locationHash(changed), receiverStorage.merkleTree()
+                    .locationHash(changed));
+        } finally {
+            if (sender != null) {
+                sender.shutdown().awaitUninterruptibly();
+            }
+            if (receiver != null) {
+                receiver.shutdown().awaitUninterruptibly();
+            }
+        }
+    }
+
+    @Test
+    public void testMerkleNoTree() throws IOException, InterruptedException {
+        Peer sender = null;
+        Peer receiver = null;
+        try {
+            final PeerSync senderSync = new PeerSync();
+            sender = new PeerMaker(new Number160(9)).ports(4009).merkleTree(new MerkleTree())
+                    .replicationSender(new SyncSender(senderSync)).makeAndListen();
+            receiver = new PeerMaker(new Number160(10)).ports(4010)
+                    .replicationSender(new SyncSender(new PeerSync())).makeAndListen();
+            Number640 key = new Number640(new Number160(700), Number160.ZERO, Number160.ZERO, Number160.ZERO);
+            sender.getPeerBean().storage().put(key, new Data("value"), null, false, false);
+            receiver.getPeerBean().storage().put(key, new Data("value"), null, false, false);
+
+            // the receiver cannot compare, so all location keys need to be synchronized
+            FutureDone<NavigableSet<Number160>> future = senderSync.merkle(receiver.getPeerAddress()).start();
+            future.awaitUninterruptibly();
+            Assert.assertEquals(true, future.isSuccess());
+            Assert.assertEquals(1, future.getObject().size());
+        } finally {
+            if (sender != null) {
+                sender.shutdown().awaitUninterruptibly();
+            }
+            if (receiver != null) {
+                receiver.shutdown().awaitUninterruptibly();
+            }
+        }
+    }
+
+    @Test
+    public void testStreamingSynchronization() {
+        byte[] oldValue = new byte[100000];
+        random.nextBytes(oldValue);
+        // change, insert and delete some bytes
+        byte[] newValue = new byte[oldValue.length + 1000];
+        System.arraycopy(oldValue, 0, newValue, 0, 20000);
+        random.nextBytes(newValue);
+        System.arraycopy(oldValue, 0, newValue, 0, 20000);
+        System.arraycopy(oldValue, 20000, newValue, 23000, 50000);
+        System.arraycopy(oldValue, 72000, newValue, 73000, 28000);
+        newValue[60000]++;
+
+        assertSync(oldValue, newValue, 1);
+        assertSync(oldValue, newValue, 4);
+        assertSync(oldValue, oldValue, 1);
+        assertSync(new byte[0], newValue, 1);
+        assertSync(oldValue, new byte[0], 1);
+        assertSync("Test1Test2Test3Test4".getBytes(), "test0Test2test0Test4".getBytes(), 1);
+
+        // the same value is sent as references only, including the shorter last block
+        int blockSize = StreamingSynchronization.blockSize(oldValue.length);
+        ByteBuf delta = StreamingSynchronization.delta(Unpooled.wrappedBuffer(oldValue),
+                StreamingSynchronization.checksums(Unpooled.wrappedBuffer(oldValue), blockSize, 1), Number160.ZERO,
+                1);
+        assertEquals(0, StreamingSynchronization.literalLength(delta));
+        ByteBuf checksums = StreamingSynchronization.checksums(Unpooled.wrappedBuffer(oldValue), blockSize, 1);
+        delta = StreamingSynchronization.delta(Unpooled.wrappedBuffer(newValue), checksums, Number160.ZERO, 1);
+        // the inserted bytes and at most a block around the insert, the delete and the changed byte
+        Assert.assertTrue(StreamingSynchronization.literalLength(delta) < 3000 + 4 * blockSize);
+    }
+
+    @Test
+    public void testStreamingSynchronizationParallel() {
+        byte[] oldValue = new byte[8 * 1024 * 1024 + 123];
+        random.nextBytes(oldValue);
+        byte[] newValue = oldValue.clone();
+        for (int i = 0; i < 10; i++) {
+            newValue[random.nextInt(newValue.length)]++;
+        }
+        ByteBuf oldBuf = split(oldValue);
+        ByteBuf newBuf = split(newValue);
+        int blockSize = StreamingSynchronization.blockSize(oldValue.length);
+        ByteBuf checksums = StreamingSynchronization.checksums(oldBuf, blockSize, 4);
+        assertEquals(checksums, StreamingSynchronization.checksums(Unpooled.wrappedBuffer(oldValue), blockSize, 1));
+        ByteBuf delta = StreamingSynchronization.delta(newBuf, checksums, Number160.ZERO, 4);
+        // at most the changed blocks and the blocks at the borders of the segments
+        Assert.assertTrue(StreamingSynchronization.literalLength(delta) <= 14 * blockSize);
+        assertArrayEquals(newValue, toBytes(StreamingSynchronization.reconstruct(oldBuf, delta)));
+        assertEquals(0, oldBuf.readerIndex());
+    }
+
+    private static void assertSync(byte[] oldValue, byte[] newValue, int parallelism) {
+        Number160 hash = Utils.makeSHAHash(newValue);
+        ByteBuf checksums = StreamingSynchronization.checksums(split(oldValue),
+                StreamingSynchronization.blockSize(oldValue.length), parallelism);
+        ByteBuf delta = StreamingSynchronization.delta(split(newValue), checksums, hash, parallelism);
+        assertEquals(hash, StreamingSynchronization.hash(delta));
+        assertArrayEquals(newValue, toBytes(StreamingSynchronization.reconstruct(split(oldValue), delta)));
+    }
+
+    /**
+     * @return A buffer that consists of several parts, like a large value that has been received
+     */
+    private static ByteBuf split(byte[] value) {
+        int third = value.length / 3;
+        return Unpooled.wrappedBuffer(Unpooled.wrappedBuffer(value, 0, third),
+                Unpooled.wrappedBuffer(value, third, third),
+                Unpooled.wrappedBuffer(value, 2 * third, value.length - 2 * third));
+    }
+
+    private static byte[] toBytes(ByteBuf buf) {
+        byte[] bytes = new byte[buf.readableBytes()];
+        buf.getBytes(buf.readerIndex(), bytes);
+        return bytes;
+    }
+
     @Test
     public void testIntToByteArrayToInt() {
         for (int i = 0; i < 1000000; i++) {
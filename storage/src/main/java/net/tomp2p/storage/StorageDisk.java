@@ -0,0 +1,530 @@
+/*
+ * Copyright 2012 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.tomp2p.connection.DefaultSignatureFactory;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.Number480;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.utils.Utils;
+
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Engine;
+import org.mapdb.Serializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent storage backed by MapDB. Changes are not committed on every put or remove, but in groups: a commit is
+ * done as soon as {@link #commitBatchSize} changes are pending or at the latest after {@link #commitIntervalMillis}.
+ * Thus, a crash loses at most the changes of the last commit window, but the storage is always consistent, since MapDB
+ * uses a write ahead log. The expiration index and the reverse map of the responsibilities are kept in memory and are
+ * rebuilt when the storage is opened. The data objects are stored as separate records, and the sorted map holds only
+ * their record ids, so that an overwrite or a remove does not read and deserialize the old data object.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class StorageDisk implements Storage {
+    private static final Logger LOG = LoggerFactory.getLogger(StorageDisk.class);
+
+    public static final int DEFAULT_COMMIT_INTERVAL_MILLIS = 100;
+
+    public static final int DEFAULT_COMMIT_BATCH_SIZE = 1000;
+
+    private static final String FILE_NAME = "tomp2p-mapdb";
+
+    private static final String DATA_MAP = "dataMap";
+
+    private static final String TIMEOUT_MAP = "timeoutMap";
+
+    private static final String PROTECTED_MAP = "protectedMap";
+
+    private static final String ENTRY_MAP = "entryMap";
+
+    private static final String RESPONSIBILITY_MAP = "responsibilityMap";
+
+    private static final DataSerializer DATA_SERIALIZER = new DataSerializer();
+
+    private final DB db;
+
+    private final Engine engine;
+
+    // Core, maps to the record ids of the data objects
+    private final ConcurrentNavigableMap<Number640, Long> dataMap;
+
+    // Maintenance
+    private final Map<Number640, Long> timeoutMap;
+
+    private final ExpiryWheel expiryWheel = new ExpiryWheel();
+
+    // Protection
+    private final Map<Number320, byte[]> protectedMap;
+
+    private final Map<Number480, byte[]> entryMap;
+
+    // Replication
+    private final Map<Number160, Number160> responsibilityMap;
+
+    private final StorageMemoryReplication storageMemoryReplication = new StorageMemoryReplication();
+
+    // Group commit
+    private final int commitBatchSize;
+
+    private final AtomicInteger pendingChanges = new AtomicInteger();
+
+    private final ScheduledExecutorService timer;
+
+    private final boolean ownTimer;
+
+    private final ScheduledFuture<?> commitFuture;
+
+    /**
+     * Opens or creates a storage in the given directory with the default commit window.
+     *
+     * @param dir
+     *            The directory where the database files are stored
+     */
+    public StorageDisk(final File dir) {
+        this(dir, null, DEFAULT_COMMIT_INTERVAL_MILLIS, DEFAULT_COMMIT_BATCH_SIZE);
+    }
+
+    /**
+     * Opens or creates a storage in the given directory.
+     *
+     * @param dir
+     *            The directory where the database files are stored
+     * @param timer
+     *            The timer that commits the pending changes. If null, a timer is created and shut down on close
+     * @param commitIntervalMillis
+     *            The max. time a change stays uncommitted
+     * @param commitBatchSize
+     *            The max. number of uncommitted changes
+     */
+    public StorageDisk(final File dir, final ScheduledExecutorService timer, final int commitIntervalMillis,
+            final int commitBatchSize) {
+        this.db = DBMaker.newFileDB(new File(dir, FILE_NAME)).closeOnJvmShutdown().make();
+        this.engine = db.getEngine();
+        this.dataMap = db.createTreeMap(DATA_MAP).keySerializerWrap(new Number640Serializer())
+                .valueSerializer(Serializer.LONG).makeOrGet();
+        this.timeoutMap = db.createHashMap(TIMEOUT_MAP).keySerializer(new Number640Serializer())
+                .valueSerializer(Serializer.LONG).makeOrGet();
+        this.protectedMap = db.createHashMap(PROTECTED_MAP).keySerializer(new Number320Serializer())
+                .valueSerializer(Serializer.BYTE_ARRAY).makeOrGet();
+        this.entryMap = db.createHashMap(ENTRY_MAP).keySerializer(new Number480Serializer())
+                .valueSerializer(Serializer.BYTE_ARRAY).makeOrGet();
+        this.responsibilityMap = db.createHashMap(RESPONSIBILITY_MAP).keySerializer(new Number160Serializer())
+                .valueSerializer(new Number160Serializer()).makeOrGet();
+        db.commit();
+        recover();
+
+        this.commitBatchSize = commitBatchSize;
+        this.ownTimer = timer == null;
+        this.timer = ownTimer ? Executors.newSingleThreadScheduledExecutor() : timer;
+        this.commitFuture = this.timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                commit();
+            }
+        }, commitIntervalMillis, commitIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Rebuilds the in-memory reverse maps from the persisted maps.
+     */
+    private void recover() {
+        for (Map.Entry<Number640, Long> entry : timeoutMap.entrySet()) {
+            expiryWheel.add(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<Number160, Number160> entry : responsibilityMap.entrySet()) {
+            storageMemoryReplication.updateResponsibilities(entry.getKey(), entry.getValue());
+        }
+        LOG.debug("recovered {} entries, {} timeouts, {} responsibilities", dataMap.size(), timeoutMap.size(),
+                responsibilityMap.size());
+    }
+
+    /**
+     * Commits all pending changes to disk. This is called periodically and if too many changes are pending, but can
+     * also be called to force a commit.
+     */
+    public void commit() {
+        if (pendingChanges.getAndSet(0) > 0) {
+            synchronized (db) {
+                if (!db.isClosed()) {
+                    db.commit();
+                }
+            }
+        }
+    }
+
+    private void changed() {
+        if (pendingChanges.incrementAndGet() >= commitBatchSize) {
+            commit();
+        }
+    }
+
+    // Core
+    @Override
+    public boolean put(final Number640 key, final Data value) {
+        final Long oldRecid = dataMap.put(key, engine.put(value, DATA_SERIALIZER));
+        if (oldRecid != null) {
+            engine.delete(oldRecid, DATA_SERIALIZER);
+        }
+        changed();
+        return true;
+    }
+
+    @Override
+    public Data get(final Number640 key) {
+        final Long recid = dataMap.get(key);
+        return recid == null ? null : engine.get(recid, DATA_SERIALIZER);
+    }
+
+    @Override
+    public boolean contains(final Number640 key) {
+        return dataMap.containsKey(key);
+    }
+
+    @Override
+    public int contains(final Number640 fromKey, final Number640 toKey) {
+        return dataMap.subMap(fromKey, true, toKey, true).size();
+    }
+
+    @Override
+    public Data remove(final Number640 key, final boolean returnData) {
+        final Long recid = dataMap.remove(key);
+        if (recid == null) {
+            return null;
+        }
+        final Data retVal = returnData ? engine.get(recid, DATA_SERIALIZER) : null;
+        engine.delete(recid, DATA_SERIALIZER);
+        changed();
+        return retVal;
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> remove(final Number640 fromKey, final Number640 toKey,
+            final boolean returnData) {
+        final NavigableMap<Number640, Long> tmp = new TreeMap<Number640, Long>(dataMap.subMap(fromKey, true, toKey,
+                true));
+        final NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
+        for (Map.Entry<Number640, Long> entry : tmp.entrySet()) {
+            dataMap.remove(entry.getKey());
+            if (returnData) {
+                retVal.put(entry.getKey(), engine.get(entry.getValue(), DATA_SERIALIZER));
+            }
+            engine.delete(entry.getValue(), DATA_SERIALIZER);
+        }
+        if (!tmp.isEmpty()) {
+            changed();
+        }
+        return retVal;
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> subMap(final Number640 fromKey, final Number640 toKey, int limit,
+            final boolean ascending) {
+        final NavigableMap<Number640, Long> tmp = dataMap.subMap(fromKey, true, toKey, true);
+        final Iterator<Map.Entry<Number640, Long>> iterator = ascending ? tmp.entrySet().iterator() : tmp
+                .descendingMap().entrySet().iterator();
+        final NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
+        for (int i = 0; iterator.hasNext() && (limit < 0 || i < limit); i++) {
+            final Map.Entry<Number640, Long> entry = iterator.next();
+            retVal.put(entry.getKey(), engine.get(entry.getValue(), DATA_SERIALIZER));
+        }
+        return retVal;
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> map() {
+        final NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
+        for (Map.Entry<Number640, Long> entry : dataMap.entrySet()) {
+            retVal.put(entry.getKey(), engine.get(entry.getValue(), DATA_SERIALIZER));
+        }
+        return retVal;
+    }
+
+    // Maintenance
+    @Override
+    public void addTimeout(final Number640 key, final long expiration) {
+        final Long oldExpiration = timeoutMap.put(key, expiration);
+        changed();
+        if (oldExpiration != null) {
+            expiryWheel.remove(key, oldExpiration);
+        }
+        expiryWheel.add(key, expiration);
+    }
+
+    @Override
+    public void removeTimeout(final Number640 key) {
+        final Long expiration = timeoutMap.remove(key);
+        if (expiration == null) {
+            return;
+        }
+        changed();
+        expiryWheel.remove(key, expiration);
+    }
+
+    @Override
+    public Collection<Number640> subMapTimeout(final long to) {
+        return expiryWheel.expired(to, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public Collection<Number640> subMapTimeout(final long to, final int limit) {
+        return expiryWheel.expired(to, limit);
+    }
+
+    // Protection
+    @Override
+    public boolean protectDomain(final Number320 key, final PublicKey publicKey) {
+        protectedMap.put(key, encode(publicKey));
+        changed();
+        return true;
+    }
+
+    @Override
+    public boolean isDomainProtectedByOthers(final Number320 key, final PublicKey publicKey) {
+        return isProtectedByOthers(protectedMap.get(key), publicKey);
+    }
+
+    @Override
+    public boolean protectEntry(final Number480 key, final PublicKey publicKey) {
+        entryMap.put(key, encode(publicKey));
+        changed();
+        return true;
+    }
+
+    @Override
+    public boolean isEntryProtectedByOthers(final Number480 key, final PublicKey publicKey) {
+        return isProtectedByOthers(entryMap.get(key), publicKey);
+    }
+
+    private static boolean isProtectedByOthers(final byte[] other, final PublicKey publicKey) {
+        if (other == null) {
+            return false;
+        }
+        // the domain is protected by a public key, but we provided no public key to check, so domain is protected
+        if (publicKey == null) {
+            return true;
+        }
+        return !Arrays.equals(other, encode(publicKey));
+    }
+
+    private static byte[] encode(final PublicKey publicKey) {
+        final byte[] encoded = publicKey == null ? null : publicKey.getEncoded();
+        return encoded == null ? Utils.EMPTY_BYTE_ARRAY : encoded;
+    }
+
+    // Replication
+    @Override
+    public Number160 findPeerIDForResponsibleContent(final Number160 locationKey) {
+        return storageMemoryReplication.findPeerIDForResponsibleContent(locationKey);
+    }
+
+    @Override
+    public Collection<Number160> findContentForResponsiblePeerID(final Number160 peerID) {
+        return storageMemoryReplication.findContentForResponsiblePeerID(peerID);
+    }
+
+    @Override
+    public boolean updateResponsibilities(final Number160 locationKey, final Number160 peerId) {
+        responsibilityMap.put(locationKey, peerId);
+        changed();
+        return storageMemoryReplication.updateResponsibilities(locationKey, peerId);
+    }
+
+    @Override
+    public void removeResponsibility(final Number160 locationKey) {
+        if (responsibilityMap.remove(locationKey) != null) {
+            changed();
+        }
+        storageMemoryReplication.removeResponsibility(locationKey);
+    }
+
+    // Misc
+    @Override
+    public void close() {
+        commitFuture.cancel(false);
+        if (ownTimer) {
+            timer.shutdown();
+        }
+        synchronized (db) {
+            if (!db.isClosed()) {
+                db.commit();
+                db.close();
+            }
+        }
+    }
+
+    private static Number160 readNumber160(final DataInput in) throws IOException {
+        final byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
+        in.readFully(me);
+        return new Number160(me);
+    }
+
+    private static void writeNumber160(final DataOutput out, final Number160 number160) throws IOException {
+        out.write(number160.toByteArray());
+    }
+
+    private static final class Number160Serializer implements Serializer<Number160>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void serialize(final DataOutput out, final Number160 value) throws IOException {
+            writeNumber160(out, value);
+        }
+
+        @Override
+        public Number160 deserialize(final DataInput in, final int available) throws IOException {
+            return readNumber160(in);
+        }
+
+        @Override
+        public int fixedSize() {
+            return Number160.BYTE_ARRAY_SIZE;
+        }
+    }
+
+    private static final class Number320Serializer implements Serializer<Number320>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void serialize(final DataOutput out, final Number320 value) throws IOException {
+            writeNumber160(out, value.getLocationKey());
+            writeNumber160(out, value.getDomainKey());
+        }
+
+        @Override
+        public Number320 deserialize(final DataInput in, final int available) throws IOException {
+            return new Number320(readNumber160(in), readNumber160(in));
+        }
+
+        @Override
+        public int fixedSize() {
+            return Number160.BYTE_ARRAY_SIZE * 2;
+        }
+    }
+
+    private static final class Number480Serializer implements Serializer<Number480>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void serialize(final DataOutput out, final Number480 value) throws IOException {
+            writeNumber160(out, value.getLocationKey());
+            writeNumber160(out, value.getDomainKey());
+            writeNumber160(out, value.getContentKey());
+        }
+
+        @Override
+        public Number480 deserialize(final DataInput in, final int available) throws IOException {
+            return new Number480(readNumber160(in), readNumber160(in), readNumber160(in));
+        }
+
+        @Override
+        public int fixedSize() {
+            return Number160.BYTE_ARRAY_SIZE * 3;
+        }
+    }
+
+    private static final class Number640Serializer implements Serializer<Number640>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void serialize(final DataOutput out, final Number640 value) throws IOException {
+            writeNumber160(out, value.getLocationKey());
+            writeNumber160(out, value.getDomainKey());
+            writeNumber160(out, value.getContentKey());
+            writeNumber160(out, value.getVersionKey());
+        }
+
+        @Override
+        public Number640 deserialize(final DataInput in, final int available) throws IOException {
+            return new Number640(readNumber160(in), readNumber160(in), readNumber160(in), readNumber160(in));
+        }
+
+        @Override
+        public int fixedSize() {
+            return Number160.BYTE_ARRAY_SIZE * 4;
+        }
+    }
+
+    /**
+     * Stores the data object in the same format as it is sent over the wire.
+     */
+    private static final class DataSerializer implements Serializer<Data>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void serialize(final DataOutput out, final Data value) throws IOException {
+            final AlternativeCompositeByteBuf buf = AlternativeCompositeByteBuf.compBuffer();
+            try {
+                final Data data = value.duplicate();
+                data.encodeHeader(buf);
+                data.encodeDone(buf);
+                data.release();
+                final byte[] me = new byte[buf.readableBytes()];
+                buf.readBytes(me);
+                out.writeInt(me.length);
+                out.write(me);
+            } finally {
+                buf.release();
+            }
+        }
+
+        @Override
+        public Data deserialize(final DataInput in, final int available) throws IOException {
+            final byte[] me = new byte[in.readInt()];
+            in.readFully(me);
+            final ByteBuf buf = Unpooled.wrappedBuffer(me);
+            final Data data = Data.decodeHeader(buf, new DefaultSignatureFactory());
+            if (data == null || !data.decodeBuffer(buf) || !data.decodeDone(buf, null)) {
+                throw new IOException("corrupt data object");
+            }
+            return data;
+        }
+
+        @Override
+        public int fixedSize() {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package net.tomp2p.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.NavigableMap;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.StorageLayer.PutStatus;
+import net.tomp2p.utils.Utils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestStorageDisk {
+    final private static Number160 locationKey = new Number160(10);
+
+    final private static Number160 domainKey = new Number160(20);
+
+    final private Number640 key1 = new Number640(locationKey, domainKey, new Number160(50), Number160.ZERO);
+    final private Number640 key2 = new Number640(locationKey, domainKey, new Number160(60), Number160.ZERO);
+    final private Number640 key3 = new Number640(locationKey, domainKey, new Number160(70), Number160.ZERO);
+
+    private File dir;
+
+    @Before
+    public void before() throws IOException {
+        dir = Utils.createTempDir();
+    }
+
+    @After
+    public void after() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        StorageDisk storageD = new StorageDisk(dir);
+        StorageLayer storage = new StorageLayer(storageD);
+        Assert.assertEquals(PutStatus.OK, storage.put(key1, new Data("test1"), null, false, false));
+        Assert.assertEquals(PutStatus.OK, storage.put(key2, new Data("test2"), null, false, false));
+        Assert.assertEquals(PutStatus.FAILED_NOT_ABSENT, storage.put(key1, new Data("test3"), null, true, false));
+        Assert.assertEquals("test1", storage.get(key1).object());
+        Assert.assertEquals(2, storageD.contains(key1, key3));
+        NavigableMap<Number640, Data> result = storage.get(key1, key3, 1, false);
+        Assert.assertEquals(key2, result.firstKey());
+        Assert.assertEquals("test2", storage.remove(key2, null, true).element0().object());
+        Assert.assertEquals(1, storage.get(key1, key3, -1, true).size());
+        storageD.close();
+    }
+
+    @Test
+    public void testOverwriteRemove() throws Exception {
+        StorageDisk storageD = new StorageDisk(dir);
+        storageD.put(key1, new Data("test1"));
+        storageD.put(key1, new Data("test2"));
+        Assert.assertEquals("test2", storageD.get(key1).object());
+        Assert.assertEquals(null, storageD.remove(key1, false));
+        Assert.assertEquals(false, storageD.contains(key1));
+        storageD.put(key2, new Data("test3"));
+        Assert.assertEquals("test3", storageD.remove(key2, true).object());
+        Assert.assertEquals(null, storageD.remove(key2, true));
+        storageD.close();
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        KeyPair pair = KeyPairGenerator.getInstance("DSA").generateKeyPair();
+        StorageDisk storageD = new StorageDisk(dir);
+        StorageLayer storage = new StorageLayer(storageD);
+        Assert.assertEquals(PutStatus.OK, storage.put(key1, new Data("test1").ttlSeconds(1), pair.getPublic(),
+                false, true));
+        storageD.updateResponsibilities(locationKey, domainKey);
+        storageD.close();
+
+        storageD = new StorageDisk(dir);
+        storage = new StorageLayer(storageD);
+        Assert.assertEquals("test1", storage.get(key1).object());
+        Assert.assertEquals(1, storage.get(key1).ttlSeconds());
+        Assert.assertEquals(true, storageD.isDomainProtectedByOthers(key1.locationAndDomainKey(), null));
+        Assert.assertEquals(false,
+                storageD.isDomainProtectedByOthers(key1.locationAndDomainKey(), pair.getPublic()));
+        Assert.assertEquals(1, storageD.findContentForResponsiblePeerID(domainKey).size());
+        // the timeout index is rebuilt from disk
+        Thread.sleep(1500);
+        storage.checkTimeout();
+        Assert.assertEquals(null, storage.get(key1));
+        storageD.close();
+    }
+
+    /**
+     * Writes with group commit in a separate VM that is halted without closing the storage. Everything that was
+     * committed before the crash has to be there after reopening.
+     */
+    @Test
+    public void testCrashRecovery() throws Exception {
+        final int nr = 500;
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                TestStorageDisk.class.getName(), dir.getPath(), Integer.toString(nr)).inheritIO().start();
+        Assert.assertEquals(0, process.waitFor());
+
+        StorageDisk storageD = new StorageDisk(dir);
+        Assert.assertEquals(nr, storageD.map().size());
+        for (int i = 0; i < nr; i++) {
+            Data data = storageD.get(new Number640(locationKey, domainKey, new Number160(i), Number160.ZERO));
+            Assert.assertEquals(i, data.object());
+        }
+        storageD.close();
+    }
+
+    /**
+     * Used by {@link #testCrashRecovery()}.
+     */
+    public static void main(String[] args) throws Exception {
+        final int nr = Integer.parseInt(args[1]);
+        StorageDisk storageD = new StorageDisk(new File(args[0]), null, 50, 100);
+        for (int i = 0; i < nr; i++) {
+            storageD.put(new Number640(locationKey, domainKey, new Number160(i), Number160.ZERO), new Data(i));
+        }
+        // wait for the commit window, then crash
+        Thread.sleep(500);
+        Runtime.getRuntime().halt(0);
+    }
+}